@@ -0,0 +1,179 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Utility methods for the asynchronous file operations of IAsyncFile: thread pools for the backends that issue
+ * concurrent requests from multiple threads, and conversion between futures and blocking calls. */
+public class AsyncFileSupport {
+	
+	/** The maximum number of blocking operations that VFile will perform at once, on behalf of backends that do not
+	 * implement IAsyncFile. */
+	public static final int DEFAULT_MAX_BLOCKING_THREADS = 16;
+	
+	/** Threads of the pools are stopped once they have been idle for this many msecs */
+	private static final long THREAD_IDLE_TIMEOUT = 30 * 1000;
+	
+	private static ThreadPoolExecutor _blockingExecutor = null;
+	
+	private static int _maxBlockingThreads = DEFAULT_MAX_BLOCKING_THREADS;
+	
+	private AsyncFileSupport() {
+	}
+	
+	/** Returns a pool of at most maxThreads daemon threads (with the given name); threads are started as they are 
+	 * needed, and stop once they have been idle for a time, so an unused pool holds no threads. Tasks beyond the 
+	 * maximum wait in the order that they were submitted. */
+	public static ThreadPoolExecutor newExecutor(final String name, int maxThreads) {
+		ThreadPoolExecutor result = new ThreadPoolExecutor(maxThreads, maxThreads, THREAD_IDLE_TIMEOUT, TimeUnit.MILLISECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName(name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		result.allowCoreThreadTimeOut(true);
+		return result;
+	}
+	
+	/** Changes the maximum number of threads of a pool that was returned by newExecutor(...). */
+	public static void setMaxThreads(ThreadPoolExecutor executor, int maxThreads) {
+		if(maxThreads < 1) {
+			throw new IllegalArgumentException("The maximum number of threads must be at least 1");
+		}
+		
+		// The core size may never exceed the maximum size, so the order depends on the direction of the change
+		if(maxThreads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(maxThreads);
+			executor.setCorePoolSize(maxThreads);
+		} else {
+			executor.setCorePoolSize(maxThreads);
+			executor.setMaximumPoolSize(maxThreads);
+		}
+	}
+	
+	/** Sets the maximum number of blocking operations that VFile will perform at once (see DEFAULT_MAX_BLOCKING_THREADS). */
+	public static synchronized void setMaxBlockingThreads(int maxBlockingThreads) {
+		_maxBlockingThreads = maxBlockingThreads;
+		if(_blockingExecutor != null) {
+			setMaxThreads(_blockingExecutor, maxBlockingThreads);
+		}
+	}
+	
+	/** The pool on which VFile performs the blocking operations of backends that do not implement IAsyncFile. */
+	static synchronized Executor getBlockingExecutor() {
+		if(_blockingExecutor == null) {
+			_blockingExecutor = newExecutor(AsyncFileSupport.class.getName(), _maxBlockingThreads);
+		}
+		return _blockingExecutor;
+	}
+	
+	/** Runs the callable on the executor; the future completes with its result, or with the exception that it threw. */
+	public static <T> CompletableFuture<T> supply(Executor executor, final Callable<T> callable) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					complete(result, callable);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		
+		return result;
+	}
+	
+	/** Runs the callable on the calling thread, for operations that do not block; the future is complete on return. */
+	public static <T> CompletableFuture<T> call(Callable<T> callable) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		complete(result, callable);
+		return result;
+	}
+	
+	private static <T> void complete(CompletableFuture<T> result, Callable<T> callable) {
+		try {
+			result.complete(callable.call());
+		} catch(Throwable t) {
+			result.completeExceptionally(t);
+		}
+	}
+	
+	/** Waits for the future, and returns its result. If the future completed exceptionally, its exception is thrown:
+	 * IOExceptions, RuntimeExceptions and Errors are thrown as is, and any other exception is wrapped in an IOException. */
+	public static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+			
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a file operation.");
+			
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			while(cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			
+			if(cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+	
+	/** Reads the remainder of the stream, and closes it. */
+	public static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[16384];
+			int c;
+			while((c = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, c);
+			}
+		} finally {
+			is.close();
+		}
+		return baos.toByteArray();
+	}
+	
+}
@@ -0,0 +1,381 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.vfile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A bounded pool of sessions (connections) to a remote host, for the backends whose files may be operated on
+ * concurrently, but whose sessions may only be used by one thread at a time; sessions are created (and checked,
+ * and closed) by the pool's SessionFactory.
+ *
+ * A session is borrowed by the thread that performs an operation, and then released (or, if it failed, invalidated).
+ * Before a session that has been idle is handed out it is checked, and sessions that fail are discarded; idle
+ * sessions above the minimum size are closed once they have been idle for the idle timeout. If a keep-alive interval
+ * is set, a keep-alive thread also checks each session that has been idle for that long, so that the server does not
+ * time it out.
+ */
+public class BoundedSessionPool<S> {
+	
+	/** Creates, checks and closes the sessions of a BoundedSessionPool. */
+	public static interface SessionFactory<S> {
+		
+		/** Returns a new session, which is ready for use; never returns null. */
+		S createSession() throws IOException;
+		
+		/** Checks (with a request to the server) that the session may still be used. */
+		boolean isHealthy(S session);
+		
+		/** Closes the session, ignoring any errors. */
+		void closeSession(S session);
+	}
+	
+	public static final int DEFAULT_MIN_SIZE = 1;
+	public static final int DEFAULT_MAX_SIZE = 4;
+	
+	/** Idle sessions above the minimum size are closed after this many msecs */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	
+	/** A session that has been idle for longer than this is checked before it is handed out */
+	private static final long VALIDATE_AFTER_IDLE_TIME = 10 * 1000;
+	
+	/** The maximum time to wait for a session, once the pool is at its maximum size */
+	private static final long MAX_BORROW_WAIT_TIME = 2 * 60 * 1000;
+	
+	/** Describes a session in error messages, e.g. "FTP connection" */
+	private final String _sessionName;
+	
+	/** Name of the threads of the pool */
+	private final String _threadName;
+	
+	private final SessionFactory<S> _factory;
+	
+	/** Synchronize on _lock when accessing any of the below */
+	private final Object _lock = new Object();
+	
+	private int _minSize = DEFAULT_MIN_SIZE;
+	private int _maxSize = DEFAULT_MAX_SIZE;
+	private long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	
+	/** Idle sessions are checked by the keep-alive thread after this many msecs; 0 if there is no keep-alive thread */
+	private long _keepAliveInterval = 0;
+	
+	/** Idle sessions, most recently used last */
+	private final ArrayDeque<PooledSession<S>> _idle = new ArrayDeque<PooledSession<S>>();
+	
+	/** Number of sessions that are idle, borrowed, or being created */
+	private int _size = 0;
+	
+	private boolean _closed = false;
+	
+	private KeepAliveThread _keepAliveThread = null;
+	
+	/** Performs the asynchronous operations of the backend's files, with one thread per session; created on first use. */
+	private ThreadPoolExecutor _executor = null;
+	
+	public BoundedSessionPool(String sessionName, String threadName, SessionFactory<S> factory) {
+		_sessionName = sessionName;
+		_threadName = threadName;
+		_factory = factory;
+	}
+	
+	public void setMinSize(int minSize) {
+		synchronized(_lock) {
+			_minSize = minSize;
+		}
+	}
+	
+	public void setMaxSize(int maxSize) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("The maximum pool size must be at least 1");
+		}
+		synchronized(_lock) {
+			_maxSize = maxSize;
+			_lock.notifyAll();
+			
+			if(_executor != null) {
+				AsyncFileSupport.setMaxThreads(_executor, maxSize);
+			}
+		}
+	}
+	
+	public int getMaxSize() {
+		synchronized(_lock) {
+			return _maxSize;
+		}
+	}
+	
+	/** Sets how often (in msecs) an idle session is checked by the keep-alive thread; 0 disables the thread. */
+	public void setKeepAliveInterval(long keepAliveInterval) {
+		synchronized(_lock) {
+			_keepAliveInterval = keepAliveInterval;
+		}
+	}
+	
+	public void setIdleTimeout(long idleTimeout) {
+		synchronized(_lock) {
+			_idleTimeout = idleTimeout;
+		}
+	}
+	
+	/** Number of open sessions (idle or in use) */
+	public int getSize() {
+		synchronized(_lock) {
+			return _size;
+		}
+	}
+	
+	public int getIdleCount() {
+		synchronized(_lock) {
+			return _idle.size();
+		}
+	}
+	
+	/** Returns the pool on which the asynchronous operations of the backend's files are performed; it has as many
+	 * threads as the maximum number of sessions, so that each operation in flight may borrow its own session. */
+	public ThreadPoolExecutor getExecutor() {
+		synchronized(_lock) {
+			if(_executor == null) {
+				_executor = AsyncFileSupport.newExecutor(_threadName, _maxSize);
+			}
+			return _executor;
+		}
+	}
+	
+	/** Returns a session, creating one if none are idle and the pool is below its maximum size, otherwise waiting for
+	 * one to be released. The session must be returned with release(...) or invalidate(...). */
+	public S borrow() throws IOException {
+		long startTime = System.currentTimeMillis();
+		
+		while(true) {
+			PooledSession<S> idle = null;
+			boolean create = false;
+			
+			synchronized(_lock) {
+				if(_closed) {
+					throw new IOException(_sessionName+" pool has been closed.");
+				}
+				
+				if(_idle.size() > 0) {
+					idle = _idle.pollLast();
+				
+				} else if(_size < _maxSize) {
+					_size++;
+					create = true;
+				
+				} else {
+					long waitTime = MAX_BORROW_WAIT_TIME - (System.currentTimeMillis() - startTime);
+					if(waitTime <= 0) {
+						throw new IOException("Timed out waiting for a free "+_sessionName+".");
+					}
+					try {
+						_lock.wait(waitTime);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for a free "+_sessionName+".", e);
+					}
+					continue;
+				}
+				
+				startKeepAliveThread();
+			}
+			
+			if(create) {
+				try {
+					return _factory.createSession();
+				} catch(IOException e) {
+					sessionDiscarded();
+					throw e;
+				} catch(RuntimeException e) {
+					sessionDiscarded();
+					throw e;
+				}
+			}
+			
+			if(System.currentTimeMillis() - idle._lastUsed < VALIDATE_AFTER_IDLE_TIME || _factory.isHealthy(idle._session)) {
+				return idle._session;
+			}
+			
+			// The session has failed, so discard it, and try again
+			_factory.closeSession(idle._session);
+			sessionDiscarded();
+		}
+	}
+	
+	/** Returns a session to the pool, once the caller has finished with it (and any transfer on it has completed);
+	 * idle sessions above the minimum size that have reached the idle timeout are closed. */
+	public void release(S session) {
+		List<S> toClose = new ArrayList<S>();
+		
+		synchronized(_lock) {
+			long currTime = System.currentTimeMillis();
+			
+			if(_closed) {
+				_size--;
+				toClose.add(session);
+			} else {
+				_idle.addLast(new PooledSession<S>(session, currTime));
+			}
+			
+			// The least recently used sessions are first
+			for(Iterator<PooledSession<S>> it = _idle.iterator(); it.hasNext() && _size > _minSize;) {
+				PooledSession<S> ps = it.next();
+				if(currTime - ps._lastUsed < _idleTimeout) {
+					break;
+				}
+				it.remove();
+				_size--;
+				toClose.add(ps._session);
+			}
+			
+			_lock.notifyAll();
+		}
+		
+		for(S s : toClose) {
+			_factory.closeSession(s);
+		}
+	}
+	
+	/** Discards a session that failed (or was left in an unknown state) while borrowed. */
+	public void invalidate(S session) {
+		_factory.closeSession(session);
+		sessionDiscarded();
+	}
+	
+	/** Closes all idle sessions; sessions that are borrowed are closed as they are released. */
+	public void close() {
+		List<PooledSession<S>> toClose;
+		synchronized(_lock) {
+			_closed = true;
+			toClose = new ArrayList<PooledSession<S>>(_idle);
+			_size -= _idle.size();
+			_idle.clear();
+			_lock.notifyAll();
+		}
+		
+		for(PooledSession<S> ps : toClose) {
+			_factory.closeSession(ps._session);
+		}
+	}
+	
+	/** Called by the keep-alive thread: checks each session that has been idle for the keep-alive interval, and closes
+	 * idle sessions above the minimum size; returns the time to wait until the next check, or -1 if the pool has been
+	 * closed (or the keep-alive thread disabled). */
+	private long keepAlive() {
+		List<PooledSession<S>> toCheck = new ArrayList<PooledSession<S>>();
+		List<PooledSession<S>> toClose = new ArrayList<PooledSession<S>>();
+		long keepAliveInterval;
+		
+		synchronized(_lock) {
+			if(_closed || _keepAliveInterval <= 0) {
+				_keepAliveThread = null;
+				return -1;
+			}
+			
+			keepAliveInterval = _keepAliveInterval;
+			long currTime = System.currentTimeMillis();
+			
+			// The least recently used sessions are first
+			for(Iterator<PooledSession<S>> it = _idle.iterator(); it.hasNext();) {
+				PooledSession<S> ps = it.next();
+				long idleTime = currTime - ps._lastUsed;
+				
+				if(idleTime >= _idleTimeout && _size - toClose.size() > _minSize) {
+					it.remove();
+					toClose.add(ps);
+				
+				} else if(idleTime >= keepAliveInterval) {
+					// The session is taken out of the pool while it is checked
+					it.remove();
+					toCheck.add(ps);
+				}
+			}
+			_size -= toClose.size();
+		}
+		
+		for(PooledSession<S> ps : toClose) {
+			_factory.closeSession(ps._session);
+		}
+		
+		for(PooledSession<S> ps : toCheck) {
+			if(_factory.isHealthy(ps._session)) {
+				release(ps._session);
+			} else {
+				invalidate(ps._session);
+			}
+		}
+		
+		return keepAliveInterval;
+	}
+	
+	/** Must be called while holding _lock */
+	private void startKeepAliveThread() {
+		if(_keepAliveThread == null && _keepAliveInterval > 0) {
+			_keepAliveThread = new KeepAliveThread(this);
+			_keepAliveThread.start();
+		}
+	}
+	
+	private void sessionDiscarded() {
+		synchronized(_lock) {
+			_size--;
+			_lock.notifyAll();
+		}
+	}
+	
+	private static class PooledSession<S> {
+		final S _session;
+		final long _lastUsed;
+		
+		PooledSession(S session, long lastUsed) {
+			_session = session;
+			_lastUsed = lastUsed;
+		}
+	}
+	
+	/** Periodically checks the idle sessions of a pool, and closes the sessions that are no longer needed. */
+	private static class KeepAliveThread extends Thread {
+		
+		private final BoundedSessionPool<?> _pool;
+		
+		KeepAliveThread(BoundedSessionPool<?> pool) {
+			_pool = pool;
+			setName(pool._threadName+"-keepalive");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while(true) {
+				long waitTime = _pool.keepAlive();
+				if(waitTime < 0) {
+					return;
+				}
+				
+				try {
+					Thread.sleep(Math.max(waitTime / 2, 1000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -18,10 +18,17 @@ package com.vfile;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
+import com.vfile.interfaces.IAsyncFile;
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileFilter;
 import com.vfile.interfaces.IFilenameFilter;
+import com.vfile.interfaces.IPrefixListFile;
 
 /** Wraps an inner file that implements the IFile interface, and passes method
  * calls to its inner object. */
@@ -213,6 +220,30 @@ public class VFile implements IFile {
 		return convertList(_inner.listFiles(filter));
 	}
 
+	/** Returns the files in this directory whose names begin with prefix, and (if startAfter is not null) sort 
+	 * after startAfter; the listing is performed by the backend if it supports it (see IPrefixListFile), 
+	 * otherwise the full listing is filtered. Returns null if the listing fails. */
+	public VFile[] listFiles(String prefix, String startAfter) {
+		if(_inner instanceof IPrefixListFile) {
+			IFile[] list = ((IPrefixListFile)_inner).listFiles(prefix, startAfter);
+			return list != null ? convertList(list) : null;
+		}
+		
+		IFile[] list = _inner.listFiles();
+		if(list == null) {
+			return null;
+		}
+		
+		List<VFile> result = new ArrayList<VFile>();
+		for(IFile f : list) {
+			String name = f.getName();
+			if(name.startsWith(prefix) && (startAfter == null || name.compareTo(startAfter) > 0)) {
+				result.add(convert(f));
+			}
+		}
+		return result.toArray(new VFile[result.size()]);
+	}
+
 
 	public boolean mkdir() {
 		return _inner.mkdir();
@@ -231,6 +262,121 @@ public class VFile implements IFile {
 	}
 
 
+	// The asynchronous operations are performed by the backend if it supports them (see IAsyncFile); otherwise,
+	// the blocking operation is performed on a shared pool of threads.
+
+	public CompletableFuture<Boolean> existsAsync() {
+		if(_inner instanceof IAsyncFile) {
+			return ((IAsyncFile)_inner).existsAsync();
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return _inner.exists();
+			}
+		});
+	}
+
+	/** Completes with null if the listing fails, as with listFiles(). */
+	public CompletableFuture<VFile[]> listFilesAsync() {
+		if(_inner instanceof IAsyncFile) {
+			return convertListAsync(((IAsyncFile)_inner).listFilesAsync());
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<VFile[]>() {
+			@Override
+			public VFile[] call() throws Exception {
+				IFile[] list = _inner.listFiles();
+				return list != null ? convertList(list) : null;
+			}
+		});
+	}
+
+	/** As listFiles(prefix, startAfter); completes with null if the listing fails. */
+	public CompletableFuture<VFile[]> listFilesAsync(final String prefix, final String startAfter) {
+		if(_inner instanceof IAsyncFile) {
+			return convertListAsync(((IAsyncFile)_inner).listFilesAsync(prefix, startAfter));
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<VFile[]>() {
+			@Override
+			public VFile[] call() throws Exception {
+				return listFiles(prefix, startAfter);
+			}
+		});
+	}
+
+	/** Reads the entire contents of the file; completes exceptionally with a FileNotFoundException if it does not exist. */
+	public CompletableFuture<byte[]> readAsync() {
+		if(_inner instanceof IAsyncFile) {
+			return ((IAsyncFile)_inner).readAsync();
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return AsyncFileSupport.readFully(new VFileInputStream(VFile.this));
+			}
+		});
+	}
+
+	/** Replaces the contents of the file with the given data, which must not be modified until the future has completed. */
+	public CompletableFuture<Void> writeAsync(final byte[] data) {
+		if(_inner instanceof IAsyncFile) {
+			return ((IAsyncFile)_inner).writeAsync(data);
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				VFileOutputStream fos = new VFileOutputStream(VFile.this);
+				try {
+					fos.write(data);
+				} finally {
+					fos.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> renameToAsync(final VFile dest) {
+		if(_inner instanceof IAsyncFile) {
+			return ((IAsyncFile)_inner).renameToAsync(dest.getInnerFile());
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return renameTo(dest);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> deleteAsync() {
+		if(_inner instanceof IAsyncFile) {
+			return ((IAsyncFile)_inner).deleteAsync();
+		}
+		
+		return AsyncFileSupport.supply(AsyncFileSupport.getBlockingExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return _inner.delete();
+			}
+		});
+	}
+
+	private CompletableFuture<VFile[]> convertListAsync(CompletableFuture<IFile[]> future) {
+		return future.thenApply(new Function<IFile[], VFile[]>() {
+			@Override
+			public VFile[] apply(IFile[] list) {
+				return list != null ? convertList(list) : null;
+			}
+		});
+	}
+
+
 	public boolean setExecutable(boolean executable, boolean ownerOnly) {
 		return _inner.setExecutable(executable, ownerOnly);
 	}
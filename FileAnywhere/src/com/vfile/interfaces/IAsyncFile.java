@@ -0,0 +1,50 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.interfaces;
+
+import java.util.concurrent.CompletableFuture;
+
+/** Optionally implemented by IFile implementations whose backend is able to have several requests in flight at 
+ * once (for example, concurrent S3 requests, or requests on separate pooled FTP sessions), so that a caller may issue
+ * a number of operations and then wait for all of them, rather than waiting for each round trip in turn.
+ * 
+ * Each future completes with the value that the equivalent blocking method would have returned, or completes 
+ * exceptionally with the IOException (or RuntimeException) that it would have thrown. Callers that do not use 
+ * the futures directly may wait for them with AsyncFileSupport.await(...). */
+public interface IAsyncFile extends IFile {
+
+	public CompletableFuture<Boolean> existsAsync();
+	
+	/** As listFiles(); completes with null if this is not a directory, or the listing fails. */
+	public CompletableFuture<IFile[]> listFilesAsync();
+	
+	/** As IPrefixListFile.listFiles(prefix, startAfter); completes with null if this is not a directory, or the listing fails. */
+	public CompletableFuture<IFile[]> listFilesAsync(String prefix, String startAfter);
+	
+	/** Reads the entire contents of the file; completes exceptionally with a FileNotFoundException if the file 
+	 * does not exist. */
+	public CompletableFuture<byte[]> readAsync();
+	
+	/** Replaces the contents of the file (creating it if needed) with the given data, which must not be modified
+	 * until the future has completed. */
+	public CompletableFuture<Void> writeAsync(byte[] data);
+	
+	public CompletableFuture<Boolean> renameToAsync(IFile dest);
+	
+	public CompletableFuture<Boolean> deleteAsync();
+	
+}
@@ -0,0 +1,35 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.interfaces;
+
+/** Optionally implemented by IFile implementations to advertise which of their operations are atomic (as seen by
+ * other clients of the same backend); callers that need to publish a file atomically may then choose the cheapest 
+ * correct protocol, rather than verifying each step (for example, with exists()). */
+public interface IAtomicFile extends IFile {
+
+	/** Whether a file written with an output stream only becomes visible once the stream has been closed, and then
+	 * in its entirety (for example, an S3 put). */
+	public boolean isAtomicCreate();
+	
+	/** Whether renameTo(...) atomically replaces the name of the file on the backend, and reliably reports its result 
+	 * (for example, a POSIX rename, or FTP RNFR/RNTO), rather than copying the file. */
+	public boolean isAtomicRename();
+	
+	/** Whether createNewFile() atomically creates the file only if it does not already exist. */
+	public boolean isConditionalCreate();
+	
+}
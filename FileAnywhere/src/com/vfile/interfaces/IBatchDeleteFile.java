@@ -0,0 +1,32 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.interfaces;
+
+import java.util.List;
+
+/** Optionally implemented by IFile implementations whose backend is able to delete multiple files in a single 
+ * request (for example, S3 multi-object delete). */
+public interface IBatchDeleteFile extends IFile {
+
+	/** Whether the given file may be deleted in the same batch as this file (e.g. it is on the same host/bucket). */
+	public boolean isBatchCompatible(IFile file);
+	
+	/** Deletes the given files, each of which must be batch compatible with this file, using as few requests
+	 * as possible; returns the files that could not be deleted. */
+	public List<IFile> deleteAll(List<IFile> files);
+	
+}
@@ -0,0 +1,29 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.interfaces;
+
+/** Optionally implemented by IFile implementations whose backend is able to list only those files of a directory
+ * whose names begin with a given prefix (for example, an S3 prefix listing), so that the cost of the listing grows 
+ * with the number of matching files, rather than with the size of the directory. */
+public interface IPrefixListFile extends IFile {
+
+	/** Returns the files in this directory whose names begin with prefix and, if startAfter is not null, whose names
+	 * sort after startAfter (by String.compareTo); the files are in no particular order. Returns null if this is not 
+	 * a directory, or the listing fails, as with listFiles(). */
+	public IFile[] listFiles(String prefix, String startAfter);
+	
+}
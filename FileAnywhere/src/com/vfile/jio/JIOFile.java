@@ -18,13 +18,20 @@ package com.vfile.jio;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.vfile.interfaces.IAtomicFile;
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileFilter;
 import com.vfile.interfaces.IFilenameFilter;
+import com.vfile.interfaces.IPrefixListFile;
 
 /** Implements a vfile using the standard Java IO File interface. */
-public class JIOFile implements IFile {
+public class JIOFile implements IAtomicFile, IPrefixListFile {
 	
 	java.io.File _inner = null;
 	
@@ -110,6 +117,22 @@ public class JIOFile implements IFile {
 		return _inner.createNewFile();
 	}
 
+	@Override
+	public boolean isAtomicCreate() {
+		// The contents of a file are visible while it is being written
+		return false;
+	}
+
+	@Override
+	public boolean isAtomicRename() {
+		return true;
+	}
+
+	@Override
+	public boolean isConditionalCreate() {
+		return true;
+	}
+
 	@Override
 	public boolean delete() {
 		return _inner.delete();
@@ -235,6 +258,38 @@ public class JIOFile implements IFile {
 		return convertList(_inner.listFiles(new JIOFilenameFilter(filter)));
 	}
 
+	@Override
+	public IFile[] listFiles(final String prefix, final String startAfter) {
+		// The names are matched as the directory is read, so no File is created for the files that do not match
+		DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
+			@Override
+			public boolean accept(Path entry) {
+				String name = entry.getFileName().toString();
+				return name.startsWith(prefix) && (startAfter == null || name.compareTo(startAfter) > 0);
+			}
+		};
+		
+		List<IFile> result = new ArrayList<IFile>();
+		
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(_inner.toPath(), filter);
+			try {
+				for(Path p : stream) {
+					result.add(new JIOFile(p.toFile()));
+				}
+			} finally {
+				stream.close();
+			}
+		} catch(IOException e) {
+			return null;
+		} catch(RuntimeException e) {
+			// e.g. a DirectoryIteratorException, if the directory is deleted while being read
+			return null;
+		}
+		
+		return result.toArray(new IFile[result.size()]);
+	}
+
 	@Override
 	public boolean mkdir() {
 		return _inner.mkdir();
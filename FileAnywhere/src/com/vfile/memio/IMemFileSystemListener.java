@@ -0,0 +1,30 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+
+package com.vfile.memio;
+
+/** Notified of changes to the files of a directory of a MemFileSystem (see MemFileSystem.addListener(...)); listeners 
+ * are called on the thread that made the change, and so must not block. */
+public interface IMemFileSystemListener {
+
+	/** Called when the named file of the directory is created, written, renamed or deleted. */
+	public void fileChanged(String directoryPath, String name);
+	
+	/** Called when the directory itself is deleted or renamed; the listener is removed, and will not be called again. */
+	public void directoryRemoved(String directoryPath);
+	
+}
@@ -0,0 +1,777 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import com.vfile.AsyncFileSupport;
+import com.vfile.interfaces.IAsyncFile;
+import com.vfile.interfaces.IAtomicFile;
+import com.vfile.interfaces.IBatchDeleteFile;
+import com.vfile.interfaces.IFile;
+import com.vfile.interfaces.IFileFilter;
+import com.vfile.interfaces.IFilenameFilter;
+import com.vfile.interfaces.IPrefixListFile;
+
+/** A file of a MemFileSystem. All paths are absolute, with '/' as the separator. */
+public class MemFile implements IAtomicFile, IBatchDeleteFile, IPrefixListFile, IAsyncFile {
+	
+	public static final String SLASH = "/";
+	
+	private final MemFileSystem _fs;
+	
+	/** Note that path includes the filename at the end, just like with normal Java getPath() result */
+	private final String _path;
+	private final String _name;
+	private final List<String> _pathComponents;
+	
+	/** Null for the root directory */
+	private final String _parentPath;
+	
+	public MemFile(MemFileSystem fs, String path) {
+		this(fs, MemFileSystem.parsePath(path));
+	}
+	
+	MemFile(MemFileSystem fs, List<String> pathComponents) {
+		_fs = fs;
+		_pathComponents = new ArrayList<String>(pathComponents);
+		
+		if(_pathComponents.size() == 0) {
+			_name = "";
+			_path = SLASH;
+			_parentPath = null;
+		} else {
+			_name = _pathComponents.get(_pathComponents.size()-1);
+			
+			StringBuilder sb = new StringBuilder();
+			for(String s : _pathComponents) {
+				sb.append(SLASH);
+				sb.append(s);
+			}
+			_path = sb.toString();
+			
+			int index = _path.lastIndexOf(SLASH);
+			_parentPath = index == 0 ? SLASH : _path.substring(0, index);
+		}
+	}
+	
+	public MemFile(MemFileSystem fs, String parent, String child) {
+		this(fs, parent + SLASH + child);
+	}
+	
+	public MemFileSystem getFileSystem() {
+		return _fs;
+	}
+	
+	MemNode getNode() {
+		return _fs.lookup(_pathComponents);
+	}
+	
+	List<String> getPathComponents() {
+		return _pathComponents;
+	}
+	
+	private boolean isRootDir() {
+		return _pathComponents.size() == 0;
+	}
+
+	@Override
+	public boolean canExecute() {
+		return exists();
+	}
+
+	@Override
+	public boolean canRead() {
+		return exists();
+	}
+
+	@Override
+	public boolean canWrite() {
+		return exists();
+	}
+
+	@Override
+	public int compareTo(IFile pathname) {
+		return _path.compareTo(pathname.getPath());
+	}
+
+	@Override
+	public boolean createNewFile() throws IOException {
+		_fs.beginOperation();
+		
+		if(isRootDir()) {
+			return false;
+		}
+		
+		// On an object store, the parents of a file need not exist
+		List<MemFile> created = _fs.isObjectStore() ? new ArrayList<MemFile>() : null;
+		
+		synchronized(_fs._structureLock) {
+			MemNode parent = _fs.lookupParent(_pathComponents, created);
+			if(parent == null) {
+				throw new IOException("No such directory: "+getParent());
+			}
+			
+			if(parent._children.putIfAbsent(_name, new MemNode(false)) != null) {
+				return false;
+			}
+		}
+		
+		if(created != null) {
+			_fs.fireCreated(created);
+		}
+		_fs.fireFileChanged(_parentPath, _name);
+		return true;
+	}
+	
+	/** Informs the listeners of the parent directory that this file has changed */
+	void fireChanged() {
+		_fs.fireFileChanged(_parentPath, _name);
+	}
+	
+	@Override
+	public boolean isAtomicCreate() {
+		return _fs.isObjectStore();
+	}
+
+	@Override
+	public boolean isAtomicRename() {
+		return !_fs.isObjectStore();
+	}
+
+	@Override
+	public boolean isConditionalCreate() {
+		return !_fs.isObjectStore();
+	}
+
+	@Override
+	public boolean delete() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		return deleteNode();
+	}
+	
+	private boolean deleteNode() {
+		if(isRootDir()) {
+			return false;
+		}
+		
+		MemNode node;
+		synchronized(_fs._structureLock) {
+			MemNode parent = _fs.lookupParent(_pathComponents, null);
+			if(parent == null) {
+				return false;
+			}
+			
+			node = parent._children.get(_name);
+			if(node == null || (node._directory && !node._children.isEmpty())) {
+				return false;
+			}
+			
+			if(!parent._children.remove(_name, node)) {
+				return false;
+			}
+		}
+		
+		if(node._directory) {
+			_fs.fireDirectoryRemoved(_path);
+		}
+		_fs.fireFileChanged(_parentPath, _name);
+		return true;
+	}
+	
+	@Override
+	public boolean isBatchCompatible(IFile file) {
+		return file instanceof MemFile && ((MemFile)file)._fs == _fs;
+	}
+
+	@Override
+	public List<IFile> deleteAll(List<IFile> files) {
+		List<IFile> result = new ArrayList<IFile>();
+		
+		// The batch is a single operation
+		if(!_fs.tryBeginOperation()) {
+			result.addAll(files);
+			return result;
+		}
+		
+		for(IFile f : files) {
+			if(!((MemFile)f).deleteNode()) {
+				result.add(f);
+			}
+		}
+		
+		return result;
+	}
+
+	@Override
+	public void deleteOnExit() {
+		// Nothing to do, as the contents of the filesystem do not outlive the JVM
+	}
+
+	@Override
+	public boolean exists() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		return getNode() != null;
+	}
+
+	@Override
+	public IFile getAbsoluteFile() {
+		return this;
+	}
+
+	@Override
+	public String getAbsolutePath() {
+		return _path;
+	}
+
+	@Override
+	public IFile getCanonicalFile() throws IOException {
+		return this;
+	}
+
+	@Override
+	public String getCanonicalPath() throws IOException {
+		return _path;
+	}
+
+	@Override
+	public long getFreeSpace() {
+		Runtime r = Runtime.getRuntime();
+		return r.maxMemory() - (r.totalMemory() - r.freeMemory());
+	}
+
+	@Override
+	public String getName() {
+		return _name;
+	}
+
+	@Override
+	public String getParent() {
+		return _parentPath;
+	}
+
+	@Override
+	public IFile getParentFile() {
+		if(isRootDir()) {
+			return null;
+		}
+		return new MemFile(_fs, getParent());
+	}
+
+	@Override
+	public String getPath() {
+		return _path;
+	}
+
+	@Override
+	public long getTotalSpace() {
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	@Override
+	public long getUsableSpace() {
+		return getFreeSpace();
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return true;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		MemNode node = getNode();
+		return node != null && node._directory;
+	}
+
+	@Override
+	public boolean isFile() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		MemNode node = getNode();
+		return node != null && !node._directory;
+	}
+
+	@Override
+	public boolean isHidden() {
+		return _name.startsWith(".");
+	}
+
+	@Override
+	public long lastModified() {
+		if(!_fs.tryBeginOperation()) {
+			return 0L;
+		}
+		
+		MemNode node = getNode();
+		return node != null ? node.lastModified() : 0L;
+	}
+
+	@Override
+	public long length() {
+		if(!_fs.tryBeginOperation()) {
+			return 0L;
+		}
+		
+		MemNode node = getNode();
+		return node != null && !node._directory ? node.length() : 0L;
+	}
+
+	@Override
+	public String[] list() {
+		return list((IFilenameFilter)null);
+	}
+
+	@Override
+	public String[] list(IFilenameFilter filter) {
+		IFile[] files = listFiles(filter);
+		if(files == null) {
+			return null;
+		}
+		
+		String[] result = new String[files.length];
+		for(int x = 0; x < files.length; x++) {
+			result[x] = files[x].getName();
+		}
+		return result;
+	}
+
+	@Override
+	public IFile[] listFiles() {
+		if(!_fs.tryBeginOperation()) {
+			return null;
+		}
+		
+		MemNode node = getNode();
+		if(node == null || !node._directory) {
+			return null;
+		}
+		
+		List<IFile> result = new ArrayList<IFile>();
+		for(String name : node._children.keySet()) {
+			result.add(new MemFile(_fs, _path, name));
+		}
+		
+		return result.toArray(new IFile[result.size()]);
+	}
+	
+	@Override
+	public IFile[] listFiles(String prefix, String startAfter) {
+		if(!_fs.tryBeginOperation()) {
+			return null;
+		}
+		
+		MemNode node = getNode();
+		if(node == null || !node._directory) {
+			return null;
+		}
+		
+		// The children are sorted by name, so the matching files are a contiguous range
+		Map<String, MemNode> range;
+		if(startAfter != null && startAfter.compareTo(prefix) >= 0) {
+			range = node._children.tailMap(startAfter, false);
+		} else {
+			range = node._children.tailMap(prefix, true);
+		}
+		
+		List<IFile> result = new ArrayList<IFile>();
+		for(String name : range.keySet()) {
+			if(!name.startsWith(prefix)) {
+				break;
+			}
+			result.add(new MemFile(_fs, _path, name));
+		}
+		
+		return result.toArray(new IFile[result.size()]);
+	}
+
+	@Override
+	public IFile[] listFiles(IFileFilter filter) {
+		IFile[] files = listFiles();
+		if(files == null || filter == null) {
+			return files;
+		}
+		
+		List<IFile> result = new ArrayList<IFile>();
+		for(IFile f : files) {
+			if(filter.accept(f)) {
+				result.add(f);
+			}
+		}
+		
+		return result.toArray(new IFile[result.size()]);
+	}
+
+	@Override
+	public IFile[] listFiles(IFilenameFilter filter) {
+		IFile[] files = listFiles();
+		if(files == null || filter == null) {
+			return files;
+		}
+		
+		List<IFile> result = new ArrayList<IFile>();
+		for(IFile f : files) {
+			if(filter.accept(this, f.getName())) {
+				result.add(f);
+			}
+		}
+		
+		return result.toArray(new IFile[result.size()]);
+	}
+
+	@Override
+	public boolean mkdir() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		if(isRootDir()) {
+			return false;
+		}
+		
+		synchronized(_fs._structureLock) {
+			MemNode parent = _fs.lookupParent(_pathComponents, null);
+			if(parent == null) {
+				return false;
+			}
+			
+			if(parent._children.putIfAbsent(_name, new MemNode(true)) != null) {
+				return false;
+			}
+		}
+		
+		_fs.fireFileChanged(_parentPath, _name);
+		return true;
+	}
+
+	@Override
+	public boolean mkdirs() {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		if(isRootDir()) {
+			return false;
+		}
+		
+		List<MemFile> created = new ArrayList<MemFile>();
+		boolean result;
+		
+		synchronized(_fs._structureLock) {
+			MemNode parent = _fs.lookupParent(_pathComponents, created);
+			result = parent != null && parent._children.putIfAbsent(_name, new MemNode(true)) == null;
+		}
+		
+		_fs.fireCreated(created);
+		if(result) {
+			_fs.fireFileChanged(_parentPath, _name);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean renameTo(IFile dest) {
+		if(!(dest instanceof MemFile) || ((MemFile)dest)._fs != _fs || isRootDir()) {
+			return false;
+		}
+		
+		MemFile destFile = (MemFile)dest;
+		if(destFile.isRootDir() || destFile._path.startsWith(_path + SLASH)) {
+			return false;
+		}
+		
+		if(_fs.isObjectStore()) {
+			return copyAndDelete(destFile);
+		}
+		
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		MemNode node;
+		synchronized(_fs._structureLock) {
+			MemNode srcParent = _fs.lookupParent(_pathComponents, null);
+			node = srcParent != null ? srcParent._children.get(_name) : null;
+			if(node == null) {
+				return false;
+			}
+			
+			MemNode destParent = _fs.lookupParent(destFile._pathComponents, null);
+			if(destParent == null) {
+				return false;
+			}
+			
+			if(destFile._path.equals(_path)) {
+				return true;
+			}
+			
+			// As with POSIX rename, an existing file is replaced, as is an empty directory by a directory
+			MemNode existing = destParent._children.get(destFile._name);
+			if(existing != null && (existing._directory != node._directory || (existing._directory && !existing._children.isEmpty()))) {
+				return false;
+			}
+			
+			srcParent._children.remove(_name);
+			destParent._children.put(destFile._name, node);
+		}
+		
+		if(node._directory) {
+			_fs.fireDirectoryRemoved(_path);
+		}
+		
+		_fs.fireFileChanged(_parentPath, _name);
+		_fs.fireFileChanged(destFile._parentPath, destFile._name);
+		return true;
+	}
+	
+	/** Renames the file as an object store would: by copying it to the destination, and then deleting it; each step
+	 * is a separate operation, which may fail independently. */
+	private boolean copyAndDelete(MemFile destFile) {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		MemNode node = getNode();
+		if(node == null || node._directory) {
+			return false;
+		}
+		
+		byte[] contents = node.getContents();
+		List<MemFile> created = new ArrayList<MemFile>();
+		
+		boolean copied = false;
+		
+		synchronized(_fs._structureLock) {
+			MemNode destParent = _fs.lookupParent(destFile._pathComponents, created);
+			MemNode existing = destParent != null ? destParent._children.get(destFile._name) : null;
+			
+			if(destParent != null && (existing == null || !existing._directory)) {
+				MemNode copy = new MemNode(false);
+				copy.setContents(contents, contents.length);
+				destParent._children.put(destFile._name, copy);
+				copied = true;
+			}
+		}
+		
+		_fs.fireCreated(created);
+		if(!copied) {
+			return false;
+		}
+		_fs.fireFileChanged(destFile._parentPath, destFile._name);
+		
+		if(!_fs.tryBeginOperation()) {
+			// The copy remains at the destination, as it would after a failed delete
+			return false;
+		}
+		
+		synchronized(_fs._structureLock) {
+			MemNode srcParent = _fs.lookupParent(_pathComponents, null);
+			if(srcParent != null) {
+				srcParent._children.remove(_name, node);
+			}
+		}
+		
+		_fs.fireFileChanged(_parentPath, _name);
+		return true;
+	}
+	
+	/** Performs the operation on the filesystem's executor if a latency has been configured, so that concurrent
+	 * operations overlap their delays as requests to a remote backend would; otherwise, the operation does not block,
+	 * and is performed by the caller. */
+	private <T> CompletableFuture<T> async(Callable<T> operation) {
+		if(_fs.hasLatency()) {
+			return AsyncFileSupport.supply(_fs.getExecutor(), operation);
+		}
+		return AsyncFileSupport.call(operation);
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> existsAsync() {
+		return async(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return exists();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync() {
+		return async(new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync(final String prefix, final String startAfter) {
+		return async(new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles(prefix, startAfter);
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<byte[]> readAsync() {
+		return async(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return AsyncFileSupport.readFully(new MemFileInputStream(MemFile.this));
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> writeAsync(final byte[] data) {
+		return async(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				MemFileOutputStream fos = new MemFileOutputStream(MemFile.this);
+				try {
+					fos.write(data);
+				} finally {
+					fos.close();
+				}
+				return null;
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> renameToAsync(final IFile dest) {
+		return async(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return renameTo(dest);
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> deleteAsync() {
+		return async(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return delete();
+			}
+		});
+	}
+
+	@Override
+	public boolean setExecutable(boolean executable, boolean ownerOnly) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setExecutable(boolean executable) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setLastModified(long time) {
+		if(!_fs.tryBeginOperation()) {
+			return false;
+		}
+		
+		MemNode node = getNode();
+		if(node == null) {
+			return false;
+		}
+		
+		node.setLastModified(time);
+		
+		_fs.fireFileChanged(_parentPath, _name);
+		return true;
+	}
+
+	@Override
+	public boolean setReadable(boolean readable, boolean ownerOnly) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setReadable(boolean readable) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setReadOnly() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setWritable(boolean writable, boolean ownerOnly) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean setWritable(boolean writable) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public URI toURI() {
+		try {
+			return new URI("mem", null, _path, null);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof MemFile)) {
+			return false;
+		}
+		MemFile other = (MemFile)obj;
+		return other._fs == _fs && other._path.equals(_path);
+	}
+	
+	@Override
+	public int hashCode() {
+		return _path.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return _path;
+	}
+
+}
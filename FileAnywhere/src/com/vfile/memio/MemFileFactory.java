@@ -0,0 +1,132 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+
+import com.vfile.interfaces.IFile;
+import com.vfile.interfaces.IFileFactory;
+import com.vfile.interfaces.IFileInputStream;
+import com.vfile.interfaces.IFileOutputStream;
+import com.vfile.interfaces.IFileReader;
+import com.vfile.interfaces.IFileWriter;
+
+/** Implements a vfile factory using an in-memory filesystem (see MemFileSystem); useful for measuring the cost of 
+ * the layers above the filesystem without any I/O, or for simulating several hosts that share a directory in a 
+ * single JVM (by giving each host a factory of the same MemFileSystem). */
+public class MemFileFactory implements IFileFactory {
+
+	MemFileSystem _fs;
+	
+	public MemFileFactory(MemFileSystem fs) {
+		_fs = fs;
+	}
+	
+	public MemFileSystem getFileSystem() {
+		return _fs;
+	}
+	
+	private MemFile convert(IFile file) {
+		if(file instanceof MemFile) {
+			return (MemFile)file;
+		}
+		return new MemFile(_fs, file.getPath());
+	}
+	
+	@Override
+	public IFile createFile(IFile parent, String child) {
+		return new MemFile(_fs, parent.getPath(), child);
+	}
+
+	@Override
+	public IFile createFile(String pathname) {
+		return new MemFile(_fs, pathname);
+	}
+
+	@Override
+	public IFile createFile(String parent, String child) {
+		return new MemFile(_fs, parent, child);
+	}
+
+	@Override
+	public IFile createFile(URI uri) {
+		return new MemFile(_fs, uri.getPath());
+	}
+
+	@Override
+	public IFileInputStream createFileInputStream(IFile file) throws FileNotFoundException {
+		return new MemFileInputStream(convert(file));
+	}
+
+	@Override
+	public IFileInputStream createFileInputStream(String name) throws FileNotFoundException {
+		return new MemFileInputStream(new MemFile(_fs, name));
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(String name) throws FileNotFoundException {
+		return new MemFileOutputStream(new MemFile(_fs, name));
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(String name, boolean append) throws FileNotFoundException {
+		return new MemFileOutputStream(new MemFile(_fs, name), append);
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(IFile file) throws FileNotFoundException {
+		return new MemFileOutputStream(convert(file));
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(IFile file, boolean append) throws FileNotFoundException {
+		return new MemFileOutputStream(convert(file), append);
+	}
+
+	@Override
+	public IFileReader createFileReader(String fileName) throws FileNotFoundException {
+		return new MemFileReader(new MemFile(_fs, fileName));
+	}
+
+	@Override
+	public IFileReader createFileReader(IFile file) throws FileNotFoundException {
+		return new MemFileReader(convert(file));
+	}
+
+	@Override
+	public IFileWriter createFileWriter(String fileName) throws IOException {
+		return new MemFileWriter(new MemFile(_fs, fileName));
+	}
+
+	@Override
+	public IFileWriter createFileWriter(String fileName, boolean append) throws IOException {
+		return new MemFileWriter(new MemFile(_fs, fileName), append);
+	}
+
+	@Override
+	public IFileWriter createFileWriter(IFile file) throws IOException {
+		return new MemFileWriter(convert(file));
+	}
+
+	@Override
+	public IFileWriter createFileWriter(IFile file, boolean append) throws IOException {
+		return new MemFileWriter(convert(file), append);
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.vfile.interfaces.IFileInputStream;
+
+/** Reads a file of a MemFileSystem. Data that is appended to the file while the stream is open is visible to the 
+ * stream; if the file is replaced (for example, by an object store write), the stream continues to read the 
+ * original contents. */
+public class MemFileInputStream extends InputStream implements IFileInputStream {
+	
+	private final MemNode _node;
+	
+	private long _pos = 0;
+	private long _mark = 0;
+	
+	private boolean _isClosed = false;
+	
+	public MemFileInputStream(MemFile file) throws FileNotFoundException {
+		try {
+			file.getFileSystem().beginOperation();
+		} catch(IOException e) {
+			throw new FileNotFoundException("Unable to open file: "+file.getPath()+" ("+e.getMessage()+")");
+		}
+		
+		MemNode node = file.getNode();
+		if(node == null || node._directory) {
+			throw new FileNotFoundException("File does not exist: "+file.getPath());
+		}
+		
+		_node = node;
+	}
+
+	@Override
+	public int available() throws IOException {
+		assertNotClosed();
+		return (int)Math.max(0, _node.length() - _pos);
+	}
+
+	@Override
+	public void close() throws IOException {
+		_isClosed = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int c = read(b, 0, 1);
+		if(c == -1) {
+			return -1;
+		}
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		assertNotClosed();
+		
+		if(len == 0) {
+			return 0;
+		}
+		
+		int c = _node.read(_pos, b, off, len);
+		if(c > 0) {
+			_pos += c;
+		}
+		return c;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		assertNotClosed();
+		
+		long result = Math.max(0, Math.min(n, _node.length() - _pos));
+		_pos += result;
+		return result;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		_mark = _pos;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		_pos = _mark;
+	}
+	
+	private void assertNotClosed() throws IOException {
+		if(_isClosed) {
+			throw new IOException("Input stream has been closed.");
+		}
+	}
+
+}
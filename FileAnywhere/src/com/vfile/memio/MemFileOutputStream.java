@@ -0,0 +1,192 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vfile.interfaces.IFileOutputStream;
+
+/** Writes a file of a MemFileSystem. On a local filesystem, the file is created when the stream is opened, and each 
+ * write is immediately visible to readers; on an object store, the data is held by the stream, and the file is 
+ * replaced in its entirety when the stream is closed. */
+public class MemFileOutputStream extends OutputStream implements IFileOutputStream {
+	
+	private final MemFile _file;
+	
+	/** On a local filesystem, the node that is written to; null on an object store */
+	private MemNode _node = null;
+	
+	/** On an object store, the data that has been written so far */
+	private byte[] _buffer = null;
+	private int _bufferSize = 0;
+	
+	private boolean _isClosed = false;
+	
+	public MemFileOutputStream(MemFile file) throws FileNotFoundException {
+		this(file, false);
+	}
+	
+	public MemFileOutputStream(MemFile file, boolean append) throws FileNotFoundException {
+		_file = file;
+		
+		MemFileSystem fs = file.getFileSystem();
+		
+		if(fs.isObjectStore()) {
+			_buffer = new byte[1024];
+			
+			if(append) {
+				// The existing object must be read before it can be appended to
+				try {
+					fs.beginOperation();
+				} catch(IOException e) {
+					throw new FileNotFoundException("Unable to open file: "+file.getPath()+" ("+e.getMessage()+")");
+				}
+				
+				MemNode existing = file.getNode();
+				if(existing != null && !existing._directory) {
+					byte[] contents = existing.getContents();
+					writeToBuffer(contents, 0, contents.length);
+				}
+			}
+			return;
+		}
+		
+		try {
+			fs.beginOperation();
+		} catch(IOException e) {
+			throw new FileNotFoundException("Unable to open file: "+file.getPath()+" ("+e.getMessage()+")");
+		}
+		
+		synchronized(fs._structureLock) {
+			MemNode parent = fs.lookupParent(file.getPathComponents(), null);
+			if(parent == null || file.getPathComponents().size() == 0) {
+				throw new FileNotFoundException("No such directory: "+file.getParent());
+			}
+			
+			MemNode node = parent._children.get(file.getName());
+			if(node == null) {
+				node = new MemNode(false);
+				parent._children.put(file.getName(), node);
+				
+			} else if(node._directory) {
+				throw new FileNotFoundException("File is a directory: "+file.getPath());
+				
+			} else if(!append) {
+				node.setContents(new byte[0], 0);
+			}
+			
+			_node = node;
+		}
+		
+		file.fireChanged();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(_isClosed) {
+			return;
+		}
+		_isClosed = true;
+		
+		if(_node != null) {
+			return;
+		}
+		
+		MemFileSystem fs = _file.getFileSystem();
+		fs.beginOperation();
+		
+		if(_file.getPathComponents().size() == 0) {
+			throw new IOException("Unable to write file: "+_file.getPath());
+		}
+		
+		MemNode node = new MemNode(false);
+		node.setContents(_buffer, _bufferSize);
+		_buffer = null;
+		
+		// On an object store, the parents of a file need not exist
+		List<MemFile> created = new ArrayList<MemFile>();
+		boolean isDirectory = false;
+		
+		synchronized(fs._structureLock) {
+			MemNode parent = fs.lookupParent(_file.getPathComponents(), created);
+			MemNode existing = parent != null ? parent._children.get(_file.getName()) : null;
+			
+			if(parent == null || (existing != null && existing._directory)) {
+				isDirectory = true;
+			} else {
+				// The node is replaced, rather than updated, so that open readers continue to see the previous contents
+				parent._children.put(_file.getName(), node);
+			}
+		}
+		
+		fs.fireCreated(created);
+		
+		if(isDirectory) {
+			throw new IOException("Unable to write file over a directory: "+_file.getPath());
+		}
+		
+		_file.fireChanged();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		assertNotClosed();
+		
+		if(_node != null) {
+			_node.append(b, off, len);
+			_file.fireChanged();
+		} else {
+			writeToBuffer(b, off, len);
+		}
+	}
+	
+	private void writeToBuffer(byte[] b, int off, int len) {
+		if(_bufferSize + len > _buffer.length) {
+			byte[] newBuffer = new byte[Math.max(_bufferSize + len, _buffer.length * 2)];
+			System.arraycopy(_buffer, 0, newBuffer, 0, _bufferSize);
+			_buffer = newBuffer;
+		}
+		System.arraycopy(b, off, _buffer, _bufferSize, len);
+		_bufferSize += len;
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(int n) throws IOException {
+		write(new byte[] { (byte)n }, 0, 1);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		assertNotClosed();
+	}
+	
+	private void assertNotClosed() throws IOException {
+		if(_isClosed) {
+			throw new IOException("Output stream has been closed.");
+		}
+	}
+
+}
@@ -0,0 +1,338 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vfile.AsyncFileSupport;
+
+/** An in-memory filesystem, which backs the files of one or more MemFileFactory instances; factories that share a 
+ * MemFileSystem see the same files, as clients of a shared directory would. 
+ * 
+ * By default, it behaves as a local filesystem: files exist as soon as they are opened for writing, written data is
+ * immediately visible to readers, and renames are atomic. In object store mode, it instead behaves as an S3 bucket 
+ * would: a file only appears, in its entirety, once its output stream is closed, a rename is a copy followed by a 
+ * delete, and the parents of a file need not exist for it to be written.
+ * 
+ * Each operation may optionally be delayed, and may fail, so as to emulate a remote backend. Listeners may be 
+ * registered to be notified of changes to a directory, as a native filesystem watcher would be. */
+public class MemFileSystem {
+	
+	/** The number of asynchronous operations that may be in progress at once, as with the connections of a remote backend */
+	public static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 16;
+	
+	private static final AtomicLong _nextId = new AtomicLong();
+	
+	private final long _id = _nextId.incrementAndGet();
+	
+	private final MemNode _root = new MemNode(true);
+	
+	/** Held while the structure of the tree is modified (files created, deleted or renamed); lookups do not acquire it. */
+	final Object _structureLock = new Object();
+	
+	private volatile boolean _objectStore = false;
+	
+	/** The delay of each operation is chosen at random from between these (in msecs) */
+	private volatile long _minLatency = 0;
+	private volatile long _maxLatency = 0;
+	
+	/** The probability that any given operation fails */
+	private volatile double _errorRate = 0;
+	
+	private final Random _random = new Random();
+	
+	private final AtomicLong _operations = new AtomicLong();
+	private final AtomicLong _injectedErrors = new AtomicLong();
+	
+	/** Performs the asynchronous operations of the filesystem's files when latency is configured; created on first 
+	 * use. Synchronize on _executorLock when accessing. */
+	private ThreadPoolExecutor _executor = null;
+	
+	private int _maxConcurrentOperations = DEFAULT_MAX_CONCURRENT_OPERATIONS;
+	
+	private final Object _executorLock = new Object();
+	
+	/** Listeners, by the normalized path of the directory they are listening to */
+	private final Map<String, List<IMemFileSystemListener>> _listeners = new ConcurrentHashMap<String, List<IMemFileSystemListener>>();
+	
+	public MemFileSystem() {
+	}
+	
+	/** A value that uniquely identifies this filesystem within the JVM */
+	public long getId() {
+		return _id;
+	}
+	
+	/** Registers a listener for changes to the files of the given directory; returns false (and does not register the 
+	 * listener) if the directory does not exist. */
+	public boolean addListener(String directoryPath, IMemFileSystemListener listener) {
+		MemFile dir = new MemFile(this, directoryPath);
+		
+		synchronized(_structureLock) {
+			MemNode node = dir.getNode();
+			if(node == null || !node._directory) {
+				return false;
+			}
+			
+			List<IMemFileSystemListener> list = _listeners.get(dir.getPath());
+			if(list == null) {
+				list = new CopyOnWriteArrayList<IMemFileSystemListener>();
+				_listeners.put(dir.getPath(), list);
+			}
+			list.add(listener);
+			return true;
+		}
+	}
+	
+	public void removeListener(String directoryPath, IMemFileSystemListener listener) {
+		MemFile dir = new MemFile(this, directoryPath);
+		
+		synchronized(_structureLock) {
+			List<IMemFileSystemListener> list = _listeners.get(dir.getPath());
+			if(list != null) {
+				list.remove(listener);
+				if(list.isEmpty()) {
+					_listeners.remove(dir.getPath());
+				}
+			}
+		}
+	}
+	
+	/** Informs the listeners of the parent directories of the given files that the files have been created; listeners
+	 * are never called while holding _structureLock. */
+	void fireCreated(List<MemFile> created) {
+		for(MemFile f : created) {
+			f.fireChanged();
+		}
+	}
+	
+	/** Informs the listeners of the directory (a normalized path) that the named file has changed. */
+	void fireFileChanged(String directoryPath, String name) {
+		if(_listeners.isEmpty()) {
+			return;
+		}
+		
+		List<IMemFileSystemListener> list = _listeners.get(directoryPath);
+		if(list != null) {
+			for(IMemFileSystemListener l : list) {
+				l.fileChanged(directoryPath, name);
+			}
+		}
+	}
+	
+	/** Informs the listeners of the directory (a normalized path), and of the directories beneath it, that the 
+	 * directory no longer exists; the listeners are removed. */
+	void fireDirectoryRemoved(String directoryPath) {
+		if(_listeners.isEmpty()) {
+			return;
+		}
+		
+		String childPrefix = directoryPath + MemFile.SLASH;
+		
+		for(Iterator<Map.Entry<String, List<IMemFileSystemListener>>> it = _listeners.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, List<IMemFileSystemListener>> e = it.next();
+			
+			if(e.getKey().equals(directoryPath) || e.getKey().startsWith(childPrefix)) {
+				it.remove();
+				for(IMemFileSystemListener l : e.getValue()) {
+					l.directoryRemoved(e.getKey());
+				}
+			}
+		}
+	}
+	
+	/** Whether the filesystem behaves as an object store, such as S3, rather than as a local filesystem. */
+	public void setObjectStore(boolean objectStore) {
+		_objectStore = objectStore;
+	}
+	
+	public boolean isObjectStore() {
+		return _objectStore;
+	}
+	
+	/** Each operation will be delayed by between minLatency and maxLatency msecs. */
+	public void setLatency(long minLatency, long maxLatency) {
+		if(minLatency < 0 || maxLatency < minLatency) {
+			throw new IllegalArgumentException("Invalid latency: "+minLatency+" - "+maxLatency);
+		}
+		_minLatency = minLatency;
+		_maxLatency = maxLatency;
+	}
+	
+	/** Whether a latency has been configured, in which case asynchronous operations are performed on the filesystem's 
+	 * executor; otherwise, they are performed by the caller (see MemFile). */
+	boolean hasLatency() {
+		return _maxLatency > 0;
+	}
+	
+	/** The maximum number of asynchronous operations that are performed at once (while the others wait), when a 
+	 * latency has been configured. */
+	public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+		synchronized(_executorLock) {
+			_maxConcurrentOperations = maxConcurrentOperations;
+			if(_executor != null) {
+				AsyncFileSupport.setMaxThreads(_executor, maxConcurrentOperations);
+			}
+		}
+	}
+	
+	ThreadPoolExecutor getExecutor() {
+		synchronized(_executorLock) {
+			if(_executor == null) {
+				_executor = AsyncFileSupport.newExecutor(MemFileSystem.class.getName(), _maxConcurrentOperations);
+			}
+			return _executor;
+		}
+	}
+	
+	/** Each operation will fail with the given probability (between 0 and 1). */
+	public void setErrorRate(double errorRate) {
+		if(errorRate < 0 || errorRate > 1) {
+			throw new IllegalArgumentException("Invalid error rate: "+errorRate);
+		}
+		_errorRate = errorRate;
+	}
+	
+	/** The number of operations that have been performed on the filesystem */
+	public long getOperationCount() {
+		return _operations.get();
+	}
+	
+	public long getInjectedErrorCount() {
+		return _injectedErrors.get();
+	}
+	
+	/** Called at the start of each operation: applies the configured latency, then throws an IOException if an 
+	 * error is to be injected. */
+	void beginOperation() throws IOException {
+		_operations.incrementAndGet();
+		
+		long minLatency = _minLatency;
+		long maxLatency = _maxLatency;
+		double errorRate = _errorRate;
+		
+		if(maxLatency > 0) {
+			long latency = minLatency;
+			if(maxLatency > minLatency) {
+				synchronized(_random) {
+					latency += (long)(_random.nextDouble() * (maxLatency - minLatency + 1));
+				}
+			}
+			
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted during operation.");
+			}
+		}
+		
+		if(errorRate > 0) {
+			boolean fail;
+			synchronized(_random) {
+				fail = _random.nextDouble() < errorRate;
+			}
+			if(fail) {
+				_injectedErrors.incrementAndGet();
+				throw new IOException("Injected error.");
+			}
+		}
+	}
+	
+	/** As beginOperation(), but returns false rather than throwing, for operations that report failure with their 
+	 * return value. */
+	boolean tryBeginOperation() {
+		try {
+			beginOperation();
+			return true;
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/** Returns the node at the given path, or null if it does not exist. */
+	MemNode lookup(List<String> pathComponents) {
+		return lookup(pathComponents, pathComponents.size());
+	}
+	
+	/** Returns the node of the first count components of the path, or null if it does not exist. */
+	MemNode lookup(List<String> pathComponents, int count) {
+		MemNode curr = _root;
+		for(int x = 0; x < count; x++) {
+			if(!curr._directory) {
+				return null;
+			}
+			curr = curr._children.get(pathComponents.get(x));
+			if(curr == null) {
+				return null;
+			}
+		}
+		return curr;
+	}
+	
+	/** Returns the directory that contains the given path, or null if it does not exist, or if one of the parents is
+	 * a file. If created is not null, the directory (and its parents) are created if needed, and each directory that
+	 * is created is added to the list, so that the caller may inform the listeners (see fireCreated(...)) once it has 
+	 * released _structureLock; the lock must be held while creating. */
+	MemNode lookupParent(List<String> pathComponents, List<MemFile> created) {
+		MemNode curr = _root;
+		for(int x = 0; x < pathComponents.size()-1; x++) {
+			MemNode next = curr._children.get(pathComponents.get(x));
+			if(next == null) {
+				if(created == null) {
+					return null;
+				}
+				next = new MemNode(true);
+				curr._children.put(pathComponents.get(x), next);
+				
+				created.add(new MemFile(this, pathComponents.subList(0, x+1)));
+			}
+			if(!next._directory) {
+				return null;
+			}
+			curr = next;
+		}
+		return curr;
+	}
+	
+	static List<String> parsePath(String pathStr) {
+		List<String> list = new ArrayList<String>();
+		
+		for(String s : pathStr.replace('\\', '/').split(MemFile.SLASH)) {
+			if(s.length() == 0 || s.equals(".")) {
+				continue;
+			}
+			if(s.equals("..")) {
+				if(list.size() > 0) {
+					list.remove(list.size()-1);
+				}
+				continue;
+			}
+			list.add(s);
+		}
+		
+		return list;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.memio;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/** A file or directory of a MemFileSystem. */
+class MemNode {
+	
+	final boolean _directory;
+	
+	/** The contents of a directory, by name; null for files. */
+	final ConcurrentSkipListMap<String, MemNode> _children;
+	
+	/** The contents of a file; synchronize on the node when accessing. Only the first _length bytes are valid, and 
+	 * those bytes are never modified in place: data may only be appended, or the array replaced, so a reader may 
+	 * safely use a snapshot of the array and length outside of the lock. */
+	private byte[] _data = new byte[0];
+	private int _length = 0;
+	
+	private volatile long _lastModified = System.currentTimeMillis();
+	
+	MemNode(boolean directory) {
+		_directory = directory;
+		_children = directory ? new ConcurrentSkipListMap<String, MemNode>() : null;
+	}
+	
+	synchronized int length() {
+		return _length;
+	}
+	
+	/** Copies up to len bytes starting at pos into b; returns the number of bytes copied, or -1 if pos is at or beyond 
+	 * the end of the file. */
+	int read(long pos, byte[] b, int off, int len) {
+		byte[] data;
+		int length;
+		synchronized(this) {
+			data = _data;
+			length = _length;
+		}
+		
+		if(pos >= length) {
+			return -1;
+		}
+		
+		int c = (int)Math.min(len, length - pos);
+		System.arraycopy(data, (int)pos, b, off, c);
+		return c;
+	}
+	
+	synchronized void append(byte[] b, int off, int len) {
+		if(_length + len > _data.length) {
+			byte[] newData = new byte[Math.max(_length + len, _data.length * 2)];
+			System.arraycopy(_data, 0, newData, 0, _length);
+			_data = newData;
+		}
+		System.arraycopy(b, off, _data, _length, len);
+		_length += len;
+		_lastModified = System.currentTimeMillis();
+	}
+	
+	/** Replaces the contents of the file; data must not be modified afterwards. */
+	synchronized void setContents(byte[] data, int length) {
+		_data = data;
+		_length = length;
+		_lastModified = System.currentTimeMillis();
+	}
+	
+	/** Returns a copy of the contents of the file */
+	synchronized byte[] getContents() {
+		byte[] result = new byte[_length];
+		System.arraycopy(_data, 0, result, 0, _length);
+		return result;
+	}
+	
+	long lastModified() {
+		return _lastModified;
+	}
+	
+	void setLastModified(long lastModified) {
+		_lastModified = lastModified;
+	}
+	
+}
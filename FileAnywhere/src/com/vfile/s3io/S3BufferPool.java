@@ -0,0 +1,106 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+
+package com.vfile.s3io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The part buffers of multipart uploads (see S3FileOutputStream) are taken from this pool, which bounds the amount 
+ * of memory used by uploads in progress: once all of the buffers are in use, writers wait for an upload to 
+ * complete and return its buffer. */
+public class S3BufferPool {
+
+	/** The size of each part of a multipart upload; S3 requires that all parts but the last are at least 5MB. */
+	public static final int PART_SIZE = 5 * 1024 * 1024;
+	
+	public static final int DEFAULT_MAX_BUFFERS = 16;
+	
+	private static final S3BufferPool _instance = new S3BufferPool();
+	
+	/** Buffers that have been returned to the pool; synchronize on this when accessing any field. */
+	private final List<byte[]> _free = new ArrayList<byte[]>();
+	
+	/** The number of buffers that have been acquired and not yet released */
+	private int _inUse = 0;
+	
+	private int _maxBuffers = DEFAULT_MAX_BUFFERS;
+	
+	private S3BufferPool() {
+	}
+	
+	public static S3BufferPool getInstance() {
+		return _instance;
+	}
+	
+	/** Sets the maximum number of buffers that may be in use at once; this must be at least 1. */
+	public void setMaxBuffers(int maxBuffers) {
+		if(maxBuffers < 1) {
+			throw new IllegalArgumentException("Invalid maximum number of buffers: "+maxBuffers);
+		}
+		
+		synchronized(_free) {
+			_maxBuffers = maxBuffers;
+			while(_free.size() > 0 && _free.size() + _inUse > _maxBuffers) {
+				_free.remove(_free.size()-1);
+			}
+			_free.notifyAll();
+		}
+	}
+	
+	public int getMaxBuffers() {
+		synchronized(_free) {
+			return _maxBuffers;
+		}
+	}
+	
+	/** Returns a buffer of PART_SIZE bytes, waiting for one to be released if they are all in use. */
+	public byte[] acquire() throws IOException {
+		synchronized(_free) {
+			while(_inUse >= _maxBuffers) {
+				try {
+					_free.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for an upload buffer.");
+				}
+			}
+			
+			_inUse++;
+			
+			if(_free.size() > 0) {
+				return _free.remove(_free.size()-1);
+			}
+		}
+		
+		// Allocated outside the lock, as it may take a while
+		return new byte[PART_SIZE];
+	}
+	
+	public void release(byte[] buffer) {
+		synchronized(_free) {
+			_inUse--;
+			
+			if(_free.size() + _inUse < _maxBuffers) {
+				_free.add(buffer);
+			}
+			
+			_free.notifyAll();
+		}
+	}
+}
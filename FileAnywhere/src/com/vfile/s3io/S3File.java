@@ -16,23 +16,37 @@
 
 package com.vfile.s3io;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.model.MultipleDeleteResult;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
 
+import com.vfile.AsyncFileSupport;
+import com.vfile.interfaces.IAsyncFile;
+import com.vfile.interfaces.IAtomicFile;
+import com.vfile.interfaces.IBatchDeleteFile;
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileFilter;
 import com.vfile.interfaces.IFilenameFilter;
+import com.vfile.interfaces.IPrefixListFile;
 
 /** Mapping IFile interface to jetset S3 API */
-public class S3File implements IFile {
+public class S3File implements IBatchDeleteFile, IAtomicFile, IPrefixListFile, IAsyncFile {
 	public static final String SLASH = "/";
 	
 	public static final String DIRECTORY_METADATA_KEY = "vfile-s3-file-type";
@@ -184,7 +198,7 @@ public class S3File implements IFile {
 		
 	}
 	
-	protected S3HostInfo getHostInfo() {
+	public S3HostInfo getHostInfo() {
 		return _host;
 	}
 	
@@ -229,6 +243,65 @@ public class S3File implements IFile {
 		return false;
 	}
 
+	@Override
+	public boolean isAtomicCreate() {
+		// An object is only visible once its put has completed
+		return true;
+	}
+
+	@Override
+	public boolean isAtomicRename() {
+		// A rename is a copy, followed by a delete
+		return false;
+	}
+
+	@Override
+	public boolean isConditionalCreate() {
+		return false;
+	}
+
+	/** S3 accepts at most this many keys in a single multi-object delete request */
+	private static final int MAX_KEYS_PER_DELETE = 1000;
+	
+	@Override
+	public boolean isBatchCompatible(IFile file) {
+		return (file instanceof S3File) && ((S3File)file)._host == _host;
+	}
+	
+	@Override
+	public List<IFile> deleteAll(List<IFile> files) {
+		List<IFile> failed = new ArrayList<IFile>();
+		
+		for(int start = 0; start < files.size(); start += MAX_KEYS_PER_DELETE) {
+			List<IFile> chunk = files.subList(start, Math.min(files.size(), start + MAX_KEYS_PER_DELETE));
+			
+			Map<String, IFile> filesByKey = new HashMap<String, IFile>();
+			for(IFile f : chunk) {
+				filesByKey.put(((S3File)f)._s3Path, f);
+			}
+			
+			try {
+				MultipleDeleteResult result = _host.getS3Service().deleteMultipleObjects(_host.getS3Bucket().getName(), 
+						filesByKey.keySet().toArray(new String[filesByKey.size()]));
+				
+				if(result.hasErrors()) {
+					for(MultipleDeleteResult.ErrorResult e : result.getErrorResults()) {
+						IFile f = filesByKey.get(e.getKey());
+						if(f != null) {
+							failed.add(f);
+						}
+					}
+				}
+				
+			} catch (S3ServiceException e) {
+				S3Log.err("S3ServiceException on deleteAll()" + e);
+				failed.addAll(chunk);
+			}
+		}
+		
+		return failed;
+	}
+
 	@Override
 	public void deleteOnExit() {
 		// TODO: LOWER - ARCHITECTURE - How to support.		
@@ -423,6 +496,40 @@ public class S3File implements IFile {
 		}
 	}
 
+	@Override
+	public IFile[] listFiles(String prefix, String startAfter) {
+		if(!isRootDir() && !isDirectory()) {
+			S3Log.err("listFiles called on non-directory.");
+			return null; 
+		}
+		
+		// The key prefix of this directory's children, as with listFiles()
+		String dirPrefix = isRootDir() ? "" : utilStripTrailingSlash(getS3Path())+SLASH;
+		String delimiter = isRootDir() ? "/" : null;
+		
+		// The prefix and start-after marker are evaluated by S3, so only the matching keys are returned  
+		String marker = startAfter != null ? dirPrefix+startAfter : null;
+		
+		S3Service service = _host.getS3Service();
+		try {
+			StorageObjectsChunk chunk = service.listObjectsChunked(_host.getS3Bucket().getName(), dirPrefix+prefix, delimiter, 
+					1000, marker, true);
+			
+			StorageObject[] os = chunk.getObjects();
+			
+			IFile[] result = new IFile[os.length];
+			for(int x = 0; x < os.length; x++) {
+				result[x] = new S3File(_host, os[x].getKey());
+			}
+			
+			return result;
+			
+		} catch (ServiceException e) {
+			S3Log.err("Exception thrown in listFiles(prefix) "+e);
+			return null;
+		}
+	}
+
 	@Override
 	public IFile[] listFiles(IFileFilter filter) {
 		IFile[] r1 = listFiles();
@@ -523,6 +630,102 @@ public class S3File implements IFile {
 		}
 	}
 
+	// Each asynchronous operation is performed on the host's pool, so the number of requests that are in flight at 
+	// once is bounded by the number of HTTP connections of the service, rather than by the number of callers.
+	
+	@Override
+	public CompletableFuture<Boolean> existsAsync() {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return exists();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync() {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync(final String prefix, final String startAfter) {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles(prefix, startAfter);
+			}
+		});
+	}
+	
+	/** Unlike S3FileInputStream, the object is read with a single GET, rather than checking that it exists first. */
+	@Override
+	public CompletableFuture<byte[]> readAsync() {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				S3Object o;
+				try {
+					o = _host.getS3Service().getObject(_host.getS3Bucket().getName(), _s3Path);
+				} catch (S3ServiceException e) {
+					if(e.getResponseCode() == 404) {
+						throw new FileNotFoundException("File does not exist: "+getPath());
+					}
+					S3Log.err("S3ServiceException on readAsync()" + e);
+					throw new IOException("Unable to read file: "+e);
+				}
+				
+				return AsyncFileSupport.readFully(o.getDataInputStream());
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> writeAsync(final byte[] data) {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				S3Object so = new S3Object(_host.getS3Bucket(), _s3Path);
+				so.setDataInputStream(new ByteArrayInputStream(data));
+				so.setContentLength(data.length);
+				so.setContentType(S3FileOutputStream.CONTENT_TYPE);
+				
+				try {
+					_host.getS3Service().putObject(_host.getS3Bucket(), so);
+				} catch (S3ServiceException e) {
+					S3Log.err("S3ServiceException on writeAsync()" + e);
+					throw new IOException("Error on file write.");
+				}
+				return null;
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> renameToAsync(final IFile dest) {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return renameTo(dest);
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> deleteAsync() {
+		return AsyncFileSupport.supply(_host.getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return delete();
+			}
+		});
+	}
+
 	@Override
 	public boolean setExecutable(boolean executable, boolean ownerOnly) {
 		throw new UnsupportedOperationException();
@@ -16,29 +16,65 @@
 
 package com.vfile.s3io;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Object;
 
 import com.vfile.interfaces.IFileOutputStream;
 
 /** Handles writing data to the remote s3 object. 
- * Write the data to a temporary local file, then uploads that data. */
+ * 
+ * Small objects are held in memory, and uploaded with a single put on close. Once the data exceeds the part size 
+ * (see S3BufferPool), a multipart upload is started, and each part is uploaded by the upload threads as soon as it 
+ * is full, while the writer continues to fill the next part; close() uploads the final part and completes the upload.
+ * The part buffers are taken from S3BufferPool, which bounds the memory used by uploads in progress. */
 public class S3FileOutputStream extends OutputStream implements IFileOutputStream {
+	
+	/** The initial size of the in-memory buffer, which grows as needed up to the part size */
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+	
+	static final String CONTENT_TYPE = "binary/octet-stream";
+	
+	/** close() fails (and aborts the upload) if no part upload completes within this time (in msecs) */
+	private static final long PART_UPLOAD_TIMEOUT = 10 * 60 * 1000;
+	
 	S3File _file;
-	FileOutputStream _fos;
-	File _tempFile;
 	boolean _isAppend;
 	
 	boolean _isClosed = false;
 
 	boolean _streamInitialized = false;
 	
+	/** Data that has been written but not yet uploaded */
+	private byte[] _buffer = null;
+	private int _bufferSize = 0;
+	
+	/** Whether _buffer was acquired from S3BufferPool */
+	private boolean _bufferPooled = false;
+	
+	/** Null until the data no longer fits in a single part */
+	private MultipartUpload _upload = null;
+	private int _nextPartNumber = 1;
+	
+	/** Set once the multipart upload has been aborted, after which every write fails */
+	private boolean _uploadAborted = false;
+	
+	/** Synchronize on this when accessing the fields below it, which are updated by the upload threads */
+	private final Object _partLock = new Object();
+	private final List<MultipartPart> _parts = new ArrayList<MultipartPart>();
+	private int _pendingParts = 0;
+	private IOException _uploadException = null;
+	
 	public S3FileOutputStream(S3File file) {
 		this(file, false);
 	}
@@ -48,97 +84,342 @@ public class S3FileOutputStream extends OutputStream implements IFileOutputStrea
 		_isAppend = isAppend;
 	}
 	
-	private void createFileOutputStreamIfNeeded() throws IOException {
+	private void initializeIfNeeded() throws IOException {
 		synchronized(this) {
 			if(_streamInitialized) {
 				return;
 			}
 			_streamInitialized = true;
 			
-			File tempFile = File.createTempFile("s3-file-", "");
-			_fos = new FileOutputStream(tempFile);
-			_tempFile = tempFile;
+			if(!_isAppend) {
+				return;
+			}
 			
-			if(_isAppend) {
+			S3Object existing = _file.getS3Object();
+			if(existing == null) {
+				return;
+			}
+			
+			if(existing.getContentLength() < S3BufferPool.PART_SIZE) {
+				// Small enough to be kept in memory along with the new data
 				S3FileInputStream fis = new S3FileInputStream(_file);
-				
-				boolean ready = true;
-				byte[] bytes = new byte[65536];
-				while(ready) {
-					int c = fis.read(bytes);
-					
-					if(c == -1) {
-						ready = false;
-					} else {
-						_fos.write(bytes, 0, c);
+				try {
+					byte[] bytes = new byte[65536];
+					int c;
+					while((c = fis.read(bytes)) != -1) {
+						writeToBuffer(bytes, 0, c);
 					}
+				} finally {
+					fis.close();
 				}
-				fis.close();
 				
+			} else {
+				// The existing object is copied on the server side as the first part, rather than being downloaded
+				startUpload();
+				try {
+					MultipartPart part = getHostInfo().getS3Service().multipartUploadPartCopy(_upload, _nextPartNumber++, 
+							getHostInfo().getS3Bucket().getName(), _file.getS3Path());
+					synchronized(_partLock) {
+						_parts.add(part);
+					}
+				} catch (S3ServiceException e) {
+					S3Log.err("S3ServiceException on part copy"+e);
+					abortUpload();
+					throw new IOException("Error on file write.");
+				}
 			}
-				
 		}
 	}
-
 	
 	@Override
 	public void close() throws IOException {
 		assertNotClosed();
-		createFileOutputStreamIfNeeded();
+		initializeIfNeeded();
 		
 		_isClosed = true;
-		_fos.close();
 		
-		S3Object so = new S3Object(_file.getHostInfo().getS3Bucket(), _file.getS3Path());
+		try {
+			if(_upload == null) {
+				putObject();
+			} else {
+				completeUpload();
+			}
+		} finally {
+			releaseBuffer();
+		}
+	}
+	
+	private void putObject() throws IOException {
+		S3Object so = new S3Object(getHostInfo().getS3Bucket(), _file.getS3Path());
 		
-		FileInputStream fis = new FileInputStream(_tempFile);
-		so.setDataInputStream(fis);
-		so.setContentLength(_tempFile.length());
-		so.setContentType("binary/octet-stream");
+		byte[] data = _buffer != null ? _buffer : new byte[0];
+		so.setDataInputStream(new ByteArrayInputStream(data, 0, _bufferSize));
+		so.setContentLength(_bufferSize);
+		so.setContentType(CONTENT_TYPE);
 
 		try {
-			_file.getHostInfo().getS3Service().putObject(_file.getHostInfo().getS3Bucket(), so);
+			getHostInfo().getS3Service().putObject(getHostInfo().getS3Bucket(), so);
 		} catch (S3ServiceException e) {
 			S3Log.err("S3ServiceException on Put"+e);
-			fis.close();
-			_tempFile.delete();
 			throw new IOException("Error on file write.");
 		}
+	}
+	
+	/** Uploads the final part and completes the upload; on any failure the upload is aborted, so that the parts 
+	 * already uploaded are not left behind (and billed) on the server. */
+	private void completeUpload() throws IOException {
+		try {
+			// The last part may be smaller than the part size; an empty part is only needed if there are no others 
+			if(_bufferSize > 0 || _nextPartNumber == 1) {
+				submitPart(true);
+			}
+			
+			List<MultipartPart> parts;
+			synchronized(_partLock) {
+				// The timeout restarts whenever a part completes, as a large object may take a long time to upload
+				int lastPendingParts = _pendingParts;
+				long deadline = System.currentTimeMillis() + PART_UPLOAD_TIMEOUT;
+				
+				while(_pendingParts > 0) {
+					if(_pendingParts != lastPendingParts) {
+						lastPendingParts = _pendingParts;
+						deadline = System.currentTimeMillis() + PART_UPLOAD_TIMEOUT;
+					}
+					
+					long waitTime = deadline - System.currentTimeMillis();
+					if(waitTime <= 0) {
+						S3Log.err("Timed out waiting for part upload, parts pending: "+_pendingParts);
+						throw new IOException("Timed out waiting for upload.");
+					}
+					
+					try {
+						_partLock.wait(waitTime);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for upload.");
+					}
+				}
+				
+				if(_uploadException != null) {
+					throw _uploadException;
+				}
+				
+				parts = new ArrayList<MultipartPart>(_parts);
+			}
+			
+			Collections.sort(parts, new Comparator<MultipartPart>() {
+				@Override
+				public int compare(MultipartPart o1, MultipartPart o2) {
+					return o1.getPartNumber().compareTo(o2.getPartNumber());
+				}
+			});
+			
+			try {
+				getHostInfo().getS3Service().multipartCompleteUpload(_upload, parts);
+			} catch (S3ServiceException e) {
+				S3Log.err("S3ServiceException on multipart complete"+e);
+				throw new IOException("Error on file write.");
+			}
+			
+		} catch(IOException | RuntimeException e) {
+			abortUpload();
+			throw e;
+		}
+	}
+	
+	private void startUpload() throws IOException {
+		S3Object so = new S3Object(_file.getS3Path());
+		so.setContentType(CONTENT_TYPE);
+		
+		try {
+			_upload = getHostInfo().getS3Service().multipartStartUpload(getHostInfo().getS3Bucket().getName(), so);
+		} catch (S3ServiceException e) {
+			S3Log.err("S3ServiceException on multipart start"+e);
+			throw new IOException("Error on file write.");
+		}
+	}
+	
+	/** Aborts the multipart upload (if any, and only once), and returns the current buffer to the pool; the parts that 
+	 * are still queued release their own buffers when their upload fails. */
+	private void abortUpload() {
+		releaseBuffer();
+		_bufferSize = 0;
+		
+		if(_upload == null || _uploadAborted) {
+			return;
+		}
+		_uploadAborted = true;
+		
+		try {
+			getHostInfo().getS3Service().multipartAbortUpload(_upload);
+		} catch (S3ServiceException e) {
+			S3Log.err("S3ServiceException on multipart abort"+e);
+		}
+	}
+	
+	/** Queues the contents of the buffer for upload as the next part; unless this is the last part, the writer 
+	 * continues with a new buffer from the pool. */
+	private void submitPart(boolean lastPart) throws IOException {
+		throwUploadException();
+		if(_uploadAborted) {
+			throw new IOException("Error on file write.");
+		}
+		
+		if(_upload == null) {
+			startUpload();
+		}
+		
+		S3PartUpload part = new S3PartUpload(this, _nextPartNumber++, _buffer != null ? _buffer : new byte[0], _bufferSize, _bufferPooled);
+		
+		_buffer = null;
+		_bufferSize = 0;
+		_bufferPooled = false;
+		
+		synchronized(_partLock) {
+			_pendingParts++;
+		}
+		
+		S3PartUploadThread.queuePart(part);
+		
+		if(!lastPart) {
+			_buffer = S3BufferPool.getInstance().acquire();
+			_bufferPooled = true;
+		}
+	}
+	
+	/** Called by an upload thread */
+	void uploadPart(S3PartUpload part) {
+		boolean succeeded = false;
+		try {
+			S3Object so = new S3Object(_file.getS3Path());
+			so.setDataInputStream(new ByteArrayInputStream(part._data, 0, part._length));
+			so.setContentLength(part._length);
+			
+			MultipartPart result = getHostInfo().getS3Service().multipartUploadPart(_upload, part._partNumber, so);
+			
+			synchronized(_partLock) {
+				_parts.add(result);
+			}
+			succeeded = true;
+			
+		} catch (S3ServiceException e) {
+			S3Log.err("S3ServiceException on part upload"+e);
+			
+		} catch (Throwable t) {
+			// Reported to the writer (below) rather than thrown, as the upload threads are shared by all streams
+			S3Log.err("Unexpected error on part upload"+t);
+			
+		} finally {
+			if(part._pooled) {
+				S3BufferPool.getInstance().release(part._data);
+			}
+			
+			synchronized(_partLock) {
+				if(!succeeded && _uploadException == null) {
+					_uploadException = new IOException("Error on file write.");
+				}
+				_pendingParts--;
+				_partLock.notifyAll();
+			}
+		}
+	}
+	
+	/** If an upload thread has failed to upload a part, aborts the upload and throws the failure */
+	private void throwUploadException() throws IOException {
+		IOException e;
+		synchronized(_partLock) {
+			e = _uploadException;
+		}
+		
+		if(e != null) {
+			abortUpload();
+			throw e;
+		}
+	}
+	
+	private void writeToBuffer(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(_bufferSize == S3BufferPool.PART_SIZE) {
+				// The part is only submitted once there is more data, so that an object of exactly the part size 
+				// is still uploaded with a single put
+				submitPart(false);
+			}
+			
+			ensureCapacity((int)Math.min((long)_bufferSize + len, S3BufferPool.PART_SIZE));
+			
+			int c = Math.min(len, _buffer.length - _bufferSize);
+			System.arraycopy(b, off, _buffer, _bufferSize, c);
+			_bufferSize += c;
+			off += c;
+			len -= c;
+		}
+	}
+	
+	private void ensureCapacity(int required) throws IOException {
+		if(_buffer != null && _buffer.length >= required) {
+			return;
+		}
 		
-		fis.close();
-		_tempFile.delete();
+		int newSize = Math.max(required, _buffer != null ? _buffer.length * 2 : INITIAL_BUFFER_SIZE);
 		
+		byte[] newBuffer;
+		boolean pooled = false;
+		if(newSize >= S3BufferPool.PART_SIZE) {
+			newBuffer = S3BufferPool.getInstance().acquire();
+			pooled = true;
+		} else {
+			newBuffer = new byte[newSize];
+		}
 		
+		if(_buffer != null) {
+			System.arraycopy(_buffer, 0, newBuffer, 0, _bufferSize);
+		}
+		releaseBuffer();
+		
+		_buffer = newBuffer;
+		_bufferPooled = pooled;
+	}
+	
+	private void releaseBuffer() {
+		if(_bufferPooled) {
+			S3BufferPool.getInstance().release(_buffer);
+		}
+		_buffer = null;
+		_bufferPooled = false;
+	}
+	
+	private S3HostInfo getHostInfo() {
+		return _file.getHostInfo();
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
 		assertNotClosed();
 		
-		createFileOutputStreamIfNeeded();
-		_fos.write(b, off, len);
+		if(_uploadAborted) {
+			throwUploadException();
+			throw new IOException("Error on file write.");
+		}
+		
+		initializeIfNeeded();
+		writeToBuffer(b, off, len);
 	}
 
 	@Override
 	public void write(byte[] b) throws IOException {
-		assertNotClosed();
-		
-		createFileOutputStreamIfNeeded();
-		_fos.write(b);
+		write(b, 0, b.length);
 	}
 
 	@Override
 	public void write(int n) throws IOException {
-		assertNotClosed();
-		
-		createFileOutputStreamIfNeeded();
-		_fos.write(n);
+		write(new byte[] { (byte)n }, 0, 1);
 	}
 
+	/** The object is not visible until the stream is closed, so there is nothing to flush; errors from uploads in 
+	 * progress are reported here, however. */
 	@Override
 	public void flush() throws IOException {
 		assertNotClosed();
-		_fos.flush();
+		throwUploadException();
 	}
 
 	
@@ -148,3 +429,80 @@ public class S3FileOutputStream extends OutputStream implements IFileOutputStrea
 		}
 	}
 }
+
+/** A part of a multipart upload that is waiting to be uploaded. */
+class S3PartUpload {
+	final S3FileOutputStream _stream;
+	final int _partNumber;
+	final byte[] _data;
+	final int _length;
+	
+	/** Whether _data should be returned to S3BufferPool once it has been uploaded */
+	final boolean _pooled;
+	
+	S3PartUpload(S3FileOutputStream stream, int partNumber, byte[] data, int length, boolean pooled) {
+		_stream = stream;
+		_partNumber = partNumber;
+		_data = data;
+		_length = length;
+		_pooled = pooled;
+	}
+}
+
+/** Uploads the parts of multipart uploads; the threads are shared by all output streams, so that the parts of a 
+ * large object are uploaded in parallel. A failed part upload is reported to its stream, and does not end the thread;
+ * should a thread nonetheless exit, it is replaced when the next part is queued. */
+class S3PartUploadThread extends Thread {
+	
+	private static final int NUM_THREADS = 4;
+	
+	/** Synchronize on _queue when accessing either */
+	private static final LinkedList<S3PartUpload> _queue = new LinkedList<S3PartUpload>();
+	private static int _liveThreads = 0;
+	
+	private S3PartUploadThread() {
+		setName(S3PartUploadThread.class.getName());
+		setDaemon(true);
+	}
+	
+	static void queuePart(S3PartUpload part) {
+		synchronized(_queue) {
+			while(_liveThreads < NUM_THREADS) {
+				_liveThreads++;
+				new S3PartUploadThread().start();
+			}
+			
+			_queue.add(part);
+			_queue.notify();
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				S3PartUpload part;
+				synchronized(_queue) {
+					while(_queue.isEmpty()) {
+						try {
+							_queue.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					part = _queue.removeFirst();
+				}
+				
+				try {
+					part._stream.uploadPart(part);
+				} catch(Throwable t) {
+					S3Log.err("Unexpected error in part upload thread"+t);
+				}
+			}
+		} finally {
+			synchronized(_queue) {
+				_liveThreads--;
+			}
+		}
+	}
+}
@@ -16,12 +16,16 @@
 
 package com.vfile.s3io;
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.security.AWSCredentials;
 
+import com.vfile.AsyncFileSupport;
+
 public class S3HostInfo {
 	S3Bucket _bucket = null;
 	S3Service _s3Service = null;
@@ -29,6 +33,9 @@ public class S3HostInfo {
 	AWSCredentials _awsCredentials = null;
 	String _bucketName;
 	
+	/** Performs the asynchronous operations of the host's files (see S3File); created on first use. */
+	private ThreadPoolExecutor _executor = null;
+	
 	public S3HostInfo(AWSCredentials awsCredentials, String bucketName) throws S3ServiceException {
 		_awsCredentials = awsCredentials;
 		_bucketName = bucketName;
@@ -46,4 +53,14 @@ public class S3HostInfo {
 	public S3Service getS3Service() {
 		return _s3Service;
 	}
+	
+	/** Returns the pool on which the host's asynchronous requests are performed; it has as many threads as the 
+	 * service has HTTP connections, so that each request in flight has a connection. */
+	synchronized ThreadPoolExecutor getExecutor() {
+		if(_executor == null) {
+			int maxConnections = _s3Service.getJetS3tProperties().getIntProperty("httpclient.max-connections", 20);
+			_executor = AsyncFileSupport.newExecutor(S3HostInfo.class.getName(), Math.max(1, maxConnections));
+		}
+		return _executor;
+	}
 }
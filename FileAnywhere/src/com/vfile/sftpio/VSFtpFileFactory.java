@@ -16,13 +16,73 @@
 
 package com.vfile.sftpio;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import com.vfile.interfaces.IFile;
+import com.vfile.interfaces.IFileInputStream;
+import com.vfile.interfaces.IFileOutputStream;
 import com.vfile.vfsio.VFSFileFactory;
 
+/** Creates VSFtpFiles (and their streams), so that the operations of the files are performed on the host's pooled
+ * sessions (see VSFtpSessionPool). */
 public class VSFtpFileFactory extends VFSFileFactory {
+	
+	private final VSFtpHostInfo _hostInfo;
 
 	public VSFtpFileFactory(VSFtpHostInfo hostInfo) {
 		super(hostInfo.getVfsConfig());
+		_hostInfo = hostInfo;
+	}
+	
+	@Override
+	public IFile createFile(IFile parent, String child) {
+		return new VSFtpFile(_hostInfo, parent, child);
 	}
 
+	@Override
+	public IFile createFile(String pathname) {
+		return new VSFtpFile(_hostInfo, pathname);
+	}
+
+	@Override
+	public IFile createFile(String parent, String child) {
+		return new VSFtpFile(_hostInfo, parent, child);
+	}
+	
+	@Override
+	public IFileInputStream createFileInputStream(IFile file) throws FileNotFoundException {
+		try {
+			return new VSFtpFileInputStream(toVSFtpFile(file));
+		} catch (IOException e) {
+			throw new FileNotFoundException("Unable to open file: "+file.getPath()+" ("+e.getMessage()+")");
+		}
+	}
+
+	@Override
+	public IFileInputStream createFileInputStream(String name) throws FileNotFoundException {
+		return createFileInputStream(createFile(name));
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(String name, boolean append) throws FileNotFoundException {
+		return createFileOutputStream(createFile(name), append);
+	}
+
+	@Override
+	public IFileOutputStream createFileOutputStream(IFile file, boolean append) throws FileNotFoundException {
+		try {
+			return new VSFtpFileOutputStream(toVSFtpFile(file), append);
+		} catch (IOException e) {
+			throw new FileNotFoundException("Unable to open file: "+file.getPath()+" ("+e.getMessage()+")");
+		}
+	}
+	
+	private VSFtpFile toVSFtpFile(IFile file) {
+		if(file instanceof VSFtpFile) {
+			return (VSFtpFile)file;
+		}
+		return new VSFtpFile(_hostInfo, file.getPath());
+	}
 	
 }
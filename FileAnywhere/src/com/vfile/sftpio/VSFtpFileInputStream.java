@@ -17,13 +17,64 @@
 package com.vfile.sftpio;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import com.vfile.vfsio.VFSFileInputStream;
 
+/** Input stream for an SFTP file; the file is read on a session borrowed from the host's VSFtpSessionPool, which is
+ * returned to the pool once the stream is closed. */
 public class VSFtpFileInputStream extends VFSFileInputStream {
+	
+	private final VSFtpSessionPool _pool;
+	
+	/** Null once the stream has been closed */
+	private VSFtpSession _session;
 
 	public VSFtpFileInputStream(VSFtpFile file) throws IOException {
-		super(file);
+		this(file, file.getHostInfo().getSessionPool());
+	}
+	
+	private VSFtpFileInputStream(VSFtpFile file, VSFtpSessionPool pool) throws IOException {
+		this(file, pool, pool.borrow());
+	}
+	
+	private VSFtpFileInputStream(VSFtpFile file, VSFtpSessionPool pool, VSFtpSession session) throws IOException {
+		super(file, open(file, pool, session));
+		_pool = pool;
+		_session = session;
+	}
+	
+	private static InputStream open(VSFtpFile file, VSFtpSessionPool pool, VSFtpSession session) throws IOException {
+		boolean failed = true;
+		try {
+			InputStream result = file.openInputStream(session);
+			failed = false;
+			return result;
+		} finally {
+			if(failed) {
+				pool.release(session, true);
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		VSFtpSession session;
+		synchronized(this) {
+			session = _session;
+			_session = null;
+		}
+		if(session == null) {
+			return;
+		}
+		
+		boolean failed = true;
+		try {
+			super.close();
+			failed = false;
+		} finally {
+			_pool.release(session, failed);
+		}
 	}
 
 }
@@ -17,19 +17,68 @@
 package com.vfile.sftpio;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import com.vfile.vfsio.VFSFileOutputStream;
 
+/** Output stream for an SFTP file; the file is written on a session borrowed from the host's VSFtpSessionPool, which is
+ * returned to the pool once the stream is closed. */
 public class VSFtpFileOutputStream extends VFSFileOutputStream {
+	
+	private final VSFtpSessionPool _pool;
+	
+	/** Null once the stream has been closed */
+	private VSFtpSession _session;
 
 	public VSFtpFileOutputStream(VSFtpFile file, boolean isAppend) throws IOException {
-		super(file, isAppend);
+		this(file, isAppend, file.getHostInfo().getSessionPool());
 	}
 
 	public VSFtpFileOutputStream(VSFtpFile file) throws IOException {
-		super(file);
-
+		this(file, false);
+	}
+	
+	private VSFtpFileOutputStream(VSFtpFile file, boolean isAppend, VSFtpSessionPool pool) throws IOException {
+		this(file, isAppend, pool, pool.borrow());
 	}
 	
+	private VSFtpFileOutputStream(VSFtpFile file, boolean isAppend, VSFtpSessionPool pool, VSFtpSession session) throws IOException {
+		super(file, open(file, isAppend, pool, session));
+		_pool = pool;
+		_session = session;
+	}
+	
+	private static OutputStream open(VSFtpFile file, boolean append, VSFtpSessionPool pool, VSFtpSession session) throws IOException {
+		boolean failed = true;
+		try {
+			OutputStream result = file.openOutputStream(session, append);
+			failed = false;
+			return result;
+		} finally {
+			if(failed) {
+				pool.release(session, true);
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		VSFtpSession session;
+		synchronized(this) {
+			session = _session;
+			_session = null;
+		}
+		if(session == null) {
+			return;
+		}
+		
+		boolean failed = true;
+		try {
+			super.close();
+			failed = false;
+		} finally {
+			_pool.release(session, failed);
+		}
+	}
 
-}
\ No newline at end of file
+}
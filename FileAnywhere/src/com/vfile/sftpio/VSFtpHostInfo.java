@@ -28,6 +28,9 @@ public class VSFtpHostInfo {
 	
 	VFSFileConfig _vfsConfig;
 	
+	/** Created on first use */
+	private VSFtpSessionPool _sessionPool = null;
+	
 	
 	public VSFtpHostInfo(String host, String username, String password) {
 		super();
@@ -57,4 +60,12 @@ public class VSFtpHostInfo {
 	public VFSFileConfig getVfsConfig() {
 		return _vfsConfig;
 	}
+	
+	/** The pool of sessions on which the operations of the host's files are performed (see VSFtpFile) */
+	public synchronized VSFtpSessionPool getSessionPool() {
+		if(_sessionPool == null) {
+			_sessionPool = new VSFtpSessionPool(this);
+		}
+		return _sessionPool;
+	}
 }
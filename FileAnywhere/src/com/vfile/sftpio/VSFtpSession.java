@@ -0,0 +1,91 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.sftpio;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs.provider.sftp.SftpFileProvider;
+
+/** A single session of a VSFtpSessionPool: a commons-vfs file system with its own manager (and thus its own SSH 
+ * connection and SFTP channel), which is only used by one thread at a time. The file objects that have been 
+ * resolved on the session are cached, so that a file's name is not parsed and resolved again on each operation. */
+class VSFtpSession {
+	
+	private static final int MAX_CACHED_FILES = 1000;
+	
+	private final DefaultFileSystemManager _manager;
+	
+	private final FileObject _root;
+	
+	/** Resolved file objects by path, least recently used first */
+	private final LinkedHashMap<String, FileObject> _files = new LinkedHashMap<String, FileObject>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FileObject> eldest) {
+			return size() > MAX_CACHED_FILES;
+		}
+	};
+	
+	VSFtpSession(VSFtpHostInfo host) throws FileSystemException {
+		_manager = new DefaultFileSystemManager();
+		
+		try {
+			_manager.addProvider("sftp", new SftpFileProvider());
+			_manager.init();
+			
+			_root = VSFtpFile.connect(_manager, host.getHost(), host.getUsername(), host.getPassword(), "/");
+			
+		} catch(FileSystemException e) {
+			_manager.close();
+			throw e;
+		}
+	}
+	
+	/** Returns the file object for the given path on this session. The object is refreshed, as the file may have been
+	 * changed by other sessions (or hosts) since its attributes were last read; the attributes are read again (by 
+	 * commons-vfs) when next needed. */
+	FileObject resolve(String path) throws FileSystemException {
+		FileObject fo = _files.get(path);
+		if(fo == null) {
+			fo = _root.resolveFile(path);
+			_files.put(path, fo);
+		}
+		
+		fo.refresh();
+		return fo;
+	}
+	
+	/** Checks that the session is still connected, by reading the attributes of the root directory. */
+	boolean isHealthy() {
+		try {
+			_root.refresh();
+			return _root.exists();
+		} catch(FileSystemException e) {
+			return false;
+		}
+	}
+	
+	void close() {
+		_files.clear();
+		_manager.close();
+	}
+}
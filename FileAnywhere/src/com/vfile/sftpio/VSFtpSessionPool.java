@@ -0,0 +1,128 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.sftpio;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import com.vfile.BoundedSessionPool;
+
+/**
+ * A bounded pool of SFTP sessions, shared by all the files (and streams) of a VSFtpHostInfo, so that operations 
+ * may be performed concurrently, and so that each operation does not open (and close) an SFTP channel of its own.
+ * 
+ * Each session is a commons-vfs file system of its own (with its own file system manager), and thus its own SSH 
+ * connection. A session is only used by one thread at a time, so the single SFTP channel that commons-vfs keeps 
+ * for a file system is reused by every operation on the session. Sessions are pooled by a BoundedSessionPool, 
+ * which checks a session that has been idle before it is handed out, and closes idle sessions above the minimum 
+ * size once they have been idle for the idle timeout.
+ */
+public class VSFtpSessionPool {
+	
+	public static final int DEFAULT_MIN_SIZE = BoundedSessionPool.DEFAULT_MIN_SIZE;
+	public static final int DEFAULT_MAX_SIZE = BoundedSessionPool.DEFAULT_MAX_SIZE;
+	
+	/** Idle sessions above the minimum size are closed after this many msecs */
+	public static final long DEFAULT_IDLE_TIMEOUT = BoundedSessionPool.DEFAULT_IDLE_TIMEOUT;
+	
+	private final BoundedSessionPool<VSFtpSession> _pool;
+	
+	VSFtpSessionPool(final VSFtpHostInfo host) {
+		_pool = new BoundedSessionPool<VSFtpSession>("SFTP session", VSFtpSessionPool.class.getName(), 
+				new BoundedSessionPool.SessionFactory<VSFtpSession>() {
+			
+			@Override
+			public VSFtpSession createSession() throws IOException {
+				return new VSFtpSession(host);
+			}
+			
+			@Override
+			public boolean isHealthy(VSFtpSession session) {
+				return session.isHealthy();
+			}
+			
+			@Override
+			public void closeSession(VSFtpSession session) {
+				session.close();
+			}
+		});
+	}
+	
+	public void setMinSize(int minSize) {
+		_pool.setMinSize(minSize);
+	}
+	
+	public void setMaxSize(int maxSize) {
+		_pool.setMaxSize(maxSize);
+	}
+	
+	public int getMaxSize() {
+		return _pool.getMaxSize();
+	}
+	
+	public void setIdleTimeout(long idleTimeout) {
+		_pool.setIdleTimeout(idleTimeout);
+	}
+	
+	/** Number of open sessions (idle or in use) */
+	public int getSize() {
+		return _pool.getSize();
+	}
+	
+	public int getIdleCount() {
+		return _pool.getIdleCount();
+	}
+	
+	/** Returns the pool on which the asynchronous operations of the host's files are performed; it has as many 
+	 * threads as the maximum number of sessions, so that each operation in flight may borrow its own session. */
+	ThreadPoolExecutor getExecutor() {
+		return _pool.getExecutor();
+	}
+	
+	/** Returns a connected session, creating one if none are idle and the pool is below its maximum size, otherwise 
+	 * waiting for one to be released. The session must be returned with release(...) or invalidate(...). */
+	VSFtpSession borrow() throws IOException {
+		return _pool.borrow();
+	}
+	
+	/** Returns a session to the pool, once the caller has finished with it (and any transfer on it has completed). */
+	void release(VSFtpSession session) {
+		_pool.release(session);
+	}
+	
+	/** Returns a session to the pool after an operation on it; if the operation failed, the session is only 
+	 * discarded if it is no longer healthy, as commons-vfs reports the failure of an operation (e.g. deleting a 
+	 * file that does not exist) in the same way as the failure of the connection. */
+	void release(VSFtpSession session, boolean failed) {
+		if(!failed || session.isHealthy()) {
+			_pool.release(session);
+		} else {
+			_pool.invalidate(session);
+		}
+	}
+	
+	/** Discards a session that failed (or was left in an unknown state) while borrowed. */
+	void invalidate(VSFtpSession session) {
+		_pool.invalidate(session);
+	}
+	
+	/** Closes all idle sessions; sessions that are borrowed are closed as they are released. */
+	public void close() {
+		_pool.close();
+	}
+	
+}
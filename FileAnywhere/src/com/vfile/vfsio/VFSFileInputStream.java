@@ -36,6 +36,12 @@ public class VFSFileInputStream extends InputStream implements IFileInputStream
 		}
 	}
 	
+	/** For subclasses that open the inner stream themselves */
+	protected VFSFileInputStream(VFSFile file, InputStream inner) {
+		_file = file;
+		_inner = inner;
+	}
+	
 	@Override
 	public int available() throws IOException {
 		return _inner.available();
@@ -33,6 +33,12 @@ public class VFSFileOutputStream extends OutputStream implements IFileOutputStre
 		_file = file;
 		_outer = _file._fo.getContent().getOutputStream(isAppend);
 	}
+	
+	/** For subclasses that open the inner stream themselves */
+	protected VFSFileOutputStream(VFSFile file, OutputStream outer) {
+		_file = file;
+		_outer = outer;
+	}
 
 	
 	@Override
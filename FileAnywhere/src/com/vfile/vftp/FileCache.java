@@ -16,27 +16,73 @@
 
 package com.vfile.vftp;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
-/** Establishing file connects takes time, as does retrieving file data; this class caches some of that data for each client. 
- * Default cache flush time is fairly quick, to reduce/eliminate old data. */
+import org.apache.commons.net.ftp.FTPFile;
+
+/** Establishing file connects takes time, as does retrieving file data; this class caches the FTPFile metadata of 
+ * each path, for each client. Default cache flush time is fairly quick, to reduce/eliminate old data.
+ * 
+ * The cache is populated with every file of each directory listing. Once a directory has been listed, a path in
+ * that directory that is not in the listing is known not to exist, so existence checks of recently listed 
+ * directories do not require a round trip to the server. Both the files and the listed directories are bounded 
+ * in number, with the least recently used evicted first. */
 public class FileCache {
 	
-	// TODO: LOWER - ARCHITECTURE - One thing this file cache doesn't do is cache the non existence of files... e.g. if I list a dir and I don't see a file, if I test for the existence of that file it is not cache. 
-
-	public static final int FIELD_FTPFILE = 1;
-
-	static Map<VFTPClient, FileCache> _clientToCacheMap = Collections.synchronizedMap(new HashMap<VFTPClient, FileCache>());
+	static Map<VFTPClient, FileCache> _clientToCacheMap = new WeakHashMap<VFTPClient, FileCache>();
 	
-	VFTPClient _client = null;
+	public static final long DEFAULT_CACHE_EXPIRE_TIME = 5000;
 	
-	Map<String, Map<Integer, AttributeValue>> _fileToAttributesMap = new HashMap<String, Map<Integer, AttributeValue>>();
+	/** Non-existence is cached for less time than file data, as new files are usually waited on by polling */
+	public static final long DEFAULT_NEGATIVE_CACHE_EXPIRE_TIME = 1000;
 	
-	public static final long DEFAULT_CACHE_EXPIRE_TIME = 5000;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
 	
 	long _cacheExpireTime = DEFAULT_CACHE_EXPIRE_TIME;
+	
+	long _negativeCacheExpireTime = DEFAULT_NEGATIVE_CACHE_EXPIRE_TIME;
+
+	int _maxEntries = DEFAULT_MAX_ENTRIES;
+	
+	/** Normalized path -> the file at that path; synchronize on this FileCache when accessing. */
+	private final Map<String, CacheEntry> _files = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+			if(size() <= _maxEntries) {
+				return false;
+			}
+			
+			// The listing of the parent no longer describes every file in the directory, so its absence 
+			// from the cache can no longer be used to infer non-existence.
+			_listedDirectories.remove(getParentPath(eldest.getKey()));
+			_evictions++;
+			return true;
+		}
+	};
+	
+	/** Normalized path of a directory -> the last complete listing of that directory; synchronize on this
+	 * FileCache when accessing. */
+	private final Map<String, CacheEntry> _listedDirectories = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+			return size() > _maxEntries;
+		}
+	};
+	
+	/** Incremented on each change to the cache, to order file entries against the listings of their directory */
+	private long _nextSequence = 1;
+	
+	private long _hits = 0;
+	private long _negativeHits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
 
 	private FileCache() {
 		
@@ -44,7 +90,26 @@ public class FileCache {
 	
 	public static void setCacheExpireTime(VFTPClient client, long cacheExpirationTimeInMsecs) {
 		FileCache fc = getFileCache(client);
-		fc._cacheExpireTime = cacheExpirationTimeInMsecs;
+		synchronized(fc) {
+			fc._cacheExpireTime = cacheExpirationTimeInMsecs;
+		}
+	}
+	
+	public static void setNegativeCacheExpireTime(VFTPClient client, long cacheExpirationTimeInMsecs) {
+		FileCache fc = getFileCache(client);
+		synchronized(fc) {
+			fc._negativeCacheExpireTime = cacheExpirationTimeInMsecs;
+		}
+	}
+	
+	public static void setMaxEntries(VFTPClient client, int maxEntries) {
+		FileCache fc = getFileCache(client);
+		synchronized(fc) {
+			fc._maxEntries = maxEntries;
+			if(fc._files.size() > maxEntries || fc._listedDirectories.size() > maxEntries) {
+				fc.clear();
+			}
+		}
 	}
 	
 	public synchronized static FileCache getFileCache(VFTPClient client) {
@@ -58,52 +123,188 @@ public class FileCache {
 		return result;
 	}
 	
-	public void putAttribute(VFTPFile file, int type, Object value) {
-		synchronized(_fileToAttributesMap) {
-			Map<Integer, AttributeValue> map = _fileToAttributesMap.get(file.getPath());
-			
-			if(map == null) {
-				map = new HashMap<Integer, AttributeValue>();
-				_fileToAttributesMap.put(file.getPath(), map);
+	/** Returns the cached state of the path, or null if it is not known (in which case the caller should look it 
+	 * up on the server); the file of the returned entry is null if the path is known not to exist. */
+	public synchronized CacheEntry lookup(String path) {
+		String key = normalizePath(path);
+		long currTime = System.currentTimeMillis();
+		
+		CacheEntry entry = _files.get(key);
+		CacheEntry listing = _listedDirectories.get(getParentPath(key));
+		
+		if(entry != null && (listing == null || entry._sequence >= listing._sequence)) {
+			// The entry is at least as recent as the listing (or was added by it)
+			if(entry._known) {
+				long expireTime = entry._file != null ? _cacheExpireTime : _negativeCacheExpireTime;
+				if(currTime - entry._timestamp <= expireTime) {
+					if(entry._file != null) {
+						_hits++;
+					} else {
+						_negativeHits++;
+					}
+					return entry;
+				}
 			}
 			
-			synchronized(map) {
-				AttributeValue v = new AttributeValue();
-				v._value = value;
-				v._timestamp = System.currentTimeMillis();
-				
-				map.put(type, v);
-			}
+		} else if(listing != null && currTime - listing._timestamp <= _negativeCacheExpireTime) {
+			// A file that was not in a recent listing of its parent does not exist
+			_negativeHits++;
+			return CacheEntry.NOT_FOUND;
 		}
+		
+		_misses++;
+		return null;
 	}
 	
-	public Object getAttribute(VFTPFile file, int type) {
-		synchronized(_fileToAttributesMap) {
-			Map<Integer, AttributeValue> map = _fileToAttributesMap.get(file.getPath());
-			
-			if(map == null) {
-				return null;
+	/** Caches the file data of a single path; file may be null if the path does not exist. */
+	public synchronized void putFile(String path, FTPFile file) {
+		_files.put(normalizePath(path), new CacheEntry(file, true, System.currentTimeMillis(), _nextSequence++));
+	}
+	
+	/** Caches every file in a directory listing. If the listing is complete (it is not filtered by a pattern), 
+	 * then files of the directory that are not in the listing are treated as not existing. */
+	public synchronized void putListing(String directoryPath, FTPFile[] files, boolean complete) {
+		String dirKey = normalizePath(directoryPath);
+		long currTime = System.currentTimeMillis();
+		long sequence = _nextSequence++;
+		
+		for(FTPFile f : files) {
+			if(f == null) continue;
+			_files.put(getChildPath(dirKey, f.getName()), new CacheEntry(f, true, currTime, sequence));
+		}
+		
+		if(complete) {
+			// Entries of the directory that were added before the listing, and not by it, are superseded by it 
+			_listedDirectories.put(dirKey, new CacheEntry(null, true, currTime, sequence));
+		}
+	}
+	
+	/** Discards the cached state of the path; called when the file at the path is modified by this client. */
+	public synchronized void invalidate(String path) {
+		// The entry overrides the parent's listing, until the directory is listed again 
+		_files.put(normalizePath(path), new CacheEntry(null, false, 0, _nextSequence++));
+	}
+	
+	/** Discards the cached state of the path, and of anything beneath it; called when a path that may be a directory
+	 * is renamed or deleted by this client. */
+	public synchronized void invalidateTree(String path) {
+		invalidate(path);
+		
+		String key = normalizePath(path);
+		String childPrefix = key.equals(VFTPFile.SLASH) ? key : key + VFTPFile.SLASH;
+		
+		for(Iterator<String> it = _files.keySet().iterator(); it.hasNext();) {
+			if(it.next().startsWith(childPrefix)) {
+				it.remove();
 			}
-			
-			synchronized(map) {
-				AttributeValue v = map.get(type);
-				
-				if(v == null) {
-					return null;
-				}
-				
-				if(System.currentTimeMillis() - v._timestamp > _cacheExpireTime) {
-					return null;
-				}
-				
-				return v._value;
+		}
+		
+		_listedDirectories.remove(key);
+		for(Iterator<String> it = _listedDirectories.keySet().iterator(); it.hasNext();) {
+			if(it.next().startsWith(childPrefix)) {
+				it.remove();
 			}
-			
 		}
 	}
-}
-
-class AttributeValue {
-	Object _value = null;
-	long _timestamp = -1;
+	
+	/** Records that the path was deleted by this client. */
+	public synchronized void putDeleted(String path) {
+		invalidateTree(path);
+		putFile(path, null);
+	}
+	
+	public synchronized void clear() {
+		_files.clear();
+		_listedDirectories.clear();
+	}
+	
+	public synchronized long getHits() {
+		return _hits;
+	}
+	
+	/** Lookups that were answered by the cache with the non-existence of the file */
+	public synchronized long getNegativeHits() {
+		return _negativeHits;
+	}
+	
+	public synchronized long getMisses() {
+		return _misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+	
+	public synchronized int getSize() {
+		return _files.size();
+	}
+	
+	public synchronized void resetStatistics() {
+		_hits = 0;
+		_negativeHits = 0;
+		_misses = 0;
+		_evictions = 0;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "FileCache [size="+_files.size()+", listed directories="+_listedDirectories.size()+", hits="+_hits
+				+", negative hits="+_negativeHits+", misses="+_misses+", evictions="+_evictions+"]";
+	}
+	
+	/** Returns the path in the form /a/b/c, regardless of duplicate or trailing slashes. */
+	static String normalizePath(String path) {
+		StringBuilder sb = new StringBuilder();
+		for(String s : path.split(VFTPFile.SLASH)) {
+			if(s.trim().length() > 0) {
+				sb.append(VFTPFile.SLASH);
+				sb.append(s);
+			}
+		}
+		
+		if(sb.length() == 0) {
+			return VFTPFile.SLASH;
+		}
+		return sb.toString();
+	}
+	
+	private static String getParentPath(String normalizedPath) {
+		int index = normalizedPath.lastIndexOf(VFTPFile.SLASH);
+		if(index <= 0) {
+			return VFTPFile.SLASH;
+		}
+		return normalizedPath.substring(0, index);
+	}
+	
+	private static String getChildPath(String normalizedDirectoryPath, String name) {
+		if(normalizedDirectoryPath.equals(VFTPFile.SLASH)) {
+			return VFTPFile.SLASH + name;
+		}
+		return normalizedDirectoryPath + VFTPFile.SLASH + name;
+	}
+	
+	/** The cached state of a path */
+	public static class CacheEntry {
+		static final CacheEntry NOT_FOUND = new CacheEntry(null, true, 0, 0);
+		
+		/** Null if the path does not exist */
+		final FTPFile _file;
+		
+		/** False if the state of the path is not known, because it has been modified since it was cached */
+		final boolean _known;
+		
+		final long _timestamp;
+		final long _sequence;
+		
+		CacheEntry(FTPFile file, boolean known, long timestamp, long sequence) {
+			_file = file;
+			_known = known;
+			_timestamp = timestamp;
+			_sequence = sequence;
+		}
+		
+		public FTPFile getFile() {
+			return _file;
+		}
+	}
 }
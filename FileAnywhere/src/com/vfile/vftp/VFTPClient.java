@@ -18,16 +18,30 @@ package com.vfile.vftp;
 
 import java.io.IOException;
 
+import org.apache.commons.net.ftp.FTPClient;
+
 public class VFTPClient extends CommonsFTPClient {
 	
 	private String _activeLogin = null;
 	private String _activePassword = null;
 	private String _activeAccount = null;
 	
+	/** Created on first use; synchronize on this when accessing */
+	private VFTPConnectionPool _connectionPool = null;
+	
 	public VFTPClient() {
 		super();
 	}
 	
+	/** Returns the pool of sessions that are used by the files and streams of this client (see VFTPConnectionPool); the 
+	 * pool's sessions are logged in with the same credentials as this client. */
+	public synchronized VFTPConnectionPool getConnectionPool() {
+		if(_connectionPool == null) {
+			_connectionPool = new VFTPConnectionPool(this);
+		}
+		return _connectionPool;
+	}
+	
 	@Override
 	public boolean login(String username, String password) throws IOException {
 		boolean result = super.login(username, password);
@@ -54,11 +68,16 @@ public class VFTPClient extends CommonsFTPClient {
 	}
 	
 	
-	/** This should only be used by the InputStream/OutputStream implementations */
-	protected VFTPClient cloneConnectionForStream() throws IOException {
+	/** Creates a new connection to the same server, logged in with the same credentials; this should only be used 
+	 * by the connection pool. Returns null if the login fails. */
+	VFTPClient createSession() throws IOException {
 		VFTPClient result = new VFTPClient();
 		
-		result.connect( getRemoteAddress());
+		result.connect(getRemoteAddress(), getRemotePort());
+		
+		if(getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE) {
+			result.enterLocalPassiveMode();
+		}
 		
 		boolean b = false;
 		if(_activeAccount == null) {
@@ -70,6 +89,11 @@ public class VFTPClient extends CommonsFTPClient {
 		if(b) {
 			return result;
 		} else {
+			try {
+				result.disconnect();
+			} catch(IOException e) { 
+				/* ignore */
+			}
 			return null;
 		}
 		
@@ -0,0 +1,168 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.vfile.vftp;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.apache.commons.net.ftp.FTP;
+
+import com.vfile.BoundedSessionPool;
+
+/** 
+ * A bounded pool of logged-in FTP sessions, shared by all the files (and streams) of a VFTPClient, so that 
+ * metadata operations and transfers may be performed concurrently, and so that each transfer does not require 
+ * its own connect and login.
+ * 
+ * Each session is a separate control connection, created with the address and credentials of the client. Sessions 
+ * are pooled by a BoundedSessionPool, which checks them with a NOOP: before a session that has been idle is handed 
+ * out, and (from its keep-alive thread) on sessions that have been idle for the keep-alive interval, so that the 
+ * server does not time them out.
+ */
+public class VFTPConnectionPool {
+	
+	public static final int DEFAULT_MIN_SIZE = BoundedSessionPool.DEFAULT_MIN_SIZE;
+	public static final int DEFAULT_MAX_SIZE = BoundedSessionPool.DEFAULT_MAX_SIZE;
+	
+	/** How often (in msecs) an idle session is sent a NOOP by the keep-alive thread */
+	public static final long DEFAULT_KEEP_ALIVE_INTERVAL = 60 * 1000;
+	
+	/** Idle sessions above the minimum size are closed after this many msecs */
+	public static final long DEFAULT_IDLE_TIMEOUT = BoundedSessionPool.DEFAULT_IDLE_TIMEOUT;
+	
+	private final BoundedSessionPool<VFTPClient> _pool;
+	
+	VFTPConnectionPool(final VFTPClient client) {
+		_pool = new BoundedSessionPool<VFTPClient>("FTP connection", VFTPConnectionPool.class.getName(), 
+				new BoundedSessionPool.SessionFactory<VFTPClient>() {
+			
+			@Override
+			public VFTPClient createSession() throws IOException {
+				return VFTPConnectionPool.createSession(client);
+			}
+			
+			@Override
+			public boolean isHealthy(VFTPClient session) {
+				return VFTPConnectionPool.isHealthy(session);
+			}
+			
+			@Override
+			public void closeSession(VFTPClient session) {
+				VFTPConnectionPool.closeSession(session);
+			}
+		});
+		_pool.setKeepAliveInterval(DEFAULT_KEEP_ALIVE_INTERVAL);
+	}
+	
+	public void setMinSize(int minSize) {
+		_pool.setMinSize(minSize);
+	}
+	
+	public void setMaxSize(int maxSize) {
+		_pool.setMaxSize(maxSize);
+	}
+	
+	public int getMaxSize() {
+		return _pool.getMaxSize();
+	}
+	
+	public void setKeepAliveInterval(long keepAliveInterval) {
+		_pool.setKeepAliveInterval(keepAliveInterval);
+	}
+	
+	public void setIdleTimeout(long idleTimeout) {
+		_pool.setIdleTimeout(idleTimeout);
+	}
+	
+	/** Number of open sessions (idle or in use) */
+	public int getSize() {
+		return _pool.getSize();
+	}
+	
+	public int getIdleCount() {
+		return _pool.getIdleCount();
+	}
+	
+	/** Returns the pool on which the asynchronous operations of the client's files are performed; it has as many 
+	 * threads as the maximum number of sessions, so that each operation in flight may borrow its own session. */
+	ThreadPoolExecutor getExecutor() {
+		return _pool.getExecutor();
+	}
+	
+	/** Returns a logged-in session, creating one if none are idle and the pool is below its maximum size, otherwise 
+	 * waiting for one to be released. The session must be returned with release(...) or invalidate(...). */
+	public VFTPClient borrow() throws IOException {
+		return _pool.borrow();
+	}
+	
+	/** Returns a session to the pool, once the caller has finished with it (and any transfer on it has completed). */
+	public void release(VFTPClient session) {
+		if(session.isConnected()) {
+			_pool.release(session);
+		} else {
+			_pool.invalidate(session);
+		}
+	}
+	
+	/** Discards a session that failed (or was left in an unknown state) while borrowed. */
+	public void invalidate(VFTPClient session) {
+		_pool.invalidate(session);
+	}
+	
+	/** Closes all idle sessions; sessions that are borrowed are closed as they are released. */
+	public void close() {
+		_pool.close();
+	}
+	
+	private static VFTPClient createSession(VFTPClient client) throws IOException {
+		VFTPClient session = client.createSession();
+		if(session == null) {
+			throw new IOException("Unable to log in to FTP server.");
+		}
+		
+		if(!session.setFileType(FTP.BINARY_FILE_TYPE)) {
+			closeSession(session);
+			throw new IOException("Unable to set FTP file type.");
+		}
+		
+		return session;
+	}
+	
+	private static boolean isHealthy(VFTPClient session) {
+		try {
+			return session.isConnected() && session.sendNoOp();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private static void closeSession(VFTPClient session) {
+		try {
+			if(session.isConnected()) {
+				session.logout();
+			}
+		} catch(IOException e) { 
+			/* ignore */
+		}
+		
+		try {
+			session.disconnect();
+		} catch(IOException e) { 
+			/* ignore */
+		}
+	}
+}
@@ -16,20 +16,29 @@
 
 package com.vfile.vftp;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.net.ftp.FTPFile;
 
+import com.vfile.AsyncFileSupport;
+import com.vfile.interfaces.IAsyncFile;
+import com.vfile.interfaces.IAtomicFile;
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileFilter;
 import com.vfile.interfaces.IFilenameFilter;
+import com.vfile.interfaces.IPrefixListFile;
+import com.vfile.vftp.FileCache.CacheEntry;
 
 /** Central class to access file data for vftp file; maps IFile API to corresponding apache ftp api. */
-public class VFTPFile implements IFile {
+public class VFTPFile implements IAtomicFile, IPrefixListFile, IAsyncFile {
 	
 	/** Note that path includes the filename at the end, just like with normal Java getPath() result */
 	String _path = null;
@@ -58,6 +67,10 @@ public class VFTPFile implements IFile {
 		construct(host, path);
 	}
 	
+	public VFTPClient getHost() {
+		return _host;
+	}
+	
 	private void construct(VFTPClient host, String path) {
 		_host = host;
 		_path = path;
@@ -73,7 +86,7 @@ public class VFTPFile implements IFile {
 	}
 	
 	
-	private VFTPFile(VFTPClient host, List<String> parentPathComponents, String parentPath, String name, FTPFile attributes) {
+	private VFTPFile(VFTPClient host, List<String> parentPathComponents, String parentPath, String name) {
 		_host = host;
 		
 		List<String> l = new ArrayList<String>();
@@ -92,9 +105,6 @@ public class VFTPFile implements IFile {
 		_name = name;
 		
 		_fileCache = FileCache.getFileCache(_host);
-		
-		_fileCache.putAttribute(this, FileCache.FIELD_FTPFILE, attributes);
-
 	}
 	
 	private boolean isParentRootDir() {
@@ -113,41 +123,84 @@ public class VFTPFile implements IFile {
 		}
 	}
 	
+	/** Returns a session from the client's connection pool, or null if one could not be obtained; the session
+	 * must be returned with releaseSession(...) */
+	private VFTPClient borrowSession() {
+		try {
+			return _host.getConnectionPool().borrow();
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	
+	/** Returns the session to the pool, or discards it if the operation on it failed */
+	private void releaseSession(VFTPClient session, boolean failed) {
+		if(failed) {
+			_host.getConnectionPool().invalidate(session);
+		} else {
+			_host.getConnectionPool().release(session);
+		}
+	}
+	
 	private FTPFile getFTPFile() {
 
 		if(isRootDir()) {
 			return null;
 		}
 		
-		// TODO: LOWER - Log cache hits/misses
+		CacheEntry cached = _fileCache.lookup(_path);
+		if(cached != null) {
+			return cached.getFile();
+		}
+
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return null;
+		}
 		
-		FTPFile cachedFile = (FTPFile)_fileCache.getAttribute(this, FileCache.FIELD_FTPFILE);
+		boolean failed = true;
+		try {
+			FTPFile result = getFTPFile(session);
+			failed = false;
+			return result;
+		} catch(IOException ioe) {
+			return null;
+		} finally {
+			releaseSession(session, failed);
+		}
+	}
+	
+	/** Looks up the file on the given session (which the caller has borrowed), if it is not cached; the whole of the
+	 * parent directory is listed, so the other files of the directory are cached as well. */
+	private FTPFile getFTPFile(VFTPClient session) throws IOException {
+		if(isRootDir()) {
+			return null;
+		}
 		
-		if(cachedFile != null) {
-			return cachedFile;
+		CacheEntry cached = _fileCache.lookup(_path);
+		if(cached != null) {
+			return cached.getFile();
 		}
 
-		try {
-			synchronized(_host) {
-				if(!_host.printWorkingDirectory().equalsIgnoreCase(getParentPath())) {
+		// Each session has its own working directory
+		if(!session.printWorkingDirectory().equalsIgnoreCase(getParentPath())) {
 
-					boolean result = _host.changeWorkingDirectory(getParentPath());
-					if(!result) {
-						throw new RuntimeException("Unable to change directory.");
-					}
-				}
-				FTPFile[] files = _host.listFiles();
-				
-				for(FTPFile f : files) {
-					if(f.getName().equals(_name)) {
-						return f;
-					}
-				}
+			boolean result = session.changeWorkingDirectory(getParentPath());
+			if(!result) {
+				throw new RuntimeException("Unable to change directory.");
+			}
+		}
+		FTPFile[] files = session.listFiles();
+		
+		_fileCache.putListing(getParentPath(), files, true);
+		
+		for(FTPFile f : files) {
+			if(f != null && f.getName().equals(_name)) {
+				return f;
 			}
-			return null;
-		} catch(IOException ioe) {
-			return null;
 		}
+		
+		return null;
 	}
 	
 	private String getParentPath() {
@@ -222,28 +275,59 @@ public class VFTPFile implements IFile {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public boolean isAtomicCreate() {
+		// A file is visible to other clients while it is being stored
+		return false;
+	}
+
+	@Override
+	public boolean isAtomicRename() {
+		// RNFR/RNTO renames the file on the server
+		return true;
+	}
+
+	@Override
+	public boolean isConditionalCreate() {
+		return false;
+	}
+
 	@Override
 	public boolean delete() {
 		if(isRootDir()) {
 			return false;
 		}
 		
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return false;
+		}
+		
+		boolean failed = true;
 		try {
-			synchronized(_host) {
-				FTPFile file = getFTPFile();
-				if(file == null) {
-					return false;
-				}
-				
+			FTPFile file = getFTPFile(session);
+			
+			boolean result = false;
+			if(file != null) {
 				if(file.isDirectory()) {
-					return _host.removeDirectory(_path);
+					result = session.removeDirectory(_path);
 				} else {
-					return _host.deleteFile(_path);
-				}				
+					result = session.deleteFile(_path);
+				}
 			}
-		} catch(IOException ioe) { }
-		
-		return false;
+			
+			if(result) {
+				_fileCache.putDeleted(_path);
+			}
+			
+			failed = false;
+			return result;
+			
+		} catch(IOException ioe) { 
+			return false;
+		} finally {
+			releaseSession(session, failed);
+		}
 		
 	}
 
@@ -258,13 +342,11 @@ public class VFTPFile implements IFile {
 			return true;
 		}
 		
-		synchronized(_host) {
-			FTPFile file = getFTPFile();
-			if(file == null) {
-				return false;
-			} else {
-				return true;
-			}
+		FTPFile file = getFTPFile();
+		if(file == null) {
+			return false;
+		} else {
+			return true;
 		}
 	}
 
@@ -421,30 +503,109 @@ public class VFTPFile implements IFile {
 	public IFile[] listFiles() {
 		List<IFile> result = new ArrayList<IFile>();
 		
-		synchronized(_host) {
+		if(!exists()) {
+			return null;
+		}
+		
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return null;
+		}
+		
+		boolean failed = true;
+		try {
 			
-			try {
-				
-				if(!exists()) {
-					return null;
-				}
+			FTPFile[] files = session.listFiles(_path);
+			failed = false;
+			
+			if(files == null) {
+				return null;
+			}
+			
+			_fileCache.putListing(_path, files, true);
+			
+			for(FTPFile f : files) {
+				if(f == null) continue;
+				VFTPFile fr = new VFTPFile(_host, _pathComponents, _path, f.getName());
+				result.add(fr);
+			}
+			
+			return result.toArray(new IFile[result.size()]);
+			
+		} catch (IOException e) {
+			return null;
+		} finally {
+			releaseSession(session, failed);
+		}
+	}
+
+	@Override
+	public IFile[] listFiles(String prefix, String startAfter) {
+		
+		// The server expands the pattern, so only the (approximately) matching files are returned. The pattern ends
+		// at the first glob character in the prefix (FileTL names contain '[', which some servers treat as the start 
+		// of a character class); the remainder of the prefix is matched here.
+		int globIndex = indexOfGlobChar(prefix);
+		String patternPrefix = globIndex == -1 ? prefix : prefix.substring(0, globIndex);
+		
+		List<IFile> result = new ArrayList<IFile>();
+		
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return null;
+		}
+		
+		boolean failed = true;
+		try {
+			
+			FTPFile[] files;
+			if(patternPrefix.length() == 0) {
+				files = session.listFiles(_path);
+			} else {
+				files = session.listFiles((_path.endsWith(SLASH) ? _path : _path + SLASH) + patternPrefix + "*");
+			}
+			failed = false;
+			
+			if(files == null) {
+				return null;
+			}
+			
+			for(FTPFile f : files) {
+				if(f == null) continue;
 				
-				FTPFile[] files = _host.listFiles(_path);
-				if(files == null) {
-					return null;
+				// Some servers return the path of each file that matched a pattern, rather than just its name
+				String name = f.getName();
+				int slash = name.lastIndexOf(SLASH);
+				if(slash != -1) {
+					name = name.substring(slash+1);
 				}
 				
-				for(FTPFile f : files) {
-					VFTPFile fr = new VFTPFile(_host, _pathComponents, _path, f.getName(), f);
+				if(name.startsWith(prefix) && (startAfter == null || name.compareTo(startAfter) > 0)) {
+					VFTPFile fr = new VFTPFile(_host, _pathComponents, _path, name);
+					
+					// The listing is filtered, so it only tells us about the files that it contains
+					_fileCache.putFile(fr.getPath(), f);
 					result.add(fr);
 				}
-				
-				return result.toArray(new IFile[result.size()]);
-				
-			} catch (IOException e) {
-				return null;
+			}
+			
+			return result.toArray(new IFile[result.size()]);
+			
+		} catch (IOException e) {
+			return null;
+		} finally {
+			releaseSession(session, failed);
+		}
+	}
+	
+	private static int indexOfGlobChar(String str) {
+		for(int x = 0; x < str.length(); x++) {
+			char c = str.charAt(x);
+			if(c == '*' || c == '?' || c == '[' || c == ']' || c == '{' || c == '}' || c == '\\' || c == ' ') {
+				return x;
 			}
 		}
+		return -1;
 	}
 
 	@Override
@@ -483,53 +644,186 @@ public class VFTPFile implements IFile {
 
 	@Override
 	public boolean mkdir() {
-		synchronized(_host) {
-			try {
-				boolean result = _host.makeDirectory(_path);
-				return result;
-			} catch(IOException ioe) {
-				return false;
-			}
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return false;
+		}
+		
+		boolean failed = true;
+		try {
+			boolean result = session.makeDirectory(_path);
+			failed = false;
+			
+			_fileCache.invalidate(_path);
+			return result;
+		} catch(IOException ioe) {
+			return false;
+		} finally {
+			releaseSession(session, failed);
 		}
 	}
 
 	@Override
 	public boolean mkdirs() {
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return false;
+		}
+		
+		boolean failed = true;
 		try {
-			synchronized(_host) {
-				String path = "";
-				for(String str : _pathComponents) {
-					path += SLASH + str;
-					
-					VFTPFile tmpFile = new VFTPFile(_host, path);
-					
-					if(!tmpFile.exists()) {
-						boolean result = _host.makeDirectory(path);
-						if(!result) {
-							return false;
-						}
+			String path = "";
+			for(String str : _pathComponents) {
+				path += SLASH + str;
+				
+				VFTPFile tmpFile = new VFTPFile(_host, path);
+				
+				// The same session is used to check each directory, rather than borrowing another
+				if(tmpFile.getFTPFile(session) == null) {
+					boolean result = session.makeDirectory(path);
+					_fileCache.invalidate(path);
+					if(!result) {
+						failed = false;
+						return false;
 					}
 				}
-				return true;
-				
 			}
+			failed = false;
+			return true;
+			
 		} catch(IOException ioe) {
 			return false;
+		} finally {
+			releaseSession(session, failed);
 		}
 	}
 
 	@Override
 	public boolean renameTo(IFile dest) {
 		
+		VFTPClient session = borrowSession();
+		if(session == null) {
+			return false;
+		}
+		
+		boolean failed = true;
 		try {
-			synchronized(_host) {
-				return _host.rename(_path, dest.getPath());
-			}
+			boolean result = session.rename(_path, dest.getPath());
+			failed = false;
+			
+			// Either may be a directory, in which case the paths beneath it have changed as well
+			_fileCache.invalidateTree(_path);
+			_fileCache.invalidateTree(dest.getPath());
+			return result;
 		} catch(IOException ioe) {
 			return false;
+		} finally {
+			releaseSession(session, failed);
 		}
 	}
 
+	// Each asynchronous operation is performed on the connection pool's executor, which has a thread for each session 
+	// that the pool may open; concurrent operations are thus performed on separate sessions.
+	
+	@Override
+	public CompletableFuture<Boolean> existsAsync() {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return exists();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync() {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<IFile[]> listFilesAsync(final String prefix, final String startAfter) {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<IFile[]>() {
+			@Override
+			public IFile[] call() throws Exception {
+				return listFiles(prefix, startAfter);
+			}
+		});
+	}
+	
+	/** Unlike VFTPFileInputStream, the file is retrieved without first checking that it exists; a refused transfer
+	 * is reported as a FileNotFoundException. */
+	@Override
+	public CompletableFuture<byte[]> readAsync() {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				VFTPConnectionPool pool = _host.getConnectionPool();
+				VFTPClient session = pool.borrow();
+				
+				boolean completed = false;
+				try {
+					InputStream is = session.retrieveFileStream(_path);
+					if(is == null) {
+						completed = true;
+						throw new FileNotFoundException("File does not exist: "+_path);
+					}
+					
+					byte[] result = AsyncFileSupport.readFully(is);
+					completed = session.completePendingCommand();
+					if(!completed) {
+						throw new IOException("FTP transfer did not complete: "+_path);
+					}
+					return result;
+					
+				} finally {
+					// A session whose transfer did not complete cleanly is not reused
+					releaseSession(session, !completed);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> writeAsync(final byte[] data) {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				VFTPFileOutputStream fos = new VFTPFileOutputStream(_host, _path);
+				try {
+					fos.write(data);
+				} finally {
+					fos.close();
+				}
+				return null;
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> renameToAsync(final IFile dest) {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return renameTo(dest);
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> deleteAsync() {
+		return AsyncFileSupport.supply(_host.getConnectionPool().getExecutor(), new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return delete();
+			}
+		});
+	}
+
 	@Override
 	public boolean setExecutable(boolean executable, boolean ownerOnly) {
 		throw new UnsupportedOperationException();
@@ -20,8 +20,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.commons.net.ftp.FTP;
-
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileInputStream;
 
@@ -29,35 +27,44 @@ import com.vfile.interfaces.IFileInputStream;
 public class VFTPFileInputStream extends InputStream implements IFileInputStream {
 	
 	VFTPFile _file = null;
+	
+	/** The pooled session on which the file is transferred, until the stream is closed */
 	VFTPClient _host = null;
+	VFTPConnectionPool _pool = null;
 	InputStream _fileInputStream = null;
 	
-	// TODO: LOWER - By default this will NOT reuse the existing connection for the file transfer
-
 	public VFTPFileInputStream(VFTPClient host, IFile file) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_host.setFileType(FTP.BINARY_FILE_TYPE);
-		_file = new VFTPFile(_host, file.getPath());
+		_pool = host.getConnectionPool();
+		_file = new VFTPFile(host, file.getPath());
 		openFile();
 	}
 
 	public VFTPFileInputStream(VFTPClient host, String name) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_file = new VFTPFile(_host, name);
+		_pool = host.getConnectionPool();
+		_file = new VFTPFile(host, name);
 		openFile();
 	}
 	
 	private void openFile() throws FileNotFoundException, IOException {
 		if(!_file.exists()) {
-			try {
-				_host.logout();
-				_host.disconnect();
-			} catch(Exception e) {}
 			throw new FileNotFoundException();
 		}
 		
-		_fileInputStream = _host.retrieveFileStream(_file.getPath());
+		VFTPClient session = _pool.borrow();
+		try {
+			_fileInputStream = session.retrieveFileStream(_file.getPath());
+		} catch(IOException e) {
+			_pool.invalidate(session);
+			throw e;
+		}
+		
+		if(_fileInputStream == null) {
+			// The transfer was refused, e.g. the file was deleted after the exists() check
+			_pool.release(session);
+			throw new FileNotFoundException();
+		}
 		
+		_host = session;
 	}
 	
 	@Override
@@ -67,10 +74,24 @@ public class VFTPFileInputStream extends InputStream implements IFileInputStream
 
 	@Override
 	public void close() throws IOException {
-		_fileInputStream.close();
-		_host.completePendingCommand();
-		_host.logout();
-		_host.disconnect();
+		VFTPClient session = _host;
+		if(session == null) {
+			return;
+		}
+		_host = null;
+		
+		boolean completed = false;
+		try {
+			_fileInputStream.close();
+			completed = session.completePendingCommand();
+		} finally {
+			// A session whose transfer did not complete cleanly is not reused 
+			if(completed) {
+				_pool.release(session);
+			} else {
+				_pool.invalidate(session);
+			}
+		}
 	}
 
 	@Override
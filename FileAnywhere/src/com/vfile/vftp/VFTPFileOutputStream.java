@@ -20,58 +20,86 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.apache.commons.net.ftp.FTP;
-
 import com.vfile.interfaces.IFile;
 import com.vfile.interfaces.IFileOutputStream;
 
 public class VFTPFileOutputStream extends OutputStream implements IFileOutputStream {
+	/** The pooled session on which the file is transferred, until the stream is closed */
 	VFTPClient _host = null;
+	VFTPConnectionPool _pool = null;
+	FileCache _fileCache = null;
 	OutputStream _os = null;
 	String _path = null;
 
 	public VFTPFileOutputStream(VFTPClient host, IFile file) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_host.setFileType(FTP.BINARY_FILE_TYPE);
-		_path = file.getPath();
-		openFile(false);
+		this(host, file.getPath(), false);
 	}
 
 	public VFTPFileOutputStream(VFTPClient host, IFile file, boolean append) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_host.setFileType(FTP.BINARY_FILE_TYPE);
-		_path = file.getPath();
-		openFile(append);
+		this(host, file.getPath(), append);
 	}
 
 	public VFTPFileOutputStream(VFTPClient host, String name) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_host.setFileType(FTP.BINARY_FILE_TYPE);
-		_path = name;
-		openFile(false);
+		this(host, name, false);
 	}
 
 	public VFTPFileOutputStream(VFTPClient host, String name, boolean append) throws FileNotFoundException, IOException {
-		_host = host.cloneConnectionForStream();
-		_host.setFileType(FTP.BINARY_FILE_TYPE);
+		_pool = host.getConnectionPool();
+		_fileCache = FileCache.getFileCache(host);
 		_path = name;
 		openFile(append);
 	}
 	
-	private void openFile(boolean append) throws FileNotFoundException, IOException {		
-		if(append) {
-			_os = _host.appendFileStream(_path);
-		} else {
-			_os = _host.storeFileStream(_path);
-		}		
+	private void openFile(boolean append) throws FileNotFoundException, IOException {
+		_fileCache.invalidate(_path);
+		
+		VFTPClient session = _pool.borrow();
+		try {
+			if(append) {
+				_os = session.appendFileStream(_path);
+			} else {
+				_os = session.storeFileStream(_path);
+			}
+		} catch(IOException e) {
+			_pool.invalidate(session);
+			throw e;
+		}
+		
+		if(_os == null) {
+			_pool.release(session);
+			throw new FileNotFoundException("Unable to store file: "+_path);
+		}
+		
+		_host = session;
 	}
 	
 	@Override
 	public void close() throws IOException {
-		_os.close();
-		_host.completePendingCommand();
-		_host.logout();
-		_host.disconnect();
+		VFTPClient session = _host;
+		if(session == null) {
+			return;
+		}
+		_host = null;
+		
+		boolean completed = false;
+		try {
+			_os.close();
+			completed = session.completePendingCommand();
+		} finally {
+			// The size and modification time of the file have changed
+			_fileCache.invalidate(_path);
+			
+			// A session whose transfer did not complete cleanly is not reused 
+			if(completed) {
+				_pool.release(session);
+			} else {
+				_pool.invalidate(session);
+			}
+		}
+		
+		if(!completed) {
+			throw new IOException("FTP transfer did not complete: "+_path);
+		}
 	}
 
 	@Override
@@ -17,12 +17,13 @@
 package com.socketanywhere.filefactory;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
+import com.socketanywhere.filefactory.FileTLOptions.LockMode;
 import com.socketanywhere.filefactory.lock.IFileLock;
-import com.socketanywhere.filefactory.lock.FileLockOnNonlockingFS;
+import com.socketanywhere.filefactory.lock.LockManager;
 import com.vfile.VFile;
 
 /**
@@ -60,7 +61,7 @@ class BoundConnectionManager extends Thread {
 	private static final long LOCK_POLL_INTERVAL = 500;
 	
 	private static String extractBoundUUIDFromFilename(String filename) {
-		return FileTLUtil.extractField("bounduuid", filename);
+		return FileTLFilename.decode(filename).get(Field.BOUND_UUID);
 	}
 	
 	
@@ -76,6 +77,9 @@ class BoundConnectionManager extends Thread {
 	}
 	
 	private BoundConnEntry createAndAddBoundConnection(VFile dir, String name, String connUUID) {
+		// Ensure the directory is being watched, so that our run loop is woken by new tests
+		DirectoryWatcherManager.getInstance().getWatcher(dir);
+		
 		BoundConnEntry bce = new BoundConnEntry();
 		bce._connDirectory = dir;
 		bce._connName = name;
@@ -96,40 +100,33 @@ class BoundConnectionManager extends Thread {
 	}
 	
 	public void run() {
+		
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getAnyDirectoryWatcher("filetl-test-listen-on-connection[");
 
 		while(_connectionManagerThreadRunning) {
+			
+			long generation = watcher.getGeneration();
 
 			synchronized (_boundConnections) {
 				
-				
-				// Caches directory listing: Directory -> List of files in directory
-				Map<VFile, VFile[]> dirList = new HashMap<VFile, VFile[]>();
-			
 				for(BoundConnEntry be : _boundConnections) {
 					VFile dir = be._connDirectory;
 					
-					// If the dirList is empty, list the directory and store it in dirList
-					VFile[] fileList;
-					if(dirList.get(dir) == null) {
-						fileList = dir.listFiles();
-//						fileList = dir.listFiles(FileTLUtil.FILE_TL_FILE_FILTER);
-						dirList.put(dir, fileList);
-					} else {
-						fileList = dirList.get(dir);
-					}
-					
 					// If anyone is testing the bound connection entry, it will take this form
 					String lockTestFormat = "filetl-test-listen-on-connection["+be._connName+"]-bounduuid["+be._connUUID+"]-testuuid[";
 					
+					// The listing is shared with the other bound connections (and other pollers) of the directory
+					VFile[] fileList = DirectoryListingService.getInstance(dir).listFiles(lockTestFormat);
+					
 					for(VFile f : fileList) {
 						
 						// We have found a matching file...
-						if(f.getName().startsWith(lockTestFormat)) {
+						FileTLFilename fn = FileTLFilename.decode(f.getName());
+						if(fn.getType() == Type.TEST_LISTEN_ON_CONNECTION && fn.matches(Field.BOUND_NAME, be._connName) 
+								&& fn.matches(Field.BOUND_UUID, be._connUUID)) {
 							
 							// ... so reply
-							String testUUID = FileTLUtil.extractField("testuuid", f.getName());
-							
-							String responseName = "filetl-test-listen-active-connection["+be._connName+"]-bounduuid["+be._connUUID+"]-testuuid["+testUUID+"]";
+							String responseName = FileTLFilename.encode(Type.TEST_LISTEN_ACTIVE_CONNECTION, be._connName, be._connUUID, fn.get(Field.TEST_UUID));
 							VFile responseFile = new VFile(dir.getPath()+VFile.separator+responseName);
 							if(!responseFile.exists()) {
 								final int TIME_TO_WAIT_BEFORE_DELETE = 60000;
@@ -144,7 +141,7 @@ class BoundConnectionManager extends Thread {
 			} // end synchronized
 			
 			
-			FileTLUtil.sleep(LOCK_POLL_INTERVAL);
+			FileTLUtil.waitForChange(watcher, generation, LOCK_POLL_INTERVAL);
 			
 		}
 		
@@ -187,10 +184,10 @@ class BoundConnectionManager extends Thread {
 		}
 	}
 	
-	boolean bindOnNames(VFile directory, List<String> namedAddresses) {
+	boolean bindOnNames(VFile directory, List<String> namedAddresses, LockMode lockMode) {
 		final long TIME_TO_WAIT_FOR_BIND = 1000 * 60;
 		
-		// The threads will store their results in here
+		// The tasks will store their results in here
 		BoundConnectionThreadResult[] mtr = new BoundConnectionThreadResult[namedAddresses.size()];
 		
 		for(int x = 0; x < mtr.length; x++) {
@@ -199,13 +196,11 @@ class BoundConnectionManager extends Thread {
 			mtr[x]._acquireConnIfAvailable = true;
 		}
 		
-		// Start a thread for each name we want to bind to 
+		// Schedule a task for each name we want to bind to 
 		int x = 0;
 		for(String addr : namedAddresses) {
 			mtr[x]._address = addr;
-			BoundConnectionThread thread = new BoundConnectionThread(mtr[x], directory, addr);
-			thread.setDaemon(true);
-			thread.start();
+			FileTLScheduler.getInstance().schedule(new BoundConnectionTask(mtr[x], directory, addr, lockMode), 0);
 			x++;
 		}
 		
@@ -249,10 +244,10 @@ class BoundConnectionManager extends Thread {
 			}
 		}
 
-		// Inform any threads that are still running that they should no longer acquire bound connections 
+		// Inform any tasks that are still running that they should no longer acquire bound connections 
 		for(x = 0; x < mtr.length; x++) {
 			synchronized (mtr[x]) {
-				// This method of terminating all the threads works because all lock acquisition is synchronized on a BoundConnectionThreadResult, 
+				// This method of terminating all the tasks works because all lock acquisition is synchronized on a BoundConnectionThreadResult, 
 				// and inside the synch the _acquireConnIfAvailable variable is checked before the lock itself is created.
 				mtr[x]._acquireConnIfAvailable = false;
 			}
@@ -302,93 +297,116 @@ class BoundConnectionManager extends Thread {
 		}
 	}
 	
-	/** This thread attempts to bind to a given connection name, inside the given directory. 
-	 * Used by bindOnNames of BoundConnectionManager. */
-	private static class BoundConnectionThread extends Thread {
+	/** This task attempts to bind to a given connection name, inside the given directory; each run either tests an
+	 * existing listener, or attempts to acquire the connection. Used by bindOnNames of BoundConnectionManager.
+	 * 
+	 * Acquiring the connection lock may block for up to the lock timeout, so the task is a blocking task, and is not 
+	 * run on the scheduler's workers. */
+	private static class BoundConnectionTask extends FileTLScheduledTask {
 		BoundConnectionThreadResult _result = null;
 
 		VFile _directory = null;
 		String _connName = null;
+		LockMode _lockMode = null;
 		
 		private static long TIME_TO_WAIT_FOR_CONN_TEST = 1000 * 4;
 		
-		public BoundConnectionThread(BoundConnectionThreadResult result, VFile directory, String connName) {
-			super();
+		private static final long MAX_POLL_INTERVAL = 4000;
+		
+		/** The test of an existing listener that we are waiting on a response for, or null if none */
+		private BoundConnectionTest _pendingTest = null;
+		
+		public BoundConnectionTask(BoundConnectionThreadResult result, VFile directory, String connName, LockMode lockMode) {
+			super(LOCK_POLL_INTERVAL, MAX_POLL_INTERVAL);
 			_result = result;
 			_directory = directory;
 			_connName = connName;
+			_lockMode = lockMode;
 			
-			setName(BoundConnectionThread.class.getName());
-			setDaemon(true);
+			DirectoryWatcherManager dwm = DirectoryWatcherManager.getInstance();
+			watch(dwm.getWatcher(_directory, "filetl-listening-on-["));
+			watch(dwm.getWatcher(_directory, "filetl-test-listen-active-connection["));
+		}
+		
+		@Override
+		protected boolean isBlocking() {
+			return true;
 		}
 		
-		public void run() {
+		@Override
+		protected boolean runTask() {
 			
-			zout("BoundConnectionThread started");
+			// Stop once BoundConnectionManager has timed us out
+			synchronized(_result) {
+				if(!_result._acquireConnIfAvailable) {
+					if(_pendingTest != null) {
+						_pendingTest.deleteFiles();
+						_pendingTest = null;
+					}
+					cancel();
+					return true;
+				}
+			}
+			
+			if(_pendingTest != null) {
+				checkBoundConnectionTest();
+				
+				// The test is polled at the minimum interval, until it has been resolved
+				return true;
+			}
 			
-			VFile[] dirList = null;
-
 			// TODO: EASY - LOWER - Rename filetl-listening-on to filetl-listening-on-addr
 			
 			String matchName = "filetl-listening-on-["+_connName+"]-";
 			
-			boolean bcAcquired = false;
+			VFile[] dirList = DirectoryListingService.getInstance(_directory).listFiles(matchName);
+			System.out.println("dirred."); 
 			
-			// While we haven't acquired the lock, and while BoundConnectionManager hasn't timed us out
-			while(!bcAcquired && _result._acquireConnIfAvailable) {
-
-				dirList = _directory.listFiles();
-				System.out.println("dirred."); 
-				
-				// Look to see if anyone else is listening on this connection
-				VFile bcMatch = null; 
-				for(VFile f : dirList) {
-					if(f.getName().startsWith(matchName)) {
-						bcMatch = f;
-					}
+			// Look to see if anyone else is listening on this connection
+			VFile bcMatch = null; 
+			for(VFile f : dirList) {
+				if(f.getName().startsWith(matchName)) {
+					bcMatch = f;
 				}
+			}
+			
+			System.out.println("post bcmatch ");
+			// If no one is listening on this connection, attempt to acquire it
+			if(bcMatch == null) {
+				zout("pre createdNewConnFile");
+				VFile result = createNewConnectionFile();
 				
-				System.out.println("post bcmatch ");
-				// If no one is listening on this connection, attempt to acquire it
-				if(bcMatch == null) {
-					zout("pre createdNewConnFile");
-					VFile result = createNewConnectionFile();
-					
-					zout("createdNewConnFile");
-					
-					if(result != null) {
-						synchronized (_result) {
-							BoundConnEntry be = BoundConnectionManager.getInstance().createAndAddBoundConnection(_directory, _connName, extractBoundUUIDFromFilename(result.getName()));
-							_result._be = be;
-							_result._connFile = result;
-							_result._connAcquired = true;							
-						}
-						bcAcquired = true;
-						break;
-					} else {
-						// Exit the if and continue to the top of the loop again 
+				zout("createdNewConnFile");
+				
+				if(result != null) {
+					synchronized (_result) {
+						BoundConnEntry be = BoundConnectionManager.getInstance().createAndAddBoundConnection(_directory, _connName, extractBoundUUIDFromFilename(result.getName()));
+						_result._be = be;
+						_result._connFile = result;
+						_result._connAcquired = true;							
 					}
-					
-				} else {
-			
-					zout("write and wait for bound entered");
-					
-					// Someone may be presently listening on this connection, so test if it is active
-					writeAndWaitForBoundConnectionTest(bcMatch);
-					
-					zout("write and wait for bound left");
-				}
+					cancel();
+					return true;
+				} 
+				
+				// Try again on the next run
+				return false;
 				
-				// Sleep if we don't have the lock, and we actually still want it
-				if(!bcAcquired && _result._acquireConnIfAvailable) {
-					FileTLUtil.sleep(LOCK_POLL_INTERVAL);
-				}				
+			} else {
+		
+				zout("write bound test");
+				
+				// Someone may be presently listening on this connection, so test if it is active
+				writeBoundConnectionTest(bcMatch);
+				return true;
 			}
 			
 		}
 		
-		/** Returns null if the bound connection could not be acquired in this cycle, or the file of the new bound connection if it could. */
-		private void writeAndWaitForBoundConnectionTest(VFile existingConn) {
+		/** Writes a test to the listener of the given bound connection file; the response is checked on the following runs. */
+		private void writeBoundConnectionTest(VFile existingConn) {
+			BoundConnectionTest t = new BoundConnectionTest();
+			t._existingConn = existingConn;
 			
 			// The UUID from the existing lock
 			String existLockBoundUUID = extractBoundUUIDFromFilename(existingConn.getName());
@@ -398,83 +416,46 @@ class BoundConnectionManager extends Thread {
 			
 			// This is our test message
 			String testFileName = "filetl-test-listen-on-connection["+_connName+"]-bounduuid["+existLockBoundUUID+"]-testuuid["+uuid+"]";
-			VFile testFile = new VFile(_directory.getPath() + VFile.separator+testFileName);
+			t._testFile = new VFile(_directory.getPath() + VFile.separator+testFileName);
 			
 			// If the lock is alive, this is the response we will expect to see
 			String expectedResponseFileName = "filetl-test-listen-active-connection["+_connName+"]-bounduuid["+existLockBoundUUID+"]-testuuid["+uuid+"]";
-			VFile expectedRespFile = new VFile(_directory.getPath() + VFile.separator + expectedResponseFileName);
+			t._expectedRespFile = new VFile(_directory.getPath() + VFile.separator + expectedResponseFileName);
 			
-			FileTLUtil.writeEmptyMessageFile(testFile);
+			FileTLUtil.writeEmptyMessageFile(t._testFile);
 			
-			boolean continueLoop = true;
+			t._startTime = System.currentTimeMillis();
+			_pendingTest = t;
+		}
+		
+		/** Checks for the resolution of the pending test: the listener has disappeared, has responded, or has timed out. */
+		private void checkBoundConnectionTest() {
+			BoundConnectionTest t = _pendingTest;
 			
 			boolean timeout = false;
-			boolean receivedResponse = false;
-			boolean fileDNE = false;
-			boolean bindUnwanted = false;
-			
-			long startTime = System.currentTimeMillis();
 			
-			while(continueLoop) {
+			// If the existing lock has disappeared, meaning either it has closed and we can grab it, or it has closed 
+			// and someone else has grabbed it already
+			if(!(t._existingConn.exists())) {
 				
-				// If the existing lock has disappeared
-				if(!(existingConn.exists())) {
-					continueLoop = false;
-					fileDNE = true;
-					break;
-				}
-				
-				// If we have received a response to our test message
-				if(expectedRespFile.exists()) {
-					continueLoop = false;
-					receivedResponse = true;
-					break;		
-				}
+			// If we have received a response to our test message, meaning the lock is still active. We'll try again on the next run.
+			} else if(t._expectedRespFile.exists()) {
 				
-				// If timeout has occurred
-				if(System.currentTimeMillis() - startTime > TIME_TO_WAIT_FOR_CONN_TEST) {
-					timeout = true;
-					continueLoop = false;
-					break;
-				}
-				
-				// If the connection is no longer required then exit the loop
-				synchronized(_result) {
-					if(!_result._acquireConnIfAvailable) {
-						bindUnwanted = true;
-						continueLoop = false;
-					}
-				}
+			// If timeout has occurred
+			} else if(System.currentTimeMillis() - t._startTime > TIME_TO_WAIT_FOR_CONN_TEST) {
+				timeout = true;
 				
-				// Otherwise, keep looping
-				if(continueLoop) {
-					FileTLUtil.sleep(LOCK_POLL_INTERVAL);
-				}
-			}
-			
-			QueueManager.queueDeleteFile(testFile);
-			QueueManager.queueDeleteFile(expectedRespFile);
-			
-			// The bind operation is no longer required, so exit
-			if(bindUnwanted) {
-				return;
-			}
-			
-			// File DNE, meaning either it has closed and we can grab it, or it has closed and someone else has grabbed it already
-			if(fileDNE) {
+			} else {
+				// Otherwise, keep waiting
 				return;
 			}
 			
-			// Received response, meaning the lock is still active. We'll exit the loop and try again.
-			if(receivedResponse) {
-				return;
-			}
+			t.deleteFiles();
+			_pendingTest = null;
 			 
 			// Timeout means the other bound connection is dead, and we can attempt to acquire it
 			if(timeout) {
-				
-				FileTLUtil.deleteCrucialFile(existingConn);
-				return;
+				FileTLUtil.deleteCrucialFile(t._existingConn);
 			}
 			
 			// TODO: LOWER - BoundConnectionManager - Need to -ready this entire file up.
@@ -490,7 +471,7 @@ class BoundConnectionManager extends Thread {
 			
 			zout("post mkdirs");
 			
-			IFileLock lock = new FileLockOnNonlockingFS(lockDir, "establish-bound-connection-lock-"+_connName);
+			IFileLock lock = LockManager.createLock(lockDir, "establish-bound-connection-lock-"+_connName, _lockMode);
 			
 			synchronized(_result) {
 				if(!_result._acquireConnIfAvailable) return null;
@@ -508,7 +489,7 @@ class BoundConnectionManager extends Thread {
 			// Now that the lock has been acquired, we must verify that no one else is now listening on the connection
 			
 			String matchName = "filetl-listening-on-["+_connName+"]-";
-			VFile[] dirList = _directory.listFiles();
+			VFile[] dirList = DirectoryListingService.getInstance(_directory).listFilesFresh(matchName);
 			// Look to see if anyone else is listening on this connection
 			VFile lockMatch = null;
 			for(VFile f : dirList) {
@@ -544,11 +525,24 @@ class BoundConnectionManager extends Thread {
 		
 	}
 	
+	/** A test of an existing listener on a bound connection, written by a BoundConnectionTask */
+	private static class BoundConnectionTest {
+		VFile _existingConn = null;
+		VFile _testFile = null;
+		VFile _expectedRespFile = null;
+		long _startTime = 0;
+		
+		void deleteFiles() {
+			QueueManager.queueDeleteFile(_testFile);
+			QueueManager.queueDeleteFile(_expectedRespFile);
+		}
+	}
+	
 	private static class BoundConnectionThreadResult {
 		VFile _connFile = null;
 		BoundConnEntry _be = null;
 		
-		/** The thread will only continue to run while this is true, and many checkpoints through the thread run code also check this and return null if it is false (to ensure faster thread death)*/
+		/** The task will only continue to run while this is true, and many checkpoints through the task run code also check this and return null if it is false (to ensure faster task cancellation)*/
 		boolean _acquireConnIfAvailable = true;
 
 		boolean _connAcquired = false;
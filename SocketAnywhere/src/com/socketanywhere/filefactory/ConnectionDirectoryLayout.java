@@ -0,0 +1,86 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import com.vfile.VFile;
+
+/**
+ * Determines where the per-connection files (packets, segments, and close messages) of a connection are 
+ * written, based on the connection directory options of FileTLOptions. Establish, listen, lock, and active 
+ * connection test files always remain in the root directory.
+ * 
+ * By default, per-connection files are written to the root directory. If connection directories are enabled,
+ * each connection instead receives its own subdirectory, so that the cost of scanning (and of creating and
+ * deleting files in) a connection's directory does not grow with the number of concurrent connections. 
+ * The connection subdirectories may also be spread across a fixed number of bucket subdirectories (by hash of
+ * the connection UUID), to bound the size of the root directory itself.
+ * 
+ * Directories:
+ * - (root)/filetl-conn-connuuid[uuid]
+ * - (root)/filetl-bucket[bucket]/filetl-conn-connuuid[uuid] (if buckets are enabled)
+ * 
+ */
+public class ConnectionDirectoryLayout {
+	
+	static final String CONNECTION_DIRECTORY_PREFIX = "filetl-conn-connuuid[";
+	
+	static final String BUCKET_DIRECTORY_PREFIX = "filetl-bucket[";
+	
+	private ConnectionDirectoryLayout() {
+	}
+	
+	/** Returns the directory that contains the per-connection files of the given connection; this is the root
+	 * directory itself, if connection directories are not enabled. */
+	public static VFile getConnectionDirectory(VFile root, FileTLOptions options, String connUUID) {
+		if(!options.isConnectionDirectories()) {
+			return root;
+		}
+		
+		String parent = root.getPath();
+		
+		int buckets = options.getConnectionDirectoryBuckets();
+		if(buckets > 0) {
+			// String.hashCode() is defined by the language specification, so both ends will agree on the bucket
+			int bucket = (connUUID.hashCode() & 0x7FFFFFFF) % buckets;
+			parent = parent + VFile.separator + BUCKET_DIRECTORY_PREFIX + bucket + "]";
+		}
+		
+		return new VFile(parent + VFile.separator + CONNECTION_DIRECTORY_PREFIX + connUUID + "]");
+	}
+	
+	/** Whether the given directory is a per-connection subdirectory (rather than the root directory). */
+	public static boolean isConnectionDirectory(VFile directory) {
+		return directory.getName().startsWith(CONNECTION_DIRECTORY_PREFIX);
+	}
+	
+	static boolean isBucketDirectory(VFile directory) {
+		return directory.getName().startsWith(BUCKET_DIRECTORY_PREFIX);
+	}
+	
+	/** Returns the root directory of the given file or directory, e.g. the directory in which the establish 
+	 * and active connection test files are written. */
+	static VFile getRootDirectory(VFile file) {
+		VFile parent = file.getParentFile();
+		
+		while(isConnectionDirectory(parent) || isBucketDirectory(parent)) {
+			parent = parent.getParentFile();
+		}
+		
+		return parent;
+	}
+	
+}
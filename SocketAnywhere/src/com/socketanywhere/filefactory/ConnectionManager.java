@@ -17,6 +17,7 @@
 package com.socketanywhere.filefactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -24,6 +25,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
 import com.socketanywhere.net.SoAnUtil;
 import com.vfile.VFile;
 
@@ -82,6 +85,9 @@ public class ConnectionManager {
 		synchronized(_directoriesToSearch) {
 			if(!_directoriesToSearch.contains(directory)) {
 				_directoriesToSearch.add(directory);
+				
+				// Ensure the directory is being watched, so that our listen thread is woken by new tests
+				DirectoryWatcherManager.getInstance().getWatcher(directory);
 			}
 		}
 	}
@@ -133,50 +139,49 @@ class ActiveConnectionListenThread extends Thread {
 	public void run() {
 		_threadRunning = true;
 		
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getAnyDirectoryWatcher("filetl-test-active-connection-connuuid[");
+		
 		while(_threadRunning) {
+			long generation = watcher.getGeneration();
+			
 			List<ActiveConnection> l = new ArrayList<ActiveConnection>();
 			synchronized(_cm._activeConnections) {
 				l.addAll(_cm._activeConnections);
 			}
 
-			// Rather than performing the same directory list over and over again,
-			// we cache our list and reuse it when possible
-			Map<VFile /** ac._directory */, VFile[] /* files in the dir */> dirCache = new HashMap<VFile, VFile[]>();
+			// Directory listings are shared (through DirectoryListingService) between the active connections
+			// of a directory, rather than performing the same directory list over and over again
 			
 			// Look for other processes testing our active connections
-			scanForActiveConnTests(l, dirCache);
+			scanForActiveConnTests(l);
 			
 			// Look for stale files, and test their active connections
-			scanForStaleFiles(dirCache);
+			scanForStaleFiles();
 			
-			FileTLUtil.sleep(POLL_TIME);
+			FileTLUtil.waitForChange(watcher, generation, POLL_TIME);
 			
 		}
 	}
 	
 	/** Scan for, and respond to, active connection tests for connections we ourselves
 	 * are connected on. */
-	private void scanForActiveConnTests(List<ActiveConnection> l, Map<VFile , VFile[] > dirCache) {
+	private void scanForActiveConnTests(List<ActiveConnection> l) {
 
 		for(ActiveConnection ac : l) {
 			String testName = "filetl-test-active-connection-connuuid["+ac._uuid+"]-";
 			
-			VFile[] dirList = dirCache.get(ac._directory);
-			if(dirList == null) {
-				dirList = ac._directory.listFiles();
-				dirCache.put(ac._directory, dirList);
-			}
+			DirectoryListingService dls = DirectoryListingService.getInstance(ac._directory);
+			VFile[] dirList = dls.listFiles(testName);
 			
 			for(VFile f : dirList) {
-				if(f.getName().startsWith(testName)) {
+				FileTLFilename fn = FileTLFilename.decode(f.getName());
+				if(fn.getType() == Type.TEST_ACTIVE_CONNECTION && fn.matches(Field.CONN_UUID, ac._uuid)) {
 					
 					f.delete();
+					dls.fileDeleted(f);
 					
-					String connuuid = FileTLUtil.extractField("connuuid", f.getName());
-					String testuuid = FileTLUtil.extractField("testuuid", f.getName());
-
-					VFile response = new VFile(ac._directory.getPath()
-						+VFile.separator+"filetl-test-active-connection-response-connuuid["+connuuid+"]-testuuid["+testuuid+"]");
+					VFile response = new VFile(ac._directory.getPath()+VFile.separator
+						+FileTLFilename.encode(Type.TEST_ACTIVE_CONNECTION_RESPONSE, fn.get(Field.CONN_UUID), fn.get(Field.TEST_UUID)));
 
 					// If it already exists, don't write it again
 					if(!response.exists()) {
@@ -192,34 +197,51 @@ class ActiveConnectionListenThread extends Thread {
 		
 	}
 	
-	private void scanForStaleFiles(Map<VFile, VFile[]> dirCache) {
+	/** Whether files of the given type belong to a single connection, and should be deleted once that connection is no longer active */
+	private static boolean isConnectionFile(Type type) {
+		switch(type) {
+		case TEST_ACTIVE_CONNECTION:
+		case TEST_ACTIVE_CONNECTION_RESPONSE:
+		case PACKET:
+		case PACKET_READY:
+		case SEGMENT:
+		case COMMIT:
+		case CLOSE:
+		case CONNECTION_DIRECTORY:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private void scanForStaleFiles() {
 		
 		synchronized(_cm._directoriesToSearch) {  
 			for(VFile dir : _cm._directoriesToSearch) {  
 				
 				if(!dir.exists()) continue;
 	
-				VFile[] dirList = dirCache.get(dir);
-				if(dirList == null) {
-					dirList = dir.listFiles();
-					dirCache.put(dir, dirList);
-				}
+				DirectoryListingService dls = DirectoryListingService.getInstance(dir);
+				VFile[] dirList = dls.listFiles();
 				
-				if(dirList == null || dirList.length == 0) continue;
+				if(dirList.length == 0) continue;
 				
 				long time = System.currentTimeMillis();
 				
+				// Connection subdirectories (see ConnectionDirectoryLayout) are tested as a whole, and may be inside buckets
+				List<VFile> entries = new ArrayList<VFile>(Arrays.asList(dirList));
+				for(VFile f : dls.listFiles(Type.BUCKET_DIRECTORY)) {
+					entries.addAll(Arrays.asList(DirectoryListingService.getInstance(f).listFiles(Type.CONNECTION_DIRECTORY)));
+				}
+				
 				// Add files to our map of possible stale files
-				for(VFile f : dirList) {
+				for(VFile f : entries) {
 	
 					// Skip files we've already seen				
 					Boolean c = _fileSeen.get(f); 
 					if(c != null && c == true) continue;
 					
-					String fn = f.getName();
-					if(fn.startsWith("filetl-test-active-connection-connuuid") || 
-							fn.startsWith("filetl-test-active-connection-response-connuuid") || 
-							fn.startsWith("filetl-packet-source")) {
+					if(isConnectionFile(FileTLFilename.decode(f.getName()).getType())) {
 						
 						_timeFirstSeen.put(time, f);
 						_fileSeen.put(f, true);
@@ -245,7 +267,7 @@ class ActiveConnectionListenThread extends Thread {
 			
 			if(currTime > fileDeleteTime) {
 				// Time to delete
-				String connUUID = FileTLUtil.extractField("connuuid", e.getValue().getName());
+				String connUUID = FileTLFilename.decode(e.getValue().getName()).get(Field.CONN_UUID);
 				
 				// Remove from the maps
 				it.remove();
@@ -270,38 +292,86 @@ class ActiveConnectionListenThread extends Thread {
 		
 		if(connUUIDToTest.size() > 0) {
 		
-			// Pass the connection uuids to test to the test thread
-			ActiveConnectionTestThread t = new ActiveConnectionTestThread(connUUIDToTest);
-			t.start();
+			// Pass the connection uuids to test to the test task
+			FileTLScheduler.getInstance().schedule(new ActiveConnectionTestTask(connUUIDToTest), 0);
 		
 		}
 				
 	}
 }
 
-class ActiveConnectionTestThread extends Thread {
+/** Tests whether the given connections are still active; the files of those that do not respond are deleted. */
+class ActiveConnectionTestTask extends FileTLScheduledTask {
 	Map<String, List<VFile>> _connUUIDs;
-	private static final long POLL_TIME = 30 * 1000;
+	private static final long MIN_POLL_TIME = 1000;
+	private static final long MAX_POLL_TIME = 30 * 1000;
 	private static final long TIME_TO_WAIT_FOR_RESPONSE = 5 * 60 * 1000;
 	
-	public ActiveConnectionTestThread(Map<String, List<VFile>> map) {
-		setDaemon(true);
-		setName(ActiveConnectionTestThread.class.getName());
+	private final List<ActiveConnectionTestEntry> _tests = new ArrayList<ActiveConnectionTestEntry>();
+	
+	private long _startTime = -1;
+	private int _responsesExpected;
+	
+	public ActiveConnectionTestTask(Map<String, List<VFile>> map) {
+		super(MIN_POLL_TIME, MAX_POLL_TIME);
 		_connUUIDs = map;
 		
+		watch(DirectoryWatcherManager.getInstance().getAnyDirectoryWatcher("filetl-test-active-connection-response-connuuid["));
 	}
 
 	@Override
-	public void run() {
+	protected boolean runTask() {
+		
+		if(_startTime == -1) {
+			writeTests();
+			return true;
+		}
+		
+		boolean progress = false;
+		
+		// Look for the expected response file for each connection
+		for(ActiveConnectionTestEntry a : _tests) {
+			if(!a._responseSeen) {
+				if(a._responseFile.exists()) {
+					a._responseSeen = true;
+					_responsesExpected--;
+					progress = true;
+				}
+			}
+		}
 		
-		List<ActiveConnectionTestEntry> tests = new ArrayList<ActiveConnectionTestEntry>();
+		if(_responsesExpected > 0 && System.currentTimeMillis()-_startTime < TIME_TO_WAIT_FOR_RESPONSE) {
+			return progress;
+		}
 		
+		cancel();
+		
+		// For the tests we didn't see a response for, we delete the files
+		for(ActiveConnectionTestEntry a : _tests) {
+			if(!a._responseSeen) {
+				for(VFile f : a._files) {
+					if(ConnectionDirectoryLayout.isConnectionDirectory(f)) {
+						if(f.exists()) {
+							QueueManager.queueDeleteDirectory(f);
+						}
+					} else if(f.exists() && !f.delete()) {
+						f.deleteOnExit();
+					}
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	private void writeTests() {
 		for(String connUUID : _connUUIDs.keySet()) {
 			ActiveConnectionTestEntry a = new ActiveConnectionTestEntry();
 			a._connUUID = connUUID;
 			a._files = _connUUIDs.get(connUUID);
 			
-			VFile parentDir = a._files.get(0).getParentFile(); 
+			// Tests are always written to the root directory, even for the files in connection subdirectories
+			VFile parentDir = ConnectionDirectoryLayout.getRootDirectory(a._files.get(0)); 
 			
 			a._responseTestUUID = SoAnUtil.generateUUID().toString();
 			a._testFile = new VFile(parentDir.getPath() + VFile.separator 
@@ -312,48 +382,16 @@ class ActiveConnectionTestThread extends Thread {
 					+  "filetl-test-active-connection-response-connuuid" +
 							"["+a._connUUID+"]-testuuid["+a._responseTestUUID+"]");
 			
-			tests.add(a);
+			_tests.add(a);
 		}
 		
 		// Write the test files
-		for(ActiveConnectionTestEntry a : tests) {
+		for(ActiveConnectionTestEntry a : _tests) {
 			FileTLUtil.writeEmptyMessageFile(a._testFile);
 		}
 		
-		long startTime = System.currentTimeMillis();
-		int responsesExpected = tests.size();
-		boolean contLoop = true;
-		do {
-			
-			// Look for the expected response file for each connection
-			for(ActiveConnectionTestEntry a : tests) {
-				if(!a._responseSeen) {
-					if(a._responseFile.exists()) {
-						a._responseSeen = true;
-						responsesExpected--;
-					}
-				}
-			}
-			
-			contLoop = responsesExpected > 0 && System.currentTimeMillis()-startTime < TIME_TO_WAIT_FOR_RESPONSE; 
-			
-			if(contLoop) {
-				FileTLUtil.sleep(POLL_TIME);
-			}
-			
-		} while(contLoop); 
-		
-		// For the tests we didn't see a response for, we delete the files
-		for(ActiveConnectionTestEntry a : tests) {
-			if(!a._responseSeen) {
-				for(VFile f : a._files) {
-					if(f.exists() && !f.delete()) {
-						f.deleteOnExit();
-					}
-				}
-			}
-		}
-		
+		_startTime = System.currentTimeMillis();
+		_responsesExpected = _tests.size();
 	}
 	
 	class ActiveConnectionTestEntry {
@@ -0,0 +1,414 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vfile.AsyncFileSupport;
+import com.vfile.VFile;
+import com.vfile.interfaces.IAsyncFile;
+import com.vfile.interfaces.IBatchDeleteFile;
+import com.vfile.interfaces.IFile;
+
+/**
+ * Singleton.
+ * 
+ * Schedules the deletion of the files used by the file transport; QueueManager and TimedDeleteManager are
+ * facades over this class.
+ * 
+ * Pending deletions are indexed by path (so that scheduling the same file twice is a constant-time no-op), and
+ * are ordered by when they are due in a DelayQueue, so that no thread needs to scan the entire backlog. Due 
+ * deletions are dispatched in batches to a pool of worker threads; files whose backend supports deleting
+ * multiple files in a single request (IBatchDeleteFile, such as S3) are deleted together, and the other files
+ * dispatched to a worker are deleted concurrently where the backend supports it (IAsyncFile).
+ * 
+ * Files that are scheduled with retry are rescheduled until they no longer exist. 
+ */
+public class DeleteScheduler {
+	
+	private static final DeleteScheduler _instance = new DeleteScheduler();
+	
+	/** How long to wait before attempting again to delete a file that could not be deleted */
+	static final long RETRY_INTERVAL = 2000;
+	
+	/** The maximum number of due deletions that are dispatched at a time */
+	private static final int MAX_DISPATCH_SIZE = 1000;
+	
+	private static final int NUM_WORKERS = 4;
+	
+	/** Deletions that are waiting to be dispatched, by path */
+	private final ConcurrentHashMap<String, DeleteTask> _pending = new ConcurrentHashMap<String, DeleteTask>();
+	
+	private final DelayQueue<DeleteTask> _queue = new DelayQueue<DeleteTask>();
+	
+	/** Groups of deletions that have been dispatched to the workers */
+	private final LinkedBlockingQueue<List<DeleteTask>> _work = new LinkedBlockingQueue<List<DeleteTask>>();
+	
+	private final AtomicInteger _inProgress = new AtomicInteger(0);
+	
+	private final AtomicLong _filesDeleted = new AtomicLong(0);
+	private final AtomicLong _failedAttempts = new AtomicLong(0);
+	
+	/** Time between when a deletion was due, and when it completed */
+	private final AtomicLong _totalDeleteLatency = new AtomicLong(0);
+	private final AtomicLong _maxDeleteLatency = new AtomicLong(0);
+	
+	private boolean _started = false;
+	
+	private DeleteScheduler() {
+	}
+	
+	public static DeleteScheduler getInstance() {
+		synchronized(_instance) {
+			if(!_instance._started) {
+				_instance._started = true;
+				
+				new DeleteSchedulerDispatchThread().start();
+				for(int x = 0; x < NUM_WORKERS; x++) {
+					new DeleteSchedulerWorkerThread().start();
+				}
+			}
+		}
+		
+		return _instance;
+	}
+	
+	/** 
+	 * Schedules the file (or empty directory) for deletion, once timeToWait msecs have elapsed. If the file is already scheduled, the 
+	 * existing deletion is kept (though it will also adopt the retry and crucial settings of this call).
+	 * 
+	 * @param retryUntilDeleted if true, the deletion is reattempted until the file no longer exists
+	 * @param isCrucial if true, the file is deleted using FileTLUtil.deleteCrucialFile(...)
+	 */
+	public void deleteFile(VFile f, long timeToWait, boolean retryUntilDeleted, boolean isCrucial) {
+		DeleteTask t = new DeleteTask(f, System.currentTimeMillis() + timeToWait, retryUntilDeleted, isCrucial);
+		
+		DeleteTask existing = _pending.putIfAbsent(t._path, t);
+		if(existing != null) {
+			existing._retryUntilDeleted |= retryUntilDeleted;
+			existing._isCrucial |= isCrucial;
+			return;
+		}
+		
+		_queue.add(t);
+	}
+	
+	/** 
+	 * Attempts to delete the file (or empty directory) on the calling thread; if it could not be deleted, the file is 
+	 * scheduled for deletion as in deleteFile(f, RETRY_INTERVAL, true, false). If the file is already scheduled, the 
+	 * existing deletion is kept.
+	 */
+	public void deleteFileNow(VFile f) {
+		DeleteTask existing = _pending.get(f.getPath());
+		if(existing != null) {
+			existing._retryUntilDeleted = true;
+			return;
+		}
+		
+		DeleteTask t = new DeleteTask(f, System.currentTimeMillis(), true, false);
+		_inProgress.incrementAndGet();
+		
+		boolean result;
+		try {
+			result = f.delete() || !f.exists();
+		} catch(RuntimeException e) {
+			FileTLLogger.unableToDeleteFile(f, e);
+			result = false;
+		}
+		
+		if(result) {
+			deleted(t);
+		} else {
+			attemptFailed(t);
+		}
+	}
+	
+	/** The number of files that are waiting to be deleted, or are in the process of being deleted. */
+	public int getBacklogSize() {
+		return _pending.size() + _inProgress.get();
+	}
+	
+	public long getFilesDeleted() {
+		return _filesDeleted.get();
+	}
+	
+	/** The number of deletion attempts that failed (and were retried, if requested). */
+	public long getFailedAttempts() {
+		return _failedAttempts.get();
+	}
+	
+	/** The average time (in msecs) between when deletions were due, and when they completed. */
+	public long getAverageDeleteLatency() {
+		long deleted = _filesDeleted.get();
+		if(deleted == 0) {
+			return 0;
+		}
+		return _totalDeleteLatency.get() / deleted;
+	}
+	
+	public long getMaxDeleteLatency() {
+		return _maxDeleteLatency.get();
+	}
+	
+	/** Waits for the next due deletions, and passes them to the workers; files that may be deleted together
+	 * are passed as a single group. */
+	private void dispatch() throws InterruptedException {
+		List<DeleteTask> due = new ArrayList<DeleteTask>();
+		due.add(_queue.take());
+		_queue.drainTo(due, MAX_DISPATCH_SIZE - 1);
+		
+		// Files that are not batch compatible are spread across the workers
+		List<List<DeleteTask>> individual = new ArrayList<List<DeleteTask>>();
+		for(int x = 0; x < Math.min(NUM_WORKERS, due.size()); x++) {
+			individual.add(new ArrayList<DeleteTask>());
+		}
+		
+		Map<IBatchDeleteFile, List<DeleteTask>> batches = new HashMap<IBatchDeleteFile, List<DeleteTask>>();
+		
+		int next = 0;
+		for(DeleteTask t : due) {
+			// Only remove our own entry: the path may since have been rescheduled
+			_pending.remove(t._path, t);
+			_inProgress.incrementAndGet();
+			
+			IFile inner = t._file.getInnerFile();
+			if(!t._isCrucial && inner instanceof IBatchDeleteFile) {
+				List<DeleteTask> batch = null;
+				for(Map.Entry<IBatchDeleteFile, List<DeleteTask>> e : batches.entrySet()) {
+					if(e.getKey().isBatchCompatible(inner)) {
+						batch = e.getValue();
+						break;
+					}
+				}
+				
+				if(batch == null) {
+					batch = new ArrayList<DeleteTask>();
+					batches.put((IBatchDeleteFile)inner, batch);
+				}
+				batch.add(t);
+				
+			} else {
+				individual.get(next).add(t);
+				next = (next + 1) % individual.size();
+			}
+		}
+		
+		for(List<DeleteTask> l : batches.values()) {
+			_work.add(l);
+		}
+		
+		for(List<DeleteTask> l : individual) {
+			if(l.size() > 0) {
+				_work.add(l);
+			}
+		}
+	}
+	
+	/** Called by the workers to delete a group of files */
+	private void delete(List<DeleteTask> tasks) {
+		
+		IFile first = tasks.get(0)._file.getInnerFile();
+		
+		if(tasks.size() > 1 && !tasks.get(0)._isCrucial && first instanceof IBatchDeleteFile) {
+			
+			List<IFile> files = new ArrayList<IFile>();
+			for(DeleteTask t : tasks) {
+				files.add(t._file.getInnerFile());
+			}
+			
+			Set<IFile> failed = Collections.newSetFromMap(new IdentityHashMap<IFile, Boolean>());
+			try {
+				failed.addAll(((IBatchDeleteFile)first).deleteAll(files));
+			} catch(RuntimeException e) {
+				// The worker must survive a failure of the backend; none of the files are known to be deleted
+				FileTLLogger.unableToDeleteFile(tasks.get(0)._file, e);
+				for(DeleteTask t : tasks) {
+					attemptFailed(t);
+				}
+				return;
+			}
+			
+			for(DeleteTask t : tasks) {
+				if(failed.contains(t._file.getInnerFile())) {
+					attemptFailed(t);
+				} else {
+					deleted(t);
+				}
+			}
+			
+			return;
+		}
+		
+		// Files whose backend supports asynchronous operations are deleted concurrently, rather than waiting for each in turn
+		List<CompletableFuture<Boolean>> deletions = new ArrayList<CompletableFuture<Boolean>>(tasks.size());
+		for(DeleteTask t : tasks) {
+			deletions.add(!t._isCrucial && t._file.getInnerFile() instanceof IAsyncFile ? t._file.deleteAsync() : null);
+		}
+		
+		for(int x = 0; x < tasks.size(); x++) {
+			DeleteTask t = tasks.get(x);
+			CompletableFuture<Boolean> deletion = deletions.get(x);
+			
+			try {
+				if(t._isCrucial) {
+					FileTLUtil.deleteCrucialFile(t._file);
+					deleted(t);
+					
+				} else if((deletion != null ? AsyncFileSupport.await(deletion) : t._file.delete()) || !t._file.exists()) {
+					deleted(t);
+					
+				} else {
+					attemptFailed(t);
+				}
+				
+			} catch(IOException e) {
+				FileTLLogger.unableToDeleteFile(t._file, e);
+				attemptFailed(t);
+				
+			} catch(RuntimeException e) {
+				// Thrown by deleteCrucialFile (among others); the worker must survive it
+				FileTLLogger.unableToDeleteFile(t._file, e);
+				attemptFailed(t);
+			}
+		}
+	}
+	
+	private void deleted(DeleteTask t) {
+		_inProgress.decrementAndGet();
+		_filesDeleted.incrementAndGet();
+		
+		long latency = Math.max(0, System.currentTimeMillis() - t._whenToDelete);
+		_totalDeleteLatency.addAndGet(latency);
+		
+		long max;
+		while(latency > (max = _maxDeleteLatency.get())) {
+			if(_maxDeleteLatency.compareAndSet(max, latency)) {
+				break;
+			}
+		}
+	}
+	
+	private void attemptFailed(DeleteTask t) {
+		_inProgress.decrementAndGet();
+		_failedAttempts.incrementAndGet();
+		
+		if(t._retryUntilDeleted) {
+			// The latency is measured from the original due time
+			DeleteTask retry = new DeleteTask(t._file, t._whenToDelete, true, t._isCrucial);
+			retry._nextAttempt = System.currentTimeMillis() + RETRY_INTERVAL;
+			
+			if(_pending.putIfAbsent(retry._path, retry) == null) {
+				_queue.add(retry);
+			}
+			
+		} else {
+			try {
+				t._file.deleteOnExit();
+			} catch(UnsupportedOperationException e) {
+				/* Not supported by all backends (e.g. S3), so ignore. */
+			}
+		}
+	}
+	
+	private static class DeleteTask implements Delayed {
+		final VFile _file;
+		final String _path;
+		
+		/** When the file was first due to be deleted */
+		final long _whenToDelete;
+		
+		/** When the next attempt to delete the file should occur */
+		long _nextAttempt;
+		
+		volatile boolean _retryUntilDeleted;
+		volatile boolean _isCrucial;
+		
+		DeleteTask(VFile file, long whenToDelete, boolean retryUntilDeleted, boolean isCrucial) {
+			_file = file;
+			_path = file.getPath();
+			_whenToDelete = whenToDelete;
+			_nextAttempt = whenToDelete;
+			_retryUntilDeleted = retryUntilDeleted;
+			_isCrucial = isCrucial;
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(_nextAttempt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed o) {
+			long other = ((DeleteTask)o)._nextAttempt;
+			return _nextAttempt < other ? -1 : (_nextAttempt == other ? 0 : 1);
+		}
+	}
+	
+	private static class DeleteSchedulerDispatchThread extends Thread {
+		
+		public DeleteSchedulerDispatchThread() {
+			setName(DeleteSchedulerDispatchThread.class.getName());
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					_instance.dispatch();
+				}
+			} catch(InterruptedException e) {
+				/* ignore */
+			}
+		}
+	}
+	
+	private static class DeleteSchedulerWorkerThread extends Thread {
+		
+		public DeleteSchedulerWorkerThread() {
+			setName(DeleteSchedulerWorkerThread.class.getName());
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					_instance.delete(_instance._work.take());
+				}
+			} catch(InterruptedException e) {
+				/* ignore */
+			}
+		}
+	}
+	
+}
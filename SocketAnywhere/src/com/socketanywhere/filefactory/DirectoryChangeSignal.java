@@ -0,0 +1,73 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** A generation counter that waiting threads can block on; signalChange() increments the
+ * generation, wakes all waiters, and calls the change listeners. */
+class DirectoryChangeSignal implements IDirectoryWatcher {
+
+	private final Object _lock = new Object();
+
+	private long _generation = 0;
+
+	private final CopyOnWriteArrayList<Runnable> _listeners = new CopyOnWriteArrayList<Runnable>();
+
+	public void signalChange() {
+		synchronized(_lock) {
+			_generation++;
+			_lock.notifyAll();
+		}
+
+		for(Runnable r : _listeners) {
+			r.run();
+		}
+	}
+
+	@Override
+	public void addChangeListener(Runnable listener) {
+		_listeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(Runnable listener) {
+		_listeners.remove(listener);
+	}
+
+	@Override
+	public long getGeneration() {
+		synchronized(_lock) {
+			return _generation;
+		}
+	}
+
+	@Override
+	public void waitForChange(long generation, long maxWaitTime) throws InterruptedException {
+		long expireTime = System.currentTimeMillis() + maxWaitTime;
+
+		synchronized(_lock) {
+			while(_generation == generation) {
+				long timeRemaining = expireTime - System.currentTimeMillis();
+				if(timeRemaining <= 0) {
+					return;
+				}
+				_lock.wait(timeRemaining);
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.vfile.VFile;
+import com.vfile.interfaces.IFile;
+import com.vfile.memio.MemFile;
+import com.vfile.s3io.S3File;
+import com.vfile.sftpio.VSFtpFile;
+import com.vfile.vftp.VFTPFile;
+
+/**
+ * Shares a single listing of a directory between all of the pollers of that directory (server sockets,
+ * connecting sockets, the connection/bound connection/lock managers, etc), so that the number of directory
+ * listings (each of which is a full LIST round-trip on FTP/S3) does not grow with the number of sockets.
+ * 
+ * A listing is reused until it is older than the maximum listing age, or until the directory watcher reports
+ * a change to the directory (for natively watched directories). Only one thread lists a directory at a time;
+ * concurrent callers wait for, and then share, that listing.
+ * 
+ * The listing is kept sorted by name, so that callers may efficiently retrieve only the files that begin 
+ * with a given prefix (e.g. a message type). Alternatively, callers may retrieve the files of a given message 
+ * type (see FileTLFilename); each listing is classified by type at most once, on first request.
+ * 
+ * Callers that must observe the effect of their own (or others') recent writes, such as lock acquisition, 
+ * should use the fresh variants, which always wait for a listing that began after the call. 
+ */
+public class DirectoryListingService {
+	
+	public static final long DEFAULT_MAX_LISTING_AGE = 100;
+	
+	private static final VFile[] EMPTY = new VFile[0];
+	
+	/** Services by backend and directory path; synchronize on this when accessing. */
+	private static final Map<ServiceKey, DirectoryListingService> _services = new HashMap<ServiceKey, DirectoryListingService>();
+	
+	private static long _maxListingAge = DEFAULT_MAX_LISTING_AGE;
+	
+	private final VFile _directory;
+	
+	private final IDirectoryWatcher _watcher;
+	
+	/** Held while listing the directory, so that only one listing is in progress at a time */
+	private final Object _listLock = new Object();
+	
+	/** The most recent listing; synchronize on _listLock when accessing */
+	private Listing _listing = null;
+	
+	/** Number of listings that have been started; synchronize on _listLock when accessing */
+	private long _listingsStarted = 0;
+	
+	private DirectoryListingService(VFile directory) {
+		_directory = directory;
+		_watcher = DirectoryWatcherManager.getInstance().getWatcher(directory);
+	}
+	
+	public static DirectoryListingService getInstance(VFile directory) {
+		synchronized(_services) {
+			ServiceKey key = new ServiceKey(directory);
+			DirectoryListingService s = _services.get(key);
+			if(s == null) {
+				s = new DirectoryListingService(directory);
+				_services.put(key, s);
+			}
+			return s;
+		}
+	}
+	
+	/** Discards the service for the given directory, for example, once the directory is to be deleted. */
+	public static void releaseInstance(VFile directory) {
+		synchronized(_services) {
+			_services.remove(new ServiceKey(directory));
+		}
+	}
+	
+	/** The maximum age (in msecs) of a listing before it is refreshed; applies to all directories. */
+	public static void setMaxListingAge(long maxListingAge) {
+		synchronized(_services) {
+			_maxListingAge = maxListingAge;
+		}
+	}
+	
+	private static long getMaxListingAge() {
+		synchronized(_services) {
+			return _maxListingAge;
+		}
+	}
+	
+	/** Returns all of the files in the directory, from a recent listing; never returns null. */
+	public VFile[] listFiles() {
+		return getListing(false).getFiles(null);
+	}
+	
+	/** Returns the files in the directory whose names begin with the given prefix, from a recent listing; never returns null. */
+	public VFile[] listFiles(String prefix) {
+		return getListing(false).getFiles(prefix);
+	}
+	
+	/** Returns the files in the directory whose names are of the given type, from a recent listing; never returns null. */
+	public VFile[] listFiles(FileTLFilename.Type type) {
+		return getListing(false).getFilesOfType(type);
+	}
+	
+	/** Returns all of the files in the directory, from a listing that began after this call. */
+	public VFile[] listFilesFresh() {
+		return getListing(true).getFiles(null);
+	}
+	
+	/** Returns the files whose names begin with the given prefix, from a listing that began after this call. */
+	public VFile[] listFilesFresh(String prefix) {
+		return getListing(true).getFiles(prefix);
+	}
+	
+	/** Returns the files whose names are of the given type, from a listing that began after this call. */
+	public VFile[] listFilesFresh(FileTLFilename.Type type) {
+		return getListing(true).getFilesOfType(type);
+	}
+	
+	/** Removes a file that the caller has deleted (or consumed) from the current listing, so that it is not 
+	 * returned to other callers before the next listing. */
+	public void fileDeleted(VFile file) {
+		Listing l;
+		synchronized(_listLock) {
+			l = _listing;
+		}
+		if(l != null) {
+			l.remove(file.getName());
+		}
+	}
+	
+	private Listing getListing(boolean fresh) {
+		
+		long requestedAfter;
+		synchronized(_listLock) {
+			requestedAfter = _listingsStarted;
+		}
+		
+		synchronized(_listLock) {
+			Listing l = _listing;
+			
+			if(l != null) {
+				if(fresh) {
+					// Another thread may have started a listing after our call, while we waited for the lock
+					if(l._listingNum > requestedAfter) {
+						return l;
+					}
+					
+				} else if(l._generation == _watcher.getGeneration() 
+						&& System.currentTimeMillis() - l._startTime < getMaxListingAge()) {
+					return l;
+				}
+			}
+			
+			_listingsStarted++;
+			
+			// The generation and time are taken before the listing, so that any change during the listing invalidates it
+			l = new Listing(_listingsStarted, _watcher.getGeneration(), System.currentTimeMillis());
+			
+			VFile[] files = _directory.listFiles();
+			if(files != null) {
+				for(VFile f : files) {
+					l._files.put(f.getName(), f);
+				}
+			}
+			
+			_listing = l;
+			
+			return l;
+		}
+	}
+	
+	/** Identifies a directory by its backend (the type of file, and the host or in-memory file system that it belongs
+	 * to) as well as its path, as directories of different backends (e.g. two S3 buckets) may share a path. */
+	private static class ServiceKey {
+		final Class<?> _type;
+		
+		/** The host or file system of the directory, compared by identity; null for the local file system */
+		final Object _backend;
+		
+		final String _path;
+		
+		ServiceKey(VFile directory) {
+			IFile inner = directory.getInnerFile();
+			_type = inner.getClass();
+			_path = directory.getPath();
+			
+			if(inner instanceof MemFile) {
+				_backend = ((MemFile)inner).getFileSystem();
+			} else if(inner instanceof S3File) {
+				_backend = ((S3File)inner).getHostInfo();
+			} else if(inner instanceof VSFtpFile) {
+				_backend = ((VSFtpFile)inner).getHostInfo();
+			} else if(inner instanceof VFTPFile) {
+				_backend = ((VFTPFile)inner).getHost();
+			} else {
+				_backend = null;
+			}
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof ServiceKey)) {
+				return false;
+			}
+			ServiceKey other = (ServiceKey)obj;
+			return _type == other._type && _backend == other._backend && _path.equals(other._path);
+		}
+		
+		@Override
+		public int hashCode() {
+			return _path.hashCode() * 31 + System.identityHashCode(_backend);
+		}
+	}
+	
+	/** A single listing of the directory, sorted by filename */
+	private static class Listing {
+		final long _listingNum;
+		final long _generation;
+		final long _startTime;
+		
+		/** Synchronize on this when accessing */
+		final TreeMap<String, VFile> _files = new TreeMap<String, VFile>();
+		
+		/** The files of the listing by type, or null if the listing has not yet been classified; synchronize on _files when accessing */
+		private EnumMap<FileTLFilename.Type, List<VFile>> _filesByType = null;
+		
+		Listing(long listingNum, long generation, long startTime) {
+			_listingNum = listingNum;
+			_generation = generation;
+			_startTime = startTime;
+		}
+		
+		VFile[] getFiles(String prefix) {
+			synchronized(_files) {
+				Collection<VFile> c;
+				if(prefix == null) {
+					c = _files.values();
+				} else {
+					c = _files.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+				}
+				
+				if(c.size() == 0) {
+					return EMPTY;
+				}
+				return c.toArray(new VFile[c.size()]);
+			}
+		}
+		
+		VFile[] getFilesOfType(FileTLFilename.Type type) {
+			synchronized(_files) {
+				if(_filesByType == null) {
+					_filesByType = new EnumMap<FileTLFilename.Type, List<VFile>>(FileTLFilename.Type.class);
+					for(VFile f : _files.values()) {
+						FileTLFilename.Type t = FileTLFilename.decode(f.getName()).getType();
+						List<VFile> l = _filesByType.get(t);
+						if(l == null) {
+							l = new ArrayList<VFile>();
+							_filesByType.put(t, l);
+						}
+						l.add(f);
+					}
+				}
+				
+				List<VFile> l = _filesByType.get(type);
+				if(l == null || l.size() == 0) {
+					return EMPTY;
+				}
+				return l.toArray(new VFile[l.size()]);
+			}
+		}
+		
+		void remove(String name) {
+			synchronized(_files) {
+				VFile f = _files.remove(name);
+				
+				if(f != null && _filesByType != null) {
+					List<VFile> l = _filesByType.get(FileTLFilename.decode(name).getType());
+					if(l != null) {
+						for(Iterator<VFile> it = l.iterator(); it.hasNext();) {
+							if(it.next() == f) {
+								it.remove();
+								break;
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.vfile.VFile;
+import com.vfile.jio.JIOFile;
+import com.vfile.memio.MemFile;
+
+/**
+ * Singleton.
+ *
+ * Hands out IDirectoryWatchers for the directories used by the file transport. Directories that are
+ * backed by the local filesystem (JIOFile) are watched using java.nio's WatchService, so that readers,
+ * acceptors, and the lock/bound connection managers are woken the moment a packet or control file
+ * appears; all local directories share a single WatchService, and thus a single thread. Directories of an in-memory filesystem (MemFile) are notified of changes by the filesystem itself. 
+ * All other directories (FTP, S3, etc) receive a polling watcher, which preserves the original
+ * fixed-interval polling behaviour.
+ */
+public class DirectoryWatcherManager {
+
+	private static final DirectoryWatcherManager _instance = new DirectoryWatcherManager();
+
+	private static final PollingDirectoryWatcher POLLING_WATCHER = new PollingDirectoryWatcher();
+
+	/** Native watchers, by absolute directory path (prefixed by the filesystem, for in-memory directories); synchronize on
+	 * this when accessing. */
+	private final Map<String, NotifyingDirectoryWatcher> _watchers = new HashMap<String, NotifyingDirectoryWatcher>();
+
+	/** Signalled on changes to files (that begin with the given prefix) in any natively watched directory; synchronize on this when accessing. */
+	private final Map<String /* prefix */, DirectoryChangeSignal> _anyDirectorySignals = new HashMap<String, DirectoryChangeSignal>();
+
+	private boolean _nativeNotificationEnabled = true;
+
+	/** The WatchService with which all local directories are registered, or null if it has not yet been created (or 
+	 * has been closed); synchronize on this when accessing. */
+	private WatchService _watchService = null;
+
+	/** The watchers of local directories, by the WatchKey of their directory; synchronize on this when accessing. */
+	private final Map<WatchKey, NIODirectoryWatcher> _watchersByKey = new HashMap<WatchKey, NIODirectoryWatcher>();
+
+	private DirectoryWatcherManager() {
+	}
+
+	public static DirectoryWatcherManager getInstance() {
+		return _instance;
+	}
+
+	/** Returns a watcher that is signalled when a file is created in, or deleted from, the given directory. */
+	public IDirectoryWatcher getWatcher(VFile directory) {
+		NotifyingDirectoryWatcher w = getNativeWatcher(directory, false);
+		if(w == null) {
+			return POLLING_WATCHER;
+		}
+		return w;
+	}
+	
+	/** Returns a watcher that is also signalled when an existing file in the given directory is modified; only needed by 
+	 * readers of files that are written in place (such as those of the SEGMENT_LOG wire mode). Once requested, all 
+	 * watchers of the directory are also signalled on modifications. */
+	public IDirectoryWatcher getModificationWatcher(VFile directory) {
+		NotifyingDirectoryWatcher w = getNativeWatcher(directory, true);
+		if(w == null) {
+			return POLLING_WATCHER;
+		}
+		return w;
+	}
+
+	/** Returns a watcher that is signalled on changes to files beginning with the given prefix, in the given directory.
+	 * The prefix should be a constant (e.g. a message type), as a signal is retained for each distinct prefix. */
+	public IDirectoryWatcher getWatcher(VFile directory, String prefix) {
+		NotifyingDirectoryWatcher w = getNativeWatcher(directory, false);
+		if(w == null) {
+			return POLLING_WATCHER;
+		}
+		return w.getPrefixWatcher(prefix);
+	}
+
+	/** Returns a watcher that is signalled on changes to files ending with the given suffix, in the given directory. */
+	public IDirectoryWatcher getWatcherForSuffix(VFile directory, String suffix) {
+		NotifyingDirectoryWatcher w = getNativeWatcher(directory, false);
+		if(w == null) {
+			return POLLING_WATCHER;
+		}
+		return w.getSuffixWatcher(suffix);
+	}
+
+	/** Returns a watcher that is signalled on changes to files beginning with the given prefix, in any
+	 * natively watched directory. This is intended for the singleton managers (which poll many directories);
+	 * the directories themselves are watched as soon as any watcher is requested for them. */
+	public IDirectoryWatcher getAnyDirectoryWatcher(String prefix) {
+		synchronized(this) {
+			if(!_nativeNotificationEnabled) {
+				return POLLING_WATCHER;
+			}
+		}
+
+		synchronized(_anyDirectorySignals) {
+			DirectoryChangeSignal s = _anyDirectorySignals.get(prefix);
+			if(s == null) {
+				s = new DirectoryChangeSignal();
+				_anyDirectorySignals.put(prefix, s);
+			}
+			return s;
+		}
+	}
+
+	/** Whether or not to use native (WatchService) change notification for local directories; if disabled,
+	 * all directories are polled. Only affects watchers that are requested after the call. */
+	public synchronized void setNativeNotificationEnabled(boolean nativeNotificationEnabled) {
+		_nativeNotificationEnabled = nativeNotificationEnabled;
+	}
+
+	void signalAnyDirectory(List<String> filenames, boolean signalAll) {
+		synchronized(_anyDirectorySignals) {
+			for(Entry<String, DirectoryChangeSignal> e : _anyDirectorySignals.entrySet()) {
+				if(signalAll || anyStartsWith(filenames, e.getKey())) {
+					e.getValue().signalChange();
+				}
+			}
+		}
+	}
+
+	/** Called by a native watcher once its directory can no longer be watched. */
+	synchronized void watcherInvalidated(NotifyingDirectoryWatcher watcher) {
+		for(Iterator<NotifyingDirectoryWatcher> it = _watchers.values().iterator(); it.hasNext();) {
+			if(it.next() == watcher) {
+				it.remove();
+			}
+		}
+
+		for(Iterator<NIODirectoryWatcher> it = _watchersByKey.values().iterator(); it.hasNext();) {
+			if(it.next() == watcher) {
+				it.remove();
+			}
+		}
+	}
+
+	static boolean anyStartsWith(List<String> filenames, String prefix) {
+		for(String name : filenames) {
+			if(name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean anyEndsWith(List<String> filenames, String suffix) {
+		for(String name : filenames) {
+			if(name.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the native watcher for the directory (creating it if needed), or null if the directory cannot be natively 
+	 * watched. If watchModifications is true, local directories are (also) registered for modification events. */
+	private NotifyingDirectoryWatcher getNativeWatcher(VFile directory, boolean watchModifications) {
+
+		if(directory.getInnerFile() instanceof MemFile) {
+			return getMemWatcher((MemFile)directory.getInnerFile());
+		}
+
+		if(!(directory.getInnerFile() instanceof JIOFile)) {
+			return null;
+		}
+
+		Path path;
+		try {
+			path = Paths.get(directory.getPath()).toAbsolutePath().normalize();
+		} catch(InvalidPathException e) {
+			return null;
+		}
+
+		String key = path.toString();
+
+		synchronized(this) {
+			if(!_nativeNotificationEnabled) {
+				return null;
+			}
+
+			NotifyingDirectoryWatcher w = _watchers.get(key);
+			if(w != null && w.isValid()) {
+				NIODirectoryWatcher nw = (NIODirectoryWatcher)w;
+				if(watchModifications && !nw._watchingModifications) {
+					// Registering the directory again returns the same key, with the new set of events
+					try {
+						path.register(_watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+						nw._watchingModifications = true;
+					} catch (IOException | ClosedWatchServiceException e) {
+						// Modifications will only be seen at the waiter's poll interval
+					}
+				}
+				return w;
+			}
+
+			WatchKey watchKey;
+			try {
+				if(_watchService == null) {
+					_watchService = FileSystems.getDefault().newWatchService();
+					new WatchServiceThread(_watchService).start();
+				}
+
+				if(watchModifications) {
+					watchKey = path.register(_watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				} else {
+					watchKey = path.register(_watchService, ENTRY_CREATE, ENTRY_DELETE);
+				}
+
+			} catch (IOException | ClosedWatchServiceException e) {
+				// Unable to watch the directory (it may not exist yet, or the filesystem may not support it), so poll instead
+				return null;
+			}
+
+			NIODirectoryWatcher nw = new NIODirectoryWatcher(this, path);
+			nw._watchingModifications = watchModifications;
+			_watchersByKey.put(watchKey, nw);
+			_watchers.put(key, nw);
+			return nw;
+		}
+	}
+
+	/** Services the WatchService of all local directories, passing the events of each directory to its watcher. */
+	private class WatchServiceThread extends Thread {
+
+		private final WatchService _service;
+
+		public WatchServiceThread(WatchService service) {
+			setName(WatchServiceThread.class.getName());
+			setDaemon(true);
+			_service = service;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				while(true) {
+					WatchKey key = _service.take();
+
+					// Directories are registered while holding the lock, so the watcher of a new key is always present
+					NIODirectoryWatcher w;
+					synchronized(DirectoryWatcherManager.this) {
+						w = _watchersByKey.get(key);
+					}
+
+					if(w == null) {
+						// The directory's watcher has been discarded
+						key.cancel();
+						continue;
+					}
+
+					if(!w.processEvents(key)) {
+						// Directories may be short-lived (such as connection directories), so the watcher is not retained
+						watcherInvalidated(w);
+					}
+				}
+
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				/* ignore */
+			}
+
+			// The watch service can no longer be used, so the current watchers fall back to polling; watchers requested
+			// after this use a new watch service.
+			List<NIODirectoryWatcher> watchers;
+			synchronized(DirectoryWatcherManager.this) {
+				watchers = new ArrayList<NIODirectoryWatcher>(_watchersByKey.values());
+				if(_watchService == _service) {
+					_watchService = null;
+				}
+			}
+
+			try {
+				_service.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+
+			for(NIODirectoryWatcher w : watchers) {
+				w.invalidate();
+				watcherInvalidated(w);
+			}
+		}
+	}
+
+	/** Returns the watcher for the in-memory directory (creating it if needed), or null if it does not exist. */
+	private NotifyingDirectoryWatcher getMemWatcher(MemFile directory) {
+		String key = "mem:"+directory.getFileSystem().getId()+":"+directory.getPath();
+
+		synchronized(this) {
+			if(!_nativeNotificationEnabled) {
+				return null;
+			}
+
+			NotifyingDirectoryWatcher w = _watchers.get(key);
+			if(w != null && w.isValid()) {
+				return w;
+			}
+
+			w = MemDirectoryWatcher.create(this, directory.getFileSystem(), directory.getPath());
+			if(w == null) {
+				return null;
+			}
+
+			_watchers.put(key, w);
+			return w;
+		}
+	}
+}
@@ -19,6 +19,8 @@ package com.socketanywhere.filefactory;
 import java.io.IOException;
 import java.util.List;
 
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
 import com.socketanywhere.net.IServerSocketTL;
 import com.socketanywhere.net.ISocketTL;
 import com.socketanywhere.net.SoAnUtil;
@@ -31,14 +33,20 @@ import com.vfile.VFile;
  * 
  * Waits for:
  *  - filetl-establish-source[listenName]-to-dest[remoteName]-esuuid[uuid]-connuuid[uuid] (sent by FileSocketImpl)
+ *  - or filetl-establish-source[listenName]-to-dest[remoteName]-esuuid[uuid]-connuuid[uuid]-wiremode[descriptor]
  *  
  *  Responds with:
  *   - filetl-establish-response-dest[myListenName]-from-source[srcEntry]-esuuid[establishUUID]-connuuid[uuid]
+ *     if the connection will use PACKET_FILE
+ *   - or filetl-establish-response-dest[myListenName]-from-source[srcEntry]-esuuid[establishUUID]-connuuid[uuid]-wiremode[descriptor]
+ *     if the requested wire mode is accepted. SEGMENT_LOG is always accepted; SHARED_MEMORY is only accepted if the 
+ *     client's probe file is present in our shared memory directory (e.g. we are on the same host).
  *
  */
 public class FileServerSocketImpl implements IServerSocketTL {
 	
 	private VFile _directory = null;
+	private FileTLOptions _options = null;
 	private List<TLAddress> _addresses = null;
 	private List<String> _namedAddresses = null;
 	
@@ -49,9 +57,21 @@ public class FileServerSocketImpl implements IServerSocketTL {
 	
 	private static final long POLL_FREQUENCY = 1000;
 	
+	/** Wakes the accept loop as soon as an establish file appears (where supported) */
+	private IDirectoryWatcher _watcher = null;
 
 	FileServerSocketImpl(VFile directory) throws IOException {
+		this(directory, new FileTLOptions());
+	}
+	
+	FileServerSocketImpl(VFile directory, TLAddress listenAddr) throws IOException {
+		this(directory, new FileTLOptions(), listenAddr);
+	}
+	
+	FileServerSocketImpl(VFile directory, FileTLOptions options) throws IOException {
 		_directory = directory;
+		_options = options;
+		_watcher = DirectoryWatcherManager.getInstance().getWatcher(directory, "filetl-establish-source[");
 
 		if(!_directory.exists() || !_directory.canRead()) {
 			throw(new FileTLIOException("Unable to read directory"));
@@ -61,18 +81,20 @@ public class FileServerSocketImpl implements IServerSocketTL {
 
 	}
 	
-	FileServerSocketImpl(VFile directory, TLAddress listenAddr) throws IOException {
+	FileServerSocketImpl(VFile directory, FileTLOptions options, TLAddress listenAddr) throws IOException {
 		_addresses = SoAnUtil.getNameResolver().resolveAddress(listenAddr);
 		
 		_namedAddresses = SoAnUtil.convertTLAddressList(_addresses);
 		
 		_directory = directory;
+		_options = options;
+		_watcher = DirectoryWatcherManager.getInstance().getWatcher(directory, "filetl-establish-source[");
 		
 		if(!_directory.exists() || !_directory.canRead()) {
 			throw(new FileTLIOException("Unable to read directory ["+directory.getPath()+"]"));
 		}
 		
-		boolean bind = BoundConnectionManager.getInstance().bindOnNames(_directory, _namedAddresses);
+		boolean bind = BoundConnectionManager.getInstance().bindOnNames(_directory, _namedAddresses, _options.getLockMode());
 		if(!bind) {
 			throw new FileTLIOException("Unable to bind on all addresses");
 		}
@@ -91,34 +113,36 @@ public class FileServerSocketImpl implements IServerSocketTL {
 		String destEntry = null;
 		String establishUUID = null;
 		String connUUID = null;
+		String wireModeDescriptor = null;
 		
 		try {
 			
 			// Scan the directory looking for any filetl-establish files from peers
 			// Blocks until a connection is found, or interrupt is called on the thread
 			while(srcEntry == null) {
-				VFile[] fileList = _directory.listFiles();
+				long generation = _watcher.getGeneration();
+				
+				VFile[] fileList = DirectoryListingService.getInstance(_directory).listFiles("filetl-establish-source[");
 				
 				for(VFile f : fileList) {
 					if(f.isDirectory()) continue;
 					
-					String filename = f.getName();
-					
-					if(!filename.contains("filetl-establish")) {
-						continue;
-					}
+					FileTLFilename filename = FileTLFilename.decode(f.getName());
+					if(filename.getType() != Type.ESTABLISH && filename.getType() != Type.ESTABLISH_WIRE_MODE) continue;
 					
 					// If found (and this will match everybody, not just ours...)
 					for(String name : _namedAddresses ) {
 
-						if(filename.startsWith("filetl-establish-source[") && filename.contains("-to-dest["+name+"]")) {
+						if(filename.matches(Field.DEST, name)) {
 							
-							srcEntry = FileTLUtil.extractField("source", filename);
-							destEntry = FileTLUtil.extractField("dest", filename);
-							establishUUID = FileTLUtil.extractField("esuuid", filename);
-							connUUID = FileTLUtil.extractField("connuuid", filename);
+							srcEntry = filename.get(Field.SOURCE);
+							destEntry = filename.get(Field.DEST);
+							establishUUID = filename.get(Field.ES_UUID);
+							connUUID = filename.get(Field.CONN_UUID);
+							wireModeDescriptor = filename.get(Field.WIRE_MODE);
 							
 							f.delete();
+							DirectoryListingService.getInstance(_directory).fileDeleted(f);
 							
 							break;
 						}
@@ -128,7 +152,7 @@ public class FileServerSocketImpl implements IServerSocketTL {
 				}
 				
 				if(srcEntry == null) {
-					Thread.sleep(POLL_FREQUENCY);
+					_watcher.waitForChange(generation, POLL_FREQUENCY);
 				}
 			}
 		} catch (InterruptedException e) {
@@ -138,7 +162,17 @@ public class FileServerSocketImpl implements IServerSocketTL {
 		// We have found someone to connect with, so post the response		
 		String myListenName = destEntry+"("+_nextPipeNum+")";
 		
-		String responseFilename = _directory.getPath()+VFile.separator+"filetl-establish-response-dest["+myListenName+"]-from-source["+srcEntry+"]-esuuid["+establishUUID+"]-connuuid["+connUUID+"]";
+		FileTLOptions connOptions = acceptWireMode(wireModeDescriptor, establishUUID);
+		
+		String responseName;
+		if(connOptions == null) {
+			connOptions = _options.withWireMode(FileTLOptions.WireMode.PACKET_FILE);
+			responseName = FileTLFilename.encode(Type.ESTABLISH_RESPONSE, myListenName, srcEntry, establishUUID, connUUID);
+		} else {
+			responseName = FileTLFilename.encode(Type.ESTABLISH_RESPONSE_WIRE_MODE, myListenName, srcEntry, establishUUID, connUUID, wireModeDescriptor);
+		}
+		
+		String responseFilename = _directory.getPath()+VFile.separator+responseName;
 		
 		_nextPipeNum++;
 
@@ -148,7 +182,28 @@ public class FileServerSocketImpl implements IServerSocketTL {
 		
 //		FileTLUtil.writeAndRenameEmptyMessageFile(respFile);
 		
-		FileSocketImpl result = FileSocketImpl.createSocketForServerSocket(new TLAddress(srcEntry, -1), _directory, myListenName, srcEntry, connUUID);
+		FileSocketImpl result = FileSocketImpl.createSocketForServerSocket(new TLAddress(srcEntry, -1), _directory, connOptions, myListenName, srcEntry, connUUID);
+		
+		return result;
+	}
+	
+	/** Returns the options of a connection that uses the wire mode requested by the client, or null if the client did 
+	 * not request a wire mode (or requested one that we cannot use), in which case the connection uses PACKET_FILE. */
+	private FileTLOptions acceptWireMode(String wireModeDescriptor, String establishUUID) {
+		if(wireModeDescriptor == null) {
+			return null;
+		}
+		
+		FileTLOptions result = _options.withWireModeDescriptor(wireModeDescriptor);
+		if(result == null) {
+			return null;
+		}
+		
+		if(result.getWireMode() == FileTLOptions.WireMode.SHARED_MEMORY 
+				&& !SharedMemoryRing.getProbeFile(result.getSharedMemoryDirectory(), establishUUID).exists()) {
+			// The client is on another host, or uses another shared memory directory
+			return null;
+		}
 		
 		return result;
 	}
@@ -163,7 +218,7 @@ public class FileServerSocketImpl implements IServerSocketTL {
 		
 		_namedAddresses = SoAnUtil.convertTLAddressList(_addresses);
 				
-		boolean bind = BoundConnectionManager.getInstance().bindOnNames(_directory, _namedAddresses);
+		boolean bind = BoundConnectionManager.getInstance().bindOnNames(_directory, _namedAddresses, _options.getLockMode());
 		if(!bind) {
 			throw new FileTLIOException("Unable to bind on all addresses");
 		}
@@ -16,6 +16,7 @@
 
 package com.socketanywhere.filefactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,6 +24,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.List;
 
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
 import com.socketanywhere.net.ISocketTL;
 import com.socketanywhere.net.SoAnUtil;
 import com.socketanywhere.net.TLAddress;
@@ -33,8 +36,16 @@ import com.vfile.VFile;
  * 
  * Sends:
  *  - filetl-establish-source[listenName]-to-dest[remoteName]-esuuid[uuid]-connuuid[uuid] (sent by FileSocketImpl)
+ *  - or, if the wire mode of our options is not PACKET_FILE: 
+ *    filetl-establish-source[listenName]-to-dest[remoteName]-esuuid[uuid]-connuuid[uuid]-wiremode[descriptor]
  * Then Waits for:
  *  - filetl-establish-response-dest[myListenName]-from-source[srcEntry]-esuuid[establishUUID]-connuuid[uuid]
+ *    (the connection uses PACKET_FILE)
+ *  - or filetl-establish-response-dest[myListenName]-from-source[srcEntry]-esuuid[establishUUID]-connuuid[uuid]-wiremode[descriptor]
+ *    (the connection uses the requested wire mode)
+ *
+ * In SHARED_MEMORY mode, a probe file (see SharedMemoryRing.getProbeFile(...)) is created in the shared memory directory 
+ * until the response is received, so that the server can tell whether it shares the directory with us.
  *
  * To close, it sends:
  *  - filetl-packet-source[listenName]-to-dest[remoteName]-connuuid[uuid]-close
@@ -45,14 +56,19 @@ import com.vfile.VFile;
  */
 public class FileSocketImpl  implements ISocketTL {
 	VFile _directory = null;
+	
+	/** The directory that contains the per-connection files of this connection (see ConnectionDirectoryLayout) */
+	VFile _connDirectory = null;
 	String _listenName = null;
 	String _remoteName = null;
 	
 	String _connUUID = null;
 	
-	FileTLOutputStream _outputStream;
-	FileTLInputStream _inputStream;
-	WatchingForCloseThread _closeDataListenThread = null;
+	FileTLOptions _options = null;
+	
+	FileTLAbstractOutputStream _outputStream;
+	FileTLAbstractInputStream _inputStream;
+	WatchingForCloseTask _closeTask = null;
 	
 	boolean _isConnected = false;
 	boolean _isClosed = false;
@@ -70,14 +86,13 @@ public class FileSocketImpl  implements ISocketTL {
 	 * For internal use only: Called by FileServerSocketImpl, as the FileServerSocketImpl has already done
 	 * the connection handshaking (e.g. the hardwork). 
 	 */
-	protected static FileSocketImpl createSocketForServerSocket(TLAddress remoteAddress, VFile directory, String listenName, String remoteName, String connUUID) throws IOException {
-		FileSocketImpl fs = new FileSocketImpl(directory);
+	protected static FileSocketImpl createSocketForServerSocket(TLAddress remoteAddress, VFile directory, FileTLOptions options, String listenName, String remoteName, String connUUID) throws IOException {
+		FileSocketImpl fs = new FileSocketImpl(directory, options);
 		fs._listenName = listenName;
 		fs._remoteName= remoteName;
 		fs._connUUID = connUUID;
 		
-		fs._inputStream = new FileTLInputStream(fs, fs._directory, fs._remoteName, fs._listenName, fs._connUUID);
-		fs._outputStream = new FileTLOutputStream(fs, fs._directory, fs._listenName, fs._remoteName, fs._connUUID);
+		fs.createStreams();
 		
 		fs.startCloseListenThread();
 		
@@ -91,13 +106,43 @@ public class FileSocketImpl  implements ISocketTL {
 	}
 	
 	private void startCloseListenThread() {
-		WatchingForCloseThread thread = new WatchingForCloseThread(this);
-		thread.setDaemon(true);
-		thread.start();
+		_closeTask = new WatchingForCloseTask(this);
+		FileTLScheduler.getInstance().schedule(_closeTask, 0);
+	}
+	
+	/** Creates the input and output streams for the connection, based on the wire mode of our options. */
+	private void createStreams() throws IOException {
+		_connDirectory = ConnectionDirectoryLayout.getConnectionDirectory(_directory, _options, _connUUID);
+		if(_connDirectory != _directory) {
+			// Both ends may create the directory
+			_connDirectory.mkdirs();
+		}
+		
+		if(_options.getWireMode() == FileTLOptions.WireMode.SEGMENT_LOG) {
+			_inputStream = new FileTLSegmentInputStream(this, _connDirectory, _remoteName, _listenName, _connUUID);
+			_outputStream = new FileTLSegmentOutputStream(this, _connDirectory, _listenName, _remoteName, _connUUID, _options.getSegmentSize());
+		} else if(_options.getWireMode() == FileTLOptions.WireMode.SHARED_MEMORY) {
+			_inputStream = new FileTLSharedMemoryInputStream(this, _connDirectory, _remoteName, _listenName, _connUUID, _options.getSharedMemoryDirectory(), _options.getRingSize());
+			_outputStream = new FileTLSharedMemoryOutputStream(this, _connDirectory, _listenName, _remoteName, _connUUID, _options.getSharedMemoryDirectory(), _options.getRingSize());
+		} else {
+			_inputStream = new FileTLInputStream(this, _connDirectory, _remoteName, _listenName, _connUUID, _options.getPrefetchDepth());
+			_outputStream = new FileTLOutputStream(this, _connDirectory, _listenName, _remoteName, _connUUID);
+		}
+		
+		if(_options.getBatchMaxBytes() > 0) {
+			_outputStream.enableBatching(_options.getBatchMaxBytes(), _options.getBatchMaxDelay());
+		} else if(_options.getWireMode() == FileTLOptions.WireMode.SEGMENT_LOG) {
+			// Each packet is a segment append and a commit marker rewrite, so writes are always batched in this mode
+			_outputStream.enableBatching(FileTLSegmentOutputStream.DEFAULT_BATCH_MAX_BYTES, _options.getBatchMaxDelay());
+		}
 	}
 	
 	/** This constructor is equivalent to the Socket() constructor, e.g. a socket that has not yet been instructed to connect (connect() call)*/
 	public FileSocketImpl(VFile directory) {
+		this(directory, new FileTLOptions());
+	}
+	
+	public FileSocketImpl(VFile directory, FileTLOptions options) {
 		
 		String listenName = null;
 		try {
@@ -107,10 +152,15 @@ public class FileSocketImpl  implements ISocketTL {
 		}
 		_listenName = listenName;
 		_directory = directory;
+		_options = options;
 	}
 	
 	public FileSocketImpl(VFile directory, TLAddress address) throws IOException {
-		this(directory);
+		this(directory, new FileTLOptions(), address);
+	}
+	
+	public FileSocketImpl(VFile directory, FileTLOptions options, TLAddress address) throws IOException {
+		this(directory, options);
 		
 		initConnect(address, DEFAULT_CONNECT_ATTEMPT_TIMEOUT);
 	}
@@ -154,7 +204,36 @@ public class FileSocketImpl  implements ISocketTL {
 		
 		String esUUID = FileTLUtil.generateUUID();
 		String connUUID = FileTLUtil.generateUUID();
-		String filename = "filetl-establish-source["+_listenName+"]-to-dest["+remoteName+"]-esuuid["+esUUID+"]-connuuid["+connUUID+"]";
+		
+		File probeFile = null;
+		if(_options.getWireMode() == FileTLOptions.WireMode.SHARED_MEMORY) {
+			probeFile = SharedMemoryRing.getProbeFile(_options.getSharedMemoryDirectory(), esUUID);
+			try {
+				probeFile.createNewFile();
+			} catch(IOException e) {
+				// The server will not find the probe, and so will fall back to PACKET_FILE
+				probeFile = null;
+			}
+		}
+		
+		try {
+			return initConnect(remoteName, timeout, esUUID, connUUID);
+		} finally {
+			if(probeFile != null) {
+				probeFile.delete();
+			}
+		}
+	}
+	
+	private boolean initConnect(String remoteName, long timeout, String esUUID, String connUUID) throws IOException {
+		
+		String filename;
+		if(_options.getWireMode() == FileTLOptions.WireMode.PACKET_FILE) {
+			filename = FileTLFilename.encode(Type.ESTABLISH, _listenName, remoteName, esUUID, connUUID);
+		} else {
+			filename = FileTLFilename.encode(Type.ESTABLISH_WIRE_MODE, _listenName, remoteName, esUUID, connUUID, 
+					_options.getWireModeDescriptor());
+		}
 		
 		VFile file = new VFile(_directory.getPath()+VFile.separator+filename);
 //		FileTLUtil.writeAndRenameEmptyMessageFile(file);
@@ -162,20 +241,30 @@ public class FileSocketImpl  implements ISocketTL {
 		
 		String newDestName = null;
 		
+		// The wire mode accepted by the server, or null if it responded with a plain establish response (PACKET_FILE)
+		String wireModeDescriptor = null;
+		
 		long startTime = System.currentTimeMillis();
 		
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getWatcher(_directory, "filetl-establish-response-dest");
+		
 		// Loop: Scan through the directory, waiting for a response 
 		while(newDestName == null) {
-			VFile[] fileList = _directory.listFiles();
+			long generation = watcher.getGeneration();
+			
+			VFile[] fileList = DirectoryListingService.getInstance(_directory).listFiles("filetl-establish-response-dest");
 			
 			for(VFile rff : fileList) {
 				if(rff.isDirectory()) continue;
 				
-				String rf = rff.getName();
+				FileTLFilename rf = FileTLFilename.decode(rff.getName());
 
-				if(rf.startsWith("filetl-establish-response-dest") && rf.endsWith("-from-source["+_listenName+"]-esuuid["+esUUID+"]-connuuid["+connUUID+"]")) {
+				if((rf.getType() == Type.ESTABLISH_RESPONSE || rf.getType() == Type.ESTABLISH_RESPONSE_WIRE_MODE) 
+						&& rf.matches(Field.SOURCE, _listenName) 
+						&& rf.matches(Field.ES_UUID, esUUID) && rf.matches(Field.CONN_UUID, connUUID)) {
 					// We found a response, so extract the new dest value and delete
-					newDestName = FileTLUtil.extractField("dest", rf);
+					newDestName = rf.get(Field.DEST);
+					wireModeDescriptor = rf.get(Field.WIRE_MODE);
 					
 					QueueManager.queueDeleteFile(rff);
 					
@@ -189,7 +278,7 @@ public class FileSocketImpl  implements ISocketTL {
 			}
 			
 			if(newDestName == null) {
-				FileTLUtil.sleep(POLL_FREQUENCY);
+				FileTLUtil.waitForChange(watcher, generation, POLL_FREQUENCY);
 			}
 			
 		}			
@@ -199,8 +288,18 @@ public class FileSocketImpl  implements ISocketTL {
 		
 		_remoteName = newDestName;
 		_connUUID = connUUID;
-		_inputStream = new FileTLInputStream(this, _directory,_remoteName, _listenName, _connUUID);
-		_outputStream = new FileTLOutputStream(this, _directory, _listenName, _remoteName, _connUUID);
+		
+		if(wireModeDescriptor == null) {
+			_options = _options.withWireMode(FileTLOptions.WireMode.PACKET_FILE);
+		} else {
+			FileTLOptions connOptions = _options.withWireModeDescriptor(wireModeDescriptor);
+			if(connOptions == null) {
+				throw new FileTLIOException("Unsupported wire mode in establish response: "+wireModeDescriptor);
+			}
+			_options = connOptions;
+		}
+		
+		createStreams();
 
 		ConnectionManager.getInstance().addActiveConnection(_directory, connUUID);
 		
@@ -228,12 +327,24 @@ public class FileSocketImpl  implements ISocketTL {
 		_isConnected = false;
 		_isClosed = true;
 		
-		VFile msgFile = new VFile(_directory.getPath()+VFile.separator+"filetl-packet-source["+_listenName+"]-to-dest["+_remoteName+"]-connuuid["+_connUUID+"]-close");
+		try {
+			// Any batched data must be written before the remote side sees the close 
+			_outputStream.flush();
+		} catch(IOException e) {
+			/* ignore, as we are closing anyways */
+		}
+		
+		VFile msgFile = new VFile(_connDirectory.getPath()+VFile.separator+"filetl-packet-source["+_listenName+"]-to-dest["+_remoteName+"]-connuuid["+_connUUID+"]-close");
 		FileTLUtil.writeEmptyMessageFile(msgFile);
 //		FileTLUtil.writeAndRenameEmptyMessageFile(msgFile);
 
 		ConnectionManager.getInstance().removeActiveConnection(_directory, _connUUID);
 		
+		if(_closeTask != null) {
+			// The remote close file (if any) will be removed along with the rest of the remote's files
+			_closeTask.cancel();
+		}
+		
 		_inputStream.informLocalClose();
 		_outputStream.informLocalClose();
 	}
@@ -280,38 +391,35 @@ public class FileSocketImpl  implements ISocketTL {
 
 }
 
-class WatchingForCloseThread extends Thread {
+/** Watches for the close file of the remote side of the connection */
+class WatchingForCloseTask extends FileTLScheduledTask {
 	
-	public static final long POLL_FREQUENCY = 1000;
+	public static final long MIN_POLL_FREQUENCY = 1000;
+	public static final long MAX_POLL_FREQUENCY = 8000;
 	
-	FileSocketImpl _socketImpl = null;
-	boolean _threadRunning = true;
+	private final FileSocketImpl _socketImpl;
+	private final VFile _fileToWatch;
 	
-	public WatchingForCloseThread(FileSocketImpl socketImpl) {
-		super(WatchingForCloseThread.class.getName());
+	public WatchingForCloseTask(FileSocketImpl socketImpl) {
+		super(MIN_POLL_FREQUENCY, MAX_POLL_FREQUENCY);
 		_socketImpl = socketImpl;
-		setDaemon(true);
+		
+		String closeFilename = "filetl-packet-source["+_socketImpl._remoteName+"]-to-dest["+_socketImpl._listenName+"]-connuuid["+_socketImpl._connUUID+"]-close";
+		_fileToWatch = new VFile(_socketImpl._connDirectory.getPath()+VFile.separator+closeFilename);
+		
+		watch(DirectoryWatcherManager.getInstance().getWatcherForSuffix(_socketImpl._connDirectory, "-close"));
 	}
 	
 	@Override
-	public void run() {
+	protected boolean runTask() {
+		if(_fileToWatch.exists()) {
+			cancel();
+			_socketImpl.informRemoteClose();
+			QueueManager.queueDeleteFile(_fileToWatch);
+			return true;
+		}
 		
-		VFile fileToWatch = new VFile(_socketImpl._directory.getPath()+VFile.separator+"filetl-packet-source["+_socketImpl._remoteName+"]-to-dest["+_socketImpl._listenName+"]-connuuid["+_socketImpl._connUUID+"]-close");
-
-		try {
-			while(_threadRunning) {
-				
-				if(fileToWatch.exists()) {
-					_threadRunning = false;
-					_socketImpl.informRemoteClose();
-					QueueManager.queueDeleteFile(fileToWatch);
-					break;
-				} else {
-					sleep(POLL_FREQUENCY);
-				}
-			}
-		} catch (InterruptedException e) {}
-
+		return false;
 	}
 	
 }
@@ -0,0 +1,74 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.vfile.VFile;
+
+/** Common base for the input streams of a FileSocketImpl; each subclass implements one of the
+ * wire modes of FileTLOptions. */
+public abstract class FileTLAbstractInputStream extends InputStream {
+
+	String _remoteName = null; // name of the remote connection
+	String _listenName = null; // our name, that we are listening on
+	String _connUUID = null;
+
+	/** Used to inform a socket of a close operation*/
+	FileSocketImpl _socketImpl = null;
+
+	VFile _directory = null;
+
+	protected FileTLAbstractInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID) throws IOException {
+		_directory = directory;
+		_remoteName = remoteName;
+		_listenName = listenName;
+		_connUUID = connUUID;
+		_socketImpl = socketImpl;
+
+		if(!directory.exists() || !_directory.isDirectory() || !_directory.canRead()) {
+			throw(new FileTLIOException("Invalid directory"));
+		}
+	}
+
+	/** A close operation that was initiated by a close call on our side */
+	public abstract void informLocalClose();
+
+	/** A close operation that was initiated by the remote host */
+	public abstract void informRemoteClose();
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		throw(new UnsupportedOperationException());
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw(new UnsupportedOperationException());
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		throw(new UnsupportedOperationException());
+	}
+}
@@ -0,0 +1,301 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.vfile.VFile;
+
+/** Common base for the output streams of a FileSocketImpl; each subclass implements one of the
+ * wire modes of FileTLOptions, by implementing writePacket(...).
+ * 
+ * When batching is enabled, consecutive writes are coalesced into a single packet, which is written on
+ * flush(), on close, when the batch is full, or once the maximum batch delay has elapsed. */
+public abstract class FileTLAbstractOutputStream extends OutputStream {
+
+	String _sourceName = null;
+	String _remoteName = null;
+	String _connUUID = null;
+
+	boolean _isOpen = false;
+	VFile _directory = null;
+	FileSocketImpl _socketImpl = null;
+	
+	/** Batching is disabled if this is 0 */
+	private int _batchMaxBytes = 0;
+	private long _batchMaxDelay = 0;
+	
+	private byte[] _batch = null;
+	private int _batchSize = 0;
+	
+	/** When the current batch must be written by, or -1 if the batch is empty; read without the lock by the flush thread. */
+	volatile long _batchFlushTime = -1;
+	
+	/** An error that occurred while writing a batch from the flush thread, to be thrown to the next caller */
+	private IOException _batchException = null;
+	
+	private final Object _batchLock = new Object();
+
+	protected FileTLAbstractOutputStream(FileSocketImpl socketImpl, VFile directory, String sourceName, String remoteName, String connUUID) throws IOException {
+		_sourceName = sourceName;
+		_remoteName = remoteName;
+		_connUUID = connUUID;
+		_isOpen = true;
+		_directory = directory;
+
+		_socketImpl = socketImpl;
+
+		if(!directory.exists() || !_directory.isDirectory() || !_directory.canRead()) {
+			throw(new FileTLIOException("Invalid directory"));
+		}
+	}
+
+	/** Writes the given data to the directory as a single packet */
+	protected abstract void writePacket(byte[] b, int off, int len) throws IOException;
+	
+	/** Enables coalescing of writes into packets of up to maxBytes, which wait no longer than maxDelay msecs before being written. */
+	void enableBatching(int maxBytes, long maxDelay) {
+		synchronized(_batchLock) {
+			_batchMaxBytes = maxBytes;
+			_batchMaxDelay = maxDelay;
+			_batch = new byte[maxBytes];
+		}
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		assertOpen();
+		
+		if(_batchMaxBytes <= 0) {
+			writePacket(b, off, len);
+			return;
+		}
+		
+		synchronized(_batchLock) {
+			throwBatchException();
+			
+			if(_batchSize + len > _batchMaxBytes) {
+				writeBatch();
+			}
+			
+			if(len >= _batchMaxBytes) {
+				// Too large to batch, so write it as is
+				writePacket(b, off, len);
+				return;
+			}
+			
+			System.arraycopy(b, off, _batch, _batchSize, len);
+			_batchSize += len;
+			
+			if(_batchSize == _batchMaxBytes) {
+				writeBatch();
+			} else if(_batchFlushTime == -1) {
+				_batchFlushTime = System.currentTimeMillis() + _batchMaxDelay;
+				FileTLBatchFlushThread.getInstance().addStream(this);
+			}
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if(_batchMaxBytes <= 0) {
+			return;
+		}
+		
+		synchronized(_batchLock) {
+			throwBatchException();
+			writeBatch();
+		}
+	}
+	
+	/** Called by the flush thread once the batch delay has elapsed; does nothing once the stream has closed. */
+	void flushExpiredBatch() {
+		synchronized(_batchLock) {
+			if(!_isOpen || _batchFlushTime == -1 || _batchFlushTime > System.currentTimeMillis()) {
+				return;
+			}
+			
+			try {
+				writeBatch();
+			} catch(IOException e) {
+				_batchException = e;
+			}
+		}
+	}
+	
+	/** Must be called while holding _batchLock */
+	private void writeBatch() throws IOException {
+		_batchFlushTime = -1;
+		
+		if(_batchSize == 0) {
+			return;
+		}
+		
+		int size = _batchSize;
+		_batchSize = 0;
+		writePacket(_batch, 0, size);
+	}
+	
+	/** Must be called while holding _batchLock */
+	private void throwBatchException() throws IOException {
+		if(_batchException != null) {
+			IOException e = _batchException;
+			_batchException = null;
+			throw e;
+		}
+	}
+	
+	/** Marks the stream as closed, discards any batch that has not been written, and removes the stream from the
+	 * flush thread, so that the thread does not hold on to the stream after it has closed. */
+	private void closeBatching() {
+		if(_batchMaxBytes <= 0) {
+			_isOpen = false;
+			return;
+		}
+		
+		synchronized(_batchLock) {
+			_isOpen = false;
+			_batchFlushTime = -1;
+			_batchSize = 0;
+		}
+		FileTLBatchFlushThread.getInstance().removeStream(this);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			// The batch is written while the stream is still open, before the remote side sees the close
+			flush();
+		} finally {
+			closeBatching();
+			_socketImpl.close();
+		}
+	}
+
+	/** A close operation that was initiated by a close call on our side*/
+	protected void informLocalClose() {
+		closeBatching();
+		FileTLLogger.outputStreamClosed(this);
+	}
+
+	protected void informRemoteClose() {
+		closeBatching();
+		FileTLLogger.outputStreamClosed(this);
+	}
+
+	protected void assertOpen() throws IOException {
+		if(!_isOpen) {
+			throw(new IOException("FileTL Output Stream has closed."));
+		}
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+}
+
+/** Writes the batches of output streams once their batch delay has elapsed; a single thread is shared by all
+ * output streams. */
+class FileTLBatchFlushThread extends Thread {
+	
+	private static FileTLBatchFlushThread _instance = null;
+	
+	/** Streams with a non-empty batch; synchronize on this when accessing. */
+	private final List<FileTLAbstractOutputStream> _streams = new ArrayList<FileTLAbstractOutputStream>();
+	
+	private FileTLBatchFlushThread() {
+		setName(FileTLBatchFlushThread.class.getName());
+		setDaemon(true);
+	}
+	
+	public static synchronized FileTLBatchFlushThread getInstance() {
+		if(_instance == null) {
+			_instance = new FileTLBatchFlushThread();
+			_instance.start();
+		}
+		return _instance;
+	}
+	
+	public void addStream(FileTLAbstractOutputStream stream) {
+		synchronized(_streams) {
+			if(!_streams.contains(stream)) {
+				_streams.add(stream);
+			}
+			_streams.notify();
+		}
+	}
+	
+	/** Called once a stream has closed, as its batch (if any) will no longer be written. */
+	public void removeStream(FileTLAbstractOutputStream stream) {
+		synchronized(_streams) {
+			_streams.remove(stream);
+		}
+	}
+	
+	@Override
+	public void run() {
+		List<FileTLAbstractOutputStream> expired = new ArrayList<FileTLAbstractOutputStream>();
+		
+		while(true) {
+			
+			synchronized(_streams) {
+				long currTime = System.currentTimeMillis();
+				long nextFlushTime = Long.MAX_VALUE;
+				
+				for(Iterator<FileTLAbstractOutputStream> it = _streams.iterator(); it.hasNext();) {
+					FileTLAbstractOutputStream s = it.next();
+					long flushTime = s._batchFlushTime;
+					
+					if(flushTime == -1) {
+						// Already written by the stream itself
+						it.remove();
+					} else if(flushTime <= currTime) {
+						expired.add(s);
+						it.remove();
+					} else if(flushTime < nextFlushTime) {
+						nextFlushTime = flushTime;
+					}
+				}
+				
+				if(expired.size() == 0) {
+					try {
+						if(nextFlushTime == Long.MAX_VALUE) {
+							_streams.wait();
+						} else {
+							_streams.wait(nextFlushTime - currTime);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+			}
+			
+			// The batches are written outside of the lock, as writing may be slow
+			for(FileTLAbstractOutputStream s : expired) {
+				s.flushExpiredBatch();
+			}
+			expired.clear();
+		}
+	}
+}
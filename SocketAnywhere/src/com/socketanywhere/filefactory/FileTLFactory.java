@@ -26,29 +26,35 @@ import com.vfile.VFile;
 
 public class FileTLFactory implements ISocketFactory {
 	VFile _directory = null;
+	FileTLOptions _options = null;
 	
 	public FileTLFactory(VFile directory) {
+		this(directory, new FileTLOptions());
+	}
+	
+	public FileTLFactory(VFile directory, FileTLOptions options) {
 		_directory = directory;
+		_options = options;
 	}
 	
 	@Override
 	public IServerSocketTL instantiateServerSocket() throws IOException {
-		return new FileServerSocketImpl(_directory);
+		return new FileServerSocketImpl(_directory, _options);
 	}
 
 	@Override
 	public IServerSocketTL instantiateServerSocket(TLAddress address) throws IOException {
-		return new FileServerSocketImpl(_directory, address);
+		return new FileServerSocketImpl(_directory, _options, address);
 	}
 
 	@Override
 	public ISocketTL instantiateSocket() throws IOException {
-		return new FileSocketImpl(_directory);
+		return new FileSocketImpl(_directory, _options);
 	}
 
 	@Override
 	public ISocketTL instantiateSocket(TLAddress address) throws IOException {
-		return new FileSocketImpl(_directory, address);
+		return new FileSocketImpl(_directory, _options, address);
 	}
 
 }
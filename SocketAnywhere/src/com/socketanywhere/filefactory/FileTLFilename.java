@@ -0,0 +1,345 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes and decodes the names of the message files (and directories) that are written by FileTL, e.g.
+ * filetl-packet-source[a]-to-dest[b]-packetid[1]-connuuid[uuid]-ready.
+ * 
+ * A name is decoded in a single pass: the offsets of each key[value] pair are recorded, and the keys (and 
+ * any trailing suffix) are then matched against the layout of each Type, without copying the name. Values 
+ * are only extracted when they are requested. A name that does not exactly match a layout is of type UNKNOWN.
+ * 
+ * Since the same names are returned by each listing of a directory, decoded names are cached (by name), so 
+ * that pollers of a directory may classify a listing by type, rather than repeatedly testing each name 
+ * against each message prefix.  
+ */
+public final class FileTLFilename {
+
+	public static final String PREFIX = "filetl-";
+
+	/** The maximum number of decoded names that are cached */
+	private static final int MAX_CACHE_SIZE = 16384;
+	
+	/** The maximum number of key[value] pairs in any type */
+	private static final int MAX_FIELDS = 5;
+
+	/** Decoded names, by name; the cache is cleared once it exceeds the maximum size, as the names of a 
+	 * directory are constantly replaced (e.g. by new packets) and will quickly be decoded again. */
+	private static final Map<String, FileTLFilename> _cache = new ConcurrentHashMap<String, FileTLFilename>();
+
+	public static enum Field {
+		SOURCE, DEST, PACKET_ID, SEGMENT, CONN_UUID, ES_UUID, 
+		BOUND_NAME, BOUND_UUID, TEST_UUID, 
+		LOCK_NAME, LOCK_UUID, ACQUIRE_UUID, TOKEN, EXPIRES, OWNER, 
+		BUCKET, WIRE_MODE
+	}
+
+	/** Each type is defined by the key that precedes each value (including the separating '-'), and by the 
+	 * text that follows the last value. */
+	public static enum Type {
+		PACKET("", keys("packet-source", "-to-dest", "-packetid", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.PACKET_ID, Field.CONN_UUID)),
+		
+		PACKET_READY("-ready", keys("packet-source", "-to-dest", "-packetid", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.PACKET_ID, Field.CONN_UUID)),
+		
+		SEGMENT("", keys("packet-source", "-to-dest", "-segment", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.SEGMENT, Field.CONN_UUID)),
+		
+		COMMIT("", keys("packet-source", "-to-dest", "-commit-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.CONN_UUID)),
+		
+		CLOSE("-close", keys("packet-source", "-to-dest", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.CONN_UUID)),
+		
+		SHARED_MEMORY_RING("", keys("shm-source", "-to-dest", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.CONN_UUID)),
+		
+		ESTABLISH("", keys("establish-source", "-to-dest", "-esuuid", "-connuuid"), 
+				fields(Field.SOURCE, Field.DEST, Field.ES_UUID, Field.CONN_UUID)),
+		
+		ESTABLISH_RESPONSE("", keys("establish-response-dest", "-from-source", "-esuuid", "-connuuid"), 
+				fields(Field.DEST, Field.SOURCE, Field.ES_UUID, Field.CONN_UUID)),
+		
+		/** As ESTABLISH, but requests a wire mode other than PACKET_FILE (see FileTLOptions.getWireModeDescriptor()) */
+		ESTABLISH_WIRE_MODE("", keys("establish-source", "-to-dest", "-esuuid", "-connuuid", "-wiremode"), 
+				fields(Field.SOURCE, Field.DEST, Field.ES_UUID, Field.CONN_UUID, Field.WIRE_MODE)),
+		
+		/** As ESTABLISH_RESPONSE, but accepts the requested wire mode; a plain ESTABLISH_RESPONSE means PACKET_FILE */
+		ESTABLISH_RESPONSE_WIRE_MODE("", keys("establish-response-dest", "-from-source", "-esuuid", "-connuuid", "-wiremode"), 
+				fields(Field.DEST, Field.SOURCE, Field.ES_UUID, Field.CONN_UUID, Field.WIRE_MODE)),
+		
+		LISTENING_ON("", keys("listening-on-", "-bounduuid"), 
+				fields(Field.BOUND_NAME, Field.BOUND_UUID)),
+		
+		TEST_LISTEN_ON_CONNECTION("", keys("test-listen-on-connection", "-bounduuid", "-testuuid"), 
+				fields(Field.BOUND_NAME, Field.BOUND_UUID, Field.TEST_UUID)),
+		
+		TEST_LISTEN_ACTIVE_CONNECTION("", keys("test-listen-active-connection", "-bounduuid", "-testuuid"), 
+				fields(Field.BOUND_NAME, Field.BOUND_UUID, Field.TEST_UUID)),
+		
+		TEST_ACTIVE_CONNECTION("", keys("test-active-connection-connuuid", "-testuuid"), 
+				fields(Field.CONN_UUID, Field.TEST_UUID)),
+		
+		TEST_ACTIVE_CONNECTION_RESPONSE("", keys("test-active-connection-response-connuuid", "-testuuid"), 
+				fields(Field.CONN_UUID, Field.TEST_UUID)),
+		
+		LOCK_DIRECTORY("", keys("lock"), fields(Field.LOCK_NAME)),
+		
+		LOCK("", keys("lock", "-lockuuid"), fields(Field.LOCK_NAME, Field.LOCK_UUID)),
+		
+		ATTEMPT_ACQUIRE_LOCK("", keys("attempt-acquire-lock", "-acquireuuid"), 
+				fields(Field.LOCK_NAME, Field.ACQUIRE_UUID)),
+		
+		TEST_LOCK("", keys("test-lock", "-lockuuid", "-testuuid"), 
+				fields(Field.LOCK_NAME, Field.LOCK_UUID, Field.TEST_UUID)),
+		
+		TEST_LOCK_RESPONSE("", keys("test-lock-response-active-lock", "-lockuuid", "-testuuid"), 
+				fields(Field.LOCK_NAME, Field.LOCK_UUID, Field.TEST_UUID)),
+		
+		LEASE("", keys("lease", "-token", "-expires", "-owner"), 
+				fields(Field.LOCK_NAME, Field.TOKEN, Field.EXPIRES, Field.OWNER)),
+		
+		NATIVE_LOCK("", keys("native-lock"), fields(Field.LOCK_NAME)),
+		
+		CONNECTION_DIRECTORY("", keys("conn-connuuid"), fields(Field.CONN_UUID)),
+		
+		BUCKET_DIRECTORY("", keys("bucket"), fields(Field.BUCKET)),
+		
+		/** Not a FileTL name, or a FileTL name that does not match any of the above */
+		UNKNOWN("", keys(), fields());
+		
+		/** The types (other than UNKNOWN), by the first character of their first key */
+		private static final Type[][] BY_FIRST_CHAR = new Type[128][];
+		
+		static {
+			for(Type t : values()) {
+				if(t == UNKNOWN) continue;
+				
+				char c = t._keys[0].charAt(0);
+				Type[] prev = BY_FIRST_CHAR[c] == null ? new Type[0] : BY_FIRST_CHAR[c];
+				Type[] next = new Type[prev.length + 1];
+				System.arraycopy(prev, 0, next, 0, prev.length);
+				next[prev.length] = t;
+				BY_FIRST_CHAR[c] = next;
+			}
+		}
+		
+		private final String _suffix;
+		private final String[] _keys;
+		private final Field[] _fields;
+		
+		private Type(String suffix, String[] keys, Field[] fields) {
+			_suffix = suffix;
+			_keys = keys;
+			_fields = fields;
+		}
+		
+		/** Returns the position of the given field in this type's layout, or -1 if it is not present */
+		int indexOf(Field field) {
+			for(int x = 0; x < _fields.length; x++) {
+				if(_fields[x] == field) {
+					return x;
+				}
+			}
+			return -1;
+		}
+		
+		/** Returns the types whose first key begins with the given character, or null if there are none */
+		static Type[] getCandidates(char c) {
+			return c < BY_FIRST_CHAR.length ? BY_FIRST_CHAR[c] : null;
+		}
+		
+		/** Whether the keys and suffix of the given name exactly match this type; offsets contains the position of 
+		 * the '[' and ']' of each of the count values (as located by parse). */
+		boolean matches(String name, int count, int[] offsets) {
+			if(count != _keys.length) {
+				return false;
+			}
+			
+			// The lengths of the suffix and keys are compared before their contents, as most mismatches differ in length
+			int suffixStart = offsets[count*2-1] + 1;
+			if(name.length() - suffixStart != _suffix.length()) {
+				return false;
+			}
+			
+			int keyStart = PREFIX.length();
+			for(int x = 0; x < count; x++) {
+				// The key runs up to (but not including) the '[' that precedes the value
+				if(offsets[x*2] - keyStart != _keys[x].length()) {
+					return false;
+				}
+				keyStart = offsets[x*2+1] + 1;
+			}
+			
+			keyStart = PREFIX.length();
+			for(int x = 0; x < count; x++) {
+				if(!name.regionMatches(keyStart, _keys[x], 0, _keys[x].length())) {
+					return false;
+				}
+				keyStart = offsets[x*2+1] + 1;
+			}
+			
+			return name.regionMatches(suffixStart, _suffix, 0, _suffix.length());
+		}
+		
+		private static String[] keys(String... keys) {
+			return keys;
+		}
+		
+		private static Field[] fields(Field... fields) {
+			return fields;
+		}
+	}
+	
+	private final String _name;
+	private final Type _type;
+	
+	/** The offset of the '[' and ']' that enclose each value in _name, in the order of the type's layout */
+	private final int[] _offsets;
+
+	private FileTLFilename(String name, Type type, int[] offsets) {
+		_name = name;
+		_type = type;
+		_offsets = offsets;
+	}
+	
+	/** Decodes the given file name, returning a previously decoded instance if the name has been seen recently. */
+	public static FileTLFilename decode(String name) {
+		FileTLFilename result = _cache.get(name);
+		if(result != null) {
+			return result;
+		}
+		
+		result = parse(name);
+		
+		if(_cache.size() >= MAX_CACHE_SIZE) {
+			_cache.clear();
+		}
+		_cache.put(name, result);
+		
+		return result;
+	}
+	
+	/** Decodes the given file name, without consulting (or updating) the cache; never returns null. */
+	public static FileTLFilename parse(String name) {
+		if(name.length() <= PREFIX.length() || !name.startsWith(PREFIX)) {
+			return new FileTLFilename(name, Type.UNKNOWN, null);
+		}
+		
+		Type[] candidates = Type.getCandidates(name.charAt(PREFIX.length()));
+		if(candidates == null) {
+			return new FileTLFilename(name, Type.UNKNOWN, null);
+		}
+		
+		int[] offsets = new int[MAX_FIELDS*2];
+		int count = 0;
+		
+		int pos = PREFIX.length();
+		while(true) {
+			int open = name.indexOf('[', pos);
+			if(open == -1) {
+				break;
+			}
+			
+			int close = name.indexOf(']', open + 1);
+			if(close == -1 || count == MAX_FIELDS) {
+				return new FileTLFilename(name, Type.UNKNOWN, null);
+			}
+			
+			offsets[count*2] = open;
+			offsets[count*2+1] = close;
+			count++;
+			
+			pos = close + 1;
+		}
+		
+		for(Type t : candidates) {
+			if(t.matches(name, count, offsets)) {
+				return new FileTLFilename(name, t, offsets);
+			}
+		}
+		
+		return new FileTLFilename(name, Type.UNKNOWN, null);
+	}
+	
+	/** Returns the name of the given type, with the given values (in the order of the type's layout). */
+	public static String encode(Type type, String... values) {
+		if(type == Type.UNKNOWN || values.length != type._keys.length) {
+			throw new IllegalArgumentException("Invalid values for type "+type+": "+values.length);
+		}
+		
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(PREFIX);
+		for(int x = 0; x < values.length; x++) {
+			sb.append(type._keys[x]);
+			sb.append('[');
+			sb.append(values[x]);
+			sb.append(']');
+		}
+		sb.append(type._suffix);
+		
+		return sb.toString();
+	}
+	
+	public String getName() {
+		return _name;
+	}
+	
+	public Type getType() {
+		return _type;
+	}
+	
+	/** Returns the value of the given field, or null if the field is not part of this name's type. */
+	public String get(Field field) {
+		int index = _type.indexOf(field);
+		if(index == -1) {
+			return null;
+		}
+		return _name.substring(_offsets[index*2] + 1, _offsets[index*2+1]);
+	}
+	
+	/** Returns the value of the given numeric field; throws NumberFormatException if it is not a number, or not present. */
+	public long getLong(Field field) {
+		String value = get(field);
+		if(value == null) {
+			throw new NumberFormatException("Field "+field+" is not present in "+_name);
+		}
+		return Long.parseLong(value);
+	}
+	
+	/** Whether the value of the given field is equal to the given value; does not extract the value. */
+	public boolean matches(Field field, String value) {
+		int index = _type.indexOf(field);
+		if(index == -1) {
+			return false;
+		}
+		
+		int start = _offsets[index*2] + 1;
+		int len = _offsets[index*2+1] - start;
+		return len == value.length() && _name.regionMatches(start, value, 0, len);
+	}
+	
+	@Override
+	public String toString() {
+		return _type+" "+_name;
+	}
+}
@@ -16,16 +16,33 @@
 
 package com.socketanywhere.filefactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
+import com.vfile.AsyncFileSupport;
 import com.vfile.VFile;
 import com.vfile.VFileInputStream;
+import com.vfile.jio.JIOFile;
 
 
 /** 
- * Polls
+ * Reads the packet files written by FileTLOutputStream. Up to prefetchDepth ready packets are read ahead of the
+ * consumer, and a single read() will return data from as many of the read-ahead packets as will fit in the caller's
+ * buffer. Ready packets are discovered from the (shared) directory listing, rather than by testing for each packet
+ * in turn.
+ * 
+ * For a local directory, packets are read by the thread that calls read(); for other (remote) directories, packets
+ * are read by a background thread, so that the latency of reading the next packets overlaps with the consumer. The
+ * background thread issues the reads of all of the ready packets at once, rather than waiting for each in turn.
  * 
  * File Messages:
  *
@@ -33,243 +50,227 @@ import com.vfile.VFileInputStream;
  *  - filetl-packet-source[_remoteName]-to-dest[listenName]-packetid[_nextFileNum]-connuuid[uuid]-ready
  *  
  */
-public class FileTLInputStream extends InputStream {
+public class FileTLInputStream extends FileTLAbstractInputStream {
 
-	String _remoteName = null; // name of the remote connection 
-	String _listenName = null; // our name, that we are listening on 
-	String _connUUID = null;
-	
-	/** Used to inform a socket of a close operation*/
-	FileSocketImpl _socketImpl = null;
+	public static final int DEFAULT_PREFETCH_DEPTH = 8;
 	
+	/** The number of the next packet to be read from the directory; only accessed by the fetching thread */
 	private int _nextFileNum = 1;
 	
-	private int _currFileNum = -1;
-	private VFile _currFile = null;
-	boolean _isOpen = false;
-	private VFile _directory = null;
+	/** Packets that have been read from the directory, but not yet (entirely) returned to the caller; synchronize on this when accessing */
+	private final ArrayDeque<Packet> _packets = new ArrayDeque<Packet>();
+	
+	private final int _prefetchDepth;
+	
+	/** Non-null if packets are read by a background thread */
+	private final PrefetchThread _prefetchThread;
+	
+	/** Set by the prefetch thread, once it has read all of the packets of a closed stream */
+	private volatile boolean _prefetchComplete = false;
+	
+	/** An error that occurred on the prefetch thread, to be thrown to the next caller */
+	private IOException _prefetchException = null;
+	
+	private final Object _readLock = new Object();
+	
+	volatile boolean _isOpen = false;
 	
 	/** Whether or not we have been informed that the remote or local host has closed to connection.
 	 * isOpen will still remain true, in order to allow to to read the rest of the data
 	 * from the buffer. */
-	boolean _informedClose = false;
+	volatile boolean _informedClose = false;
+	
+	private boolean _deletionScheduled = false;
 	
 	private static final long POLLING_FREQUENCY = 200;
 	private static final long WAIT_TIME_BEFORE_PACKET_DELETE_LOCAL = 60 * 1000;
 	private static final long WAIT_TIME_BEFORE_PACKET_DELETE_REMOTE = 120 * 1000;
 	
-	private VFileInputStream _fis = null;
+	/** Wakes the polling loop as soon as a new file appears in the directory (where supported) */
+	private IDirectoryWatcher _watcher = null;
 
+	public FileTLInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID) throws IOException {
+		this(socketImpl, directory, remoteName, listenName, connUUID, DEFAULT_PREFETCH_DEPTH);
+	}
+	
 	/**
 	 * 
 	 * @param socketImpl The file socket on which the input stream is based
 	 * @param directory Directory in which files will be read
 	 * @param remoteName The string through which we will identify the remote system 
 	 * @param listenName The string on which we will listen for data
+	 * @param prefetchDepth The maximum number of packets to read ahead of the consumer
 	 * @throws IOException
 	 */
-	public FileTLInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID) throws IOException {
-		
-		_directory = directory;
-		_remoteName = remoteName;
-		_listenName = listenName;
-		_connUUID = connUUID;
-		_socketImpl = socketImpl;
+	public FileTLInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID, int prefetchDepth) throws IOException {
+		super(socketImpl, directory, remoteName, listenName, connUUID);
 		
-		if(!directory.exists() || !_directory.isDirectory() || !_directory.canRead()) {
-			throw(new FileTLIOException("Invalid directory"));
-		}
+		_watcher = DirectoryWatcherManager.getInstance().getWatcher(directory);
+		_prefetchDepth = Math.max(1, prefetchDepth);
 		
 		_isOpen = true;
 		
+		if(directory.getInnerFile() instanceof JIOFile) {
+			_prefetchThread = null;
+		} else {
+			_prefetchThread = new PrefetchThread();
+			_prefetchThread.start();
+		}
+		
 		FileTLLogger.inputStreamCreated(this);
 				
 	}
 	
-	/** Scan the directory for new file packets to read, and when found, update the file number; 
-	 * if none were found, returns -1.*/
-	private void updateNextFileNum() {
+	/** Returns the number of consecutive packets, beginning with _nextFileNum, that are ready to be read (up to max).
+	 * If nextRead is not null, it is a read of packet _nextFileNum that was issued before the listing; it is used in
+	 * place of checking whether the packet exists. */
+	private int findReadyPackets(int max, CompletableFuture<byte[]> nextRead) {
+		String prefix = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]-packetid[";
+		
+		Set<Integer> ready = new HashSet<Integer>();
+		for(VFile f : DirectoryListingService.getInstance(_directory).listFiles(prefix)) {
+			FileTLFilename name = FileTLFilename.decode(f.getName());
+			if(name.getType() == Type.PACKET_READY && name.matches(Field.CONN_UUID, _connUUID)) {
+				try {
+					ready.add(Integer.parseInt(name.get(Field.PACKET_ID)));
+				} catch(NumberFormatException e) {
+					/* ignore */
+				}
+			}
+		}
 		
-		VFile nextFile 
-			= new VFile(_directory.getPath() + VFile.separator + "filetl-packet-source["
-					+_remoteName+"]-to-dest["+_listenName+"]-packetid["+_nextFileNum+"]-connuuid["+_connUUID+"]-ready");
-				
-		if(!nextFile.exists()) {
-			_currFileNum = -1;
-			return;
-		} else {
-			
-			_currFileNum = _nextFileNum;
-			_nextFileNum++;
+		int count = 0;
+		while(count < max && ready.contains(_nextFileNum + count)) {
+			count++;
+		}
+		
+		if(count == 0) {
+			// The shared listing may predate the packet 
+			boolean exists;
+			if(nextRead != null) {
+				try {
+					AsyncFileSupport.await(nextRead);
+					exists = true;
+				} catch(IOException e) {
+					exists = false;
+				}
+			} else {
+				exists = getPacketFile(_nextFileNum).exists();
+			}
 			
+			if(exists) {
+				count = 1;
+			}
 		}
+		
+		return count;
+	}
+	
+	private VFile getPacketFile(int fileNum) {
+		return new VFile(_directory.getPath() + VFile.separator + "filetl-packet-source["
+				+_remoteName+"]-to-dest["+_listenName+"]-packetid["+fileNum+"]-connuuid["+_connUUID+"]-ready");
 	}
 	
-	@SuppressWarnings("unused")
-	private void oldUpdateNextFileNum() {
+	/** Reads the ready packets (until there are prefetchDepth unread packets); returns the number of packets read.
+	 * Must only be called by one thread at a time. */
+	private int fetch() throws IOException {
+		int space;
+		synchronized(_packets) {
+			space = _prefetchDepth - _packets.size();
+		}
+		if(space <= 0) {
+			return 0;
+		}
 		
+		// For a remote directory, the next packet is read while the directory is listed, and the other ready packets
+		// are then read concurrently (see VFile.readAsync()), so that each fetch waits for about two round trips, 
+		// rather than for one per packet.
+		boolean pipelined = _prefetchThread != null;
 		
-		// TODO: LOWER - We don't need to update this every time.
+		CompletableFuture<byte[]> nextRead = pipelined ? getPacketFile(_nextFileNum).readAsync() : null;
 		
-		VFile[] fileList = _directory.listFiles();
+		int ready = findReadyPackets(space, nextRead);
 		
-		if(fileList == null) {
-			// Directory doesn't exist, or is inaccessible... so return the lack of found files
-			_currFileNum = -1;
-			return;
+		List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>();
+		if(pipelined && ready > 0) {
+			reads.add(nextRead);
+			for(int x = 1; x < ready; x++) {
+				reads.add(getPacketFile(_nextFileNum + x).readAsync());
+			}
 		}
 		
-		int minimumNum = Integer.MAX_VALUE;
-		
-		String nameFormat = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]";
-				
-		// For each file..
-		for(VFile f : fileList) {
+		for(int x = 0; x < ready; x++) {
+			VFile packetFile = getPacketFile(_nextFileNum);
 			
-			if(f.isDirectory()) continue;
+			Packet p = new Packet();
+			p._data = pipelined ? awaitPacketFile(reads.get(x), packetFile) : readPacketFile(packetFile);
 			
-			String name = f.getName();
+			// The packet is now in memory, so it is no longer needed
+			QueueManager.queueDeleteFile(packetFile);
+			_nextFileNum++;
 			
-			// If the file is for us, and is ready
-			if(name.startsWith(nameFormat) && name.endsWith("-ready") && !name.endsWith("-close")) {
-				
-				// The connection UUIDs must match, otherwise this is not our connection
-				String connUUID = FileTLUtil.extractField("connuuid", name);
-				if(connUUID.equalsIgnoreCase(_connUUID)) {
-				
-					// Parse the packet id and lower the minimum value if needed
-					int num = Integer.parseInt(FileTLUtil.extractField("packetid", name));
-					
-					if(num < minimumNum) {
-						minimumNum = num;
-					}					
-				
-				}
+			if(p._data.length == 0) {
+				continue;
 			}
 			
+			synchronized(_packets) {
+				_packets.add(p);
+				_packets.notifyAll();
+			}
 		}
-		if(minimumNum == Integer.MAX_VALUE) {
-			minimumNum = -1;
+		
+		return ready;
+	}
+	
+	/** Returns the contents read by an asynchronous read of the packet file; if the file could not be opened, it is
+	 * read again by readPacketFile(...), which retries. */
+	private static byte[] awaitPacketFile(CompletableFuture<byte[]> read, VFile packetFile) throws IOException {
+		try {
+			return AsyncFileSupport.await(read);
+		} catch(FileNotFoundException e) {
+			return readPacketFile(packetFile);
 		}
-
-		_currFileNum = minimumNum;
-
 	}
-
-	/** 
-	 * In order for a read to complete, a file input stream must exist; this function locates the next
-	 * file in the stream (blocking, where required). 
-	 * 
-	 * This function will thus set _fis if an appropriate stream can be found within the function parameters.
-	 * 
-	 * @param blockIfEmpty Whether or not to return if the appropriate file was not found
-	 * @throws IOException
-	 */
-	void updateFileInputStream(boolean blockIfEmpty) throws IOException  {
-				
-		if(!_isOpen) {
-			throw new FileTLIOException("Input stream has been closed.");
+	
+	private static byte[] readPacketFile(VFile packetFile) throws IOException {
+		
+		VFileInputStream fis = null;
+		int acquireCount = 0;
+		while(fis == null) {
+			try {
+				fis = new VFileInputStream(packetFile);
+			} catch(FileNotFoundException e) {
+				// Catch the following error: The process cannot access the file because it is being used by another process
+				acquireCount++;
+				if(acquireCount >= 40) {
+					throw new FileTLIOException("A packet file that should exist could not be read ["+packetFile.getName()+"]");
+				}
+				FileTLUtil.sleep(250);
+			}
 		}
 		
-		// If we have a fileinputstream, and it has data, then there is no need to update
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		try {
-			if(_fis != null && _fis.available() > 0) {
-				return;
-			} 
-		} catch(IOException e) {
-			// If something happens to the file we were using, then skip it
-			// (the scenario this is meant to avoid is where the file was deleted by
-			//  deleteRemainingFiles. This is expected behaviour, we just want to
-			//  handle it gracefully here.)
-			if(_informedClose) {
-				_fis = null;
-			} else {
-				throw e;
+			byte[] buffer = new byte[16384];
+			int c;
+			while((c = fis.read(buffer)) != -1) {
+				baos.write(buffer, 0, c);
 			}
+		} finally {
+			fis.close();
 		}
-				
-		boolean contLoop = true;
-				
-		while(contLoop) {
-			
-			if(_fis == null && _currFileNum == -1) {
-				
-				// If we have no fileinputstream, loop until we do (unless asked to block)
-				while(_currFileNum == -1) {
-					
-					updateNextFileNum();
-
-					if(_currFileNum == -1) {
-						// Return if we aren't required to block, or if the stream has been closed
-						if(!blockIfEmpty || _informedClose) {
-							return;
-						} else {
-							FileTLUtil.sleep(POLLING_FREQUENCY);
-						}	
-					}
-				}
-			}
-			
-			// At this point, _nextFileNum will necessarily point to the next file to read (and that file will exist)
-			
-			// If we don't have a fileinputstream we can read from, then locate one
-			if(_fis == null) {
-				
-				String name = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]-packetid["+_currFileNum+"]-connuuid["+_connUUID+"]-ready";
-				
-				VFile nextFile = new VFile(_directory.getPath()+VFile.separator+name);
-	
-				boolean a1 = nextFile.exists();
-				boolean a2 = nextFile.canRead();
-				if(!a1 || !a2) {
-					throw(new FileTLRuntimeException("A packet file that should exist could not be found ["+name+"] "+a1+ " "+a2));
-				}
-
-				
-				boolean inputStreamAcquired = false;
-				int acquireCount = 0;
-				while(!inputStreamAcquired && acquireCount < 40) {
-					try {
-						_fis = new VFileInputStream(nextFile);
-						inputStreamAcquired = true;
-					} catch(FileNotFoundException e) {
-						// Catch the following error: The process cannot access the file because it is being used by another process
-						acquireCount++;
-						try { Thread.sleep(250); } catch (InterruptedException e1) { }
-					}
-				}
-				
-				// TODO: MEDIUM - Throw exception if not able to acquire
-				
-				_currFile = nextFile;
-				
-				_currFileNum = -1;
-				
-			}
-			
-			// If we've got a fileinputstream, test it and delete if it has 0 bytes 
-			if(_fis != null) {
-				
-				if(_fis.available() == 0) {
-					_fis.close();
-					QueueManager.queueDeleteFile(_currFile);
-					_fis = null;
-					_currFile = null;
-					_currFileNum = -1;
-					contLoop = true;
-					
-				} else {
-					contLoop = false;
-					break;
-				}		
-			} 
-		}		
+		
+		return baos.toByteArray();
 	}
 	
 	@Override
 	public int read() throws IOException {
 		byte[] b = new byte[1];
-		return read(b);
+		int c = read(b, 0, 1);
+		if(c == -1) {
+			return -1;
+		}
+		return b[0] & 0xFF;
 	}
 	
 	@Override
@@ -279,60 +280,136 @@ public class FileTLInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		updateFileInputStream(true);
-		
-		// TODO: LOWER - The way this is implemented, you'll get AT MOST the size of the next file
-		
-		/** If there is no more data left, and we have closed, then return -1 */
-		if(_fis == null && _informedClose) {
-			return -1;
+		if(len == 0) {
+			return 0;
 		}
 		
-		int result = 0;
-		try {
-			result = _fis.read(b, off, len);
-		} catch(IOException e) {
-			if(_informedClose == true) {
-				// If the socket was closed already, this is expected.
-				result = -1;
-			} else {
-				throw e;
+		synchronized(_readLock) {
+			
+			while(!hasPackets()) {
+				if(!_isOpen) {
+					throw new FileTLIOException("Input stream has been closed.");
+				}
+				
+				long generation = _watcher.getGeneration();
+				
+				// Read the close flag before fetching: every packet written before the close will be seen by the fetch
+				boolean closed = _informedClose;
+				
+				if(_prefetchThread == null) {
+					if(fetch() > 0) {
+						continue;
+					}
+					
+					/** If there is no more data left, and we have closed, then return -1 */
+					if(closed) {
+						return -1;
+					}
+					
+					FileTLUtil.waitForChange(_watcher, generation, POLLING_FREQUENCY);
+					
+				} else {
+					synchronized(_packets) {
+						throwPrefetchException();
+						
+						if(_packets.size() > 0) {
+							continue;
+						}
+						
+						if(_prefetchComplete) {
+							return -1;
+						}
+						
+						try {
+							_packets.wait(POLLING_FREQUENCY);
+						} catch (InterruptedException e) {
+							throw new FileTLRuntimeException(e);
+						}
+					}
+				}
+			}
+			
+			int result = copyPackets(b, off, len);
+			
+			if(result < len && _prefetchThread == null && fetch() > 0) {
+				// Return as much of the data that is already available as will fit
+				result += copyPackets(b, off + result, len - result);
 			}
 			
+			FileTLLogger.readInputData(result, _remoteName, _listenName);
+			
+			return result;
 		}
-
-		updateFileInputStream(false);
-		
-		FileTLLogger.readInputData(result, _remoteName, _listenName);
+	}
+	
+	private boolean hasPackets() {
+		synchronized(_packets) {
+			return _packets.size() > 0;
+		}
+	}
+	
+	/** Copies the data of the read-ahead packets into the given buffer; returns the number of bytes copied. */
+	private int copyPackets(byte[] b, int off, int len) {
+		int copied = 0;
 		
-		return result;
+		synchronized(_packets) {
+			while(copied < len && _packets.size() > 0) {
+				Packet p = _packets.peek();
+				
+				int c = Math.min(len - copied, p._data.length - p._pos);
+				System.arraycopy(p._data, p._pos, b, off + copied, c);
+				p._pos += c;
+				copied += c;
+				
+				if(p._pos == p._data.length) {
+					_packets.poll();
+					
+					// Wake the prefetch thread, as there is now room for another packet
+					_packets.notifyAll();
+				}
+			}
+		}
 		
+		return copied;
+	}
+	
+	/** Must be called while synchronized on _packets */
+	private void throwPrefetchException() throws IOException {
+		if(_prefetchException != null) {
+			IOException e = _prefetchException;
+			_prefetchException = null;
+			throw e;
+		}
 	}
 	
 	@Override
 	public int available() throws IOException {
-		updateFileInputStream(false);
-		
-		// After having updated the file stream
-		// - Null means nothing available ATM
-		// OR, - FIS will return a >0 number
-		
-		if(_fis == null) {
-			return 0;
-		} else {
-			return _fis.available();
+		synchronized(_readLock) {
+			if(_prefetchThread == null && _isOpen && !hasPackets()) {
+				fetch();
+			}
+			
+			synchronized(_packets) {
+				int result = 0;
+				for(Packet p : _packets) {
+					result += p._data.length - p._pos;
+				}
+				return result;
+			}
 		}
-		
 	}
 	
 	@Override
 	public void close() throws IOException {
+		_isOpen = false;
 		deleteRemainingFiles(WAIT_TIME_BEFORE_PACKET_DELETE_LOCAL);
 		_socketImpl.close();
 	}
 	
+	@Override
 	public void informLocalClose () {
 		_informedClose = true;
+		_isOpen = false;
 		
 		// This won't be double-called by close(), then informLocalClose(), because of a check in the
 		// deleteRemainingFiles() method itself: 
@@ -341,111 +418,80 @@ public class FileTLInputStream extends InputStream {
 		FileTLLogger.inputStreamClosed(this);
 	}
 	
+	@Override
 	public void informRemoteClose() {
 		_informedClose = true;
+		
+		// Unlike a local close, the stream remains open, so that the remaining packets may be read.
 		deleteRemainingFiles(WAIT_TIME_BEFORE_PACKET_DELETE_REMOTE);
 		
 		FileTLLogger.inputStreamClosed(this);
 	}
 	
 	private void deleteRemainingFiles(long timeToWaitBeforeDelete) {
-		if(!_isOpen) return;
+		synchronized(this) {
+			if(_deletionScheduled) return;
+			_deletionScheduled = true;
+		}
 		
-		_isOpen = false;
+		synchronized(_packets) {
+			// Wake the prefetch thread, so that it can observe the close 
+			_packets.notifyAll();
+		}
 		
-		FileTLInputStreamTimedDeletionThread t 
-			= new FileTLInputStreamTimedDeletionThread(_remoteName, _listenName, _directory, _connUUID, timeToWaitBeforeDelete);
-		t.setDaemon(true);
-		t.start();
+		FileTLInputStreamTimedDeletionTask.schedule(_remoteName, _listenName, _directory, _connUUID, timeToWaitBeforeDelete);
 	}
-
 	
-	@Override
-	public synchronized void mark(int readlimit) {
-		throw(new UnsupportedOperationException());
-	}
-	
-	@Override
-	public boolean markSupported() {
-		return false;
+	/** A packet that has been read from the directory */
+	private static class Packet {
+		byte[] _data;
+		int _pos = 0;
 	}
 	
-	@Override
-	public synchronized void reset() throws IOException {
-		throw(new UnsupportedOperationException());	}
-
-	@Override
-	public long skip(long n) throws IOException {
-		throw(new UnsupportedOperationException());
-	}	
-}
-
-/**
- * In order to ensure all relevant files are deleted, this thread remains to clear them out.
- */
-class FileTLInputStreamTimedDeletionThread extends Thread {
-	String _remoteName = null;
-	String _listenName = null;
-	String _connUUID = null;
-	VFile _directory = null;
-	long _timeToWaitBeforeDelete = 0;
-	
-	private static final long TIME_TO_WAIT_ON_REMAINING = 30 * 1000;
-	
-	public FileTLInputStreamTimedDeletionThread(String remoteName, String listenName, VFile directory, String connUUID, long timeToWaitBeforeDelete) {
-		_remoteName = remoteName;
-		_listenName = listenName;
-		_directory = directory;
-		_connUUID = connUUID;
-		
-		_timeToWaitBeforeDelete = timeToWaitBeforeDelete;
-
-		setName(FileTLInputStreamTimedDeletionThread.class.getName());
-		setDaemon(true);
-	}
-
-	public void run() {
-		
-		// Wait x seconds before we destroy the remaining data that still remains to be read
-		FileTLUtil.sleep(_timeToWaitBeforeDelete); 
+	/** Reads packets ahead of the consumer, for directories on which reading a packet is slow. */
+	private class PrefetchThread extends Thread {
 		
-		// For each file that contains packets for this input stream, delete it
-		String filePattern = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]-";
-		VFile[] fileList = _directory.listFiles();
-		for(VFile f : fileList) {
-			
-			if(f.getName().startsWith(filePattern)
-					&& f.getName().contains("-connuuid["+_connUUID+"]")) {
-				// We do both to ensure we get all
-				f.delete();
-				f.deleteOnExit();
-			}
+		public PrefetchThread() {
+			setName(PrefetchThread.class.getName());
+			setDaemon(true);
 		}
 		
-		
-		// Keep trying to delete the remaining files every 30 seconds
-		int filesRemaining = 0;
-		
-		do {
-			filesRemaining = 0;
-		
-			filePattern = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]-";
-			fileList = _directory.listFiles();
-			for(VFile f : fileList) {
-				
-				if(f.getName().startsWith(filePattern) 
-						&& f.getName().contains("-connuuid["+_connUUID+"]")) {
-					f.delete();
+		@Override
+		public void run() {
+			try {
+				while(_isOpen) {
+					
+					// Wait for the consumer to make room
+					synchronized(_packets) {
+						while(_packets.size() >= _prefetchDepth && _isOpen) {
+							_packets.wait(POLLING_FREQUENCY);
+						}
+					}
+					
+					long generation = _watcher.getGeneration();
+					boolean closed = _informedClose;
+					
+					if(fetch() == 0) {
+						if(closed) {
+							break;
+						}
+						FileTLUtil.waitForChange(_watcher, generation, POLLING_FREQUENCY);
+					}
 				}
 				
-				if(f.exists()) {
-					filesRemaining++;
+			} catch(IOException e) {
+				synchronized(_packets) {
+					_prefetchException = e;
+				}
+			} catch(InterruptedException e) {
+				/* ignore */
+			} finally {
+				synchronized(_packets) {
+					_prefetchComplete = true;
+					_packets.notifyAll();
 				}
 			}
-		
-			if(filesRemaining > 0) FileTLUtil.sleep(TIME_TO_WAIT_ON_REMAINING);
-			
-		} while(filesRemaining > 0);
-
+		}
 	}
+
 }
@@ -0,0 +1,115 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.vfile.AsyncFileSupport;
+import com.vfile.VFile;
+
+/**
+ * In order to ensure all relevant files are deleted, this task remains to clear them out; it is scheduled to first
+ * run once the given time has elapsed, and then retries until no files remain.
+ */
+class FileTLInputStreamTimedDeletionTask extends FileTLScheduledTask {
+	String _remoteName = null;
+	String _listenName = null;
+	String _connUUID = null;
+	VFile _directory = null;
+	
+	private boolean _firstRun = true;
+	
+	private static final long TIME_TO_WAIT_ON_REMAINING = 30 * 1000;
+	
+	public FileTLInputStreamTimedDeletionTask(String remoteName, String listenName, VFile directory, String connUUID) {
+		super(TIME_TO_WAIT_ON_REMAINING, TIME_TO_WAIT_ON_REMAINING);
+		_remoteName = remoteName;
+		_listenName = listenName;
+		_directory = directory;
+		_connUUID = connUUID;
+	}
+	
+	/** Schedules the deletion of the remaining files of the stream, after the given time. */
+	static void schedule(String remoteName, String listenName, VFile directory, String connUUID, long timeToWaitBeforeDelete) {
+		FileTLScheduler.getInstance().schedule(new FileTLInputStreamTimedDeletionTask(remoteName, listenName, directory, connUUID), timeToWaitBeforeDelete);
+	}
+
+	@Override
+	protected boolean runTask() {
+		
+		// For each file that contains packets for this input stream, delete it
+		int filesRemaining = 0;
+		
+		String filePattern = "filetl-packet-source["+_remoteName+"]-to-dest["+_listenName+"]-";
+		
+		// Only this connection's files are listed (by the backend, where supported), rather than the whole directory 
+		VFile[] fileList = _directory.listFiles(filePattern, null);
+		if(fileList == null) {
+			return false;
+		}
+		
+		// The deletions are issued together, rather than waiting for each in turn
+		List<CompletableFuture<Boolean>> deletions = new ArrayList<CompletableFuture<Boolean>>();
+		
+		for(VFile f : fileList) {
+			
+			if(f.getName().startsWith(filePattern) 
+					&& f.getName().contains("-connuuid["+_connUUID+"]")) {
+				deletions.add(f.deleteAsync());
+				
+				if(_firstRun) {
+					// We do both to ensure we get all
+					f.deleteOnExit();
+				}
+			}
+		}
+		
+		for(CompletableFuture<Boolean> deletion : deletions) {
+			try {
+				AsyncFileSupport.await(deletion);
+			} catch(IOException e) {
+				/* The file is counted as remaining, below */
+			}
+		}
+		
+		for(VFile f : fileList) {
+			if(f.exists()) {
+				filesRemaining++;
+			}
+		}
+		
+		_firstRun = false;
+		
+		// Keep trying to delete the remaining files every 30 seconds
+		if(filesRemaining > 0) {
+			return false;
+		}
+		
+		cancel();
+		
+		if(ConnectionDirectoryLayout.isConnectionDirectory(_directory)) {
+			// The directory will be deleted once the remote side has also cleared its files
+			DirectoryListingService.releaseInstance(_directory);
+			QueueManager.queueDeleteFile(_directory);
+		}
+		
+		return true;
+	}
+}
@@ -18,6 +18,8 @@ package com.socketanywhere.filefactory;
 
 import java.util.List;
 
+import com.vfile.VFile;
+
 /** Logger logs various events that occur during normal operation. Very few
  * of the methods in this class log errors, just events. */
 public class FileTLLogger {
@@ -80,22 +82,22 @@ public class FileTLLogger {
 				
 	}
 	
-	public static void outputStreamCreated(FileTLOutputStream s) {
+	public static void outputStreamCreated(FileTLAbstractOutputStream s) {
 		if(!DEBUG) return;
 		out("Output stream created - remote["+s._remoteName+"] source["+s._sourceName+"]");		
 	}
 
-	public static void outputStreamClosed(FileTLOutputStream s) {
+	public static void outputStreamClosed(FileTLAbstractOutputStream s) {
 		if(!DEBUG) return;
 		out("Output stream created - remote["+s._remoteName+"] source["+s._sourceName+"]");		
 	}
 
-	public static void inputStreamCreated(FileTLInputStream fs) {
+	public static void inputStreamCreated(FileTLAbstractInputStream fs) {
 		if(!DEBUG) return;
 		out("Input stream created - remote["+fs._remoteName+"] listen["+fs._listenName+"]");		
 	}
 	
-	public static void inputStreamClosed(FileTLInputStream fs) {
+	public static void inputStreamClosed(FileTLAbstractInputStream fs) {
 		if(!DEBUG) return;
 		out("Input stream closed - remote["+fs._remoteName+"] listen["+fs._listenName+"]");		
 	}
@@ -104,5 +106,10 @@ public class FileTLLogger {
 		if(!DEBUG) return;
 		out("Bind failed on address "+addr);
 	}
+	
+	public static void unableToDeleteFile(VFile f, Exception e) {
+		if(!DEBUG) return;
+		out("Unable to delete file "+f.getPath()+": "+e);
+	}
 	 
 }
@@ -0,0 +1,236 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.File;
+
+/** Options that affect how a FileTLFactory's sockets transfer data through the directory. 
+ * 
+ * The wire mode is chosen by the connecting end, which advertises it in its establish message; the accepting end 
+ * uses it if it can, and otherwise both ends fall back to PACKET_FILE (see FileServerSocketImpl). */
+public class FileTLOptions {
+
+	public static enum WireMode {
+		/** Each write() is published as its own filetl-packet file (the original protocol) */
+		PACKET_FILE,
+
+		/** Each connection direction appends length-prefixed records to a small number of segment files,
+		 * and publishes a separate committed-offset marker (see FileTLSegmentOutputStream) */
+		SEGMENT_LOG,
+
+		/** Each connection direction uses a memory-mapped ring buffer file in the shared memory directory; only 
+		 * accepted if both ends are on the same host, and share the shared memory directory (see 
+		 * FileTLSharedMemoryOutputStream) */
+		SHARED_MEMORY
+	}
+	
+	public static enum LockMode {
+		/** Locks are implemented with message files, which works on any filesystem (FileLockOnNonlockingFS) */
+		MESSAGE_FILE,
+		
+		/** The operating system's file locking is used on local directories (NativeFileLock); this should only be used 
+		 * when the directory is on a filesystem that supports locking, and every node that shares the directory uses 
+		 * this mode, as native locks and message file locks do not exclude each other. */
+		NATIVE,
+		
+		/** Locks are leases, which the holder renews in the background (FileLeaseLock); works on any filesystem, with 
+		 * fewer files and no test/response round trips, but requires that the clocks of the nodes are synchronized. */
+		LEASE
+	}
+
+	WireMode _wireMode = WireMode.PACKET_FILE;
+
+	/** In SEGMENT_LOG mode, the size at which the writer will roll over to a new segment file. */
+	long _segmentSize = 4 * 1024 * 1024;
+
+	/** If greater than 0, consecutive writes to an output stream are coalesced into a single packet of up to this
+	 * many bytes; the packet is written on flush(), close(), when full, or once batchMaxDelay has elapsed. */
+	int _batchMaxBytes = 0; // Defaults to disabled (except in SEGMENT_LOG mode, see FileTLSegmentOutputStream)
+
+	/** The maximum time (in msecs) that written data may wait in the batch before it is written */
+	long _batchMaxDelay = 20;
+
+	/** In SHARED_MEMORY mode, the directory that contains the ring buffer files; this should be a memory-backed
+	 * filesystem (such as /dev/shm), and must be the same for both ends of a connection. */
+	File _sharedMemoryDirectory = getDefaultSharedMemoryDirectory();
+
+	/** In SHARED_MEMORY mode, the size of the data area of each ring buffer; must be the same for both ends of a connection. */
+	int _ringSize = 1024 * 1024;
+
+	/** If true, the per-connection files of each connection are written to their own subdirectory, rather than to the
+	 * directory itself (see ConnectionDirectoryLayout); both ends of a connection must use the same layout. */
+	boolean _connectionDirectories = false;
+
+	/** If greater than 0, connection subdirectories are spread across this many bucket subdirectories. */
+	int _connectionDirectoryBuckets = 0;
+
+	/** In PACKET_FILE mode, the maximum number of packets that the input stream will read ahead of the consumer. */
+	int _prefetchDepth = FileTLInputStream.DEFAULT_PREFETCH_DEPTH;
+	
+	/** How the locks in the directory (for example, of bound connections) are implemented; all nodes that share a 
+	 * directory must use the same lock mode. */
+	LockMode _lockMode = LockMode.MESSAGE_FILE;
+
+	public FileTLOptions() {
+	}
+	
+	/** Creates a copy of the given options */
+	public FileTLOptions(FileTLOptions other) {
+		_wireMode = other._wireMode;
+		_segmentSize = other._segmentSize;
+		_batchMaxBytes = other._batchMaxBytes;
+		_batchMaxDelay = other._batchMaxDelay;
+		_sharedMemoryDirectory = other._sharedMemoryDirectory;
+		_ringSize = other._ringSize;
+		_connectionDirectories = other._connectionDirectories;
+		_connectionDirectoryBuckets = other._connectionDirectoryBuckets;
+		_prefetchDepth = other._prefetchDepth;
+		_lockMode = other._lockMode;
+	}
+
+	public WireMode getWireMode() {
+		return _wireMode;
+	}
+
+	public void setWireMode(WireMode wireMode) {
+		this._wireMode = wireMode;
+	}
+
+	public long getSegmentSize() {
+		return _segmentSize;
+	}
+
+	public void setSegmentSize(long segmentSize) {
+		this._segmentSize = segmentSize;
+	}
+
+	public int getBatchMaxBytes() {
+		return _batchMaxBytes;
+	}
+
+	public void setBatchMaxBytes(int batchMaxBytes) {
+		this._batchMaxBytes = batchMaxBytes;
+	}
+
+	public long getBatchMaxDelay() {
+		return _batchMaxDelay;
+	}
+
+	public void setBatchMaxDelay(long batchMaxDelay) {
+		this._batchMaxDelay = batchMaxDelay;
+	}
+
+	public File getSharedMemoryDirectory() {
+		return _sharedMemoryDirectory;
+	}
+
+	public void setSharedMemoryDirectory(File sharedMemoryDirectory) {
+		this._sharedMemoryDirectory = sharedMemoryDirectory;
+	}
+
+	public int getRingSize() {
+		return _ringSize;
+	}
+
+	public void setRingSize(int ringSize) {
+		this._ringSize = ringSize;
+	}
+
+	public boolean isConnectionDirectories() {
+		return _connectionDirectories;
+	}
+
+	public void setConnectionDirectories(boolean connectionDirectories) {
+		this._connectionDirectories = connectionDirectories;
+	}
+
+	public int getConnectionDirectoryBuckets() {
+		return _connectionDirectoryBuckets;
+	}
+
+	public void setConnectionDirectoryBuckets(int connectionDirectoryBuckets) {
+		this._connectionDirectoryBuckets = connectionDirectoryBuckets;
+	}
+
+	public int getPrefetchDepth() {
+		return _prefetchDepth;
+	}
+
+	public void setPrefetchDepth(int prefetchDepth) {
+		this._prefetchDepth = prefetchDepth;
+	}
+
+	public LockMode getLockMode() {
+		return _lockMode;
+	}
+
+	public void setLockMode(LockMode lockMode) {
+		this._lockMode = lockMode;
+	}
+
+	/** Returns the value of the wire mode field of an establish message: the name of the wire mode, followed (for 
+	 * SHARED_MEMORY) by the ring size, which must be the same for both ends. */
+	String getWireModeDescriptor() {
+		if(_wireMode == WireMode.SHARED_MEMORY) {
+			return _wireMode.name()+"-"+_ringSize;
+		}
+		return _wireMode.name();
+	}
+	
+	/** Returns a copy of these options with the wire mode of the given descriptor (see getWireModeDescriptor()), or 
+	 * null if the descriptor is not valid. */
+	FileTLOptions withWireModeDescriptor(String descriptor) {
+		FileTLOptions result = new FileTLOptions(this);
+		
+		try {
+			int dash = descriptor.indexOf('-');
+			result._wireMode = WireMode.valueOf(dash == -1 ? descriptor : descriptor.substring(0, dash));
+			
+			if(result._wireMode == WireMode.SHARED_MEMORY) {
+				if(dash == -1) {
+					return null;
+				}
+				result._ringSize = Integer.parseInt(descriptor.substring(dash+1));
+				if(result._ringSize <= 0) {
+					return null;
+				}
+			}
+			
+		} catch(IllegalArgumentException e) {
+			// Also thrown for an invalid ring size (NumberFormatException)
+			return null;
+		}
+		
+		return result;
+	}
+	
+	/** Returns a copy of these options with the given wire mode */
+	FileTLOptions withWireMode(WireMode wireMode) {
+		FileTLOptions result = new FileTLOptions(this);
+		result._wireMode = wireMode;
+		return result;
+	}
+
+	private static File getDefaultSharedMemoryDirectory() {
+		File shm = new File("/dev/shm");
+		if(shm.isDirectory()) {
+			return shm;
+		}
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+}
@@ -16,11 +16,9 @@
 
 package com.socketanywhere.filefactory;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import com.socketanywhere.net.ThreadAssert;
 import com.vfile.VFile;
-import com.vfile.VFileOutputStream;
 
 
 // TODO: ARCHITECTURE - Cleanup - Ability to test a conn id for activity, and then to delete if not
@@ -31,65 +29,36 @@ import com.vfile.VFileOutputStream;
  * 
  * Writes:
  * - filetl-packet-source[_sourceName]-to-dest[_remoteName]-packetid[_nextFileNum]-connuuid[uuid]
+ * - which is then renamed to: filetl-packet-source[_sourceName]-to-dest[_remoteName]-packetid[_nextFileNum]-connuuid[uuid]-ready
+ *   (on backends with atomic create, the -ready file is written directly; see PacketPublishStrategy)
  * 
  */
-public class FileTLOutputStream extends OutputStream {
-
-	String _sourceName = null;
-	String _remoteName = null;
-	String _connUUID = null;
+public class FileTLOutputStream extends FileTLAbstractOutputStream {
 
 	int _nextFileNum = 1;
-	boolean _isOpen = false;
-	VFile _directory = null;
-	FileSocketImpl _socketImpl = null;
 	
 	Object osLock = new Object();
 	
+	/** How packets are made visible to the reader, based on the backend of the directory */
+	private final PacketPublishStrategy _publishStrategy;
+	
 	public FileTLOutputStream(FileSocketImpl socketImpl, VFile directory, String sourceName, String remoteName, String connUUID) throws IOException  {
-		_sourceName = sourceName;
-		_remoteName = remoteName;
-		_connUUID = connUUID;
-		_isOpen = true;
-		_directory = directory;
+		super(socketImpl, directory, sourceName, remoteName, connUUID);
 		
-		_socketImpl = socketImpl;
-		
-		if(!directory.exists() || !_directory.isDirectory() || !_directory.canRead()) {
-			throw(new FileTLIOException("Invalid directory"));
-		}
+		_publishStrategy = PacketPublishStrategy.getStrategy(directory);
 		
 		FileTLLogger.outputStreamCreated(this);
 		
 	}
 	
 	@Override
-	public void close() throws IOException {
-		_isOpen = false;
-		_socketImpl.close();
-	}
-	
-	/** A close operation that was initiated by a close call on our side*/
-	protected void informLocalClose() {
-		_isOpen = false;
-		FileTLLogger.outputStreamClosed(this);
-	}
-	
 	protected void informRemoteClose() {
-		_isOpen = false;
-		FileTLLogger.outputStreamClosed(this);
+		super.informRemoteClose();
 		// TODO: CURR - What needs to be deleted?
 	}
 
-	private void assertOpen() throws IOException {
-		if(!_isOpen) {
-			throw(new IOException("FileTL Output Stream has closed."));
-		}
-	}
-	
 	@Override
-	public void write(byte[] b, int off, int len) throws IOException {
-		assertOpen();
+	protected void writePacket(byte[] b, int off, int len) throws IOException {
 		// ThreadAssert.assertSingleThreadCaller(this);
 	
 		synchronized(osLock) {
@@ -103,17 +72,7 @@ public class FileTLOutputStream extends OutputStream {
 			String fileFilenameComplete = f.getName()+"-ready";
 			VFile renamedFile = new VFile(f.getParent() + VFile.separator + fileFilenameComplete);
 			
-			if(f.exists()) {
-				throw(new IOException("File with the name of the next output packet exists."));
-			}
-	
-			VFileOutputStream fos = new VFileOutputStream(f);
-			
-			fos.write(b, off, len);
-			fos.flush();
-			fos.close();
-	
-			FileTLUtil.renameMessageFile(f, renamedFile);			
+			_publishStrategy.publish(f, renamedFile, b, off, len);
 					
 			FileTLLogger.writeOutputData(len, _sourceName, _remoteName);
 			
@@ -121,11 +80,6 @@ public class FileTLOutputStream extends OutputStream {
 		
 	}
 
-	@Override
-	public void write(byte[] b) throws IOException {
-		write(b, 0, b.length);
-	}
-
 	@Override
 	public void write(int b) throws IOException {
 		assertOpen();
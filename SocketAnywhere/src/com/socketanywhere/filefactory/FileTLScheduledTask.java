@@ -0,0 +1,165 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A periodic check that is run by the FileTLScheduler. Each run should perform a single check and return (rather than
+ * waiting); the task is then run again after its current interval, until it is cancelled.
+ * 
+ * The interval is adaptive: it begins at the minimum interval, doubles (up to the maximum interval) each time a run 
+ * makes no progress, and returns to the minimum once a run does make progress. A task may also watch directories,
+ * in which case it is run as soon as a change is detected in the directory, regardless of its interval.
+ */
+public abstract class FileTLScheduledTask {
+	
+	enum State { NEW, SCHEDULED, QUEUED, RUNNING, CANCELLED }
+	
+	/** The following fields are only accessed while holding FileTLScheduler._lock */
+	State _state = State.NEW;
+	long _deadlineTick = 0;
+	private boolean _wakeRequested = false;
+	private long _interval;
+	
+	private final long _minInterval;
+	private final long _maxInterval;
+	
+	FileTLScheduler _scheduler = null;
+	
+	/** Synchronize on _watchers when accessing either */
+	private final List<IDirectoryWatcher> _watchers = new ArrayList<IDirectoryWatcher>();
+	private boolean _listening = false;
+	
+	private final Runnable _wakeListener = new Runnable() {
+		@Override
+		public void run() {
+			wakeUp();
+		}
+	};
+	
+	protected FileTLScheduledTask(long minInterval, long maxInterval) {
+		_minInterval = minInterval;
+		_maxInterval = Math.max(minInterval, maxInterval);
+		_interval = minInterval;
+	}
+	
+	/** Performs a single check; returns true if the check made progress (the interval returns to the minimum), or false if 
+	 * it did not (the interval backs off). */
+	protected abstract boolean runTask();
+	
+	/** Returns true if a run of the task may block for a long period (for example, while waiting on a lock), in which 
+	 * case the task is not run by the scheduler's workers (see FileTLScheduler). */
+	protected boolean isBlocking() {
+		return false;
+	}
+	
+	/** Runs the task as soon as a change is detected in the directory of the given watcher. May be called before the task is scheduled. */
+	public void watch(IDirectoryWatcher watcher) {
+		synchronized(_watchers) {
+			_watchers.add(watcher);
+			if(_listening) {
+				watcher.addChangeListener(_wakeListener);
+			}
+		}
+	}
+	
+	/** Runs the task as soon as possible (or, if it is running, runs it again once it completes) */
+	public void wakeUp() {
+		synchronized(FileTLScheduler._lock) {
+			if(_state == State.SCHEDULED) {
+				_scheduler.removeFromWheel(this);
+				_scheduler.queueTask(this);
+			} else if(_state == State.RUNNING) {
+				_wakeRequested = true;
+			}
+		}
+	}
+	
+	/** Prevents any further runs of the task; may be called from within runTask(). */
+	public void cancel() {
+		synchronized(FileTLScheduler._lock) {
+			if(_state == State.SCHEDULED) {
+				_scheduler.removeFromWheel(this);
+			}
+			_state = State.CANCELLED;
+		}
+		
+		synchronized(_watchers) {
+			for(IDirectoryWatcher w : _watchers) {
+				w.removeChangeListener(_wakeListener);
+			}
+			_watchers.clear();
+			_listening = false;
+		}
+	}
+	
+	public boolean isCancelled() {
+		synchronized(FileTLScheduler._lock) {
+			return _state == State.CANCELLED;
+		}
+	}
+	
+	/** Called by the scheduler once the task has been scheduled */
+	void registerWatchers() {
+		synchronized(_watchers) {
+			if(isCancelled()) {
+				return;
+			}
+			_listening = true;
+			for(IDirectoryWatcher w : _watchers) {
+				w.addChangeListener(_wakeListener);
+			}
+		}
+	}
+	
+	/** Called by a worker thread of the scheduler */
+	void execute() {
+		synchronized(FileTLScheduler._lock) {
+			if(_state != State.QUEUED) {
+				return;
+			}
+			_state = State.RUNNING;
+			_wakeRequested = false;
+		}
+		
+		boolean progress;
+		try {
+			progress = runTask();
+		} catch(Throwable t) {
+			// A task that fails would otherwise fail on every subsequent run
+			t.printStackTrace();
+			cancel();
+			return;
+		}
+		
+		synchronized(FileTLScheduler._lock) {
+			if(_state == State.CANCELLED) {
+				return;
+			}
+			
+			_interval = progress ? _minInterval : Math.min(_maxInterval, _interval * 2);
+			
+			if(_wakeRequested) {
+				_scheduler.queueTask(this);
+			} else {
+				_scheduler.addToWheel(this, _interval);
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton.
+ * 
+ * Runs the periodic checks of the file transport (close detection, bound connection tests, active connection tests,
+ * and the deletion of the remaining files of closed streams) as FileTLScheduledTasks, on a small pool of worker
+ * threads, rather than dedicating a (mostly sleeping) thread to each check.
+ * 
+ * Tasks waiting for their next run are held in a hashed timing wheel: a ring of buckets, each covering one tick. 
+ * Scheduling or cancelling a task is O(1), and the timer thread only examines the bucket of the current tick. A task 
+ * whose delay is longer than a full turn of the wheel simply remains in its bucket until its deadline tick is reached.
+ * 
+ * Tasks that are due (or have been woken by a directory change) are run by the workers; a task may block (for 
+ * example, on a remote directory), but long-running tasks will delay the other tasks, so tasks should do one check
+ * per run, and return. Tasks that may block for long periods (for example, to acquire a file lock) must declare 
+ * this (see FileTLScheduledTask.isBlocking()): they are instead run on a separate pool of threads, which are created 
+ * as needed (and exit once idle), so that they cannot starve the workers.
+ */
+public class FileTLScheduler {
+	
+	private static final long TICK_DURATION = 10;
+	private static final int WHEEL_SIZE = 512;
+	
+	private static final int WORKER_COUNT = Math.max(4, Runtime.getRuntime().availableProcessors());
+	
+	/** Time (in msecs) after which an idle thread of the blocking task pool exits */
+	private static final long BLOCKING_THREAD_IDLE_TIME = 60 * 1000;
+	
+	private static FileTLScheduler _instance = null;
+	
+	/** Synchronize on this when accessing the wheel, or the scheduling state of any task (scheduled or not) */
+	static final Object _lock = new Object();
+	
+	private final List<Set<FileTLScheduledTask>> _wheel = new ArrayList<Set<FileTLScheduledTask>>();
+	
+	/** The last tick that the timer thread has processed */
+	private long _currentTick = 0;
+	
+	private final long _startTime = System.nanoTime();
+	
+	/** Tasks that are due to run */
+	private final LinkedBlockingQueue<FileTLScheduledTask> _ready = new LinkedBlockingQueue<FileTLScheduledTask>();
+	
+	/** Runs the tasks that are due and may block; a thread is created for each task that has no idle thread to run it */
+	private final ThreadPoolExecutor _blockingExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
+			BLOCKING_THREAD_IDLE_TIME, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, FileTLScheduler.class.getName()+"-blocking");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	private FileTLScheduler() {
+		for(int x = 0; x < WHEEL_SIZE; x++) {
+			_wheel.add(new HashSet<FileTLScheduledTask>());
+		}
+	}
+	
+	public static synchronized FileTLScheduler getInstance() {
+		if(_instance == null) {
+			_instance = new FileTLScheduler();
+			
+			new FileTLSchedulerTimerThread(_instance).start();
+			for(int x = 0; x < WORKER_COUNT; x++) {
+				new FileTLSchedulerWorkerThread(_instance).start();
+			}
+		}
+		return _instance;
+	}
+	
+	/** Schedules the task to first run after the given delay (in msecs); a task may only be scheduled once, and a task
+	 * that was cancelled before it was scheduled will not run. */
+	public void schedule(FileTLScheduledTask task, long initialDelay) {
+		synchronized(_lock) {
+			if(task._state == FileTLScheduledTask.State.CANCELLED) {
+				return;
+			}
+			if(task._state != FileTLScheduledTask.State.NEW) {
+				throw new FileTLRuntimeException("Task has already been scheduled.");
+			}
+			task._scheduler = this;
+			
+			if(initialDelay <= 0) {
+				queueTask(task);
+			} else {
+				addToWheel(task, initialDelay);
+			}
+		}
+		
+		task.registerWatchers();
+	}
+	
+	/** Returns the number of tasks that are waiting to run, or are running */
+	public int getTaskCount() {
+		synchronized(_lock) {
+			int result = _ready.size();
+			for(Set<FileTLScheduledTask> bucket : _wheel) {
+				result += bucket.size();
+			}
+			return result;
+		}
+	}
+	
+	/** Must be called while holding _lock */
+	void addToWheel(FileTLScheduledTask task, long delay) {
+		long ticks = Math.max(1, (delay + TICK_DURATION - 1) / TICK_DURATION);
+		
+		task._deadlineTick = _currentTick + ticks;
+		task._state = FileTLScheduledTask.State.SCHEDULED;
+		
+		_wheel.get((int)(task._deadlineTick % WHEEL_SIZE)).add(task);
+	}
+	
+	/** Must be called while holding _lock */
+	void removeFromWheel(FileTLScheduledTask task) {
+		_wheel.get((int)(task._deadlineTick % WHEEL_SIZE)).remove(task);
+	}
+	
+	/** Must be called while holding _lock */
+	void queueTask(final FileTLScheduledTask task) {
+		task._state = FileTLScheduledTask.State.QUEUED;
+		
+		if(task.isBlocking()) {
+			_blockingExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					task.execute();
+				}
+			});
+		} else {
+			_ready.add(task);
+		}
+	}
+	
+	/** Moves the tasks of each elapsed tick to the ready queue; returns the time (in nanos) of the next tick. */
+	private long advance() {
+		long elapsedTicks = (System.nanoTime() - _startTime) / TimeUnit.MILLISECONDS.toNanos(TICK_DURATION);
+		
+		synchronized(_lock) {
+			while(_currentTick < elapsedTicks) {
+				_currentTick++;
+				
+				Set<FileTLScheduledTask> bucket = _wheel.get((int)(_currentTick % WHEEL_SIZE));
+				if(bucket.size() == 0) {
+					continue;
+				}
+				
+				List<FileTLScheduledTask> due = new ArrayList<FileTLScheduledTask>();
+				for(FileTLScheduledTask task : bucket) {
+					if(task._deadlineTick <= _currentTick) {
+						due.add(task);
+					}
+				}
+				
+				for(FileTLScheduledTask task : due) {
+					bucket.remove(task);
+					queueTask(task);
+				}
+			}
+			
+			return _startTime + (_currentTick + 1) * TimeUnit.MILLISECONDS.toNanos(TICK_DURATION);
+		}
+	}
+	
+	/** Advances the wheel once per tick */
+	private static class FileTLSchedulerTimerThread extends Thread {
+		
+		private final FileTLScheduler _scheduler;
+		
+		public FileTLSchedulerTimerThread(FileTLScheduler scheduler) {
+			_scheduler = scheduler;
+			setName(FileTLSchedulerTimerThread.class.getName());
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while(true) {
+				long nextTick = _scheduler.advance();
+				
+				long sleepTime = nextTick - System.nanoTime();
+				if(sleepTime > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepTime);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	/** Runs the tasks that are due */
+	private static class FileTLSchedulerWorkerThread extends Thread {
+		
+		private final FileTLScheduler _scheduler;
+		
+		public FileTLSchedulerWorkerThread(FileTLScheduler scheduler) {
+			_scheduler = scheduler;
+			setName(FileTLSchedulerWorkerThread.class.getName());
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while(true) {
+				FileTLScheduledTask task;
+				try {
+					task = _scheduler._ready.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				task.execute();
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import com.socketanywhere.filefactory.FileTLSegmentOutputStream.SegmentPosition;
+import com.vfile.VFile;
+import com.vfile.VFileInputStream;
+
+/**
+ * Input stream for the SEGMENT_LOG wire mode (see FileTLSegmentOutputStream for the format).
+ *
+ * Polls the commit marker, and reads each segment up to the committed offset. Once the writer has
+ * committed to a later segment, the current segment is read until EOF and then deleted.
+ *
+ * The current segment is kept open between fetches, so each fetch only reads the newly committed data. A stream that
+ * was opened before the data was written may not see it on filesystems with close-to-open consistency (such as
+ * NFS), so if committed data is missing (or a completed segment appears to have ended), the segment is reopened 
+ * once at the current offset before concluding that there is nothing more to read.
+ *
+ * File Messages:
+ *
+ * Listens for
+ *  - filetl-packet-source[_remoteName]-to-dest[listenName]-segment[_segmentNum]-connuuid[uuid]
+ *  - filetl-packet-source[_remoteName]-to-dest[listenName]-commit-connuuid[uuid]
+ *
+ */
+public class FileTLSegmentInputStream extends FileTLAbstractInputStream {
+
+	private static final long POLLING_FREQUENCY = 200;
+	private static final long WAIT_TIME_BEFORE_PACKET_DELETE_LOCAL = 60 * 1000;
+	private static final long WAIT_TIME_BEFORE_PACKET_DELETE_REMOTE = 120 * 1000;
+
+	/** The maximum amount of segment data to read from the directory at a time */
+	private static final int MAX_FETCH_SIZE = 256 * 1024;
+
+	private final Object _readLock = new Object();
+
+	private final VFile _commitFile;
+
+	private final IDirectoryWatcher _watcher;
+
+	/** Current segment, and the number of bytes of that segment we have consumed */
+	private long _segmentNum = 1;
+	private long _segmentOffset = 0;
+
+	/** The current segment, positioned at _segmentOffset, or null if it is not open */
+	private VFileInputStream _segmentStream = null;
+
+	/** Receives the raw segment data of each fetch */
+	private final byte[] _raw = new byte[MAX_FETCH_SIZE];
+
+	/** Record parsing state, which may span fetches */
+	private int _recordHeaderBytesRead = 0;
+	private int _recordHeaderValue = 0;
+	private int _recordRemaining = 0;
+
+	/** Record data that has been read from the segment, but not yet returned to the caller */
+	private byte[] _data = new byte[0];
+	private int _dataPos = 0;
+	private int _dataLimit = 0;
+
+	private volatile boolean _isOpen = true;
+
+	/** Whether or not we have been informed that the remote host has closed the connection; the
+	 * remaining committed data may still be read. */
+	private volatile boolean _informedClose = false;
+
+	private boolean _deletionScheduled = false;
+
+	public FileTLSegmentInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID) throws IOException {
+		super(socketImpl, directory, remoteName, listenName, connUUID);
+
+		_commitFile = FileTLSegmentOutputStream.getCommitFile(directory, remoteName, listenName, connUUID);
+		// The commit marker is rewritten in place, and the segments are appended to
+		_watcher = DirectoryWatcherManager.getInstance().getModificationWatcher(directory);
+
+		FileTLLogger.inputStreamCreated(this);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int c = read(b, 0, 1);
+		if(c == -1) {
+			return -1;
+		}
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+
+		synchronized(_readLock) {
+
+			while(_dataPos == _dataLimit) {
+				if(!_isOpen) {
+					closeSegment();
+					throw new FileTLIOException("Input stream has been closed.");
+				}
+
+				long generation = _watcher.getGeneration();
+
+				// Read the close flag before fetching: everything the writer committed before closing will be seen by the fetch
+				boolean closed = _informedClose;
+
+				if(fetch()) {
+					continue;
+				}
+
+				if(closed) {
+					return -1;
+				}
+
+				FileTLUtil.waitForChange(_watcher, generation, POLLING_FREQUENCY);
+			}
+
+			int result = Math.min(len, _dataLimit - _dataPos);
+			System.arraycopy(_data, _dataPos, b, off, result);
+			_dataPos += result;
+
+			FileTLLogger.readInputData(result, _remoteName, _listenName);
+
+			return result;
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		synchronized(_readLock) {
+			if(_dataPos == _dataLimit && _isOpen) {
+				fetch();
+			}
+			return _dataLimit - _dataPos;
+		}
+	}
+
+	/** Reads any newly committed segment data; returns true if any data was consumed from the directory. */
+	private boolean fetch() throws IOException {
+
+		while(true) {
+			SegmentPosition committed = FileTLSegmentOutputStream.readCommitMarker(_commitFile);
+			if(committed == null || committed._segmentNum < _segmentNum) {
+				return false;
+			}
+
+			// If the writer has moved on to a later segment, then the current segment is complete
+			boolean segmentComplete = committed._segmentNum > _segmentNum;
+
+			long limit = segmentComplete ? Long.MAX_VALUE : committed._offset;
+			if(limit <= _segmentOffset) {
+				return false;
+			}
+
+			VFile segment = FileTLSegmentOutputStream.getSegmentFile(_directory, _remoteName, _listenName, _connUUID, _segmentNum);
+
+			int bytesRead = readSegment(segment, (int)Math.min(limit - _segmentOffset, MAX_FETCH_SIZE));
+			if(bytesRead > 0) {
+				return true;
+			}
+
+			if(!segmentComplete) {
+				return false;
+			}
+
+			// We have reached the end of a complete segment, so move on to the next one
+			if(_recordRemaining != 0 || _recordHeaderBytesRead != 0) {
+				throw new FileTLIOException("Segment ended in the middle of a record ["+segment.getName()+"]");
+			}
+
+			closeSegment();
+			QueueManager.queueDeleteFile(segment);
+
+			_segmentNum++;
+			_segmentOffset = 0;
+		}
+	}
+
+	/** Reads up to maxBytes of the segment from the current offset, and parses them into _data; returns the number of bytes read. */
+	private int readSegment(VFile segment, int maxBytes) throws IOException {
+		int bytesRead = 0;
+		boolean reopened = false;
+
+		while(true) {
+			if(_segmentStream == null) {
+				if(!openSegment(segment, _segmentOffset + bytesRead)) {
+					break;
+				}
+				reopened = true;
+			}
+
+			int c;
+			while(bytesRead < maxBytes && (c = _segmentStream.read(_raw, bytesRead, maxBytes - bytesRead)) != -1) {
+				bytesRead += c;
+			}
+
+			if(bytesRead == maxBytes || reopened) {
+				break;
+			}
+
+			// The stream may not see data that was written after it was opened, so reopen it once
+			closeSegment();
+		}
+
+		parseRecords(_raw, bytesRead);
+		_segmentOffset += bytesRead;
+
+		return bytesRead;
+	}
+
+	/** Opens the segment at the given offset; returns false if the segment does not (yet) exist, or is shorter than the offset. */
+	private boolean openSegment(VFile segment, long offset) throws IOException {
+		VFileInputStream fis;
+		try {
+			fis = new VFileInputStream(segment);
+		} catch(FileNotFoundException e) {
+			return false;
+		}
+
+		long toSkip = offset;
+		while(toSkip > 0) {
+			long skipped = fis.skip(toSkip);
+			if(skipped <= 0) {
+				// The segment is shorter than expected, so there is nothing further to read yet
+				fis.close();
+				return false;
+			}
+			toSkip -= skipped;
+		}
+
+		_segmentStream = fis;
+		return true;
+	}
+
+	private void closeSegment() {
+		if(_segmentStream == null) {
+			return;
+		}
+
+		try {
+			_segmentStream.close();
+		} catch(IOException e) {
+			/* ignore */
+		}
+		_segmentStream = null;
+	}
+
+	/** Strips the record headers from the raw segment data, and appends the record contents to _data */
+	private void parseRecords(byte[] raw, int len) throws FileTLIOException {
+		// Compact the unread data to the start of the buffer, and ensure there is room for the new data
+		int unread = _dataLimit - _dataPos;
+		if(_data.length < unread + len) {
+			byte[] newData = new byte[unread + len];
+			System.arraycopy(_data, _dataPos, newData, 0, unread);
+			_data = newData;
+		} else if(_dataPos > 0) {
+			System.arraycopy(_data, _dataPos, _data, 0, unread);
+		}
+		_dataPos = 0;
+		_dataLimit = unread;
+
+		int pos = 0;
+		while(pos < len) {
+			if(_recordRemaining == 0) {
+				_recordHeaderValue = (_recordHeaderValue << 8) | (raw[pos] & 0xFF);
+				_recordHeaderBytesRead++;
+				pos++;
+
+				if(_recordHeaderBytesRead == FileTLSegmentOutputStream.RECORD_HEADER_SIZE) {
+					if(_recordHeaderValue < 0) {
+						throw new FileTLIOException("Invalid record length in segment: "+_recordHeaderValue);
+					}
+					_recordRemaining = _recordHeaderValue;
+					_recordHeaderValue = 0;
+					_recordHeaderBytesRead = 0;
+				}
+
+			} else {
+				int c = Math.min(_recordRemaining, len - pos);
+				System.arraycopy(raw, pos, _data, _dataLimit, c);
+				_dataLimit += c;
+				_recordRemaining -= c;
+				pos += c;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		_isOpen = false;
+		synchronized(_readLock) {
+			closeSegment();
+		}
+		scheduleDeletion(WAIT_TIME_BEFORE_PACKET_DELETE_LOCAL);
+		_socketImpl.close();
+	}
+
+	@Override
+	public void informLocalClose() {
+		_informedClose = true;
+		_isOpen = false;
+		synchronized(_readLock) {
+			closeSegment();
+		}
+		scheduleDeletion(WAIT_TIME_BEFORE_PACKET_DELETE_LOCAL);
+
+		FileTLLogger.inputStreamClosed(this);
+	}
+
+	@Override
+	public void informRemoteClose() {
+		_informedClose = true;
+
+		// Unlike a local close, the stream remains open, so that the remaining committed data may be read.
+		scheduleDeletion(WAIT_TIME_BEFORE_PACKET_DELETE_REMOTE);
+
+		FileTLLogger.inputStreamClosed(this);
+	}
+
+	private void scheduleDeletion(long timeToWaitBeforeDelete) {
+		synchronized(this) {
+			if(_deletionScheduled) return;
+			_deletionScheduled = true;
+		}
+
+		FileTLInputStreamTimedDeletionTask.schedule(_remoteName, _listenName, _directory, _connUUID, timeToWaitBeforeDelete);
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import com.vfile.VFile;
+import com.vfile.VFileInputStream;
+import com.vfile.VFileOutputStream;
+
+/**
+ * Output stream for the SEGMENT_LOG wire mode: rather than creating a new packet file for each write(),
+ * data is appended to a segment file as a sequence of records (a 4 byte big-endian length, followed
+ * by that many bytes of data). After each record is appended, the new end of the segment is published
+ * in the commit marker; the reader never reads past the committed offset. Once a segment exceeds the
+ * segment size, the writer moves on to the next segment, and the reader deletes segments it has consumed.
+ *
+ * The commit marker is rewritten in place, so the directory does not grow with the number of writes.
+ *
+ * As each record costs an append to the segment and a rewrite of the commit marker, consecutive writes are always 
+ * batched in this mode (see FileTLAbstractOutputStream), using DEFAULT_BATCH_MAX_BYTES unless batching is configured 
+ * in FileTLOptions: a record is then written on flush(), on close, when the batch is full, or once the batch delay 
+ * has elapsed, rather than for every write().
+ *
+ * File Messages:
+ *
+ * Writes:
+ * - filetl-packet-source[_sourceName]-to-dest[_remoteName]-segment[_segmentNum]-connuuid[uuid]
+ * - filetl-packet-source[_sourceName]-to-dest[_remoteName]-commit-connuuid[uuid]
+ *   (contents: "(segment num):(committed offset in segment):(crc32 of the preceding fields)")
+ *
+ */
+public class FileTLSegmentOutputStream extends FileTLAbstractOutputStream {
+
+	static final int RECORD_HEADER_SIZE = 4;
+
+	/** The size of the batches in which writes are coalesced into records, if batching is not otherwise configured */
+	static final int DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+
+	private final long _segmentSize;
+
+	private long _segmentNum = 1;
+
+	/** Offset of the end of the last committed record in the current segment */
+	private long _segmentOffset = 0;
+
+	private final VFile _commitFile;
+
+	private final Object osLock = new Object();
+
+	public FileTLSegmentOutputStream(FileSocketImpl socketImpl, VFile directory, String sourceName, String remoteName, String connUUID, long segmentSize) throws IOException  {
+		super(socketImpl, directory, sourceName, remoteName, connUUID);
+
+		_segmentSize = segmentSize;
+		_commitFile = getCommitFile(directory, sourceName, remoteName, connUUID);
+
+		FileTLLogger.outputStreamCreated(this);
+	}
+
+	@Override
+	protected void writePacket(byte[] b, int off, int len) throws IOException {
+
+		if(len == 0) {
+			return;
+		}
+
+		synchronized(osLock) {
+
+			VFile segment = getSegmentFile(_directory, _sourceName, _remoteName, _connUUID, _segmentNum);
+
+			byte[] header = new byte[RECORD_HEADER_SIZE];
+			header[0] = (byte)(len >>> 24);
+			header[1] = (byte)(len >>> 16);
+			header[2] = (byte)(len >>> 8);
+			header[3] = (byte)len;
+
+			// The segment is reopened for each record, so that the data is visible to the reader (on
+			// filesystems with close-to-open consistency, such as NFS) before the commit is published.
+			VFileOutputStream fos = new VFileOutputStream(segment, true);
+			try {
+				if(len <= DEFAULT_BATCH_MAX_BYTES) {
+					// The record is appended in a single write
+					byte[] record = new byte[RECORD_HEADER_SIZE + len];
+					System.arraycopy(header, 0, record, 0, RECORD_HEADER_SIZE);
+					System.arraycopy(b, off, record, RECORD_HEADER_SIZE, len);
+					fos.write(record);
+				} else {
+					fos.write(header);
+					fos.write(b, off, len);
+				}
+				fos.flush();
+			} finally {
+				fos.close();
+			}
+
+			_segmentOffset += RECORD_HEADER_SIZE + len;
+
+			writeCommitMarker(_commitFile, _segmentNum, _segmentOffset);
+
+			FileTLLogger.writeOutputData(len, _sourceName, _remoteName);
+
+			if(_segmentOffset >= _segmentSize) {
+				// The next record will begin the next segment; the reader will consume this segment until EOF
+				// once it sees a commit for a later segment.
+				_segmentNum++;
+				_segmentOffset = 0;
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		byte[] bytearr = new byte[1];
+		bytearr[0] = (byte)b;
+		write(bytearr);
+	}
+
+	static VFile getSegmentFile(VFile directory, String sourceName, String remoteName, String connUUID, long segmentNum) {
+		return new VFile(directory.getPath()+VFile.separator+"filetl-packet-source["+sourceName+"]-to-dest["+remoteName+"]-segment["+segmentNum+"]-connuuid["+connUUID+"]");
+	}
+
+	static VFile getCommitFile(VFile directory, String sourceName, String remoteName, String connUUID) {
+		return new VFile(directory.getPath()+VFile.separator+"filetl-packet-source["+sourceName+"]-to-dest["+remoteName+"]-commit-connuuid["+connUUID+"]");
+	}
+
+	private static void writeCommitMarker(VFile commitFile, long segmentNum, long offset) throws IOException {
+		String fields = segmentNum+":"+offset;
+		String contents = fields+":"+crc(fields)+"\n";
+
+		VFileOutputStream fos = new VFileOutputStream(commitFile);
+		try {
+			fos.write(contents.getBytes("UTF-8"));
+			fos.flush();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/** Returns the position last published by the writer, or null if the marker does not exist or could not be
+	 * read in its entirety (for example, because it was in the process of being rewritten). */
+	static SegmentPosition readCommitMarker(VFile commitFile) throws IOException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		VFileInputStream fis;
+		try {
+			fis = new VFileInputStream(commitFile);
+		} catch(FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			byte[] buffer = new byte[64];
+			int c;
+			while((c = fis.read(buffer)) != -1) {
+				baos.write(buffer, 0, c);
+			}
+		} finally {
+			fis.close();
+		}
+
+		String contents = new String(baos.toByteArray(), "UTF-8");
+		if(!contents.endsWith("\n")) {
+			return null;
+		}
+
+		String[] fields = contents.trim().split(":");
+		if(fields.length != 3) {
+			return null;
+		}
+
+		try {
+			if(Long.parseLong(fields[2]) != crc(fields[0]+":"+fields[1])) {
+				return null;
+			}
+
+			SegmentPosition result = new SegmentPosition();
+			result._segmentNum = Long.parseLong(fields[0]);
+			result._offset = Long.parseLong(fields[1]);
+			return result;
+
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static long crc(String str) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(str.getBytes("UTF-8"));
+		return crc.getValue();
+	}
+
+	static class SegmentPosition {
+		long _segmentNum;
+		long _offset;
+	}
+}
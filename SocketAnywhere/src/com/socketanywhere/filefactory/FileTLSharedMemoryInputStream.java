@@ -0,0 +1,147 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.vfile.VFile;
+
+/**
+ * Input stream for the SHARED_MEMORY wire mode (see FileTLSharedMemoryOutputStream). Reads from the ring
+ * until the writer has closed it, and deletes the ring file on close.
+ * 
+ * Ring files (in the shared memory directory of FileTLOptions, rather than the FileTL directory):
+ * 
+ * Listens for
+ *  - filetl-shm-source[_remoteName]-to-dest[listenName]-connuuid[uuid]
+ *
+ */
+public class FileTLSharedMemoryInputStream extends FileTLAbstractInputStream {
+	
+	private final SharedMemoryRing _ring;
+	
+	/** The total number of bytes we have read from the ring (only we update the tail) */
+	private long _tail;
+	
+	private volatile boolean _isOpen = true;
+	
+	/** Whether or not we have been informed that the remote host has closed the connection; the
+	 * remaining data in the ring may still be read. */
+	private volatile boolean _informedClose = false;
+	
+	private final Object _readLock = new Object();
+
+	public FileTLSharedMemoryInputStream(FileSocketImpl socketImpl, VFile directory, String remoteName, String listenName, String connUUID, File sharedMemoryDirectory, int ringSize) throws IOException {
+		super(socketImpl, directory, remoteName, listenName, connUUID);
+		
+		_ring = new SharedMemoryRing(SharedMemoryRing.getRingFile(sharedMemoryDirectory, remoteName, listenName, connUUID), ringSize);
+		_tail = _ring.getTail();
+		
+		FileTLLogger.inputStreamCreated(this);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int c = read(b, 0, 1);
+		if(c == -1) {
+			return -1;
+		}
+		return b[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		
+		synchronized(_readLock) {
+			int attempt = 0;
+			
+			while(true) {
+				// Read the close flags before the head: everything the writer wrote before closing will be seen
+				boolean closed = _informedClose || _ring.isWriterClosed();
+				
+				long available = _ring.getHead() - _tail;
+				
+				if(available > 0) {
+					int result = (int)Math.min(len, available);
+					_ring.get(_tail, b, off, result);
+					_tail += result;
+					_ring.setTail(_tail);
+					
+					FileTLLogger.readInputData(result, _remoteName, _listenName);
+					
+					return result;
+				}
+				
+				if(!_isOpen) {
+					throw new FileTLIOException("Input stream has been closed.");
+				}
+				
+				if(closed) {
+					return -1;
+				}
+				
+				SharedMemoryRing.idle(attempt++);
+			}
+		}
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(Integer.MAX_VALUE, _ring.getHead() - _tail);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		releaseRing();
+		_socketImpl.close();
+	}
+	
+	@Override
+	public void informLocalClose() {
+		_informedClose = true;
+		releaseRing();
+		
+		FileTLLogger.inputStreamClosed(this);
+	}
+	
+	@Override
+	public void informRemoteClose() {
+		_informedClose = true;
+		
+		// The mapping remains valid after the file is deleted, so the remaining data may still be read 
+		_ring.delete();
+		
+		FileTLLogger.inputStreamClosed(this);
+	}
+	
+	private void releaseRing() {
+		_isOpen = false;
+		_ring.setReaderClosed();
+		_ring.delete();
+	}
+	
+}
@@ -0,0 +1,103 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.vfile.VFile;
+
+/**
+ * Output stream for the SHARED_MEMORY wire mode: data is written into a memory-mapped ring buffer file
+ * (see SharedMemoryRing) that is shared with the remote process, which must be on the same host. The
+ * connection handshake and close messages still go through the directory.
+ * 
+ * Ring files (in the shared memory directory of FileTLOptions, rather than the FileTL directory):
+ * 
+ * Writes:
+ * - filetl-shm-source[_sourceName]-to-dest[_remoteName]-connuuid[uuid]
+ *   (deleted by the reader when it closes)
+ *
+ */
+public class FileTLSharedMemoryOutputStream extends FileTLAbstractOutputStream {
+	
+	private final SharedMemoryRing _ring;
+	
+	/** The total number of bytes we have written to the ring (only we update the head) */
+	private long _head;
+	
+	private final Object osLock = new Object();
+
+	public FileTLSharedMemoryOutputStream(FileSocketImpl socketImpl, VFile directory, String sourceName, String remoteName, String connUUID, File sharedMemoryDirectory, int ringSize) throws IOException {
+		super(socketImpl, directory, sourceName, remoteName, connUUID);
+		
+		_ring = new SharedMemoryRing(SharedMemoryRing.getRingFile(sharedMemoryDirectory, sourceName, remoteName, connUUID), ringSize);
+		_head = _ring.getHead();
+		
+		FileTLLogger.outputStreamCreated(this);
+	}
+	
+	@Override
+	protected void writePacket(byte[] b, int off, int len) throws IOException {
+		synchronized(osLock) {
+			int written = 0;
+			int attempt = 0;
+			
+			while(written < len) {
+				long free = _ring.getCapacity() - (_head - _ring.getTail());
+				
+				if(free == 0) {
+					if(!_isOpen || _ring.isReaderClosed()) {
+						throw new FileTLIOException("FileTL connection has closed.");
+					}
+					SharedMemoryRing.idle(attempt++);
+					continue;
+				}
+				
+				int c = (int)Math.min(free, len - written);
+				_ring.put(_head, b, off + written, c);
+				_head += c;
+				_ring.setHead(_head);
+				
+				written += c;
+				attempt = 0;
+			}
+			
+			FileTLLogger.writeOutputData(len, _sourceName, _remoteName);
+		}
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		byte[] bytearr = new byte[1];
+		bytearr[0] = (byte)b;
+		write(bytearr);
+	}
+	
+	@Override
+	protected void informLocalClose() {
+		super.informLocalClose();
+		_ring.setWriterClosed();
+	}
+	
+	@Override
+	protected void informRemoteClose() {
+		super.informRemoteClose();
+		_ring.setWriterClosed();
+	}
+	
+}
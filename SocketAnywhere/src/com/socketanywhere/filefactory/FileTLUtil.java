@@ -79,7 +79,7 @@ public class FileTLUtil {
 	}
 	
 	protected static boolean filePatternExistsInDirectory(VFile directory, String startsWithPattern) {
-		VFile[] fileList = directory.listFiles();
+		VFile[] fileList = DirectoryListingService.getInstance(directory).listFiles(startsWithPattern);
 		boolean matchingEntryFound = false;
 		
 		for(VFile dirEntry : fileList) {
@@ -104,6 +104,17 @@ public class FileTLUtil {
 		
 	}
 	
+	/** Waits until the watcher detects a change in its directory, or until maxWaitTime has elapsed (see IDirectoryWatcher). */
+	public static void waitForChange(IDirectoryWatcher watcher, long generation, long maxWaitTime) {
+		
+		try {
+			watcher.waitForChange(generation, maxWaitTime);
+		} catch (InterruptedException e) {
+			throw new FileTLRuntimeException("Thread interrupted");
+		}
+		
+	}
+	
 	/** A close followed by a rename seems to fail sometimes. This will try multiple times until the rename succeeds. 
 	 * 
 	 * Note: If at any point both the source and dest no longer exist, this is considered
@@ -0,0 +1,45 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+/**
+ * Allows a poller to wait for a change in a directory, rather than sleeping for its full poll interval.
+ *
+ * Usage: call getGeneration() BEFORE scanning the directory, then, if nothing was found, pass the
+ * generation to waitForChange(...). Any change that occurs between the two calls will cause the wait
+ * to return immediately.
+ *
+ * Implementations that cannot detect changes (for example, remote VFile backends) simply wait for the
+ * maximum wait time, which is equivalent to the original fixed-interval polling behaviour.
+ *
+ * Rather than blocking, scheduled tasks (see FileTLScheduledTask) register a change listener, which is called on the
+ * thread that detected the change, and so must not block.
+ */
+public interface IDirectoryWatcher {
+
+	/** Returns a value that changes each time a change is detected in the watched directory. */
+	public long getGeneration();
+
+	/** Blocks until the generation no longer equals the given generation, or until maxWaitTime (in msecs) has elapsed. */
+	public void waitForChange(long generation, long maxWaitTime) throws InterruptedException;
+
+	/** Registers a listener to be called each time a change is detected; has no effect on watchers that cannot detect changes. */
+	public void addChangeListener(Runnable listener);
+
+	public void removeChangeListener(Runnable listener);
+
+}
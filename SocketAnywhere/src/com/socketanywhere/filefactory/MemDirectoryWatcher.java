@@ -0,0 +1,68 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.Collections;
+
+import com.vfile.memio.IMemFileSystemListener;
+import com.vfile.memio.MemFileSystem;
+
+/**
+ * Watches a directory of an in-memory filesystem (see MemFileSystem), which informs the watcher of each change to the 
+ * directory as it is made; this is the in-memory equivalent of NIODirectoryWatcher.
+ */
+class MemDirectoryWatcher extends NotifyingDirectoryWatcher implements IMemFileSystemListener {
+
+	private final MemFileSystem _fs;
+
+	private final String _directoryPath;
+
+	/** Returns null if the directory does not exist. */
+	static MemDirectoryWatcher create(DirectoryWatcherManager manager, MemFileSystem fs, String directoryPath) {
+		MemDirectoryWatcher w = new MemDirectoryWatcher(manager, fs, directoryPath);
+		if(!fs.addListener(directoryPath, w)) {
+			return null;
+		}
+		return w;
+	}
+
+	private MemDirectoryWatcher(DirectoryWatcherManager manager, MemFileSystem fs, String directoryPath) {
+		super(manager);
+		_fs = fs;
+		_directoryPath = directoryPath;
+	}
+
+	@Override
+	public void fileChanged(String directoryPath, String name) {
+		signalChanges(Collections.singletonList(name), false);
+	}
+
+	@Override
+	public void directoryRemoved(String directoryPath) {
+		_valid = false;
+
+		// Waiters will fall back to their poll interval
+		signalChanges(Collections.<String>emptyList(), true);
+
+		_manager.watcherInvalidated(this);
+	}
+
+	@Override
+	public String toString() {
+		return MemDirectoryWatcher.class.getSimpleName()+"["+_fs.getId()+":"+_directoryPath+"]";
+	}
+}
@@ -0,0 +1,89 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches a local directory using java.nio's WatchService (inotify on Linux), and signals waiting
+ * threads as soon as a file is created (or renamed into place) or deleted in the directory, and (if requested, see
+ * DirectoryWatcherManager.getModificationWatcher(...)) when a file is modified.
+ *
+ * All directories are registered with a single WatchService, which is serviced by a single thread of 
+ * DirectoryWatcherManager; the manager routes the events of each WatchKey to the directory's watcher. (A WatchService 
+ * is an inotify instance, of which there are only 128 per user by default, so one per directory would quickly run out.)
+ *
+ * Modification events are only required by the segment log wire mode, which appends to its segments and rewrites its 
+ * commit marker in place; other directories are not registered for them, as every write to a file would otherwise 
+ * wake the directory's waiters.
+ */
+class NIODirectoryWatcher extends NotifyingDirectoryWatcher {
+
+	private final Path _directory;
+	
+	/** Whether the directory is registered for modification events; only accessed while holding the manager's lock */
+	boolean _watchingModifications = false;
+
+	NIODirectoryWatcher(DirectoryWatcherManager manager, Path directory) {
+		super(manager);
+		_directory = directory;
+	}
+
+	/** Called by the manager's watch service thread with the signalled key of this watcher's directory; returns false 
+	 * if the directory can no longer be watched. */
+	boolean processEvents(WatchKey key) {
+		List<String> filenames = new ArrayList<String>();
+		boolean overflow = false;
+
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == OVERFLOW) {
+				// Events were lost, so we must assume that everything has changed
+				overflow = true;
+			} else {
+				filenames.add(((Path)event.context()).getFileName().toString());
+			}
+		}
+
+		if(!key.reset()) {
+			// The directory is no longer accessible; waiters will fall back to their poll interval
+			_valid = false;
+			overflow = true;
+		}
+
+		signalChanges(filenames, overflow);
+
+		return _valid;
+	}
+
+	/** Called by the manager once the watch service has been closed */
+	void invalidate() {
+		_valid = false;
+		signalChanges(new ArrayList<String>(), true);
+	}
+
+	@Override
+	public String toString() {
+		return NIODirectoryWatcher.class.getSimpleName()+"["+_directory+"]";
+	}
+
+}
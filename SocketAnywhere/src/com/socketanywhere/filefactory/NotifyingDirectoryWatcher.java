@@ -0,0 +1,118 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Common base of the directory watchers that are notified of changes by their backend (see NIODirectoryWatcher and
+ * MemDirectoryWatcher), rather than polling; subclasses call signalChanges(...) for each batch of changes. 
+ */
+abstract class NotifyingDirectoryWatcher implements IDirectoryWatcher {
+
+	protected final DirectoryWatcherManager _manager;
+
+	/** Signalled on any change in the directory */
+	private final DirectoryChangeSignal _signal = new DirectoryChangeSignal();
+
+	/** Signalled only on changes to files that begin with the given prefix; synchronize on this when accessing. */
+	private final Map<String /* prefix */, DirectoryChangeSignal> _prefixSignals = new HashMap<String, DirectoryChangeSignal>();
+
+	/** Signalled only on changes to files that end with the given suffix; synchronize on _prefixSignals when accessing. */
+	private final Map<String /* suffix */, DirectoryChangeSignal> _suffixSignals = new HashMap<String, DirectoryChangeSignal>();
+
+	/** Set to false if the directory can no longer be watched (for example, it has been deleted) */
+	protected volatile boolean _valid = true;
+
+	protected NotifyingDirectoryWatcher(DirectoryWatcherManager manager) {
+		_manager = manager;
+	}
+
+	@Override
+	public long getGeneration() {
+		return _signal.getGeneration();
+	}
+
+	@Override
+	public void waitForChange(long generation, long maxWaitTime) throws InterruptedException {
+		_signal.waitForChange(generation, maxWaitTime);
+	}
+
+	@Override
+	public void addChangeListener(Runnable listener) {
+		_signal.addChangeListener(listener);
+	}
+
+	@Override
+	public void removeChangeListener(Runnable listener) {
+		_signal.removeChangeListener(listener);
+	}
+
+	/** Returns a watcher that is only signalled by changes to files that begin with the given prefix. */
+	IDirectoryWatcher getPrefixWatcher(String prefix) {
+		synchronized(_prefixSignals) {
+			DirectoryChangeSignal s = _prefixSignals.get(prefix);
+			if(s == null) {
+				s = new DirectoryChangeSignal();
+				_prefixSignals.put(prefix, s);
+			}
+			return s;
+		}
+	}
+
+	/** Returns a watcher that is only signalled by changes to files that end with the given suffix. */
+	IDirectoryWatcher getSuffixWatcher(String suffix) {
+		synchronized(_prefixSignals) {
+			DirectoryChangeSignal s = _suffixSignals.get(suffix);
+			if(s == null) {
+				s = new DirectoryChangeSignal();
+				_suffixSignals.put(suffix, s);
+			}
+			return s;
+		}
+	}
+
+	boolean isValid() {
+		return _valid;
+	}
+
+	/** Signals the watchers of the given files; if signalAll is true, all watchers are signalled (for example, because
+	 * changes may have been missed). */
+	protected void signalChanges(List<String> filenames, boolean signalAll) {
+		_signal.signalChange();
+
+		synchronized(_prefixSignals) {
+			for(Entry<String, DirectoryChangeSignal> e : _prefixSignals.entrySet()) {
+				if(signalAll || DirectoryWatcherManager.anyStartsWith(filenames, e.getKey())) {
+					e.getValue().signalChange();
+				}
+			}
+
+			for(Entry<String, DirectoryChangeSignal> e : _suffixSignals.entrySet()) {
+				if(signalAll || DirectoryWatcherManager.anyEndsWith(filenames, e.getKey())) {
+					e.getValue().signalChange();
+				}
+			}
+		}
+
+		_manager.signalAnyDirectory(filenames, signalAll);
+	}
+
+}
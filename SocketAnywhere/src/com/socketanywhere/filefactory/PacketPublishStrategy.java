@@ -0,0 +1,112 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.IOException;
+
+import com.vfile.VFile;
+import com.vfile.VFileOutputStream;
+import com.vfile.interfaces.IAtomicFile;
+import com.vfile.interfaces.IFile;
+
+/**
+ * Publishes the packet files of a FileTLOutputStream: a packet must only become visible to the reader (under its
+ * -ready name) once its contents are complete. The strategy is chosen from the atomic operations that are advertised
+ * by the backend of the directory (see IAtomicFile), so that each packet costs as few requests as possible; on 
+ * remote backends, each request is a network round trip.
+ * 
+ * - Atomic create (e.g. S3): the packet is written directly to its -ready name, in a single put.
+ * - Atomic rename (e.g. local, FTP): the packet is written to its unpublished name, then renamed; the result of the 
+ *   rename is trusted, and is only verified if the rename reports a failure.
+ * - Otherwise: the original protocol, in which each step is verified with exists().
+ */
+public abstract class PacketPublishStrategy {
+	
+	private static final PacketPublishStrategy DIRECT_WRITE = new DirectWritePublishStrategy();
+	private static final PacketPublishStrategy RENAME = new RenamePublishStrategy();
+	private static final PacketPublishStrategy VERIFIED_RENAME = new VerifiedRenamePublishStrategy();
+
+	/** Makes the given data visible as readyFile; unpublishedFile is the name under which the data may be written before it is published. */
+	public abstract void publish(VFile unpublishedFile, VFile readyFile, byte[] b, int off, int len) throws IOException;
+	
+	/** Returns the cheapest correct strategy for the backend of the given directory */
+	public static PacketPublishStrategy getStrategy(VFile directory) {
+		IFile inner = directory.getInnerFile();
+		
+		if(inner instanceof IAtomicFile) {
+			IAtomicFile af = (IAtomicFile)inner;
+			
+			if(af.isAtomicCreate()) {
+				return DIRECT_WRITE;
+			}
+			
+			if(af.isAtomicRename()) {
+				return RENAME;
+			}
+		}
+		
+		return VERIFIED_RENAME;
+	}
+	
+	static void writeFile(VFile f, byte[] b, int off, int len) throws IOException {
+		VFileOutputStream fos = new VFileOutputStream(f);
+		try {
+			fos.write(b, off, len);
+			fos.flush();
+		} finally {
+			fos.close();
+		}
+	}
+}
+
+/** For backends on which a file only becomes visible once it is complete */
+class DirectWritePublishStrategy extends PacketPublishStrategy {
+	
+	@Override
+	public void publish(VFile unpublishedFile, VFile readyFile, byte[] b, int off, int len) throws IOException {
+		writeFile(readyFile, b, off, len);
+	}
+}
+
+/** For backends with an atomic rename, which reliably reports its result */
+class RenamePublishStrategy extends PacketPublishStrategy {
+	
+	@Override
+	public void publish(VFile unpublishedFile, VFile readyFile, byte[] b, int off, int len) throws IOException {
+		writeFile(unpublishedFile, b, off, len);
+		
+		if(!unpublishedFile.renameTo(readyFile)) {
+			// The rename may still have succeeded (e.g. the connection was lost before the reply), so verify and retry
+			FileTLUtil.renameMessageFile(unpublishedFile, readyFile);
+		}
+	}
+}
+
+/** The original protocol, for backends that advertise no atomic operations */
+class VerifiedRenamePublishStrategy extends PacketPublishStrategy {
+	
+	@Override
+	public void publish(VFile unpublishedFile, VFile readyFile, byte[] b, int off, int len) throws IOException {
+		if(unpublishedFile.exists()) {
+			throw(new IOException("File with the name of the next output packet exists."));
+		}
+		
+		writeFile(unpublishedFile, b, off, len);
+		
+		FileTLUtil.renameMessageFile(unpublishedFile, readyFile);
+	}
+}
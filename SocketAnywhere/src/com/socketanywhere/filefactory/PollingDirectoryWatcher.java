@@ -0,0 +1,45 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+/** Fallback watcher for directories that do not support change notification (for example FTP, S3,
+ * or other remote VFile backends): waitForChange(...) always waits the full interval, which
+ * preserves the original fixed-interval polling behaviour. */
+class PollingDirectoryWatcher implements IDirectoryWatcher {
+
+	@Override
+	public long getGeneration() {
+		return 0;
+	}
+
+	@Override
+	public void waitForChange(long generation, long maxWaitTime) throws InterruptedException {
+		if(maxWaitTime > 0) {
+			Thread.sleep(maxWaitTime);
+		}
+	}
+
+	@Override
+	public void addChangeListener(Runnable listener) {
+		/* Changes are never detected, so the listener would never be called */
+	}
+
+	@Override
+	public void removeChangeListener(Runnable listener) {
+	}
+
+}
@@ -16,10 +16,6 @@
 
 package com.socketanywhere.filefactory;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-
 import com.vfile.VFile;
 
 /** We needed a mechanism to ensure that files would be deleted once they were no longer
@@ -29,88 +25,32 @@ import com.vfile.VFile;
  * should be deleted, and keeps attempting to delete them until they are deleted.
  * 
  * We don't stop trying to delete until it no longer exists. 
+ * 
+ * The files are deleted (and retried) by the DeleteScheduler.
  * */
 public class QueueManager {
 	
-	static List<VFile> _waitingFilesToDelete = new ArrayList<VFile>();
-	static List<VFile> _filesToDelete = new ArrayList<VFile>();
-	
-//	static Object _waitingToFlushToMain = new Object();
-	
-	static boolean _threadRunning = false;
-	static QueueManagerThread _qmThread = null;
-	
-	private static synchronized void initializeIfNeeded() {
-		if(_qmThread == null) {
-			_threadRunning = true;
-			_qmThread = new QueueManagerThread();
-//			_qmThread.setDaemon(true);
-			
-			_qmThread.start();
-		}
-	}
-	
-	/** Works with files or directories (directory must be empty, however) */
+	/** Works with files or directories (directory must be empty, however). The file is deleted immediately, on the
+	 * calling thread, and is only queued if it could not be deleted. */
 	public static void queueDeleteFile(VFile f) {
-		initializeIfNeeded();
-
-		// We try to delete it immediately, but still add it to the queue even if delete appears to succeed
-		f.delete();
-		
-		synchronized (_waitingFilesToDelete) {
-			if(!_waitingFilesToDelete.contains(f)) {
-				_waitingFilesToDelete.add(f);
-			}
-			
-		}
-		
+		DeleteScheduler.getInstance().deleteFileNow(f);
 	}
 	
-	private static class QueueManagerThread extends Thread {
-		private static final long POLL_INTERVAL = 2000;
-		
-		public QueueManagerThread() {
-			setName(QueueManagerThread.class.getName());
-			setDaemon(true);
-		}
-		
-		public void run() {
-			while(_threadRunning) {
-				
-				synchronized(_filesToDelete) {
-					synchronized(_waitingFilesToDelete) {
-						
-						for(Iterator<VFile> i = _waitingFilesToDelete.iterator(); i.hasNext();) {
-							VFile f = i.next();
-							
-							if(!_filesToDelete.contains(f)) {
-								_filesToDelete.add(f);
-							}
-							
-							i.remove();
-						}
-					}
-					
-					for(Iterator<VFile> i = _filesToDelete.iterator(); i.hasNext();) {
-						
-						VFile f = i.next();
-						
-						if(f.exists()) {
-							f.delete();
-						}
-						
-						if(!f.exists()) {
-							i.remove();
-						}
-					}
-					
-				}				
-				
-				if(_threadRunning) {
-					FileTLUtil.sleep(POLL_INTERVAL);
+	/** Deletes the files in the directory, and then queues the directory itself for deletion; the directory
+	 * remains in the queue until it is empty (for example, until the remote side of a connection has also 
+	 * deleted its files) and has been deleted. */
+	public static void queueDeleteDirectory(VFile dir) {
+		VFile[] fileList = dir.listFiles();
+		if(fileList != null) {
+			for(VFile f : fileList) {
+				if(!f.isDirectory()) {
+					f.delete();
 				}
 			}
-			
 		}
+		
+		DirectoryListingService.releaseInstance(dir);
+		
+		queueDeleteFile(dir);
 	}
 }
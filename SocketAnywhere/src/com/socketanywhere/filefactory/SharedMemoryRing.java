@@ -0,0 +1,270 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/** 
+ * A single-producer, single-consumer ring buffer, in a memory-mapped file that is shared by the two
+ * processes of a connection (one ring is used for each direction of the connection). 
+ * 
+ * The header contains the total number of bytes written (the head) and read (the tail), each of which is
+ * only ever updated by one side; head - tail is the amount of unread data in the ring. The head and tail
+ * are on separate cache lines, as they are updated by different processes.
+ * 
+ * The head and tail are published with release semantics (a store fence before the write) and read with acquire 
+ * semantics (a load fence after the read), using the fences of sun.misc.Unsafe: these are CPU fences, rather than 
+ * Java memory model constructs, and so order the accesses to the mapped memory as seen by the other process. The 
+ * header fields are aligned, so that their reads and writes are not torn. If Unsafe is not available, a volatile 
+ * access of a local field is used instead, which only prevents reordering by the compiler: this is sufficient on 
+ * x86 (which does not reorder stores with other stores, or loads with other loads), but not on weaker architectures.
+ * 
+ * Header layout (the data follows the header):
+ * - 0: head (long)
+ * - 8: writer closed (int)
+ * - 64: tail (long)
+ * - 72: reader closed (int)
+ */
+class SharedMemoryRing {
+	
+	private static final int HEAD_OFFSET = 0;
+	private static final int WRITER_CLOSED_OFFSET = 8;
+	private static final int TAIL_OFFSET = 64;
+	private static final int READER_CLOSED_OFFSET = 72;
+	
+	static final int HEADER_SIZE = 128;
+	
+	/** Number of times to spin, and then yield, before parking while waiting on the other side */
+	private static final int SPIN_ATTEMPTS = 100;
+	private static final int YIELD_ATTEMPTS = 200;
+	private static final long MAX_PARK_NANOS = 1000 * 1000;
+	
+	private final File _file;
+	
+	private final MappedByteBuffer _buffer;
+	
+	/** Used to access the data region of the ring; only used by a single side (under that side's lock) */
+	private final ByteBuffer _data;
+	
+	private final int _capacity;
+	
+	/** Unsafe.storeFence() and Unsafe.loadFence() (bound to the Unsafe instance), or null if they are not available */
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle LOAD_FENCE;
+	
+	static {
+		MethodHandle storeFence = null;
+		MethodHandle loadFence = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Object unsafe = f.get(null);
+			storeFence = MethodHandles.lookup().unreflect(c.getMethod("storeFence")).bindTo(unsafe);
+			loadFence = MethodHandles.lookup().unreflect(c.getMethod("loadFence")).bindTo(unsafe);
+		} catch(Exception e) {
+			storeFence = null;
+			loadFence = null;
+		}
+		STORE_FENCE = storeFence;
+		LOAD_FENCE = loadFence;
+	}
+	
+	/** Used when Unsafe is not available: written and then read to prevent the compiler from reordering the accesses 
+	 * to the mapped memory on either side of the fence */
+	private volatile int _fence = 0;
+	
+	/** Maps the ring file, creating it if it does not already exist; both sides of the connection may do this
+	 * concurrently, and must use the same capacity. */
+	SharedMemoryRing(File file, int capacity) throws IOException {
+		_file = file;
+		_capacity = capacity;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = HEADER_SIZE + (long)capacity;
+			
+			// A new file is zero-filled, which is also the initial state of the header
+			if(raf.length() < size) {
+				raf.setLength(size);
+			}
+			
+			_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			
+		} finally {
+			// The mapping remains valid after the file is closed
+			raf.close();
+		}
+		
+		_buffer.order(ByteOrder.nativeOrder());
+		
+		_buffer.position(HEADER_SIZE);
+		_data = _buffer.slice();
+		_buffer.position(0);
+	}
+	
+	int getCapacity() {
+		return _capacity;
+	}
+	
+	long getHead() {
+		long result = _buffer.getLong(HEAD_OFFSET);
+		acquireFence();
+		return result;
+	}
+	
+	/** Publishes the data that was written before this call. */
+	void setHead(long head) {
+		releaseFence();
+		_buffer.putLong(HEAD_OFFSET, head);
+	}
+	
+	long getTail() {
+		long result = _buffer.getLong(TAIL_OFFSET);
+		acquireFence();
+		return result;
+	}
+	
+	/** Releases the space of the data that was read before this call. */
+	void setTail(long tail) {
+		releaseFence();
+		_buffer.putLong(TAIL_OFFSET, tail);
+	}
+	
+	boolean isWriterClosed() {
+		boolean result = _buffer.getInt(WRITER_CLOSED_OFFSET) != 0;
+		acquireFence();
+		return result;
+	}
+	
+	void setWriterClosed() {
+		releaseFence();
+		_buffer.putInt(WRITER_CLOSED_OFFSET, 1);
+	}
+	
+	boolean isReaderClosed() {
+		boolean result = _buffer.getInt(READER_CLOSED_OFFSET) != 0;
+		acquireFence();
+		return result;
+	}
+	
+	void setReaderClosed() {
+		releaseFence();
+		_buffer.putInt(READER_CLOSED_OFFSET, 1);
+	}
+	
+	/** Copies len bytes into the ring at the given (unwrapped) position. */
+	void put(long position, byte[] b, int off, int len) {
+		int index = (int)(position % _capacity);
+		int first = Math.min(len, _capacity - index);
+		
+		_data.position(index);
+		_data.put(b, off, first);
+		
+		if(first < len) {
+			_data.position(0);
+			_data.put(b, off+first, len-first);
+		}
+	}
+	
+	/** Copies len bytes out of the ring from the given (unwrapped) position. */
+	void get(long position, byte[] b, int off, int len) {
+		int index = (int)(position % _capacity);
+		int first = Math.min(len, _capacity - index);
+		
+		_data.position(index);
+		_data.get(b, off, first);
+		
+		if(first < len) {
+			_data.position(0);
+			_data.get(b, off+first, len-first);
+		}
+	}
+	
+	/** Deletes the ring file; the mapping remains usable by both sides. */
+	void delete() {
+		_file.delete();
+	}
+	
+	/** Prevents the accesses before this call from being reordered with the (header) write that follows it. */
+	private void releaseFence() {
+		if(!invokeFence(STORE_FENCE)) {
+			compilerFence();
+		}
+	}
+	
+	/** Prevents the (header) read before this call from being reordered with the accesses that follow it. */
+	private void acquireFence() {
+		if(!invokeFence(LOAD_FENCE)) {
+			compilerFence();
+		}
+	}
+	
+	private static boolean invokeFence(MethodHandle fence) {
+		if(fence == null) {
+			return false;
+		}
+		try {
+			fence.invokeExact();
+			return true;
+		} catch(Throwable t) {
+			return false;
+		}
+	}
+	
+	private void compilerFence() {
+		// A volatile write followed by a volatile read: earlier accesses may not move below the write,
+		// and later accesses may not move above the read.
+		_fence = 0;
+		if(_fence != 0) {
+			throw new IllegalStateException();
+		}
+	}
+	
+	/** Waits for the other side of the ring, based on the number of times we have already waited: spins at first,
+	 * then yields, then parks for increasing periods of time. */
+	static void idle(int attempt) {
+		if(attempt < SPIN_ATTEMPTS) {
+			return;
+		} else if(attempt < YIELD_ATTEMPTS) {
+			Thread.yield();
+		} else {
+			long nanos = Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, (attempt - YIELD_ATTEMPTS) / 10));
+			LockSupport.parkNanos(nanos);
+		}
+	}
+	
+	/** Created by the connecting side in its shared memory directory while it establishes a connection; the accepting
+	 * side only agrees to use shared memory if it can see this file in its own shared memory directory. */
+	static File getProbeFile(File sharedMemoryDirectory, String establishUUID) {
+		return new File(sharedMemoryDirectory, "filetl-shm-probe-esuuid["+establishUUID+"]");
+	}
+	
+	static File getRingFile(File sharedMemoryDirectory, String sourceName, String destName, String connUUID) {
+		return new File(sharedMemoryDirectory, "filetl-shm-source["+sourceName+"]-to-dest["+destName+"]-connuuid["+connUUID+"]");
+	}
+}
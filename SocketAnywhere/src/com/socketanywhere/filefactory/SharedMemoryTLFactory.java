@@ -0,0 +1,38 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import com.vfile.VFile;
+
+/** 
+ * A FileTLFactory for connections between processes on the same host: connections are established (and closed)
+ * through the directory as usual, but data is transferred through memory-mapped ring buffers (the SHARED_MEMORY 
+ * wire mode of FileTLOptions). The wire mode is negotiated when the connection is established, so connections to 
+ * (or from) a peer on another host use PACKET_FILE.
+ */
+public class SharedMemoryTLFactory extends FileTLFactory {
+
+	public SharedMemoryTLFactory(VFile directory) {
+		this(directory, new FileTLOptions());
+	}
+	
+	/** The given options are copied, rather than modified */
+	public SharedMemoryTLFactory(VFile directory, FileTLOptions options) {
+		super(directory, options.withWireMode(FileTLOptions.WireMode.SHARED_MEMORY));
+	}
+	
+}
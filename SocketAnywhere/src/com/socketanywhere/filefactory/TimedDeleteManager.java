@@ -16,15 +16,10 @@
 
 package com.socketanywhere.filefactory;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-
 import com.vfile.VFile;
 
 
-/** Singleton */
+/** Singleton; the files are deleted by the DeleteScheduler. */
 public class TimedDeleteManager {
 
 	private static TimedDeleteManager _instance = new TimedDeleteManager();
@@ -32,84 +27,13 @@ public class TimedDeleteManager {
 	private TimedDeleteManager() {
 	}
 	
-	Map<VFile /** File to del */, TDMMapEntry /** When to delete */> _fileMap = new HashMap<VFile, TDMMapEntry>();
-	TimeDeleteManagerThread _delThread = null;
-	
 	public static TimedDeleteManager getInstance() {
-		
-		// Start the delete thread
-		synchronized(_instance) {
-			if(_instance._delThread == null) {
-				_instance._delThread = new TimeDeleteManagerThread();
-				_instance._delThread.start();
-			}
-		}
-		
 		return _instance;
 	}
 	
+	/** Deletes the file once timeToWait msecs have elapsed; a file that is already waiting to be deleted is not rescheduled. */
 	public void deleteFile(VFile f, long timeToWait, boolean isCrucial) {
-		synchronized(this) {
-			long currTime = System.currentTimeMillis();
-			
-			if(!_fileMap.containsKey(f)) {
-				TDMMapEntry e = new TDMMapEntry();
-				e._isCrucial = isCrucial;
-				e._whenToDelete = timeToWait+currTime;
-				_fileMap.put(f, e);	
-			}			
-		}
-	}
-
-
-	
-}
-
-class TimeDeleteManagerThread extends Thread {
-	boolean _threadRunning = true;
-	final static long SLEEP_TIME = 1000;
-	
-	public TimeDeleteManagerThread() {
-		setName(TimeDeleteManagerThread.class.getName());
-		setDaemon(true);
+		DeleteScheduler.getInstance().deleteFile(f, timeToWait, false, isCrucial);
 	}
 	
-	@Override
-	public void run() {
-		
-		while(_threadRunning) {
-			
-			synchronized(TimedDeleteManager.getInstance()) {
-				
-				long currTime = System.currentTimeMillis();
-				
-				for(Iterator<Entry<VFile, TDMMapEntry>> it = TimedDeleteManager.getInstance()._fileMap.entrySet().iterator(); it.hasNext();) {
-					Entry<VFile, TDMMapEntry> e = it.next();
-					
-					if(currTime > e.getValue()._whenToDelete) {
-						if(e.getKey().exists()) {
-							if(e.getValue()._isCrucial) {
-								FileTLUtil.deleteCrucialFile(e.getKey());
-							} else {
-								e.getKey().delete();
-								e.getKey().deleteOnExit();
-							}
-						}
-						it.remove();
-					}
-
-				}						
-				
-			}
-			
-			FileTLUtil.sleep(SLEEP_TIME);
-			
-		}
-		
-	}
 }
-
-class TDMMapEntry {
-	Long _whenToDelete;
-	boolean _isCrucial;
-}
\ No newline at end of file
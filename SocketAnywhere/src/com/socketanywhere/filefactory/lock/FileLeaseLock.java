@@ -0,0 +1,426 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.socketanywhere.filefactory.DirectoryListingService;
+import com.socketanywhere.filefactory.DirectoryWatcherManager;
+import com.socketanywhere.filefactory.FileTLRuntimeException;
+import com.socketanywhere.filefactory.FileTLUtil;
+import com.socketanywhere.filefactory.IDirectoryWatcher;
+import com.socketanywhere.filefactory.QueueManager;
+import com.vfile.VFile;
+
+/**
+ * A lease-based lock on a filesystem that doesn't natively support file locking. Unlike FileLockOnNonlockingFS,
+ * there are no test/response messages: the lease file itself contains the time at which it expires, and the
+ * holder renews the lease in the background (by renaming the file) for as long as the lock is held. A lease that
+ * is not renewed (e.g. because the holder has died) simply expires.
+ * 
+ * Each lease also contains a fencing token, which increases with every acquisition of the lock; a holder may pass 
+ * the token to the resources it protects, so that they can reject requests from a holder whose lease has since
+ * expired. The most recent lease file is retained (as an expired lease) when the lock is released, so that the
+ * next holder can continue the token sequence.
+ * 
+ * To acquire the lock, we create our lease (with the next token), and then list the directory: we hold the lock if
+ * there is no other unexpired lease, and no other lease with the same or a later token. In the uncontended case, this is
+ * one create and one listing. When the lock is held by someone else, we wait for a directory change or for the
+ * lease to expire, with jittered exponential backoff, so that waiters do not retry in lock step.
+ * 
+ * Lease expiry times are compared with our own clock, so clocks are expected to be synchronized to within the 
+ * clock skew allowance.
+ * 
+ * File Messages:
+ * 
+ * Lease:
+ * - filetl-lease[lockName]-token[fencing token]-expires[time in msecs]-owner[uuid]
+ * 
+ * Released lease (retained to preserve the token sequence):
+ * - filetl-lease[lockName]-token[fencing token]-expires[0]-owner[uuid]
+ * 
+ */
+public class FileLeaseLock implements IFileLock {
+	
+	public static final long DEFAULT_LEASE_DURATION = 30 * 1000;
+	
+	public static final long DEFAULT_CLOCK_SKEW_ALLOWANCE = 2 * 1000;
+
+	private static final long MIN_BACKOFF = 25;
+	private static final long MAX_BACKOFF = 2000;
+
+	protected static final long UNLIMITED_WAIT_TIME = -1;
+	
+	private static final Random _random = new Random();
+	
+	private final VFile _directory;
+	private final String _lockName;
+	private final String _owner = FileTLUtil.generateUUID();
+	
+	private final long _leaseDuration;
+	private final long _clockSkewAllowance;
+	
+	/** The current lease file, while the lock is held; synchronize on this when accessing the lease fields */
+	private VFile _leaseFile = null;
+	private long _token = -1;
+	private long _expires = 0;
+	
+	private boolean _lockActive = false;
+	private boolean _lockReleased = false;
+	
+	public FileLeaseLock(VFile directory, String name) {
+		this(directory, name, DEFAULT_LEASE_DURATION, DEFAULT_CLOCK_SKEW_ALLOWANCE);
+	}
+	
+	public FileLeaseLock(VFile directory, String name, long leaseDuration, long clockSkewAllowance) {
+		_directory = directory;
+		_lockName = name;
+		_leaseDuration = leaseDuration;
+		_clockSkewAllowance = clockSkewAllowance;
+	}
+	
+	@Override
+	public void acquireLock() {
+		acquireLock(UNLIMITED_WAIT_TIME);
+	}
+
+	@Override
+	public boolean acquireLock(long maxTimeToWait) {
+		synchronized(this) {
+			if(_lockReleased) {
+				throw new FileTLRuntimeException("Attempting to acquire a lock that has been released.");
+			}
+			
+			if(_lockActive) {
+				throw new FileTLRuntimeException("Attempting to acquire a lock that has not been released.");
+			}
+		}
+		
+		if(!_directory.exists()) {
+			_directory.mkdirs();
+		}
+		
+		DirectoryListingService dls = DirectoryListingService.getInstance(_directory);
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getWatcher(_directory, "filetl-lease[");
+		
+		long startTime = System.currentTimeMillis();
+		
+		long backoff = MIN_BACKOFF;
+		
+		// A recent (possibly cached) listing is sufficient to choose our token, as any lease we miss will be seen
+		// by the fresh listing that follows the creation of our lease.
+		List<Lease> leases = parseLeases(dls.listFiles(getLeasePrefix()));
+		
+		while(true) {
+			long generation = watcher.getGeneration();
+			
+			long now = System.currentTimeMillis();
+			
+			Lease active = findActiveLease(leases, null, now);
+			
+			if(active == null) {
+				Lease ours = new Lease(nextToken(leases), now + _leaseDuration, _owner);
+				VFile ourFile = ours.getFile();
+				FileTLUtil.writeEmptyMessageFile(ourFile);
+				
+				leases = parseLeases(dls.listFilesFresh(getLeasePrefix()));
+				
+				if(isWinner(ours, leases, System.currentTimeMillis())) {
+					synchronized(this) {
+						_leaseFile = ourFile;
+						_token = ours._token;
+						_expires = ours._expires;
+						_lockActive = true;
+					}
+					
+					deleteOldLeases(leases, ours);
+					
+					LeaseRenewalThread.getInstance().addLock(this);
+					return true;
+				}
+				
+				// We lost (or our token was not the newest), so remove our lease and retry with what we have now seen
+				ourFile.delete();
+				dls.fileDeleted(ourFile);
+				
+				active = findActiveLease(leases, ours, System.currentTimeMillis());
+			}
+			
+			if(maxTimeToWait != UNLIMITED_WAIT_TIME && System.currentTimeMillis() - startTime > maxTimeToWait) {
+				return false;
+			}
+			
+			long wait = backoff + (long)(_random.nextDouble() * backoff);
+			
+			if(active != null) {
+				// Wait for a change to the directory, or for the lease to expire, whichever comes first (with jitter)
+				long untilExpiry = Math.max(0, active._expires + _clockSkewAllowance - System.currentTimeMillis());
+				FileTLUtil.waitForChange(watcher, generation, Math.max(1, Math.min(untilExpiry, wait)));
+			} else {
+				// We collided with another acquirer (or our token was stale), so back off before trying again
+				FileTLUtil.sleep(Math.max(1, (long)(_random.nextDouble() * wait)));
+			}
+			
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+			
+			leases = parseLeases(dls.listFiles(getLeasePrefix()));
+		}
+	}
+
+	@Override
+	public void releaseLock() {
+		VFile leaseFile;
+		long token;
+		
+		synchronized(this) {
+			if(!_lockActive) {
+				throw new FileTLRuntimeException("Attempting to release a lock that has not been acquired.");
+			}
+			
+			_lockActive = false;
+			_lockReleased = true;
+			
+			leaseFile = _leaseFile;
+			token = _token;
+			_leaseFile = null;
+		}
+		
+		LeaseRenewalThread.getInstance().removeLock(this);
+		
+		// Expire the lease, but keep the file so that the next holder can continue the token sequence
+		VFile released = new Lease(token, 0, _owner).getFile();
+		if(!leaseFile.renameTo(released)) {
+			FileTLUtil.deleteCrucialFile(leaseFile);
+		}
+		DirectoryListingService.getInstance(_directory).fileDeleted(leaseFile);
+	}
+	
+	/** The fencing token of the current lease, or -1 if the lock is not held. */
+	public synchronized long getFencingToken() {
+		return _lockActive ? _token : -1;
+	}
+	
+	/** Whether we still hold the lease, e.g. the lock is active, and the lease has been renewed before it expired. */
+	public synchronized boolean isLeaseValid() {
+		return _lockActive && _expires > System.currentTimeMillis();
+	}
+	
+	public String getName() {
+		return _lockName;
+	}
+	
+	/** Called by the renewal thread; returns false if the lease could not be renewed. */
+	boolean renewIfNeeded() {
+		synchronized(this) {
+			if(!_lockActive) {
+				return true;
+			}
+			
+			long now = System.currentTimeMillis();
+			
+			// Renew once a third of the lease has elapsed
+			if(_expires - now > (_leaseDuration * 2) / 3) {
+				return true;
+			}
+			
+			Lease renewed = new Lease(_token, now + _leaseDuration, _owner);
+			VFile renewedFile = renewed.getFile();
+			
+			if(!_leaseFile.renameTo(renewedFile)) {
+				return false;
+			}
+			
+			DirectoryListingService.getInstance(_directory).fileDeleted(_leaseFile);
+			
+			_leaseFile = renewedFile;
+			_expires = renewed._expires;
+			return true;
+		}
+	}
+	
+	/** The time at which the renewal thread should next call renewIfNeeded() */
+	synchronized long getNextRenewalTime() {
+		return _expires - (_leaseDuration * 2) / 3;
+	}
+	
+	private String getLeasePrefix() {
+		return "filetl-lease["+_lockName+"]-";
+	}
+	
+	private List<Lease> parseLeases(VFile[] files) {
+		List<Lease> result = new ArrayList<Lease>();
+		String prefix = getLeasePrefix();
+		
+		for(VFile f : files) {
+			// The lock name may itself contain field names, so only parse the fields that follow it
+			String fields = "-" + f.getName().substring(prefix.length());
+			try {
+				Lease l = new Lease(Long.parseLong(FileTLUtil.extractField("token", fields)), 
+						Long.parseLong(FileTLUtil.extractField("expires", fields)), 
+						FileTLUtil.extractField("owner", fields));
+				result.add(l);
+			} catch(RuntimeException e) {
+				/* Not a lease file (or a lease of a lock whose name begins with ours), so ignore */
+			}
+		}
+		return result;
+	}
+	
+	/** Returns an unexpired lease (other than the given lease), or null if there is none. */
+	private Lease findActiveLease(List<Lease> leases, Lease excluding, long now) {
+		for(Lease l : leases) {
+			if(excluding != null && l.isSame(excluding)) {
+				continue;
+			}
+			if(l._expires + _clockSkewAllowance > now) {
+				return l;
+			}
+		}
+		return null;
+	}
+	
+	private static long nextToken(List<Lease> leases) {
+		long max = 0;
+		for(Lease l : leases) {
+			max = Math.max(max, l._token);
+		}
+		return max + 1;
+	}
+	
+	/** We hold the lock if our token is the newest, and no other unexpired lease precedes ours. A lease with the same
+	 * token means that we chose our token concurrently with another, and both must retry, as the other may already 
+	 * have listed the directory before we created ours. */
+	private boolean isWinner(Lease ours, List<Lease> leases, long now) {
+		for(Lease l : leases) {
+			if(l.isSame(ours)) {
+				continue;
+			}
+			
+			if(l._token >= ours._token) {
+				return false;
+			}
+			
+			if(l._expires + _clockSkewAllowance > now) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/** Deletes the expired leases that precede ours; they are no longer needed to continue the token sequence. */
+	private void deleteOldLeases(List<Lease> leases, Lease ours) {
+		for(Lease l : leases) {
+			if(!l.isSame(ours) && l._token < ours._token && l._expires + _clockSkewAllowance <= System.currentTimeMillis()) {
+				QueueManager.queueDeleteFile(l.getFile());
+			}
+		}
+	}
+	
+	private class Lease {
+		final long _token;
+		final long _expires;
+		final String _owner;
+		
+		Lease(long token, long expires, String owner) {
+			_token = token;
+			_expires = expires;
+			_owner = owner;
+		}
+		
+		boolean isSame(Lease other) {
+			return _token == other._token && _owner.equals(other._owner);
+		}
+		
+		VFile getFile() {
+			return new VFile(_directory.getPath()+VFile.separator+getLeasePrefix()+"token["+_token+"]-expires["+_expires+"]-owner["+_owner+"]");
+		}
+	}
+	
+}
+
+/** Renews the leases of all of the FileLeaseLocks held by this process. */
+class LeaseRenewalThread extends Thread {
+	
+	private static final long MAX_SLEEP_TIME = 1000;
+	
+	private static LeaseRenewalThread _instance = null;
+	
+	/** Synchronize on this when accessing */
+	private final List<FileLeaseLock> _locks = new ArrayList<FileLeaseLock>();
+	
+	private LeaseRenewalThread() {
+		setName(LeaseRenewalThread.class.getName());
+		setDaemon(true);
+	}
+	
+	public static synchronized LeaseRenewalThread getInstance() {
+		if(_instance == null) {
+			_instance = new LeaseRenewalThread();
+			_instance.start();
+		}
+		return _instance;
+	}
+	
+	public void addLock(FileLeaseLock lock) {
+		synchronized(_locks) {
+			_locks.add(lock);
+			_locks.notify();
+		}
+	}
+	
+	public void removeLock(FileLeaseLock lock) {
+		synchronized(_locks) {
+			_locks.remove(lock);
+		}
+	}
+	
+	@Override
+	public void run() {
+		List<FileLeaseLock> locks = new ArrayList<FileLeaseLock>();
+		
+		while(true) {
+			
+			long nextRenewal = Long.MAX_VALUE;
+			
+			synchronized(_locks) {
+				locks.clear();
+				locks.addAll(_locks);
+			}
+			
+			for(FileLeaseLock l : locks) {
+				if(!l.renewIfNeeded()) {
+					// The lease file has been removed by someone else; the holder will see that the lease is no longer valid
+					removeLock(l);
+					continue;
+				}
+				nextRenewal = Math.min(nextRenewal, l.getNextRenewalTime());
+			}
+			
+			long sleepTime = Math.min(MAX_SLEEP_TIME, Math.max(1, nextRenewal - System.currentTimeMillis()));
+			
+			synchronized(_locks) {
+				try {
+					_locks.wait(sleepTime);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
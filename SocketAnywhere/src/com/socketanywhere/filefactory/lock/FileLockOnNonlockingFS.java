@@ -16,8 +16,14 @@
 
 package com.socketanywhere.filefactory.lock;
 
+import com.socketanywhere.filefactory.DirectoryListingService;
+import com.socketanywhere.filefactory.DirectoryWatcherManager;
+import com.socketanywhere.filefactory.FileTLFilename;
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
 import com.socketanywhere.filefactory.FileTLRuntimeException;
 import com.socketanywhere.filefactory.FileTLUtil;
+import com.socketanywhere.filefactory.IDirectoryWatcher;
 import com.socketanywhere.filefactory.QueueManager;
 import com.socketanywhere.filefactory.TimedDeleteManager;
 import com.socketanywhere.net.SoAnUtil;
@@ -106,7 +112,11 @@ public class FileLockOnNonlockingFS implements IFileLock {
 		
 		VFile activeUUIDLock = null;
 		
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getWatcher(lockDirectoryFile);
+		
 		while(!lockAcquired) {
+			long generation = watcher.getGeneration();
+			
 			zout("pre findActiveUUIDLockFile"); 
 			activeUUIDLock = findActiveUUIDLockFile(lockDirectoryFile, _lockName);
 			zout("post findActiveUUIDLockFile"); 
@@ -155,7 +165,7 @@ public class FileLockOnNonlockingFS implements IFileLock {
 			
 			if(loopWait) {
 				zout("AL sleeping");
-				FileTLUtil.sleep(WAIT_INTERVAL);
+				FileTLUtil.waitForChange(watcher, generation, WAIT_INTERVAL);
 			}
 			
 		}
@@ -176,23 +186,20 @@ public class FileLockOnNonlockingFS implements IFileLock {
 		final int TIME_TO_WAIT_TO_CLEAR_ATTEMPT_ACQ = 11000;
 		final int TIME_TO_WAIT_BEFORE_LOCK_ACQ = 5000;
 		
+		DirectoryListingService dls = DirectoryListingService.getInstance(directory);
+		
 		// list for files - looking for 'attempt acquire' or already existing locks
-		VFile[] fileList = directory.listFiles();
-		for(VFile f : fileList) {
-			String fn = f.getName();
-			
-			if(fn.startsWith("filetl-attempt-acquire-lock")) {
-				// Someone appears to be attempting to acquire a lock, so we will
-				// delete it in 11 seconds to keep it from blocking us, in case it is stale
-				TimedDeleteManager.getInstance().deleteFile(f, TIME_TO_WAIT_TO_CLEAR_ATTEMPT_ACQ, true); 
-				return null;
-			}
-			
-			if(fn.startsWith("filetl-lock[")) {
-				// Someone else completed acquisition, so return
-				return null;
-			}
-					
+		VFile[] fileList = dls.listFiles(Type.ATTEMPT_ACQUIRE_LOCK);
+		if(fileList.length > 0) {
+			// Someone appears to be attempting to acquire a lock, so we will
+			// delete it in 11 seconds to keep it from blocking us, in case it is stale
+			TimedDeleteManager.getInstance().deleteFile(fileList[0], TIME_TO_WAIT_TO_CLEAR_ATTEMPT_ACQ, true); 
+			return null;
+		}
+		
+		if(dls.listFiles(Type.LOCK).length > 0) {
+			// Someone else completed acquisition, so return
+			return null;
 		}
 		
 		// At this point, there are no existing acquired locks, and we have not
@@ -206,7 +213,10 @@ public class FileLockOnNonlockingFS implements IFileLock {
 		boolean waiting = true;
 		long scanStartTime = System.currentTimeMillis();
 		
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getWatcher(directory);
+		
 		do {
+			long generation = watcher.getGeneration();
 			
 			// If we have waited the necessary amount of time to acquire the lock...
 			if(System.currentTimeMillis() - scanStartTime > TIME_TO_WAIT_BEFORE_LOCK_ACQ) { 
@@ -228,31 +238,29 @@ public class FileLockOnNonlockingFS implements IFileLock {
 			// see if anyone else has attempt acq-ed, or locked. 
 			
 			// File list block begin {{
-			fileList = directory.listFiles();
+			// The final pass (before the lock is acquired) must see every file written before it began 
+			// The fresh listing is taken once, and then classified by both types below
+			VFile[] lockList = lockAcquired ? dls.listFilesFresh(Type.LOCK) : dls.listFiles(Type.LOCK);
+			fileList = dls.listFiles(Type.ATTEMPT_ACQUIRE_LOCK);
 			
 			// Look to see if the lock has already been acquired by someone else
-			for(VFile f : fileList) {
-				String fn = f.getName();
-				
-				if(fn.startsWith("filetl-lock[")) {
-					// Someone else completed acquisition, so return					
-					lockAcquired = false;
-					waiting = false;
-					FileTLUtil.deleteCrucialFile(attemptAcquireFile);
-					return null;
-				}
+			if(lockList.length > 0) {
+				// Someone else completed acquisition, so return					
+				lockAcquired = false;
+				waiting = false;
+				FileTLUtil.deleteCrucialFile(attemptAcquireFile);
+				return null;
 			}
 			
 			// Look to see if anyone else is attempting to acquire on this lock
 			for(VFile f : fileList) {
 				String fn = f.getName();
 				
-				if(fn.startsWith("filetl-attempt-acquire-lock") 
-						&& !fn.equalsIgnoreCase(attemptAcquireFile.getName())) {
+				if(!fn.equalsIgnoreCase(attemptAcquireFile.getName())) {
 
 					// ... someone is.
 					
-					String theirUUID = FileTLUtil.extractField("acquireuuid", fn);
+					String theirUUID = FileTLFilename.decode(fn).get(Field.ACQUIRE_UUID);
 					
 					// Person with the lower UUID wins
 					if(theirUUID.compareTo(acquireUUID) < 0 ) {
@@ -274,7 +282,7 @@ public class FileLockOnNonlockingFS implements IFileLock {
 			
 			
 			if(waiting) {
-				FileTLUtil.sleep(WAIT_INTERVAL);
+				FileTLUtil.waitForChange(watcher, generation, WAIT_INTERVAL);
 			}
 			
 		} while(waiting);
@@ -309,10 +317,13 @@ public class FileLockOnNonlockingFS implements IFileLock {
 		boolean lockActiveFileDNE = false;
 		boolean lockTimedOut = false;
 
+		IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getWatcher(lockDirectory);
+
 		// Write the file that tests whether the active lock is still active 
 		ret = writeTestLockFile(lockDirectory, lockName, extractLockUUIDFromFilename(activeLock.getName()));
 		
 		do {
+			long generation = watcher.getGeneration();
 
 			// Lock no longer exists because someone renamed it, so skip to the top of the outermost loop
 			if(activeLock == null || !activeLock.exists()) {
@@ -343,7 +354,7 @@ public class FileLockOnNonlockingFS implements IFileLock {
 			}
 
 			if(activeLockIsActive) {
-				FileTLUtil.sleep(WAIT_INTERVAL);
+				FileTLUtil.waitForChange(watcher, generation, WAIT_INTERVAL);
 			}
 			
 		} while(activeLockIsActive);
@@ -414,7 +425,7 @@ public class FileLockOnNonlockingFS implements IFileLock {
 	private static VFile findActiveUUIDLockFile(VFile directory, String lockName) {
 		VFile existingUUID = null;
 		
-		VFile[] lockDirFileList = directory.listFiles();
+		VFile[] lockDirFileList = DirectoryListingService.getInstance(directory).listFiles("filetl-lock["+lockName+"]-lockuuid[");
 		
 		for(VFile f : lockDirFileList) {
 			if(f.getName().startsWith("filetl-lock["+lockName+"]-lockuuid[")) {
@@ -426,12 +437,12 @@ public class FileLockOnNonlockingFS implements IFileLock {
 	}
 
 	private static String extractLockUUIDFromFilename(String filename) {
-		return FileTLUtil.extractField("lockuuid", filename);
+		return FileTLFilename.decode(filename).get(Field.LOCK_UUID);
 		
 	}
 	
 	protected static String extractTestUUIDFromFilename(String filename) {
-		return FileTLUtil.extractField("testuuid", filename);		
+		return FileTLFilename.decode(filename).get(Field.TEST_UUID);		
 	}
 	
 	private static class WriteTestLockFileReturn {
@@ -18,14 +18,17 @@ package com.socketanywhere.filefactory.lock;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
+import com.socketanywhere.filefactory.DirectoryListingService;
+import com.socketanywhere.filefactory.DirectoryWatcherManager;
+import com.socketanywhere.filefactory.FileTLOptions.LockMode;
 import com.socketanywhere.filefactory.FileTLUtil;
+import com.socketanywhere.filefactory.IDirectoryWatcher;
 import com.socketanywhere.filefactory.TimedDeleteManager;
 import com.vfile.VFile;
+import com.vfile.jio.JIOFile;
 
 /**
  * File Messages:
@@ -66,6 +69,26 @@ public class LockManager {
 		return _instance;
 	}
 	
+	/** Returns a lock for the given directory that is implemented with message files (FileLockOnNonlockingFS). */
+	public static IFileLock createLock(VFile directory, String name) {
+		return createLock(directory, name, LockMode.MESSAGE_FILE);
+	}
+	
+	/** Returns a lock for the given directory, using the given lock mode. NATIVE locks are only used when the directory is 
+	 * on the local filesystem (and NativeFileLock itself falls back to message files if the filesystem does not support 
+	 * locking); otherwise the lock is implemented with message files. */
+	public static IFileLock createLock(VFile directory, String name, LockMode mode) {
+		if(mode == LockMode.NATIVE && directory.getInnerFile() instanceof JIOFile) {
+			return new NativeFileLock(directory, name);
+		}
+		
+		if(mode == LockMode.LEASE) {
+			return new FileLeaseLock(directory, name);
+		}
+		
+		return new FileLockOnNonlockingFS(directory, name);
+	}
+	
 	public void addLock(FileLockOnNonlockingFS lock) {
 		synchronized(_activeLockFlush) {
 			synchronized(_waitingForActiveLocks) {
@@ -122,26 +145,23 @@ public class LockManager {
 		
 		public void run() {
 			final int TIME_TO_WAIT_BEFORE_RESPONSE_DELETE = 60000; 
+			
+			IDirectoryWatcher watcher = DirectoryWatcherManager.getInstance().getAnyDirectoryWatcher("filetl-test-lock[");
 
 			while(_lockManagerThreadRunning) {
 				
+				long generation = watcher.getGeneration();
+				
 				synchronized (_activeLocks) {
 					
-					Map<VFile, VFile[]> dirList = new HashMap<VFile, VFile[]>();
-					
 					for(LockEntry lock : _activeLocks) {
 						VFile dir = lock._lockFile.getParentFile();
 						
-						VFile[] fileList;
-						if(dirList.get(dir) == null) {
-							fileList = dir.listFiles();
-							dirList.put(dir, fileList);
-						} else {
-							fileList = dirList.get(dir);
-						}
-						
 						String lockTestFormat = "filetl-test-lock["+lock._lockName+"]-lockuuid["+lock._lockUUID+"]-";
 						
+						// The listing is shared with the other locks (and other pollers) of the directory
+						VFile[] fileList = DirectoryListingService.getInstance(dir).listFiles(lockTestFormat);
+						
 						for(VFile f : fileList) {
 
 							if(f.getName().startsWith(lockTestFormat)) {
@@ -198,7 +218,7 @@ public class LockManager {
 					}
 				}
 				
-				FileTLUtil.sleep(LOCK_POLL_INTERVAL);
+				FileTLUtil.waitForChange(watcher, generation, LOCK_POLL_INTERVAL);
 				
 			}
 			
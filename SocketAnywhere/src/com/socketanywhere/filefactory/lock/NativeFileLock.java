@@ -0,0 +1,236 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory.lock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.socketanywhere.filefactory.FileTLRuntimeException;
+import com.vfile.VFile;
+
+/**
+ * A lock on a local filesystem, using the operating system's file locking (FileChannel.lock()). This avoids the
+ * message files (and polling) of FileLockOnNonlockingFS, but may only be used on a directory that is backed by a
+ * JIOFile, and only when every node that shares the directory uses native locks (see FileTLOptions.LockMode).
+ * 
+ * If the filesystem does not support locking (the lock call fails), the lock falls back to FileLockOnNonlockingFS.
+ * 
+ * OS file locks are held on behalf of the entire process, and so would not exclude other threads of this JVM; 
+ * locks with the same file therefore also share a semaphore, which is acquired before the file lock.
+ * 
+ * As with FileLockOnNonlockingFS, do not call acquire() on a lock that has already been released.
+ *
+ * File Messages:
+ * 
+ * Lock file (retained after the lock is released, as removing it would race with the next acquirer): 
+ * - filetl-native-lock[lockName]
+ *
+ */
+public class NativeFileLock implements IFileLock {
+
+	private static final long MIN_RETRY_INTERVAL = 1;
+	private static final long MAX_RETRY_INTERVAL = 50;
+
+	protected static final long UNLIMITED_WAIT_TIME = -1;
+	
+	/** Lock file path -> semaphore held by the thread that holds (or is acquiring) the OS lock of that file */
+	private static final ConcurrentHashMap<String, Semaphore> _pathSemaphores = new ConcurrentHashMap<String, Semaphore>();
+	
+	private final File _lockFile;
+	private final String _lockName;
+	
+	private boolean _lockActive = false;
+	private boolean _lockReleased = false;
+	
+	private Semaphore _semaphore = null;
+	private FileChannel _channel = null;
+	private FileLock _fileLock = null;
+	
+	private final VFile _directory;
+	
+	/** Set if the filesystem does not support locking, in which case all calls are passed to this lock */
+	private FileLockOnNonlockingFS _fallbackLock = null;
+	
+	public NativeFileLock(VFile directory, String name) {
+		_lockFile = new File(directory.getPath(), "filetl-native-lock["+name+"]");
+		_lockName = name;
+		_directory = directory;
+	}
+	
+	@Override
+	public void acquireLock() {
+		acquireLock(UNLIMITED_WAIT_TIME);
+	}
+
+	@Override
+	public synchronized boolean acquireLock(long maxTimeToWait) {
+		if(_fallbackLock != null) {
+			return acquireFallbackLock(maxTimeToWait);
+		}
+		
+		if(_lockReleased) {
+			throw new FileTLRuntimeException("Attempting to acquire a lock that has been released.");
+		}
+		
+		if(_lockActive) {
+			throw new FileTLRuntimeException("Attempting to acquire a lock that has not been released.");
+		}
+		
+		long deadline = maxTimeToWait == UNLIMITED_WAIT_TIME ? Long.MAX_VALUE : System.currentTimeMillis() + maxTimeToWait;
+		
+		Semaphore semaphore = getSemaphore(_lockFile);
+		
+		try {
+			if(maxTimeToWait == UNLIMITED_WAIT_TIME) {
+				semaphore.acquire();
+			} else if(!semaphore.tryAcquire(maxTimeToWait, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+		} catch (InterruptedException e) {
+			throw new FileTLRuntimeException("Interrupted while acquiring lock ["+_lockName+"]", e);
+		}
+		
+		FileChannel channel = null;
+		FileLock fileLock = null;
+		boolean lockUnsupported = false;
+		
+		try {
+			File dir = _lockFile.getParentFile();
+			if(!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+				throw new FileTLRuntimeException("Unable to create lock directory ["+_lockName+"]");
+			}
+			
+			channel = new RandomAccessFile(_lockFile, "rw").getChannel();
+			
+			if(maxTimeToWait == UNLIMITED_WAIT_TIME) {
+				fileLock = channel.lock();
+			} else {
+				// Locks held by other processes are polled, with a short backoff
+				long retryInterval = MIN_RETRY_INTERVAL;
+				while((fileLock = channel.tryLock()) == null) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						break;
+					}
+					Thread.sleep(Math.min(remaining, retryInterval));
+					retryInterval = Math.min(MAX_RETRY_INTERVAL, retryInterval * 2);
+				}
+			}
+			
+		} catch(IOException | UnsupportedOperationException e) {
+			// The filesystem does not support locking (for example, some network filesystems)
+			lockUnsupported = true;
+		} catch (InterruptedException e) {
+			throw new FileTLRuntimeException("Interrupted while acquiring lock ["+_lockName+"]", e);
+		} finally {
+			if(fileLock == null) {
+				closeQuietly(channel);
+				semaphore.release();
+			}
+		}
+		
+		if(lockUnsupported) {
+			_fallbackLock = new FileLockOnNonlockingFS(_directory, _lockName);
+			
+			long remaining = maxTimeToWait == UNLIMITED_WAIT_TIME ? UNLIMITED_WAIT_TIME : Math.max(0, deadline - System.currentTimeMillis());
+			return acquireFallbackLock(remaining);
+		}
+		
+		if(fileLock == null) {
+			return false;
+		}
+		
+		_semaphore = semaphore;
+		_channel = channel;
+		_fileLock = fileLock;
+		_lockActive = true;
+		
+		return true;
+	}
+
+	@Override
+	public synchronized void releaseLock() {
+		if(_fallbackLock != null) {
+			_fallbackLock.releaseLock();
+			return;
+		}
+		
+		if(!_lockActive) {
+			throw new FileTLRuntimeException("Attempting to release a lock that has not been acquired.");
+		}
+		
+		_lockActive = false;
+		_lockReleased = true;
+		
+		try {
+			_fileLock.release();
+		} catch (IOException e) {
+			/* Closing the channel will release the lock regardless */
+		} finally {
+			closeQuietly(_channel);
+			_semaphore.release();
+			
+			_fileLock = null;
+			_channel = null;
+			_semaphore = null;
+		}
+	}
+	
+	public String getName() {
+		return _lockName;
+	}
+	
+	private boolean acquireFallbackLock(long maxTimeToWait) {
+		if(maxTimeToWait == UNLIMITED_WAIT_TIME) {
+			_fallbackLock.acquireLock();
+			return true;
+		}
+		return _fallbackLock.acquireLock(maxTimeToWait);
+	}
+	
+	private static Semaphore getSemaphore(File lockFile) {
+		String path = lockFile.getAbsolutePath();
+		
+		Semaphore result = _pathSemaphores.get(path);
+		if(result == null) {
+			Semaphore s = new Semaphore(1, true);
+			result = _pathSemaphores.putIfAbsent(path, s);
+			if(result == null) {
+				result = s;
+			}
+		}
+		return result;
+	}
+	
+	private static void closeQuietly(FileChannel channel) {
+		if(channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+	}
+	
+}
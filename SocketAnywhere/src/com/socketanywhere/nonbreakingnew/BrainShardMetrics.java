@@ -0,0 +1,128 @@
+/*
+	Copyright 2012, 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.socketanywhere.nonbreakingnew;
+
+/** Counters for a single shard (thread) of a ConnectionBrain. These are only updated by the shard's
+ * thread, and may be read from any thread. */
+public class BrainShardMetrics {
+	
+	private final int _shard;
+	private final boolean _isConnectorBrain;
+	
+	private volatile long _messagesProcessed = 0;
+	private volatile long _batchesProcessed = 0;
+	
+	/** Total time the shard has spent processing messages (rather than waiting for them) */
+	private volatile long _busyTimeInNanos = 0;
+	
+	/** The largest number of messages that were waiting in the queue at once */
+	private volatile int _maxBatchSize = 0;
+	
+	/** The number of connections in the shard's state, as of the last batch */
+	private volatile int _connections = 0;
+	
+	/** Data received from remote nodes, and the acks (CmdDataReceived) sent for it */
+	private volatile long _dataBytesReceived = 0;
+	private volatile long _dataAcksSent = 0;
+	
+	/** The number of times a sender was blocked because the send window was used */
+	private volatile long _sendWindowStalls = 0;
+	
+	BrainShardMetrics(int shard, boolean isConnectorBrain) {
+		_shard = shard;
+		_isConnectorBrain = isConnectorBrain;
+	}
+	
+	/** Called by the shard's thread after processing each batch of messages */
+	void batchProcessed(int messages, long timeInNanos, int connections) {
+		_messagesProcessed += messages;
+		_batchesProcessed++;
+		_busyTimeInNanos += timeInNanos;
+		if(messages > _maxBatchSize) {
+			_maxBatchSize = messages;
+		}
+		_connections = connections;
+	}
+	
+	void dataReceived(int bytes) {
+		_dataBytesReceived += bytes;
+	}
+	
+	void dataAckSent() {
+		_dataAcksSent++;
+	}
+	
+	void sendWindowStall() {
+		_sendWindowStalls++;
+	}
+	
+	public int getShard() {
+		return _shard;
+	}
+	
+	public boolean isConnectorBrain() {
+		return _isConnectorBrain;
+	}
+	
+	public long getMessagesProcessed() {
+		return _messagesProcessed;
+	}
+	
+	public long getBatchesProcessed() {
+		return _batchesProcessed;
+	}
+	
+	public long getBusyTimeInNanos() {
+		return _busyTimeInNanos;
+	}
+	
+	public int getMaxBatchSize() {
+		return _maxBatchSize;
+	}
+	
+	public int getConnections() {
+		return _connections;
+	}
+	
+	public long getDataBytesReceived() {
+		return _dataBytesReceived;
+	}
+	
+	public long getDataAcksSent() {
+		return _dataAcksSent;
+	}
+	
+	public long getSendWindowStalls() {
+		return _sendWindowStalls;
+	}
+	
+	/** The number of acks sent per MB of data received, or 0 if no data has been received */
+	public double getDataAcksSentPerMB() {
+		long bytes = _dataBytesReceived;
+		if(bytes == 0) {
+			return 0;
+		}
+		return _dataAcksSent / (bytes / (1024d * 1024d));
+	}
+	
+	@Override
+	public String toString() {
+		return "shard:"+_shard+(_isConnectorBrain ? " (connector)" : " (connectee)")+" messages:"+_messagesProcessed+" batches:"+_batchesProcessed
+				+" busy-ms:"+(_busyTimeInNanos / 1000000)+" max-batch:"+_maxBatchSize+" connections:"+_connections
+				+" acks-per-mb:"+String.format("%.1f", getDataAcksSentPerMB())+" window-stalls:"+_sendWindowStalls;
+	}
+}
@@ -51,12 +51,11 @@ import static com.socketanywhere.nonbreakingnew.CBUtil.assertEntryMatchesBrain;
 import static com.socketanywhere.nonbreakingnew.CBUtil.assertInState;
 import static com.socketanywhere.nonbreakingnew.CBUtil.assertIsConnectee;
 import static com.socketanywhere.nonbreakingnew.CBUtil.assertIsConnector;
+import static com.socketanywhere.nonbreakingnew.CBUtil.sendDataAck;
 import static com.socketanywhere.nonbreakingnew.CBUtil.switchToClose;
 import static com.socketanywhere.nonbreakingnew.CBUtil.writeCommandToSocket;
 
 public class CBCommandHandler {
-	
-	private final static long TEN_SECONDS_IN_NANOS =  TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
 
 	/** Handle commands that don't require the connection state to be ESTABLISHED. */
 	static void handleConnectAgnosticCommands(ThreadState state, ISocketTLWrapper sock, CmdAbstract cmd ) {
@@ -769,8 +768,8 @@ public class CBCommandHandler {
 				
 				NBLog.receivedCmd(c, e.getTriplet(), sock, NBLog.INFO);
 				
-				// Remove old
-				e.getNewPacketsAndRemoveOld(c.getFieldLastPacketReceived(), state);
+				// Remove old, and update the send window
+				e.dataAckReceived(c.getFieldLastPacketReceived(), c.getFieldReceiveWindow(), state);
 				
 				// Remove any packets from our packet list that the remote connection 
 				// has acknowledged that it received
@@ -1126,33 +1125,20 @@ public class CBCommandHandler {
 //		Mapper.getInstance().put(dataCmd, false);
 
 		
-		// Send data received command only if certain threshold is met
-		if(e.getState() == State.CONN_ESTABLISHED &&  
-				( e._dataReceivedSinceLastPacketIdAcknowledged >= 1024 /** 1024 * 10*/ || System.nanoTime() - e._timeSinceLastPacketIdAcknowledgedInNanos > TEN_SECONDS_IN_NANOS)
-				// TODO: CURR - Only 1KB?
-			) {
-			// 10 seconds or 1KB
-			
-			NBSocketInputStream nis = s.internalGetInputStream();
-			
-			boolean isInputStreamBufferFull = false;
-			if(state.options.getMaxDataReceivedBuffer() != -1) { // if there is a buffer limit...
-				int bufferSize = nis.internalGetContentsSize();
-				if(bufferSize > state.options.getMaxDataReceivedBuffer()) { // .. and we're over it...
-					isInputStreamBufferFull = true;
-				}
-			}
+		state.metrics.dataReceived(dataCmd.getFieldDataLength());
+		e._packetsReceivedSinceLastPacketIdAcknowledged++;
+		
+		// Send a cumulative ack once either threshold is met; otherwise, ensure a delayed ack is sent for the data
+		if(e.getState() == State.CONN_ESTABLISHED) {
 			
-			// Only send CmdDataReceived if our buffer is not full (this prevents the other side from sending us too much data)
-			if(!isInputStreamBufferFull) {
-				CmdDataReceived dr = new CmdDataReceived(dataCmd.getFieldPacketId());
-	
-				e._dataReceivedSinceLastPacketIdAcknowledged = 0;
-				e._timeSinceLastPacketIdAcknowledgedInNanos = System.nanoTime();
-				e._lastPacketIdAcknowledged = dataCmd.getFieldPacketId();
-	
-				writeCommandToSocket(dr, sock, e);
-				NBLog.sent(dr, e.getTriplet(), sock, NBLog.INFO);
+			if(e._dataReceivedSinceLastPacketIdAcknowledged >= state.options.calculateAckByteThreshold() 
+					|| e._packetsReceivedSinceLastPacketIdAcknowledged >= state.options.getAckPacketThreshold()) {
+				
+				sendDataAck(state, e, sock);
+				
+			} else if(e._ackDeadlineInNanos == -1) {
+				e._ackDeadlineInNanos = System.nanoTime() + TimeUnit.NANOSECONDS.convert(state.options.getAckDelay(), TimeUnit.MILLISECONDS);
+				state.delayedAckEntries.add(e);
 			}
 
 		}
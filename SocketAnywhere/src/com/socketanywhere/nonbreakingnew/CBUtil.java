@@ -4,6 +4,7 @@ import com.socketanywhere.nonbreakingnew.ConnectionBrain.ThreadState;
 import com.socketanywhere.nonbreakingnew.Entry.State;
 import com.socketanywhere.nonbreakingnew.cmd.CmdAbstract;
 import com.socketanywhere.nonbreakingnew.cmd.CmdCloseConn;
+import com.socketanywhere.nonbreakingnew.cmd.CmdDataReceived;
 import com.socketanywhere.nonbreakingnew.cmd.ICmdUuidConnId;
 
 public class CBUtil {
@@ -199,6 +200,43 @@ public class CBUtil {
 	}
 	
 	
+	/** Whether data has been received on the connection that has not yet been acknowledged */
+	static boolean isDataAckPending(Entry e) {
+		return e._lastPacketIdReceived > e._lastPacketIdAcknowledged;
+	}
+	
+	/** Sends a cumulative CmdDataReceived for all the data received so far, which advertises the space remaining in our 
+	 * receive window. If maxDataReceivedBuffer is set, acks are withheld while our input stream buffer is over it (for 
+	 * older nodes, which ignore the receive window), and are sent once it is no longer full (see EVENT_INPUT_STREAM_IS_FULL). 
+	 * Returns true if the ack was sent. */
+	static boolean sendDataAck(ThreadState state, Entry e, ISocketTLWrapper sock) {
+		
+		int bufferSize = e._nbSock.internalGetInputStream().internalGetContentsSize();
+		
+		if(state.options.getMaxDataReceivedBuffer() != -1) { // if there is a buffer limit...
+			if(bufferSize > state.options.getMaxDataReceivedBuffer()) { // .. and we're over it...
+				return false;
+			}
+		}
+		
+		int receiveWindow = Math.max(0, state.options.calculateReceiveWindow() - bufferSize);
+		
+		CmdDataReceived dr = new CmdDataReceived(e._lastPacketIdReceived, receiveWindow);
+
+		e._dataReceivedSinceLastPacketIdAcknowledged = 0;
+		e._packetsReceivedSinceLastPacketIdAcknowledged = 0;
+		e._timeSinceLastPacketIdAcknowledgedInNanos = System.nanoTime();
+		e._ackDeadlineInNanos = -1;
+		e._lastPacketIdAcknowledged = e._lastPacketIdReceived;
+
+		writeCommandToSocket(dr, sock, e);
+		NBLog.sent(dr, e.getTriplet(), sock, NBLog.INFO);
+		
+		state.metrics.dataAckSent();
+		
+		return true;
+	}
+	
 	static void switchToClose(Entry e, ISocketTLWrapper wrapper) {
 		e.setState(State.CONN_CLOSING_INIT);
 
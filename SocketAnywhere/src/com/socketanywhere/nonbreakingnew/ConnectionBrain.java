@@ -25,18 +25,18 @@ import static com.socketanywhere.nonbreakingnew.CBUtil.writeCommandToSocket;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.socketanywhere.multiplexingnew.MQMessage;
 import com.socketanywhere.multiplexingnew.MessageQueue;
-import com.socketanywhere.net.ConstructorTransfer;
 import com.socketanywhere.net.ISocketFactory;
 import com.socketanywhere.net.SoAnUtil;
 import com.socketanywhere.net.TLAddress;
@@ -57,21 +57,32 @@ import com.socketanywhere.util.ManagedThread;
  *  It sends/received commands, handles the requests/response of those commands, handles state transitions
  *  of connections, etc. 
  *  
+ *  The work may be spread across multiple brain threads (shards, see NBOptions.setBrainShards(...)), each with its 
+ *  own message queue and ThreadState. Each connection is pinned to a single shard by the hash of its connector UUID and 
+ *  connection id, so all the messages of a connection are processed in order by a single thread; the server socket 
+ *  listeners and the connection id counter are shared by all shards. 
+ *  
  * */
 public class ConnectionBrain {
 	
 	// Member variables
 		
-	private final ConstructorTransfer<NBOptions> _options;
+	private final NBOptions _options;
 	
 	// not immutable
-	private final MessageQueue _queue;
+	private final BrainShard[] _shards;
 	
 	// immutable
 	private final ISocketFactory _innerFactory;
 
 	/** immutable - The Uuid for this node (specific to this ConnectionBrain) */
-	protected final ConstructorTransfer<String> _ourUuid;
+	protected final String _ourUuid;
+	
+	/** Address(only contains port) => server socket listener for that port; shared by all shards */
+	private final Map<TLAddress, NBServerSocketListener> _servSockListenerMap = new ConcurrentHashMap<TLAddress, NBServerSocketListener>();
+	
+	/** The next connection created will use this ID; shared by all shards, so that connection ids are unique per UUID. */
+	private final AtomicInteger _nextConnId = new AtomicInteger(0);
 	
 	private final boolean _isConnectorBrain;
 	
@@ -93,6 +104,14 @@ public class ConnectionBrain {
 		
 		public boolean isConnectorBrain;
 		
+		/** The index of the brain shard that owns this state */
+		public int shard;
+		
+		public BrainShardMetrics metrics;
+		
+		/** Entries with received data that is waiting for a delayed ack (see Entry._ackDeadlineInNanos) */
+		public final List<Entry> delayedAckEntries = new ArrayList<Entry>();
+		
 		/** Socket => Entry */
 		public final Map<NBSocket, Entry> nbSocketToEntryMapInternal = new HashMap<NBSocket, Entry>(); // TODO: Curr - get rid of this
 
@@ -103,11 +122,8 @@ public class ConnectionBrain {
 		// I attempted to remove this, but hit the issue of server socket (connectee) not have an nbsocket
 		public final Map<ISocketTLWrapper, NBSocket> socketToNBSockMapInternal = new HashMap<ISocketTLWrapper, NBSocket>();
 
-		/** Address(only contains port) => server socket listener for that port */
-		public final Map<TLAddress, NBServerSocketListener> servSockListenerMap = new HashMap<TLAddress, NBServerSocketListener>(); 
-
-		/** The next connection created will use this ID. */
-		public int nextConnId = 0;
+		/** Address(only contains port) => server socket listener for that port; this is shared by all the shards of the brain. */
+		public Map<TLAddress, NBServerSocketListener> servSockListenerMap; 
 		
 		public void putNBSocketToEntry(NBSocket sock, Entry e) {
 			nbSocketToEntryMapInternal.put(sock, e);
@@ -139,7 +155,7 @@ public class ConnectionBrain {
 	
 	
 	private static void debugWriteStateOut(ThreadState state) {
-		String tag = "[nb-dwso-"+state.ourUuid+"] ";
+		String tag = "[nb-dwso-"+state.ourUuid+"-"+state.shard+"] ";
 		
 		String result = tag+"------------------------------------------\n";
 		
@@ -148,7 +164,7 @@ public class ConnectionBrain {
 			Entry entry = e.getValue();
 			
 			try {
-				result += tag+nbSock.getDebugTriplet().toString()+" "+entry.getState().name()+" is-avail: "+nbSock.getInputStream().available()+" bisdl:"+entry._bytesInSentDataList+" biwdl:"+entry._bytesInWaitingDataList+" last-acked:"+entry._lastPacketIdAcknowledged+" last-recv:"+entry._lastPacketIdReceived+" last-sent:"+entry._lastPacketIdSent+" sent-dp:"+entry._sentDataPackets.size()+" waiting-dp:"+entry._waitingDataPackets.size();
+				result += tag+nbSock.getDebugTriplet().toString()+" "+entry.getState().name()+" is-avail: "+nbSock.getInputStream().available()+" bisdl:"+entry._sentDataPackets.getBytes()+" biwdl:"+entry._waitingDataPackets.getBytes()+" last-acked:"+entry._lastPacketIdAcknowledged+" last-recv:"+entry._lastPacketIdReceived+" last-sent:"+entry._lastPacketIdSent+" sent-dp:"+entry._sentDataPackets.size()+" waiting-dp:"+entry._waitingDataPackets.size()+" send-window:"+entry.calculateSendWindow(state)+" srtt-us:"+(entry._smoothedRttInNanos / 1000);
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
@@ -160,23 +176,25 @@ public class ConnectionBrain {
 	}
 
 	
-	private void run() {
+	private void run(BrainShard shard) {
 		
 		ThreadState state = new ThreadState();
 		
 		state.isConnectorBrain = _isConnectorBrain;
 		
-		state.options = _options.get();
-		state.ourUuid = _ourUuid.get();
+		state.options = _options;
+		state.ourUuid = _ourUuid;
+		state.shard = shard._index;
+		state.servSockListenerMap = _servSockListenerMap;
+		state.metrics = shard._metrics;
 		
 		state.brain = this;
 		
+		final BrainShardMetrics metrics = shard._metrics;
+		
 		/** Socket => Entry */
 //		final Map<NBSocket, Entry> nbSocketToEntrymap = state.nbSocketToEntrymap;
 
-		/** Address(only contains port) => server socket listener for that port */
-		final Map<TLAddress, NBServerSocketListener> servSockListenerMap = state.servSockListenerMap; 
-
 		boolean continueLoop = true;
 		
 		long startTimeInNanos = System.nanoTime();
@@ -193,9 +211,17 @@ public class ConnectionBrain {
 		long nextDebugOutInNanos = System.nanoTime() + INTERVAL_BETWEEN_DEBUG_OUT_IN_NANOS;
 		
 		
+		long nextAckTimeInNanos = -1;
+		
 		while(continueLoop) {
 			
-			Queue<MQMessage> queue = _queue.getNextMessagesBlockingTimeout(ONE_SECOND_IN_NANOS);
+			// Wake up in time to send the next delayed ack
+			long timeoutInNanos = ONE_SECOND_IN_NANOS;
+			if(nextAckTimeInNanos != -1) {
+				timeoutInNanos = Math.max(1, Math.min(timeoutInNanos, nextAckTimeInNanos - System.nanoTime()));
+			}
+			
+			Queue<MQMessage> queue = shard._queue.getNextMessagesBlockingTimeout(timeoutInNanos);
 			
 			if(System.nanoTime() > nextDebugOutInNanos) {
 				debugWriteStateOut(state);
@@ -203,8 +229,11 @@ public class ConnectionBrain {
 			}
 			
 			if(queue.size() == 0) {
+				nextAckTimeInNanos = sendExpiredDelayedAcks(state);
 				continue;
 			}
+			
+			long batchStartInNanos = System.nanoTime();
 					
 //			Queue<MQMessage> queue = _queue.getNextMessagesBlocking(false);
 
@@ -229,10 +258,10 @@ public class ConnectionBrain {
 						double seconds = (TimeUnit.MILLISECONDS.convert(elapstedTime, TimeUnit.NANOSECONDS)) / 1000d;
 						
 						NBLog.debug("------------------", NBLog.INTERESTING);
-						NBLog.debug("Messages processed ["+state.ourUuid+"]: "+messagesProcessed+" per-second: "+(messagesProcessed/seconds)+"  cb-uuid:"+state.ourUuid, NBLog.INTERESTING);
+						NBLog.debug("Messages processed ["+state.ourUuid+"-"+state.shard+"]: "+messagesProcessed+" per-second: "+(messagesProcessed/seconds)+"  cb-uuid:"+state.ourUuid, NBLog.INTERESTING);
 						
 						for(Map.Entry<String, Long> e : messagesProcessedMap.entrySet()) {
-							NBLog.debug("processed ["+state.ourUuid+"]: "+e.getKey()+" " + e.getValue()  + " per-second: "+ (e.getValue()/seconds)  , NBLog.INTERESTING);
+							NBLog.debug("processed ["+state.ourUuid+"-"+state.shard+"]: "+e.getKey()+" " + e.getValue()  + " per-second: "+ (e.getValue()/seconds)  , NBLog.INTERESTING);
 						}
 						
 						messagesProcessed = 0;
@@ -242,26 +271,10 @@ public class ConnectionBrain {
 				}
 				
 				try {
-					if(m.getName() == ConnectionBrainInterface.ADD_SERV_SOCK_LISTENER) {
-						TLAddress addr = (TLAddress)getParam(m, 1);
-						NBServerSocketListener listener = (NBServerSocketListener)getParam(m, 2);
-						servSockListenerMap.put(addr, listener);
-						
-						if(NBLog.DEBUG) {
-							NBLog.debug("process message: "+m.getName()+ " - "+addr, NBLog.INTERESTING);
-						}
-						
-					} else if(m.getName() == ConnectionBrainInterface.REMOVE_SOCK_LISTENER) {
-						TLAddress addr = (TLAddress)getParam(m, 1);
-						servSockListenerMap.remove(addr.getPort());
-
-						if(NBLog.DEBUG) {
-							NBLog.debug("process message: "+m.getName()+ " - "+addr, NBLog.INTERESTING);
-						}
-
-					} else if(m.getName() == ConnectionBrainInterface.INIT_CONNECTION) {
-						NBSocket s = (NBSocket)m.getParam();
-						handleInitConnection(state, s, m);
+					if(m.getName() == ConnectionBrainInterface.INIT_CONNECTION) {
+						NBSocket s = (NBSocket)getParam(m, 1);
+						int connId = (Integer)getParam(m, 2);
+						handleInitConnection(state, s, connId, m);
 						
 					} else if(m.getName() == ConnectionBrainInterface.INITIATE_CONNECTION) {
 						NBSocket s = (NBSocket)getParam(m, 1);
@@ -394,16 +407,10 @@ public class ConnectionBrain {
 						Entry e = state.getEntryFromNBSocket(sock);
 
 						if(e != null) {
-							// If the inputstream has gone from full to not full, then send CmdDataReceived
-							if(!isFull && e.getState() == State.CONN_ESTABLISHED && e._lastPacketIdReceived > e._lastPacketIdAcknowledged) {
-								CmdDataReceived dr = new CmdDataReceived(e._lastPacketIdReceived);
-								
-								e._dataReceivedSinceLastPacketIdAcknowledged = 0;
-								e._timeSinceLastPacketIdAcknowledgedInNanos = System.nanoTime();
-								e._lastPacketIdAcknowledged = e._lastPacketIdReceived;
-					
-								writeCommandToSocket(dr, e.getWrapper(), e);
-								NBLog.sent(dr, e.getTriplet(), e.getWrapper(), NBLog.INFO);
+							// If the inputstream has gone from full to not full, then send CmdDataReceived; even if all the data 
+							// has been acknowledged, this informs the sender that the receive window has opened
+							if(!isFull && e.getState() == State.CONN_ESTABLISHED && e._lastPacketIdReceived != -1) {
+								CBUtil.sendDataAck(state, e, e.getWrapper());
 							}
 							
 						} else {
@@ -421,9 +428,44 @@ public class ConnectionBrain {
 				}
 				
 			}
+			
+			nextAckTimeInNanos = sendExpiredDelayedAcks(state);
+			
+			metrics.batchProcessed(queue.size(), System.nanoTime() - batchStartInNanos, state.uuidMapInternal.size());
 		}
 		
 	}
+	
+	/** Sends the delayed acks whose deadline has passed; returns the earliest remaining deadline, or -1 if there are none. */
+	private static long sendExpiredDelayedAcks(ThreadState state) {
+		if(state.delayedAckEntries.size() == 0) {
+			return -1;
+		}
+		
+		long currTime = System.nanoTime();
+		long nextAckTime = -1;
+		
+		for(Iterator<Entry> it = state.delayedAckEntries.iterator(); it.hasNext();) {
+			Entry e = it.next();
+			
+			if(e._ackDeadlineInNanos == -1 || e.getState() != State.CONN_ESTABLISHED || !CBUtil.isDataAckPending(e)) {
+				// Already acknowledged (or no longer able to be)
+				e._ackDeadlineInNanos = -1;
+				it.remove();
+				
+			} else if(e._ackDeadlineInNanos - currTime <= 0) {
+				// If the input stream is full, the ack will instead be sent once it is no longer full 
+				CBUtil.sendDataAck(state, e, e.getWrapper());
+				e._ackDeadlineInNanos = -1;
+				it.remove();
+				
+			} else if(nextAckTime == -1 || e._ackDeadlineInNanos - nextAckTime < 0) {
+				nextAckTime = e._ackDeadlineInNanos;
+			}
+		}
+		
+		return nextAckTime;
+	}
 		
 	
 	// Debug Constants ------------------------
@@ -461,17 +503,25 @@ public class ConnectionBrain {
 	// ---------------------------------
 	
 	protected ConnectionBrain(ISocketFactory innerFactory, NBOptions options, boolean isConnectorBrain) {
-		_ourUuid = new ConstructorTransfer<String>(UUID.randomUUID().toString());
-		_options = new ConstructorTransfer<NBOptions>(options);
+		_ourUuid = UUID.randomUUID().toString();
+		_options = options;
 		_innerFactory = innerFactory;
+		_isConnectorBrain = isConnectorBrain;
 		
-		_queue = new MessageQueue(this.getClass().getName());
+		_shards = new BrainShard[options.getBrainShards()];
+		
+		MessageQueue[] queues = new MessageQueue[_shards.length];
+		for(int x = 0; x < _shards.length; x++) {
+			_shards[x] = new BrainShard(x, new MessageQueue(this.getClass().getName()), new BrainShardMetrics(x, isConnectorBrain));
+			queues[x] = _shards[x]._queue;
+		}
 	
-		_inter = new ConnectionBrainInterface(_queue);
-		_isConnectorBrain = isConnectorBrain;
+		_inter = new ConnectionBrainInterface(queues, _servSockListenerMap, _nextConnId, _ourUuid);
 		
-		ThreadBootstrap tb = new ThreadBootstrap(this);
-		tb.start();
+		for(BrainShard shard : _shards) {
+			ThreadBootstrap tb = new ThreadBootstrap(this, shard);
+			tb.start();
+		}
 		
 		// Mapper.getInstance().putIntoList("CB", this);
 		
@@ -481,6 +531,15 @@ public class ConnectionBrain {
 		return _inter;
 	}
 	
+	/** Returns the metrics of each of the shards of this brain, in shard order. */
+	public List<BrainShardMetrics> getShardMetrics() {
+		List<BrainShardMetrics> result = new ArrayList<BrainShardMetrics>();
+		for(BrainShard shard : _shards) {
+			result.add(shard._metrics);
+		}
+		return result;
+	}
+	
 	
 	/** Connector - This is used in the case where the connector sent CmdNewConn, but it was not received by the connectee. */
 	private static void handleInitiateExistingConnection(ThreadState state, NBSocket s, ISocketTLWrapper wrapper, MQMessage msg) {
@@ -523,7 +582,7 @@ public class ConnectionBrain {
 	
 	
 	/** Connector */
-	private static void handleInitConnection(ThreadState state, NBSocket s, MQMessage msg) {
+	private static void handleInitConnection(ThreadState state, NBSocket s, int connId, MQMessage msg) {
 
 		assertBrainIsConnector(state);
 
@@ -538,8 +597,7 @@ public class ConnectionBrain {
 		
 		e = new Entry();
 
-		Triplet triplet = new Triplet(state.ourUuid, state.nextConnId, true);
-		state.nextConnId++;
+		Triplet triplet = new Triplet(state.ourUuid, connId, true);
 		e.setTriplet(triplet);
 
 		
@@ -942,6 +1000,11 @@ public class ConnectionBrain {
 
 
 		if(e.getWrapper() != null) {
+			// Send any pending ack along with the flushed data
+			if(state.options.isAckOnFlush() && e.getState() == State.CONN_ESTABLISHED && CBUtil.isDataAckPending(e)) {
+				CBUtil.sendDataAck(state, e, e.getWrapper());
+			}
+			
 			e.getWrapper().flush();			
 		} 
 		
@@ -1001,7 +1064,13 @@ public class ConnectionBrain {
 				e.getState() == State.CONN_ESTABLISHED) {
 
 			if(e.getWrapper() != null) {
+				// Piggyback any pending ack on the data, so that it is written to the inner socket with it
+				if(state.options.isAckPiggyback() && CBUtil.isDataAckPending(e)) {
+					CBUtil.sendDataAck(state, e, e.getWrapper());
+				}
+				
 				writeCommandToSocket(c, e.getWrapper(), e);
+				e.startRttProbeIfNeeded(c);
 				
 				NBLog.sent("HEDS-"+e.getState(), c, e.getTriplet(), e.getWrapper(), NBLog.INFO);
 			} else {
@@ -1024,18 +1093,33 @@ public class ConnectionBrain {
 		return _innerFactory;
 	}
 	
+	/** The message queue and metrics of a single brain thread. */
+	private static class BrainShard {
+		final int _index;
+		final MessageQueue _queue;
+		final BrainShardMetrics _metrics;
+		
+		public BrainShard(int index, MessageQueue queue, BrainShardMetrics metrics) {
+			_index = index;
+			_queue = queue;
+			_metrics = metrics;
+		}
+	}
+	
 	private class ThreadBootstrap extends ManagedThread {
 		
 		final ConnectionBrain _brain;
+		final BrainShard _shard;
 		
-		public ThreadBootstrap(ConnectionBrain brain) {
-			super(ConnectionBrain.class.getName(), true);
+		public ThreadBootstrap(ConnectionBrain brain, BrainShard shard) {
+			super(ConnectionBrain.class.getName()+(brain._shards.length > 1 ? " shard-"+shard._index : ""), true);
 			_brain = brain;
+			_shard = shard;
 		}
 		
 		@Override
 		public void run() {
-			_brain.run();
+			_brain.run(_shard);
 		}
 	}
 	
@@ -1153,16 +1237,30 @@ class Entry {
 	
 //	long _timeSinceLastPacketIdAcknowledged; // time since we sent the last CmdDataReceived for data received
 	long _dataReceivedSinceLastPacketIdAcknowledged; // amount of data we've received since we last sent CmdDataReceived
+	int _packetsReceivedSinceLastPacketIdAcknowledged; // number of data packets we've received since we last sent CmdDataReceived
+	
+	long _ackDeadlineInNanos = -1; // when the delayed ack for the received data must be sent by, or -1 if there is none pending
 	
 	
 	// Data Sent by us -------
 	int _lastPacketIdSent = -1; // the id of the last packet we sent 
 
-	final List<SentDataPacket> _waitingDataPackets = new ArrayList<SentDataPacket>();
-	long _bytesInWaitingDataList = 0;
+	final SentDataPacketBuffer _waitingDataPackets = new SentDataPacketBuffer(); // packets that will be sent once the connection is established
+	
+	final SentDataPacketBuffer _sentDataPackets = new SentDataPacketBuffer(); // the sent packets that the remote node has not yet confirmed
+	
+	// Flow control of data sent by us -------
+	long _remoteReceiveWindow = -1; // space remaining in the remote receive window as of its last ack, or -1 if it has not advertised one
+	
+	long _sendWindow = -1; // the most unacknowledged data we will send before blocking senders; -1 until first used
 	
-	final List<SentDataPacket> _sentDataPackets = new ArrayList<SentDataPacket>(); // the sent packets that the remote node has not yet confirmed
-	long _bytesInSentDataList = 0;
+	long _smoothedRttInNanos = -1;
+	
+	int _rttProbePacketId = -1; // the data packet we are timing the round trip of, or -1 if none
+	long _rttProbeSentTimeInNanos;
+	
+	long _bytesAckedSinceLastRttSample = 0;
+	long _lastRttSampleTimeInNanos = -1;
 	
 	boolean _isInputPipeClosed = false;
 	
@@ -1208,17 +1306,14 @@ class Entry {
 				NBLog.severe("Sent data packets had data when it should not, size: "+_sentDataPackets.size()+" "+getTriplet());
 			}
 			
-			for(SentDataPacket sdp : _waitingDataPackets) {
+			for(SentDataPacket sdp : _waitingDataPackets.getPackets(getTriplet())) {
 				writeCommandToSocket(sdp.getDataCmd(), getWrapper(), this);
 				NBLog.sent(sdp.getDataCmd(), getTriplet(), getWrapper(), NBLog.INTERESTING);
 			}
 			
 		}
 		
-		_sentDataPackets.addAll(_waitingDataPackets);
-		_waitingDataPackets.clear();
-		_bytesInSentDataList += _bytesInWaitingDataList;
-		_bytesInWaitingDataList = 0;
+		_waitingDataPackets.transferTo(_sentDataPackets);
 //		_bytesInSentAndWaitingDataList = 0;
 //		
 //		for(SentDataPacket sdp : _sentDataPackets) {
@@ -1235,24 +1330,24 @@ class Entry {
 		if(getState() == State.CONN_ESTABLISHED) {
 
 			_sentDataPackets.add(new SentDataPacket(data));
-			_bytesInSentDataList+= data.getFieldDataLength();
 			
 		} else {
 			
 			_waitingDataPackets.add(new SentDataPacket(data));
-			_bytesInWaitingDataList += data.getFieldDataLength();
 			
 		}
 		
-		NBLog.debug("[data2] Adding data packet "+data+" "+getTriplet()+ " "+getState().name(), NBLog.INFO);
+		if(NBLog.DEBUG) {
+			NBLog.debug("[data2] Adding data packet "+data+" "+getTriplet()+ " "+getState().name(), NBLog.INFO);
+		}
 		
 		String debugDest;
 		
-		// If this is a limit on the data receiver, and we are over it...
-		if(state.options.getMaxDataReceivedBuffer() != -1 && 
-				_bytesInWaitingDataList + _bytesInSentDataList > state.options.getMaxDataReceivedBuffer()) {
+		// If we have used our send window...
+		if(_waitingDataPackets.getBytes() + _sentDataPackets.getBytes() > calculateSendWindow(state)) {
 			// Add our callback to the list of waiting callbacks
 			_waitingDataSenders.add(responseQueue);
+			state.metrics.sendWindowStall();
 			NBLog.debug("[data] Adding to waiting data senders: "+responseQueue.getDebug()+" "+getTriplet(), NBLog.INFO);
 			debugDest = "waiting";
 		} else {
@@ -1285,45 +1380,103 @@ class Entry {
 //		NBLog.debug("[data] Add sent data packet, status: ["+debugDest+"]  "+data+" "+responseQueue.getDebug(), NBLog.INFO);
 //	}
 	
+	/** Removes the sent packets that have been acknowledged by the remote node (those up to and including the given id), 
+	 * and returns the remaining sent packets, in packet id order, so that they may be resent. */
 	List<SentDataPacket> getNewPacketsAndRemoveOld(int lastDataPacketToRemove, ThreadState state) {
 		
-		List<SentDataPacket> result = new ArrayList<SentDataPacket>();
+		removeAcknowledgedPackets(lastDataPacketToRemove, state);
+		
+		// The packets are being resent, so their ack would not give an accurate round trip time
+		_rttProbePacketId = -1;
+		
+		return _sentDataPackets.getPacketsFrom(lastDataPacketToRemove+1, getTriplet());
+
+	}
+	
+	/** Removes the sent packets up to and including the given id, which the remote node has acknowledged. */
+	void removeAcknowledgedPackets(int lastDataPacketToRemove, ThreadState state) {
+		
+		if(_sentDataPackets.removeUpTo(lastDataPacketToRemove) > 0) {
+			checkAndInformWaitingSenders(state);
+		}
 		
-		Collections.sort(_sentDataPackets);
+	}
+	
+	/** Called when the remote node acknowledges the data packets up to and including the given id (CmdDataReceived); 
+	 * removes them, and updates the send window from the remote receive window and the round trip time. */
+	void dataAckReceived(int lastPacketIdReceived, int remoteReceiveWindow, ThreadState state) {
+		long currTime = System.nanoTime();
 		
-		int nextExpectedDataPacket = lastDataPacketToRemove+1;
+		if(remoteReceiveWindow != -1) {
+			_remoteReceiveWindow = remoteReceiveWindow;
+		}
+		
+		_bytesAckedSinceLastRttSample += _sentDataPackets.removeUpTo(lastPacketIdReceived);
 		
-		for(Iterator<SentDataPacket> i = _sentDataPackets.iterator(); i.hasNext();) {
-			SentDataPacket p = i.next();
+		if(_rttProbePacketId != -1 && lastPacketIdReceived >= _rttProbePacketId) {
+			long rtt = currTime - _rttProbeSentTimeInNanos;
+			_smoothedRttInNanos = _smoothedRttInNanos == -1 ? rtt : (7 * _smoothedRttInNanos + rtt) / 8;
+			_rttProbePacketId = -1;
 			
-			if(p.getDataCmd().getFieldPacketId() >= nextExpectedDataPacket) {
-				 if(p.getDataCmd().getFieldPacketId() != nextExpectedDataPacket) {
-					 NBLog.severe("Missing data packet: found " +p.getDataCmd().getFieldPacketId()+" expected "+nextExpectedDataPacket+" "+getTriplet());
-				 } else {
-					 nextExpectedDataPacket++;					 
-				 }
-			}
-
-			if(p.getDataCmd().getFieldPacketId() > lastDataPacketToRemove) {
-				result.add(p);
-			} else {
-				NBLog.debug("[data2] Removing data packet "+p.getDataCmd()+" "+getTriplet(), NBLog.INFO);
-				i.remove();
-				_bytesInSentDataList -= p.getDataCmd().getFieldDataLength();
+			if(_lastRttSampleTimeInNanos != -1 && currTime - _lastRttSampleTimeInNanos > 0) {
+				// The bandwidth-delay product is the rate at which data was acknowledged since the last sample, multiplied 
+				// by the round trip time; while the window is the bottleneck, the window doubles each round trip. The 
+				// window only grows: it is a limit on the data buffered, rather than an allocation.
+				long bdp = (long)((double)_bytesAckedSinceLastRttSample * _smoothedRttInNanos / (currTime - _lastRttSampleTimeInNanos));
+				long target = Math.min(2 * bdp, state.options.getMaxSendWindow());
+				if(target > getSendWindow(state)) {
+					_sendWindow = target;
+				}
 			}
+			
+			_lastRttSampleTimeInNanos = currTime;
+			_bytesAckedSinceLastRttSample = 0;
 		}
 		
+		// The window may have opened even if no packets were removed
 		checkAndInformWaitingSenders(state);
+	}
+	
+	/** Times the round trip of the given data packet, if we are not already timing one. */
+	void startRttProbeIfNeeded(CmdData data) {
+		if(_rttProbePacketId == -1) {
+			_rttProbePacketId = data.getFieldPacketId();
+			_rttProbeSentTimeInNanos = System.nanoTime();
+		}
+	}
+	
+	private long getSendWindow(ThreadState state) {
+		if(_sendWindow == -1) {
+			_sendWindow = state.options.getInitialSendWindow();
+		}
+		return _sendWindow;
+	}
+	
+	/** Returns the most unacknowledged data that may be sent before senders are blocked: the smaller of our send 
+	 * window and the space remaining in the remote receive window. */
+	long calculateSendWindow(ThreadState state) {
+		long result = getSendWindow(state);
+		
+		if(_remoteReceiveWindow != -1) {
+			result = Math.min(result, _remoteReceiveWindow);
+		}
+		
+		if(state.options.getMaxDataReceivedBuffer() != -1) {
+			result = Math.min(result, state.options.getMaxDataReceivedBuffer());
+		}
 		
 		return result;
-
 	}
 	
+	/** Called when bytes have been removed from the packet buffers. */
 	private void checkAndInformWaitingSenders(ThreadState state) {
 		
-		// If there is not a limit on the buffer, or we are under it...
-		if(state.options.getMaxDataReceivedBuffer() == -1 || 
-				_bytesInWaitingDataList + _bytesInSentDataList < state.options.getMaxDataReceivedBuffer()) {
+		if(_waitingDataSenders.size() == 0) {
+			return;
+		}
+		
+		// If we are under the send window...
+		if(_waitingDataPackets.getBytes() + _sentDataPackets.getBytes() < calculateSendWindow(state)) {
 			
 			NBLog.debug("[data] checkAndInformWaitingSenders, clearing all: "+getTriplet(), NBLog.INFO);
 			// Inform and clear all the waiting senders.
@@ -1342,34 +1495,16 @@ class Entry {
 		
 	void clearSentPackets(ThreadState state) {
 		
-		for(SentDataPacket sdp : _sentDataPackets) {
-			NBLog.debug("[data2] Removing data packet "+sdp.getDataCmd()+" "+getTriplet(), NBLog.INFO);	
+		if(NBLog.DEBUG) {
+			for(SentDataPacket sdp : _sentDataPackets.getPackets(getTriplet())) {
+				NBLog.debug("[data2] Removing data packet "+sdp.getDataCmd()+" "+getTriplet(), NBLog.INFO);	
+			}
 		}
 		_sentDataPackets.clear();
-		_bytesInSentDataList = 0;
 		checkAndInformWaitingSenders(state);
 	}
 }
 
-/** Contained in a list of packets in Entry*/
-class SentDataPacket implements Comparable<SentDataPacket> {
-	
-	public SentDataPacket(CmdData data) {
-		this._data = data;
-	}
-	
-	private CmdData _data;
-	
-	public CmdData getDataCmd() {
-		return _data;
-	}
-
-	@Override
-	public int compareTo(SentDataPacket o) {
-		return this._data.getFieldPacketId() - o._data.getFieldPacketId();
-	}
-}
-
 class PairUUIDConnID {
 	
 	private final String _uuid;
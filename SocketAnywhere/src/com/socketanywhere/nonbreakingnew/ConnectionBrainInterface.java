@@ -1,5 +1,10 @@
 package com.socketanywhere.nonbreakingnew;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.socketanywhere.multiplexingnew.MQMessage;
 import com.socketanywhere.multiplexingnew.MessageQueue;
 import com.socketanywhere.net.TLAddress;
@@ -7,30 +12,89 @@ import com.socketanywhere.nonbreakingnew.ConnectionBrain.ThreadState;
 import com.socketanywhere.nonbreakingnew.Entry.State;
 import com.socketanywhere.nonbreakingnew.cmd.CmdAbstract;
 import com.socketanywhere.nonbreakingnew.cmd.CmdData;
+import com.socketanywhere.nonbreakingnew.cmd.ICmdUuidConnId;
 
+/** Sends messages to the brain thread(s) of a ConnectionBrain. Each message is added to the queue of the shard that 
+ * owns the connection it refers to, which is located from the connection's UUID and connection id, or from the shard 
+ * previously pinned on the NBSocket or ISocketTLWrapper. */
 public class ConnectionBrainInterface {
 	
 	// not immutable
-	private final MessageQueue _queue;	
+	private final MessageQueue[] _queues;
+	
+	/** Shared by all shards */
+	private final Map<TLAddress, NBServerSocketListener> _servSockListenerMap;
+	
+	/** Shared by all shards */
+	private final AtomicInteger _nextConnId;
+	
+	/** The UUID of the brain */
+	private final String _ourUuid;
 
+	public ConnectionBrainInterface(MessageQueue[] queues, Map<TLAddress, NBServerSocketListener> servSockListenerMap, AtomicInteger nextConnId, String ourUuid) {
+		this._queues = queues;
+		this._ourUuid = ourUuid;
+		this._servSockListenerMap = servSockListenerMap;
+		this._nextConnId = nextConnId;
+	}
+	
+	// ---------------------------------
+	
+	private int getShard(String nodeUUID, int connId) {
+		if(_queues.length == 1) {
+			return 0;
+		}
+		return (new PairUUIDConnID(nodeUUID, connId).hashCode() & Integer.MAX_VALUE) % _queues.length;
+	}
+	
+	private MessageQueue queueFor(String nodeUUID, int connId) {
+		return _queues[getShard(nodeUUID, connId)];
+	}
 	
-	public ConnectionBrainInterface(MessageQueue queue) {
-		this._queue = queue;
+	private MessageQueue queueFor(NBSocket s) {
+		int shard = s.getBrainShard();
+		if(shard == -1) {
+			// Connectee sockets are created with their triplet, so the shard is located on first use.
+			Triplet t = s.getDebugTriplet();
+			shard = t != null ? getShard(t.getConnectorUuid(), t.getConnectorId()) : 0;
+			s.setBrainShard(shard);
+		}
+		return _queues[shard];
+	}
+	
+	/** A wrapper that has not yet been associated with a connection (for example, a connectee socket that has not yet 
+	 * received CmdNewConn/CmdJoinConn) is handled by the first shard. */
+	private MessageQueue queueFor(ISocketTLWrapper w) {
+		int shard = w.getBrainShard();
+		return _queues[shard != -1 ? shard : 0];
+	}
+	
+	/** Ensures that all subsequent messages for the given wrapper are handled by the shard of the given socket; this 
+	 * should be called before the wrapper's listener thread is started. */
+	public void pinToShard(ISocketTLWrapper w, NBSocket s) {
+		queueFor(s);
+		w.setBrainShard(s.getBrainShard());
 	}
 
 	// ---------------------------------
 
 	static final String DEBUG_GET_THREAD_STATE_AND_STOP = "DEBUG_GET_THREAD_STATE_AND_STOP";
 
-	public ThreadState getThreadStateAndStop() {
-		MessageQueue response = new MessageQueue(DEBUG_GET_THREAD_STATE_AND_STOP);
-		
-		MQMessage m = new MQMessage(DEBUG_GET_THREAD_STATE_AND_STOP, ConnectionBrain.class, null, response);		
-		_queue.addMessage(m);
-		
-		MQMessage result = response.getNextMessageBlocking();
-		
-		return (ThreadState)result.getParam();
+	/** Stops all the shards, and returns the state of each, in shard order; each shard only holds the entries of the 
+	 * connections that it owns. */
+	public List<ThreadState> getThreadStatesAndStop() {
+		List<ThreadState> result = new ArrayList<ThreadState>();
+		
+		for(MessageQueue queue : _queues) {
+			MessageQueue response = new MessageQueue(DEBUG_GET_THREAD_STATE_AND_STOP);
+			
+			MQMessage m = new MQMessage(DEBUG_GET_THREAD_STATE_AND_STOP, ConnectionBrain.class, null, response);		
+			queue.addMessage(m);
+			
+			result.add((ThreadState)response.getNextMessageBlocking().getParam());
+		}
+		
+		return result;
 	
 	}
 	
@@ -42,7 +106,7 @@ public class ConnectionBrainInterface {
 		MessageQueue response = new MessageQueue(DEBUG_GET_ENTRY);
 		
 		MQMessage m = new MQMessage(DEBUG_GET_ENTRY, ConnectionBrain.class, socket, response);		
-		_queue.addMessage(m);
+		queueFor(socket).addMessage(m);
 		
 		MQMessage result = response.getNextMessageBlocking();
 		
@@ -53,27 +117,24 @@ public class ConnectionBrainInterface {
 	
 	
 
-	static final String ADD_SERV_SOCK_LISTENER = "ADD_SERV_SOCK_LISTENER";
-	
+	/** The server socket listeners are shared by all shards, so they are updated directly rather than by message. */
 	public void addServSockListener(TLAddress addr, NBServerSocketListener listener) {
 		
-		Object[] obj = new Object[2];
-		obj[0] = new TLAddress(addr.getPort());
-		obj[1] = listener;
+		_servSockListenerMap.put(new TLAddress(addr.getPort()), listener);
 		
-		MQMessage m = new MQMessage(ADD_SERV_SOCK_LISTENER, ConnectionBrain.class, obj, null);		
-		_queue.addMessage(m);
+		if(NBLog.DEBUG) {
+			NBLog.debug("add serv sock listener - "+addr, NBLog.INTERESTING);
+		}
 		
 	}
 	
-	static final String REMOVE_SOCK_LISTENER = "REMOVE_SOCK_LISTENER"; 
-	
 	public void removeSockListener(TLAddress addr) {
-		Object[] obj = new Object[1];
-		obj[0] = addr;
+		
+		_servSockListenerMap.remove(new TLAddress(addr.getPort()));
 
-		MQMessage m = new MQMessage(REMOVE_SOCK_LISTENER, ConnectionBrain.class, obj, null);
-		_queue.addMessage(m);
+		if(NBLog.DEBUG) {
+			NBLog.debug("remove serv sock listener - "+addr, NBLog.INTERESTING);
+		}
 		
 	}
 	
@@ -88,8 +149,10 @@ public class ConnectionBrainInterface {
 		obj[0] = s;
 		obj[1] = wrapper;
 		
+		pinToShard(wrapper, s);
+		
 		MQMessage m = new MQMessage(INITIATE_CONNECTION_EXISTING, ConnectionBrain.class, obj, responseQueue);
-		_queue.addMessage(m);
+		queueFor(s).addMessage(m);
 		
 	}
 
@@ -99,9 +162,16 @@ public class ConnectionBrainInterface {
 	public Triplet initConnection(NBSocket s) {
 		
 		MessageQueue responseQueue = new MessageQueue(INIT_CONNECTION);
-				
-		MQMessage m = new MQMessage(INIT_CONNECTION, ConnectionBrain.class, s, responseQueue);
-		_queue.addMessage(m);
+		
+		// The connection id is allocated here, so that the socket can be pinned to the shard that will own the connection.
+		Object[] params = new Object[2];
+		params[0] = s;
+		params[1] = _nextConnId.getAndIncrement();
+		
+		s.setBrainShard(getShard(_ourUuid, (Integer)params[1]));
+		
+		MQMessage m = new MQMessage(INIT_CONNECTION, ConnectionBrain.class, params, responseQueue);
+		queueFor(s).addMessage(m);
 
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Triplet)response.getParam();
@@ -120,8 +190,10 @@ public class ConnectionBrainInterface {
 		params[0] = s;
 		params[1] = wrapper;
 		
+		pinToShard(wrapper, s);
+		
 		MQMessage m = new MQMessage(INITIATE_CONNECTION, ConnectionBrain.class, params, responseQueue);
-		_queue.addMessage(m);
+		queueFor(s).addMessage(m);
 
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Triplet)response.getParam();
@@ -138,8 +210,10 @@ public class ConnectionBrainInterface {
 		params[1] = connId;
 		params[2] = validConn;
 		
+		validConn.setBrainShard(getShard(nodeUUID, connId));
+		
 		MQMessage msg = new MQMessage(INITIATE_JOIN_CLOSE, ConnectionBrain.class, params, null);
-		_queue.addMessage(msg);
+		queueFor(nodeUUID, connId).addMessage(msg);
 		
 	}
 
@@ -154,8 +228,10 @@ public class ConnectionBrainInterface {
 		params[1] = connId;
 		params[2] = validConn;
 		
+		validConn.setBrainShard(getShard(nodeUUID, connId));
+		
 		MQMessage msg = new MQMessage(INITIATE_JOIN, ConnectionBrain.class, params, null);
-		_queue.addMessage(msg);
+		queueFor(nodeUUID, connId).addMessage(msg);
 		
 	}
 	
@@ -164,7 +240,7 @@ public class ConnectionBrainInterface {
 	
 	public void eventLocalInitClose(NBSocket s) {
 		
-		_queue.addMessage(new MQMessage(EVENT_LOCAL_INIT_CLOSE, ConnectionBrain.class, s, null));
+		queueFor(s).addMessage(new MQMessage(EVENT_LOCAL_INIT_CLOSE, ConnectionBrain.class, s, null));
 		
 	}
 	
@@ -173,7 +249,7 @@ public class ConnectionBrainInterface {
 	/** This method is called when we have detected a problem with the socket; start the recovery thread if needed. */
 	public void eventConnErrDetectedReconnectIfNeeded(ISocketTLWrapper sock) {
 		MQMessage m = new MQMessage(EVENT_CONN_ERR_DETECTED_RECONNECT_IF_NEEDED, ConnectionBrain.class, sock, null);
-		_queue.addMessage(m);		
+		queueFor(sock).addMessage(m);		
 	}
 	
 	
@@ -182,7 +258,7 @@ public class ConnectionBrainInterface {
 	protected State entryState(ISocketTLWrapper s) {
 		MessageQueue responseQueue = new MessageQueue(GET_ENTRY_STATE);
 		
-		_queue.addMessage(new MQMessage(GET_ENTRY_STATE, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(GET_ENTRY_STATE, ConnectionBrain.class, s, responseQueue));
 		
 		return (State)responseQueue.getNextMessageBlocking().getParam();
 		
@@ -192,7 +268,7 @@ public class ConnectionBrainInterface {
 	public boolean isInputPipeClosed(NBSocket s) {
 		MessageQueue responseQueue = new MessageQueue("isConnectionClosed");
 		
-		_queue.addMessage(new MQMessage(IS_INPUT_PIPE_CLOSED, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(IS_INPUT_PIPE_CLOSED, ConnectionBrain.class, s, responseQueue));
 		
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Boolean)response.getParam();
@@ -208,7 +284,7 @@ public class ConnectionBrainInterface {
 		
 		MessageQueue responseQueue = new MessageQueue(IS_CONNECTION_CLOSED+ " "+s.getDebugTriplet());
 		
-		_queue.addMessage(new MQMessage(IS_CONNECTION_CLOSED, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(IS_CONNECTION_CLOSED, ConnectionBrain.class, s, responseQueue));
 		
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Boolean)response.getParam();
@@ -220,7 +296,7 @@ public class ConnectionBrainInterface {
 		
 		MessageQueue responseQueue = new MessageQueue(IS_CLOSING_OR_CLOSED);
 		
-		_queue.addMessage(new MQMessage(IS_CLOSING_OR_CLOSED, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(IS_CLOSING_OR_CLOSED, ConnectionBrain.class, s, responseQueue));
 		
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Boolean)response.getParam();
@@ -238,7 +314,7 @@ public class ConnectionBrainInterface {
 
 		MessageQueue responseQueue = new MessageQueue(IS_CONNECTION_ESTABLISHED_OR_CLOSING);
 		
-		_queue.addMessage(new MQMessage(IS_CONNECTION_ESTABLISHED_OR_CLOSING, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(IS_CONNECTION_ESTABLISHED_OR_CLOSING, ConnectionBrain.class, s, responseQueue));
 		
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Boolean)response.getParam();
@@ -252,7 +328,7 @@ public class ConnectionBrainInterface {
 	public boolean isConnectionEstablishedOrEstablishing(NBSocket s) {
 		MessageQueue responseQueue = new MessageQueue(IS_CONNECTION_ESTABLISHED_OR_ESTABLISHING);
 		
-		_queue.addMessage(new MQMessage(IS_CONNECTION_ESTABLISHED_OR_ESTABLISHING, ConnectionBrain.class, s, responseQueue));
+		queueFor(s).addMessage(new MQMessage(IS_CONNECTION_ESTABLISHED_OR_ESTABLISHING, ConnectionBrain.class, s, responseQueue));
 		
 		MQMessage response = responseQueue.getNextMessageBlocking();
 		return (Boolean)response.getParam();
@@ -269,13 +345,28 @@ public class ConnectionBrainInterface {
 		
 		MessageQueue responseQueue = new MessageQueue(EVENT_SEND_DATA+"-"+s.getDebugTriplet()+" "+c);
 		
-		_queue.addMessage(new MQMessage(EVENT_SEND_DATA, ConnectionBrain.class, params, responseQueue));
+		queueFor(s).addMessage(new MQMessage(EVENT_SEND_DATA, ConnectionBrain.class, params, responseQueue));
 		
 		// Wait for response to let us know it could be sent
 		boolean success = (Boolean)responseQueue.getNextMessageBlocking().getParam();
 		
 		return success;
 	}
+	
+	/** As eventDataSent(...), but does not wait for the brain to accept the data; used by the send buffer flush 
+	 * thread, which must not block on any one socket. Returns the queue on which the brain will respond (with the 
+	 * same Boolean as eventDataSent(...)) once it has accepted the data. */
+	public MessageQueue eventDataSentNoWait(NBSocket s, CmdData c) {
+		Object[] params = new Object[2];
+		params[0] = s;
+		params[1] = c;
+		
+		MessageQueue responseQueue = new MessageQueue(EVENT_SEND_DATA+"-"+s.getDebugTriplet()+" "+c);
+		
+		queueFor(s).addMessage(new MQMessage(EVENT_SEND_DATA, ConnectionBrain.class, params, responseQueue));
+		
+		return responseQueue;
+	}
 
 	static final String EVENT_FLUSH_SOCKET = "FLUSH_SOCKET";
 	
@@ -283,7 +374,7 @@ public class ConnectionBrainInterface {
 		Object[] params = new Object[1];
 		params[0] = s;
 		
-		_queue.addMessage(new MQMessage(EVENT_FLUSH_SOCKET, ConnectionBrain.class, params, null));
+		queueFor(s).addMessage(new MQMessage(EVENT_FLUSH_SOCKET, ConnectionBrain.class, params, null));
 		
 	}
 
@@ -295,7 +386,20 @@ public class ConnectionBrainInterface {
 		Object[] params = new Object[2];
 		params[0] = sock;
 		params[1] = cmd;
-		_queue.addMessage(new MQMessage(EVENT_COMMAND_RECEIVED, ConnectionBrain.class, params, null));
+		
+		MessageQueue queue;
+		if(cmd instanceof ICmdUuidConnId) {
+			// The command identifies its connection, so all further commands on this socket belong to the same shard 
+			// (this is how connectee sockets are pinned, on receipt of CmdNewConn/CmdJoinConn)
+			ICmdUuidConnId c = (ICmdUuidConnId)cmd;
+			int shard = getShard(c.getFieldNodeUUID(), c.getFieldConnectionId());
+			sock.setBrainShard(shard);
+			queue = _queues[shard];
+		} else {
+			queue = queueFor(sock);
+		}
+		
+		queue.addMessage(new MQMessage(EVENT_COMMAND_RECEIVED, ConnectionBrain.class, params, null));
 	}
 	
 	
@@ -305,7 +409,7 @@ public class ConnectionBrainInterface {
 		Object[] params = new Object[2];
 		params[0] = sock;
 		params[1] = (Boolean)isFull;
-		_queue.addMessage(new MQMessage(EVENT_INPUT_STREAM_IS_FULL, ConnectionBrain.class, params, null));
+		queueFor(sock).addMessage(new MQMessage(EVENT_INPUT_STREAM_IS_FULL, ConnectionBrain.class, params, null));
 	}
 	
 	
@@ -22,6 +22,9 @@ public class ISocketTLWrapper {
 
 	private final boolean _fromServSock;
 	
+	/** The ConnectionBrain shard that owns the connection this socket is used for, or -1 if not yet associated with a connection */
+	private volatile int _brainShard = -1;
+	
 	public ISocketTLWrapper(ISocketTL socket, boolean fromServSock, ConnectionBrain cb) throws IOException {
 		if(socket instanceof NBSocket) {
 			throw new IllegalArgumentException("invalid param.");
@@ -86,6 +89,14 @@ public class ISocketTLWrapper {
 		return _globalId;
 	}
 	
+	int getBrainShard() {
+		return _brainShard;
+	}
+	
+	void setBrainShard(int brainShard) {
+		_brainShard = brainShard;
+	}
+	
 	public SocketOutWriter debug_getWriter() {
 		return _writer;
 	}
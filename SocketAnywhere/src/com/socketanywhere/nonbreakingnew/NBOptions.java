@@ -24,6 +24,48 @@ public class NBOptions {
 	/** Optional value that specifies how large to allow the data received buffer(s) to grow before blocking on read(), to prevent
 	 * them from growing larger. Defaults to infinite. */	
 	int _maxDataReceivedBuffer = -1; // Defaults to infinite.
+	
+	/** The number of ConnectionBrain threads that the connections of a factory are spread across; each connection is 
+	 * pinned to a single shard by the hash of its connector UUID and connection id. Must be set before the factory is 
+	 * created (see NBSocketFactory(ISocketFactory, NBOptions)). */
+	int _brainShards = 1;
+	
+	/** If greater than 0, writes to an NBSocket's output stream are coalesced into CmdData frames: a frame is sent once 
+	 * at least this many bytes have been buffered, on flush() or close(), or once sendMaxLinger has elapsed. Defaults to disabled. */
+	int _sendFrameTargetSize = 0;
+	
+	/** When coalescing, the largest CmdData frame that will be sent; larger writes are split into frames of this size. */
+	int _sendFrameMaxSize = 64 * 1024;
+	
+	/** When coalescing, the maximum time (in msecs) that written data may wait in the send buffer before it is sent. */
+	long _sendMaxLinger = 5;
+	
+	/** Cumulative acknowledgement (CmdDataReceived) policy: an ack is sent once this many bytes have been received since 
+	 * the last ack. Defaults to adaptive (-1): a quarter of the receive window (see calculateReceiveWindow()), but at 
+	 * most 64KB. */
+	int _ackByteThreshold = -1;
+	
+	/** An ack is sent once this many data packets have been received since the last ack. */
+	int _ackPacketThreshold = 32;
+	
+	/** The maximum time (in msecs) that received data may wait to be acknowledged, if neither threshold is reached. */
+	long _ackDelay = 20;
+	
+	/** Whether a pending ack is sent when the local side flushes its output stream */
+	boolean _ackOnFlush = true;
+	
+	/** Whether a pending ack is sent along with each outgoing data packet, rather than waiting for a threshold or the delay */
+	boolean _ackPiggyback = true;
+	
+	/** Flow control: the receiver advertises the space remaining in its receive window with each ack, and the sender 
+	 * blocks once its unacknowledged data reaches the smaller of the advertised space and its send window. The receive 
+	 * window is maxDataReceivedBuffer if set, otherwise this value. */
+	int _maxReceiveWindow = 16 * 1024 * 1024;
+	
+	/** The send window of a new connection; the send window grows towards twice the observed bandwidth-delay product, up to maxSendWindow. */
+	int _initialSendWindow = 256 * 1024;
+	
+	int _maxSendWindow = 16 * 1024 * 1024;
 
 	public NBOptions() {
 	}
@@ -53,6 +95,123 @@ public class NBOptions {
 	public void setMaxDataReceivedBuffer(int maxDataReceivedBuffer) {
 		this._maxDataReceivedBuffer = maxDataReceivedBuffer;
 	}
+
+	public int getBrainShards() {
+		return _brainShards;
+	}
+
+	public void setBrainShards(int brainShards) {
+		if(brainShards < 1) {
+			throw new IllegalArgumentException("There must be at least one brain shard.");
+		}
+		this._brainShards = brainShards;
+	}
+
+	public int getSendFrameTargetSize() {
+		return _sendFrameTargetSize;
+	}
+
+	public void setSendFrameTargetSize(int sendFrameTargetSize) {
+		this._sendFrameTargetSize = sendFrameTargetSize;
+	}
+
+	public int getSendFrameMaxSize() {
+		return _sendFrameMaxSize;
+	}
+
+	public void setSendFrameMaxSize(int sendFrameMaxSize) {
+		this._sendFrameMaxSize = sendFrameMaxSize;
+	}
+
+	public long getSendMaxLinger() {
+		return _sendMaxLinger;
+	}
+
+	public void setSendMaxLinger(long sendMaxLinger) {
+		this._sendMaxLinger = sendMaxLinger;
+	}
+
+	public int getAckByteThreshold() {
+		return _ackByteThreshold;
+	}
+
+	public void setAckByteThreshold(int ackByteThreshold) {
+		this._ackByteThreshold = ackByteThreshold;
+	}
+
+	public int getAckPacketThreshold() {
+		return _ackPacketThreshold;
+	}
+
+	public void setAckPacketThreshold(int ackPacketThreshold) {
+		this._ackPacketThreshold = ackPacketThreshold;
+	}
+
+	public long getAckDelay() {
+		return _ackDelay;
+	}
+
+	public void setAckDelay(long ackDelay) {
+		this._ackDelay = ackDelay;
+	}
+
+	public boolean isAckOnFlush() {
+		return _ackOnFlush;
+	}
+
+	public void setAckOnFlush(boolean ackOnFlush) {
+		this._ackOnFlush = ackOnFlush;
+	}
+
+	public boolean isAckPiggyback() {
+		return _ackPiggyback;
+	}
+
+	public void setAckPiggyback(boolean ackPiggyback) {
+		this._ackPiggyback = ackPiggyback;
+	}
+	
+	public int getMaxReceiveWindow() {
+		return _maxReceiveWindow;
+	}
+
+	public void setMaxReceiveWindow(int maxReceiveWindow) {
+		this._maxReceiveWindow = maxReceiveWindow;
+	}
+
+	public int getInitialSendWindow() {
+		return _initialSendWindow;
+	}
+
+	public void setInitialSendWindow(int initialSendWindow) {
+		this._initialSendWindow = initialSendWindow;
+	}
+
+	public int getMaxSendWindow() {
+		return _maxSendWindow;
+	}
+
+	public void setMaxSendWindow(int maxSendWindow) {
+		this._maxSendWindow = maxSendWindow;
+	}
+	
+	/** Returns the ack byte threshold, resolving the adaptive default. The sender blocks once its window of 
+	 * unacknowledged data is used, so acks must be sent well before that point. */
+	int calculateAckByteThreshold() {
+		if(_ackByteThreshold > 0) {
+			return _ackByteThreshold;
+		}
+		
+		return Math.max(1, Math.min(64 * 1024, calculateReceiveWindow() / 4));
+	}
+	
+	/** Returns the size of the receive window: the most received data that may be buffered for the reader. */
+	int calculateReceiveWindow() {
+		if(_maxDataReceivedBuffer != -1) {
+			return _maxDataReceivedBuffer;
+		}
+		return _maxReceiveWindow;
+	}
 	
 	
 
@@ -50,7 +50,8 @@ public class NBSocket implements ISocketTL {
 
 	/** Streams for the socket */
 	private NBSocketInputStream _inputStream;
-//	private NBSocketOutputStream _outputStream;
+	/** Created on the first call to getOutputStream(); all callers share the stream, and thus its send buffer. Synchronize on _socketLock when accessing. */
+	private NBSocketOutputStream _outputStream;
 	
 	
 	private static final AtomicLong nextDebugId = new AtomicLong();
@@ -60,6 +61,9 @@ public class NBSocket implements ISocketTL {
 	
 	private final NBOptions _options;
 	
+	/** The ConnectionBrain shard that owns this socket's connection, or -1 if not yet located */
+	private volatile int _brainShard = -1;
+	
 	String _debugStr;
 	
 	// Socket only
@@ -103,7 +107,19 @@ public class NBSocket implements ISocketTL {
 	
 	@Override
 	public void close() throws IOException {
-		_cbi.eventLocalInitClose(this);	
+		NBSocketOutputStream os;
+		synchronized(_socketLock) {
+			os = _outputStream;
+		}
+		
+		// Any data that is waiting in the send buffer must be sent before the close
+		try {
+			if(os != null) {
+				os.flushOnClose();
+			}
+		} finally {
+			_cbi.eventLocalInitClose(this);
+		}
 	}
 
 	@Override
@@ -155,9 +171,13 @@ public class NBSocket implements ISocketTL {
 
 	@Override
 	public OutputStream getOutputStream() throws IOException {
-		NBSocketOutputStream os = new NBSocketOutputStream(this, _cb);
-		Mapper.getInstance().put(os, _debugTriplet);
-		return os;
+		synchronized(_socketLock) {
+			if(_outputStream == null) {
+				_outputStream = new NBSocketOutputStream(this, _cb);
+				Mapper.getInstance().put(_outputStream, _debugTriplet);
+			}
+			return _outputStream;
+		}
 	}
 	
 	protected boolean internalIsConnectionClosingOrClosed() {
@@ -239,6 +259,14 @@ public class NBSocket implements ISocketTL {
 		return _debugTriplet;
 	}
 	
+	int getBrainShard() {
+		return _brainShard;
+	}
+	
+	void setBrainShard(int brainShard) {
+		_brainShard = brainShard;
+	}
+	
 	@Override
 	public boolean equals(Object paramObject) {
 		if(!(paramObject instanceof NBSocket)) {
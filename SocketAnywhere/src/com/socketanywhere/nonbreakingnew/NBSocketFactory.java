@@ -17,6 +17,8 @@
 package com.socketanywhere.nonbreakingnew;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.socketanywhere.net.IServerSocketTL;
 import com.socketanywhere.net.ISocketFactory;
@@ -43,17 +45,22 @@ public class NBSocketFactory implements ISocketFactory {
 	
 	private final ISocketFactory _socketFactory;
 		
-	private final NBOptions _options = new NBOptions();
+	private final NBOptions _options;
 	
 	/** Default is just TCP factory */
 	public NBSocketFactory() {
-		_socketFactory = new TCPSocketFactory();
-		_socketBrain = new ConnectionBrain(_socketFactory, _options, true);
-		_serverSocketBrain = new ConnectionBrain(_socketFactory, _options, false);
+		this(new TCPSocketFactory());
 	}
 	
 	public NBSocketFactory(ISocketFactory factory) {
+		this(factory, new NBOptions());
+	}
+	
+	/** Options that determine how the brains are created (such as the number of brain shards) must be set before 
+	 * the factory is created, and so are passed here. */
+	public NBSocketFactory(ISocketFactory factory, NBOptions options) {
 		_socketFactory = factory;
+		_options = options;
 		_socketBrain = new ConnectionBrain(_socketFactory, _options, true);
 		_serverSocketBrain = new ConnectionBrain(_socketFactory, _options, false);
 	}
@@ -89,5 +96,13 @@ public class NBSocketFactory implements ISocketFactory {
 	public NBOptions getOptions() {
 		return _options;
 	}
+	
+	/** Returns the metrics of each shard of the socket (connector) brain, followed by those of the server socket (connectee) brain. */
+	public List<BrainShardMetrics> getBrainShardMetrics() {
+		List<BrainShardMetrics> result = new ArrayList<BrainShardMetrics>();
+		result.addAll(_socketBrain.getShardMetrics());
+		result.addAll(_serverSocketBrain.getShardMetrics());
+		return result;
+	}
 
 }
@@ -33,12 +33,21 @@ public class NBSocketInputStream extends InputStream {
 	
 	private final ConnectionBrain _connectionBrain;
 	
-	/** Only applicable if getMaxDataReceiverBuffer() is set: true if we have recently informed the brain that our buffer is full, false if it is longer full, null if we have not informed true or false yet. */
+	/** True if we have recently informed the brain that our buffer is full, false if it is longer full, null if we have not informed true or false yet. */
 	private Boolean _lastFullSignalSent = null;  
 	
+	/** The buffer is full once half the receive window is used: the sender may soon run out of window, and will need 
+	 * a window update once the reader has caught up (once less than a quarter is used). */
+	private final int _fullThreshold;
+	private final int _notFullThreshold;
+	
 	public NBSocketInputStream(NBSocket socket, ConnectionBrain connectionBrain) {
 		_socket = socket;
 		_connectionBrain = connectionBrain;
+		
+		int receiveWindow = socket.getOptions().calculateReceiveWindow();
+		_fullThreshold = receiveWindow / 2;
+		_notFullThreshold = receiveWindow / 4;
 	}
 	
 	protected void informDataReceived(CmdData d) {
@@ -49,8 +58,8 @@ public class NBSocketInputStream extends InputStream {
 			
 			int newLength = _byteHolder.getContentsSize();
 			
-			// If the buffer has a limit, and we're over it..
-			if(newLength > _socket.getOptions().getMaxDataReceivedBuffer() && _socket.getOptions().getMaxDataReceivedBuffer() != -1) {
+			// If we're over the full threshold..
+			if(newLength > _fullThreshold) {
 				
 				// If we have not already informed the CB that we are over the buffer, then do so (we don't want to keep sending full over and over)
 				if(_lastFullSignalSent == null || _lastFullSignalSent == false) {
@@ -195,8 +204,8 @@ public class NBSocketInputStream extends InputStream {
 			// If we last informed the brain that the byte buffer was full...
 			if(result.length > 0 && _lastFullSignalSent != null && _lastFullSignalSent == true) {
 				
-				// If the byte buffer has a limit, and it is no longer full, then inform the brain
-				if(_byteHolder.getContentsSize() < _socket.getOptions().getMaxDataReceivedBuffer() && _socket.getOptions().getMaxDataReceivedBuffer() != -1) {
+				// If the byte buffer is no longer full, then inform the brain
+				if(_byteHolder.getContentsSize() < _notFullThreshold) {
 					_lastFullSignalSent = false;
 					_connectionBrain.getInterface().eventInputStreamIsFull(_socket, false);
 				}
@@ -18,10 +18,23 @@ package com.socketanywhere.nonbreakingnew;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.socketanywhere.multiplexingnew.MQMessage;
+import com.socketanywhere.multiplexingnew.MessageQueue;
 import com.socketanywhere.nonbreakingnew.cmd.CmdData;
+import com.socketanywhere.util.ManagedThread;
 
+/** Output stream of an NBSocket; each write is sent to the brain as one or more CmdData frames.
+ * 
+ * When coalescing is enabled (see NBOptions.setSendFrameTargetSize(...)), small writes are accumulated in a send 
+ * buffer, which is sent as a single frame once it reaches the target frame size, on flush() or close(), or once the 
+ * maximum linger time has elapsed. */
 public class NBSocketOutputStream extends OutputStream {
 
 	private final NBSocket _socketImpl;
@@ -30,14 +43,48 @@ public class NBSocketOutputStream extends OutputStream {
 	
 	private final ReentrantLock _lock = new ReentrantLock();
 	
+	/** Coalescing is disabled if this is 0 */
+	private final int _frameTargetSize;
+	private final int _frameMaxSize;
+	private final long _maxLingerInNanos;
+	
+	private byte[] _buffer = null;
+	private int _bufferSize = 0;
+	
+	/** When the buffered data must be sent by (in nanos), or -1 if the buffer is empty; read without the lock by the flush thread. */
+	volatile long _bufferFlushTimeInNanos = -1;
+	
+	/** Set once the socket has been closed locally, after which no further data is accepted */
+	private boolean _isClosed = false;
+	
+	/** The brain's response to the last frame sent by the flush thread, or null if it has already been checked */
+	private MessageQueue _pendingSendResult = null;
+	
+	/** A send that failed after its data was accepted from the writer; thrown by the next write, flush or close */
+	private IOException _sendException = null;
+	
 	public NBSocketOutputStream(NBSocket socketImpl, ConnectionBrain cb) {
 		_socketImpl = socketImpl;
 		_inter = cb.getInterface();
 //		_cb = cb;
+		
+		NBOptions options = socketImpl.getOptions();
+		_frameMaxSize = options.getSendFrameMaxSize();
+		_frameTargetSize = Math.min(options.getSendFrameTargetSize(), _frameMaxSize);
+		_maxLingerInNanos = TimeUnit.NANOSECONDS.convert(options.getSendMaxLinger(), TimeUnit.MILLISECONDS);
+		
+		if(_frameTargetSize > 0) {
+			_buffer = new byte[_frameMaxSize];
+		}
 	}
 	
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
+		if(_frameTargetSize > 0) {
+			writeCoalesced(b, off, len);
+			return;
+		}
+		
 //		if(!_socketImpl.internalOutputStreamIsConnected()) throw new IOException("Socket is not open.");
 //		if(_socketImpl.internalOutputStreamIsClosed()) throw new IOException("Socket has closed.");
 
@@ -60,29 +107,209 @@ public class NBSocketOutputStream extends OutputStream {
 			byte[] dataToSend = new byte[len];
 			System.arraycopy(b, off, dataToSend, 0, len);
 			
-			CmdData d = new CmdData(dataToSend, len, _socketImpl.getNextPacketId());
+			sendFrame(dataToSend, len, true);
+
+		} finally {
+			_lock.unlock();
+		}
+		
+	}
+	
+	private void writeCoalesced(byte[] b, int off, int len) throws IOException {
+		
+		_lock.lock();
+		try {
+			if(_isClosed) {
+				throw new IOException("Socket is closing or closed.");
+			}
+			
+			throwSendException();
+			
+			// Checked once per frame, rather than on every write; data written to a frame that is then sent after the 
+			// connection has closed is reported by the next write, flush or close.
+			if(_bufferSize == 0 && _socketImpl.internalIsConnectionClosingOrClosed()) {
+				throw new IOException("Socket is closing or closed.");
+			}
+			
+			while(len > 0) {
+				
+				if(_bufferSize == 0 && len >= _frameTargetSize) {
+					// Large enough to be sent as is, without buffering
+					int frameSize = Math.min(len, _frameMaxSize);
+					sendFrame(Arrays.copyOfRange(b, off, off+frameSize), frameSize, true);
+					off += frameSize;
+					len -= frameSize;
+					continue;
+				}
+				
+				int c = Math.min(len, _buffer.length - _bufferSize);
+				System.arraycopy(b, off, _buffer, _bufferSize, c);
+				_bufferSize += c;
+				off += c;
+				len -= c;
+				
+				if(_bufferSize >= _frameTargetSize) {
+					sendBuffer(true);
+				}
+			}
+			
+			if(_bufferSize > 0 && _bufferFlushTimeInNanos == -1) {
+				_bufferFlushTimeInNanos = System.nanoTime() + _maxLingerInNanos;
+				NBSendBufferFlushThread.getInstance().addStream(this);
+			}
 			
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/** Sends the contents of the send buffer as a single frame; must be called while holding _lock. */
+	private void sendBuffer(boolean waitForResult) throws IOException {
+		_bufferFlushTimeInNanos = -1;
+		
+		if(_bufferSize == 0) {
+			return;
+		}
+		
+		// The frame keeps its data until it is acknowledged, so a full buffer is handed over rather than copied
+		byte[] data;
+		if(_bufferSize == _buffer.length) {
+			data = _buffer;
+			_buffer = new byte[_frameMaxSize];
+		} else {
+			data = Arrays.copyOf(_buffer, _bufferSize);
+		}
+		
+		int size = _bufferSize;
+		_bufferSize = 0;
+		
+		sendFrame(data, size, waitForResult);
+	}
+	
+	/** Sends the given data to the brain as a CmdData; if waitForResult is true, this blocks until the brain 
+	 * has accepted the data (which it will not do while its send buffer is full). Must be called while holding _lock. */
+	private void sendFrame(byte[] data, int len, boolean waitForResult) throws IOException {
+		
+		CmdData d = new CmdData(data, len, _socketImpl.getNextPacketId());
+		
+		if(waitForResult) {
 			// Add this data to the queue, in case the other party didn't receive
 			boolean result = _inter.eventDataSent(_socketImpl, d);
 			if(!result) {
 				NBLog.debug("Unable to send outputstream data due to socket being closing or closed, cmd: "+d+"  "+_socketImpl.getDebugTriplet(), NBLog.INTERESTING);
-				throw new IOException("Connection is closed.");
+				if(_sendException == null) {
+					_sendException = new IOException("Connection is closed.");
+				}
+				throw _sendException;
 			}
+		} else {
+			_pendingSendResult = _inter.eventDataSentNoWait(_socketImpl, d);
+		}
 
-			NBLog.sent("NBSOS", d, _socketImpl.getDebugTriplet(), null, NBLog.INFO);
+		NBLog.sent("NBSOS", d, _socketImpl.getDebugTriplet(), null, NBLog.INFO);
+		
+		Mapper.getInstance().putIntoList( (Triplet)Mapper.getInstance().get(this), d );
+		Mapper.getInstance().put(d, true);
+		
+//		_socketImpl.getInnerSocket().writeCommand(d);
+		
+		NBLog.dataSent(d, _socketImpl.getDebugTriplet());
+	}
+	
+	/** Called by the flush thread once the linger time has elapsed; returns false if the buffer could not be sent 
+	 * because a writer holds the lock (for example, because it is blocked waiting for the brain), or because the 
+	 * brain has not yet accepted the previous frame sent by the flush thread, in which case it should be retried. */
+	boolean flushExpiredBuffer() {
+		if(!_lock.tryLock()) {
+			_bufferFlushTimeInNanos = System.nanoTime() + _maxLingerInNanos;
+			return false;
+		}
+		
+		try {
+			if(_bufferFlushTimeInNanos == -1 || _bufferFlushTimeInNanos - System.nanoTime() > 0) {
+				return true;
+			}
 			
-			Mapper.getInstance().putIntoList( (Triplet)Mapper.getInstance().get(this), d );
-			Mapper.getInstance().put(d, true);
+			// The flush thread is shared by all sockets, so it must not block on any one of them; but only one 
+			// frame may be outstanding, so that the flush thread cannot send past a full send window.
+			if(!checkPendingSend(false)) {
+				_bufferFlushTimeInNanos = System.nanoTime() + _maxLingerInNanos;
+				return false;
+			}
 			
-//			_socketImpl.getInnerSocket().writeCommand(d);
+			if(_sendException != null) {
+				// The writer will be told on its next call; there is no point in sending more data
+				_bufferFlushTimeInNanos = -1;
+				return true;
+			}
 			
-			NBLog.dataSent(d, _socketImpl.getDebugTriplet());
+			sendBuffer(false);
 			
-
+		} catch (IOException e) {
+			// Not thrown when not waiting for the result
+			NBLog.debug("Unable to send buffered data: "+e, NBLog.INTERESTING);
 		} finally {
 			_lock.unlock();
 		}
 		
+		return true;
+	}
+	
+	/** Checks the brain's response to the last frame sent by the flush thread, and records a failure if the data 
+	 * could not be sent. If wait is false, returns false if the brain has not yet responded. Must be called while 
+	 * holding _lock. */
+	private boolean checkPendingSend(boolean wait) {
+		if(_pendingSendResult == null) {
+			return true;
+		}
+		
+		MQMessage response = wait ? _pendingSendResult.getNextMessageBlocking() : _pendingSendResult.getNextMessageBlockingTimeout(0);
+		if(response == null) {
+			return false;
+		}
+		_pendingSendResult = null;
+		
+		if(!(Boolean)response.getParam()) {
+			NBLog.debug("Unable to send buffered data due to socket being closing or closed: "+_socketImpl.getDebugTriplet(), NBLog.INTERESTING);
+			if(_sendException == null) {
+				_sendException = new IOException("Connection is closed.");
+			}
+		}
+		return true;
+	}
+	
+	/** Throws the failure of an earlier send, which may have been made by the flush thread; blocks until the brain 
+	 * has accepted any frame sent by the flush thread. Must be called while holding _lock. */
+	private void throwSendException() throws IOException {
+		checkPendingSend(true);
+		if(_sendException != null) {
+			throw _sendException;
+		}
+	}
+	
+	/** Called by NBSocket before it is closed, to send any buffered data; throws if any data that was accepted by 
+	 * this stream could not be sent. */
+	void flushOnClose() throws IOException {
+		if(_frameTargetSize <= 0) {
+			return;
+		}
+		
+		_lock.lock();
+		try {
+			if(_isClosed) {
+				return;
+			}
+			_isClosed = true;
+			
+			throwSendException();
+			sendBuffer(true);
+			
+		} catch (IOException e) {
+			NBLog.debug("Unable to send buffered data on close: "+_socketImpl.getDebugTriplet(), NBLog.INTERESTING);
+			throw e;
+		} finally {
+			_lock.unlock();
+		}
 	}
 	
 	@Override
@@ -99,7 +326,18 @@ public class NBSocketOutputStream extends OutputStream {
 
 	@Override
 	public void close() throws IOException {
-		if(_socketImpl.internalIsConnectionClosingOrClosed()) { return; }
+		if(_socketImpl.internalIsConnectionClosingOrClosed()) {
+			if(_frameTargetSize > 0) {
+				// Report any data that was accepted by this stream, but could not be sent before the connection closed
+				_lock.lock();
+				try {
+					throwSendException();
+				} finally {
+					_lock.unlock();
+				}
+			}
+			return;
+		}
 //		if(_socketImpl.internalOutputStreamIsClosed()) { return; }
 		
 		_socketImpl.close();
@@ -107,7 +345,97 @@ public class NBSocketOutputStream extends OutputStream {
 
 	@Override
 	public void flush() throws IOException {
+		if(_frameTargetSize > 0) {
+			_lock.lock();
+			try {
+				throwSendException();
+				sendBuffer(true);
+			} finally {
+				_lock.unlock();
+			}
+		}
+		
 		_socketImpl.flushInnerSocket();
 	}
 	
 }
+
+/** Sends the buffered data of output streams once their linger time has elapsed; a single thread is shared by all 
+ * output streams. */
+class NBSendBufferFlushThread extends ManagedThread {
+	
+	private static NBSendBufferFlushThread _instance = null;
+	
+	/** Streams with buffered data; synchronize on this when accessing. */
+	private final List<NBSocketOutputStream> _streams = new ArrayList<NBSocketOutputStream>();
+	
+	private NBSendBufferFlushThread() {
+		super(NBSendBufferFlushThread.class.getName(), true);
+	}
+	
+	public static synchronized NBSendBufferFlushThread getInstance() {
+		if(_instance == null) {
+			_instance = new NBSendBufferFlushThread();
+			_instance.start();
+		}
+		return _instance;
+	}
+	
+	public void addStream(NBSocketOutputStream stream) {
+		synchronized(_streams) {
+			if(!_streams.contains(stream)) {
+				_streams.add(stream);
+			}
+			_streams.notify();
+		}
+	}
+	
+	@Override
+	public void run() {
+		List<NBSocketOutputStream> expired = new ArrayList<NBSocketOutputStream>();
+		
+		while(true) {
+			
+			synchronized(_streams) {
+				long currTime = System.nanoTime();
+				long nextFlushTime = -1;
+				
+				for(Iterator<NBSocketOutputStream> it = _streams.iterator(); it.hasNext();) {
+					NBSocketOutputStream s = it.next();
+					long flushTime = s._bufferFlushTimeInNanos;
+					
+					if(flushTime == -1) {
+						// Already sent by the stream itself
+						it.remove();
+					} else if(flushTime - currTime <= 0) {
+						expired.add(s);
+						it.remove();
+					} else if(nextFlushTime == -1 || flushTime - nextFlushTime < 0) {
+						nextFlushTime = flushTime;
+					}
+				}
+				
+				if(expired.size() == 0) {
+					try {
+						if(nextFlushTime == -1) {
+							_streams.wait();
+						} else {
+							TimeUnit.NANOSECONDS.timedWait(_streams, nextFlushTime - currTime);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+			}
+			
+			// The buffers are sent outside of the lock
+			for(NBSocketOutputStream s : expired) {
+				if(!s.flushExpiredBuffer()) {
+					addStream(s);
+				}
+			}
+			expired.clear();
+		}
+	}
+}
@@ -206,6 +206,9 @@ public class RecoveryThreadNew extends ManagedThread {
 					if(newSock != null) {
 						
 						localValidConn = new ISocketTLWrapper(newSock, false, _cb);
+						
+						// Messages for the new socket must go to the shard that owns our connection
+						_cbi.pinToShard(localValidConn, _nbSocket);
 						if(newSock instanceof ITaggedSocketTL) {
 							Map<String, Object> m = ((ITaggedSocketTL)newSock).getTagMap();
 							synchronized(m) {
@@ -0,0 +1,38 @@
+/*
+	Copyright 2012 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.socketanywhere.nonbreakingnew;
+
+import com.socketanywhere.nonbreakingnew.cmd.CmdData;
+
+/** Contained in the packet buffers of Entry*/
+class SentDataPacket implements Comparable<SentDataPacket> {
+	
+	public SentDataPacket(CmdData data) {
+		this._data = data;
+	}
+	
+	private CmdData _data;
+	
+	public CmdData getDataCmd() {
+		return _data;
+	}
+
+	@Override
+	public int compareTo(SentDataPacket o) {
+		return this._data.getFieldPacketId() - o._data.getFieldPacketId();
+	}
+}
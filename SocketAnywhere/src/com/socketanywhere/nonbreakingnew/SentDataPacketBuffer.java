@@ -0,0 +1,192 @@
+/*
+	Copyright 2012, 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package com.socketanywhere.nonbreakingnew;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The data packets of a connection that have not yet been acknowledged by the remote node, stored in a ring buffer 
+ * indexed by packet id: the slot of a packet is its offset from the oldest packet id in the buffer. 
+ * 
+ * Packet ids are allocated sequentially, so appending a packet, and locating the first packet of a range to resend, 
+ * are O(1); removing acknowledged packets is O(k) in the number of packets removed. Packets that arrive out of order 
+ * are placed in their slot, leaving empty slots for the missing ids.
+ * 
+ * Also tracks the number of data bytes held, which is used to block senders when the buffer is full. 
+ * 
+ * Not thread safe: this is only accessed by the brain thread that owns the connection. */
+class SentDataPacketBuffer {
+	
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Slots of the ring buffer; the length is always a power of 2. Slots outside of the live range are always null. */
+	private SentDataPacket[] _slots = new SentDataPacket[INITIAL_CAPACITY];
+	
+	/** Index in _slots of the packet with id _firstPacketId */
+	private int _head = 0;
+	
+	/** The packet id of the slot at _head (only meaningful if _liveSlots > 0) */
+	private int _firstPacketId = 0;
+	
+	/** The number of slots from _head to the slot of the highest packet id, inclusive */
+	private int _liveSlots = 0;
+	
+	/** The number of packets in the buffer (less than _liveSlots if there are missing ids) */
+	private int _size = 0;
+	
+	/** The total data length of the packets in the buffer */
+	private long _bytes = 0;
+	
+	public SentDataPacketBuffer() {
+	}
+	
+	public void add(SentDataPacket packet) {
+		int packetId = packet.getDataCmd().getFieldPacketId();
+		
+		if(_liveSlots == 0) {
+			_head = 0;
+			_firstPacketId = packetId;
+		} else if(packetId < _firstPacketId) {
+			// Older than any packet in the buffer, so extend the live range backwards
+			int shift = _firstPacketId - packetId;
+			ensureCapacity(_liveSlots + shift);
+			_head = (_head - shift) & (_slots.length - 1);
+			_firstPacketId = packetId;
+			_liveSlots += shift;
+		}
+		
+		int offset = packetId - _firstPacketId;
+		if(offset >= _liveSlots) {
+			ensureCapacity(offset + 1);
+			_liveSlots = offset + 1;
+		}
+		
+		int index = (_head + offset) & (_slots.length - 1);
+		
+		SentDataPacket old = _slots[index];
+		if(old != null) {
+			NBLog.severe("Duplicate data packet: "+packetId);
+			_bytes -= old.getDataCmd().getFieldDataLength();
+			_size--;
+		}
+		
+		_slots[index] = packet;
+		_size++;
+		_bytes += packet.getDataCmd().getFieldDataLength();
+	}
+	
+	/** Removes all packets with an id less than or equal to the given id; returns the number of bytes removed. */
+	public long removeUpTo(int lastPacketIdToRemove) {
+		long bytesRemoved = 0;
+		
+		while(_liveSlots > 0 && _firstPacketId <= lastPacketIdToRemove) {
+			SentDataPacket p = _slots[_head];
+			if(p != null) {
+				if(NBLog.DEBUG) {
+					NBLog.debug("[data2] Removing data packet "+p.getDataCmd(), NBLog.INFO);
+				}
+				bytesRemoved += p.getDataCmd().getFieldDataLength();
+				_slots[_head] = null;
+				_size--;
+			}
+			
+			_head = (_head + 1) & (_slots.length - 1);
+			_firstPacketId++;
+			_liveSlots--;
+		}
+		
+		_bytes -= bytesRemoved;
+		
+		return bytesRemoved;
+	}
+	
+	/** Returns the packets with an id greater than or equal to the given id, in packet id order. */
+	public List<SentDataPacket> getPacketsFrom(int firstPacketId, Triplet debugTriplet) {
+		List<SentDataPacket> result = new ArrayList<SentDataPacket>();
+		
+		if(_liveSlots == 0) {
+			return result;
+		}
+		
+		int offset = Math.max(0, firstPacketId - _firstPacketId);
+		
+		for(; offset < _liveSlots; offset++) {
+			SentDataPacket p = _slots[(_head + offset) & (_slots.length - 1)];
+			if(p == null) {
+				NBLog.severe("Missing data packet: "+(_firstPacketId + offset)+" "+debugTriplet);
+			} else {
+				result.add(p);
+			}
+		}
+		
+		return result;
+	}
+	
+	/** Returns all the packets, in packet id order. */
+	public List<SentDataPacket> getPackets(Triplet debugTriplet) {
+		return getPacketsFrom(_firstPacketId, debugTriplet);
+	}
+	
+	/** Moves all the packets of this buffer to the given buffer. */
+	public void transferTo(SentDataPacketBuffer dest) {
+		for(int offset = 0; offset < _liveSlots; offset++) {
+			SentDataPacket p = _slots[(_head + offset) & (_slots.length - 1)];
+			if(p != null) {
+				dest.add(p);
+			}
+		}
+		clear();
+	}
+	
+	public void clear() {
+		for(int offset = 0; offset < _liveSlots; offset++) {
+			_slots[(_head + offset) & (_slots.length - 1)] = null;
+		}
+		_head = 0;
+		_liveSlots = 0;
+		_size = 0;
+		_bytes = 0;
+	}
+	
+	public int size() {
+		return _size;
+	}
+	
+	public long getBytes() {
+		return _bytes;
+	}
+	
+	/** Ensures the ring buffer has at least the given number of slots; the live slots are moved to the start of the new buffer. */
+	private void ensureCapacity(int slots) {
+		if(slots <= _slots.length) {
+			return;
+		}
+		
+		int newCapacity = _slots.length;
+		while(newCapacity < slots) {
+			newCapacity *= 2;
+		}
+		
+		SentDataPacket[] newSlots = new SentDataPacket[newCapacity];
+		for(int offset = 0; offset < _liveSlots; offset++) {
+			newSlots[offset] = _slots[(_head + offset) & (_slots.length - 1)];
+		}
+		
+		_slots = newSlots;
+		_head = 0;
+	}
+}
@@ -22,10 +22,17 @@ public class CmdDataReceived extends CmdAbstract {
 	private final static byte[] BYTE_CMD_ID = {0x0, 0x4};
 	
 	private final static int PACKET_ID_FIELD_LENGTH = 4;
+	private final static int RECEIVE_WINDOW_FIELD_LENGTH = 4;
+	
+	private final static int LENGTH_WITHOUT_RECEIVE_WINDOW = MAGIC_NUMBER.length + BYTE_CMD_ID_FIELD_LENGTH + CMD_LENGTH_HEADER_FIELD_LENGTH + PACKET_ID_FIELD_LENGTH;
 	
 	// The last packet received by the sender of the command
 	private int _fieldLastPacketReceived;
 	
+	// The number of further bytes the sender of the command is able to receive (beyond the last packet received), or -1 if 
+	// not advertised. This field is optional on the wire: it is absent from the commands of older nodes, which ignore it.
+	private int _fieldReceiveWindow = -1;
+	
 	
 	public CmdDataReceived() {
 		super(ID, BYTE_CMD_ID);
@@ -36,9 +43,15 @@ public class CmdDataReceived extends CmdAbstract {
 		_fieldLastPacketReceived = lastPacketReceived;
 	}
 	
+	public CmdDataReceived(int lastPacketReceived, int receiveWindow) {
+		super(ID, BYTE_CMD_ID);
+		_fieldLastPacketReceived = lastPacketReceived;
+		_fieldReceiveWindow = receiveWindow;
+	}
+	
 	@Override
 	public byte[] buildCommand() {
-		int length = MAGIC_NUMBER.length + BYTE_CMD_ID_FIELD_LENGTH + CMD_LENGTH_HEADER_FIELD_LENGTH + PACKET_ID_FIELD_LENGTH;
+		int length = LENGTH_WITHOUT_RECEIVE_WINDOW + RECEIVE_WINDOW_FIELD_LENGTH;
 		
 		BuildGenericCmdHeaderParamPass pr = buildGenericCmdHeader(length);
 		byte[] result = pr._byteArr;
@@ -48,6 +61,11 @@ public class CmdDataReceived extends CmdAbstract {
 		byte[] packetIdArr = i2b(_fieldLastPacketReceived);
 		System.arraycopy(packetIdArr, 0, result, currPos, PACKET_ID_FIELD_LENGTH);
 		currPos += PACKET_ID_FIELD_LENGTH;
+		
+		// Receive window
+		byte[] receiveWindowArr = i2b(_fieldReceiveWindow);
+		System.arraycopy(receiveWindowArr, 0, result, currPos, RECEIVE_WINDOW_FIELD_LENGTH);
+		currPos += RECEIVE_WINDOW_FIELD_LENGTH;
 
 		return result;
 
@@ -61,6 +79,14 @@ public class CmdDataReceived extends CmdAbstract {
 		_fieldLastPacketReceived = b2i(b, currPos);
 		currPos += PACKET_ID_FIELD_LENGTH; 
 		
+		// receive window (optional)
+		if(getParsedCmdLength() >= LENGTH_WITHOUT_RECEIVE_WINDOW + RECEIVE_WINDOW_FIELD_LENGTH) {
+			_fieldReceiveWindow = b2i(b, currPos);
+			currPos += RECEIVE_WINDOW_FIELD_LENGTH;
+		} else {
+			_fieldReceiveWindow = -1;
+		}
+		
 	}
 
 	public int getLastPacketReceived() {
@@ -75,10 +101,14 @@ public class CmdDataReceived extends CmdAbstract {
 	
 	@Override
 	public String toString() {
-		return CmdDataReceived.class.getSimpleName() + " lastPacketReceived:"+_fieldLastPacketReceived; 
+		return CmdDataReceived.class.getSimpleName() + " lastPacketReceived:"+_fieldLastPacketReceived+" receiveWindow:"+_fieldReceiveWindow; 
 	}
 	
 	public int getFieldLastPacketReceived() {
 		return _fieldLastPacketReceived;
 	}
+	
+	public int getFieldReceiveWindow() {
+		return _fieldReceiveWindow;
+	}
 }
@@ -0,0 +1,139 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import junit.framework.TestCase;
+
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
+
+/** Round trip tests of FileTLFilename: every type is encoded, then parsed back to the same type and values. */
+public class FileTLFilenameTest extends TestCase {
+
+	public void testRoundTripAllTypes() {
+		for(Type t : Type.values()) {
+			if(t == Type.UNKNOWN) continue;
+
+			int count = 0;
+			for(Field f : Field.values()) {
+				if(t.indexOf(f) != -1) count++;
+			}
+
+			String[] values = new String[count];
+			for(int x = 0; x < values.length; x++) {
+				values[x] = "value"+x+"-"+t.name().toLowerCase()+":1234";
+			}
+
+			String name = FileTLFilename.encode(t, values);
+			assertTrue(name, name.startsWith(FileTLFilename.PREFIX));
+
+			FileTLFilename parsed = FileTLFilename.parse(name);
+			assertEquals(name, t, parsed.getType());
+			assertEquals(name, parsed.getName());
+
+			for(Field f : Field.values()) {
+				int index = t.indexOf(f);
+				if(index == -1) {
+					assertNull(name+" "+f, parsed.get(f));
+					assertFalse(name+" "+f, parsed.matches(f, ""));
+				} else {
+					assertEquals(name+" "+f, values[index], parsed.get(f));
+					assertTrue(name+" "+f, parsed.matches(f, values[index]));
+					assertFalse(name+" "+f, parsed.matches(f, values[index]+"x"));
+				}
+			}
+		}
+	}
+
+	/** Types whose keys are prefixes of one another, or which differ only by suffix, must not be confused */
+	public void testSimilarTypes() {
+		assertType(Type.PACKET, FileTLFilename.encode(Type.PACKET, "a:1", "b:2", "5", "conn"));
+		assertType(Type.PACKET_READY, FileTLFilename.encode(Type.PACKET_READY, "a:1", "b:2", "5", "conn"));
+		assertType(Type.SEGMENT, FileTLFilename.encode(Type.SEGMENT, "a:1", "b:2", "5", "conn"));
+		assertType(Type.ESTABLISH, FileTLFilename.encode(Type.ESTABLISH, "a:1", "b:2", "es", "conn"));
+		assertType(Type.ESTABLISH_WIRE_MODE,
+				FileTLFilename.encode(Type.ESTABLISH_WIRE_MODE, "a:1", "b:2", "es", "conn", "SEGMENT_LOG"));
+		assertType(Type.ESTABLISH_RESPONSE, FileTLFilename.encode(Type.ESTABLISH_RESPONSE, "a:1", "b:2", "es", "conn"));
+		assertType(Type.ESTABLISH_RESPONSE_WIRE_MODE,
+				FileTLFilename.encode(Type.ESTABLISH_RESPONSE_WIRE_MODE, "a:1", "b:2", "es", "conn", "SHARED_MEMORY-65536"));
+		assertType(Type.CLOSE, FileTLFilename.encode(Type.CLOSE, "a:1", "b:2", "conn"));
+		assertType(Type.TEST_ACTIVE_CONNECTION, FileTLFilename.encode(Type.TEST_ACTIVE_CONNECTION, "conn", "test"));
+		assertType(Type.TEST_ACTIVE_CONNECTION_RESPONSE,
+				FileTLFilename.encode(Type.TEST_ACTIVE_CONNECTION_RESPONSE, "conn", "test"));
+		assertType(Type.LOCK_DIRECTORY, FileTLFilename.encode(Type.LOCK_DIRECTORY, "name"));
+		assertType(Type.LOCK, FileTLFilename.encode(Type.LOCK, "name", "uuid"));
+		assertType(Type.TEST_LOCK, FileTLFilename.encode(Type.TEST_LOCK, "name", "uuid", "test"));
+		assertType(Type.TEST_LOCK_RESPONSE, FileTLFilename.encode(Type.TEST_LOCK_RESPONSE, "name", "uuid", "test"));
+	}
+
+	public void testAgreesWithExtractField() {
+		String name = FileTLFilename.encode(Type.PACKET, "a:1", "b:2", "17", "conn-uuid");
+		FileTLFilename parsed = FileTLFilename.parse(name);
+
+		assertEquals(FileTLUtil.extractField("source", name), parsed.get(Field.SOURCE));
+		assertEquals(FileTLUtil.extractField("dest", name), parsed.get(Field.DEST));
+		assertEquals(FileTLUtil.extractField("packetid", name), parsed.get(Field.PACKET_ID));
+		assertEquals(FileTLUtil.extractField("connuuid", name), parsed.get(Field.CONN_UUID));
+		assertEquals(17, parsed.getLong(Field.PACKET_ID));
+	}
+
+	public void testUnknownNames() {
+		assertType(Type.UNKNOWN, "");
+		assertType(Type.UNKNOWN, "filetl-");
+		assertType(Type.UNKNOWN, "somefile.txt");
+		assertType(Type.UNKNOWN, "filetl-unknown-key[value]");
+		assertType(Type.UNKNOWN, "filetl-packet-source[a:1]-to-dest[b:2]-packetid[5");
+		assertType(Type.UNKNOWN, "filetl-packet-source[a:1]-to-dest[b:2]-packetid[5]-connuuid[c]-extra");
+		assertType(Type.UNKNOWN, "filetl-lock[a][b][c][d][e][f]");
+
+		FileTLFilename unknown = FileTLFilename.parse("somefile.txt");
+		assertNull(unknown.get(Field.CONN_UUID));
+		assertFalse(unknown.matches(Field.CONN_UUID, ""));
+	}
+
+	public void testEncodeRejectsInvalidValues() {
+		try {
+			FileTLFilename.encode(Type.PACKET, "a:1", "b:2");
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+
+		try {
+			FileTLFilename.encode(Type.UNKNOWN);
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testDecodeIsCached() {
+		String name = FileTLFilename.encode(Type.CONNECTION_DIRECTORY, FileTLUtil.generateUUID());
+
+		FileTLFilename first = FileTLFilename.decode(name);
+		assertSame(first, FileTLFilename.decode(name));
+		assertEquals(Type.CONNECTION_DIRECTORY, first.getType());
+
+		// parse(...) bypasses the cache
+		assertNotSame(first, FileTLFilename.parse(name));
+	}
+
+	private static void assertType(Type expected, String name) {
+		assertEquals(name, expected, FileTLFilename.parse(name).getType());
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.filefactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Random;
+
+import com.socketanywhere.filefactory.FileTLFilename.Field;
+import com.socketanywhere.filefactory.FileTLFilename.Type;
+
+/** Measures the cost of scanning a directory listing of 10,000 mixed FileTL names, for the prefix matching 
+ * (startsWith/extractField) scans, and for FileTLFilename (uncached and cached). Each scan is the stale 
+ * file scan of ConnectionManager: select the per-connection files, and extract their connection UUID. 
+ * 
+ * Also measures a listing that is shared by several pollers (as with DirectoryListingService), each of which
+ * is looking for a different message type: either each poller scans the listing by prefix, or the listing 
+ * is classified once, and each poller retrieves its type. */
+public class FilenameCodecBenchmark {
+
+	private static final int FILES = 10000;
+	private static final int ITERATIONS = 200;
+	private static final int POLLERS = 4;
+	
+	public static void main(String[] args) {
+		List<String> names = generateNames(FILES);
+		
+		// Warm up each scan, before measuring
+		for(int x = 0; x < ITERATIONS; x++) {
+			prefixScan(names);
+			parseScan(names);
+			decodeScan(names);
+			pollersByPrefix(names);
+			pollersByType(names);
+		}
+		
+		long prefixTime = 0, parseTime = 0, decodeTime = 0, pollersPrefixTime = 0, pollersTypeTime = 0;
+		int prefixCount = 0, parseCount = 0, decodeCount = 0;
+		
+		for(int x = 0; x < ITERATIONS; x++) {
+			long start = System.nanoTime();
+			prefixCount = prefixScan(names);
+			prefixTime += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			parseCount = parseScan(names);
+			parseTime += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			decodeCount = decodeScan(names);
+			decodeTime += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			pollersByPrefix(names);
+			pollersPrefixTime += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			pollersByType(names);
+			pollersTypeTime += System.nanoTime() - start;
+		}
+		
+		if(prefixCount != parseCount || prefixCount != decodeCount) {
+			System.err.println("Scans disagree: "+prefixCount+" "+parseCount+" "+decodeCount);
+			return;
+		}
+		
+		System.out.println("Per scan of "+FILES+" files ("+prefixCount+" matching):");
+		System.out.println("  startsWith/extractField: "+(prefixTime / ITERATIONS / 1000)+" usecs");
+		System.out.println("  FileTLFilename.parse:    "+(parseTime / ITERATIONS / 1000)+" usecs");
+		System.out.println("  FileTLFilename.decode:   "+(decodeTime / ITERATIONS / 1000)+" usecs");
+		System.out.println("Per listing, shared by "+POLLERS+" pollers:");
+		System.out.println("  scan by prefix:          "+(pollersPrefixTime / ITERATIONS / 1000)+" usecs");
+		System.out.println("  classify by type:        "+(pollersTypeTime / ITERATIONS / 1000)+" usecs");
+	}
+	
+	private static final String[] POLLER_PREFIXES = { "filetl-establish-source[", "filetl-listening-on-[", 
+		"filetl-test-active-connection-connuuid[", "filetl-conn-connuuid[" };
+	
+	private static final Type[] POLLER_TYPES = { Type.ESTABLISH, Type.LISTENING_ON, 
+		Type.TEST_ACTIVE_CONNECTION, Type.CONNECTION_DIRECTORY };
+	
+	private static int pollersByPrefix(List<String> names) {
+		int result = 0;
+		for(int x = 0; x < POLLERS; x++) {
+			for(String fn : names) {
+				if(fn.startsWith(POLLER_PREFIXES[x])) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static int pollersByType(List<String> names) {
+		EnumMap<Type, List<String>> byType = new EnumMap<Type, List<String>>(Type.class);
+		for(String fn : names) {
+			Type t = FileTLFilename.decode(fn).getType();
+			List<String> l = byType.get(t);
+			if(l == null) {
+				l = new ArrayList<String>();
+				byType.put(t, l);
+			}
+			l.add(fn);
+		}
+		
+		int result = 0;
+		for(int x = 0; x < POLLERS; x++) {
+			List<String> l = byType.get(POLLER_TYPES[x]);
+			if(l != null) {
+				result += l.size();
+			}
+		}
+		return result;
+	}
+	
+	private static int prefixScan(List<String> names) {
+		int result = 0;
+		for(String fn : names) {
+			if(fn.startsWith("filetl-test-active-connection-connuuid") || 
+					fn.startsWith("filetl-test-active-connection-response-connuuid") || 
+					fn.startsWith("filetl-packet-source") ||
+					fn.startsWith("filetl-conn-connuuid[")) {
+				result += FileTLUtil.extractField("connuuid", fn).length();
+			}
+		}
+		return result;
+	}
+	
+	private static int parseScan(List<String> names) {
+		int result = 0;
+		for(String fn : names) {
+			result += connUUIDLength(FileTLFilename.parse(fn));
+		}
+		return result;
+	}
+	
+	private static int decodeScan(List<String> names) {
+		int result = 0;
+		for(String fn : names) {
+			result += connUUIDLength(FileTLFilename.decode(fn));
+		}
+		return result;
+	}
+	
+	private static int connUUIDLength(FileTLFilename fn) {
+		switch(fn.getType()) {
+		case TEST_ACTIVE_CONNECTION:
+		case TEST_ACTIVE_CONNECTION_RESPONSE:
+		case PACKET:
+		case PACKET_READY:
+		case SEGMENT:
+		case COMMIT:
+		case CLOSE:
+		case CONNECTION_DIRECTORY:
+			return fn.get(Field.CONN_UUID).length();
+		default:
+			return 0;
+		}
+	}
+	
+	private static List<String> generateNames(int count) {
+		Random r = new Random(1);
+		List<String> result = new ArrayList<String>();
+		
+		for(int x = 0; x < count; x++) {
+			String connUUID = FileTLUtil.generateUUID();
+			String src = "host"+r.nextInt(10)+":"+(10000+r.nextInt(100));
+			String dest = "host"+r.nextInt(10)+":"+(10000+r.nextInt(100));
+			
+			switch(r.nextInt(8)) {
+			case 0:
+				result.add(FileTLFilename.encode(Type.PACKET, src, dest, ""+x, connUUID));
+				break;
+			case 1:
+			case 2:
+				result.add(FileTLFilename.encode(Type.PACKET_READY, src, dest, ""+x, connUUID));
+				break;
+			case 3:
+				result.add(FileTLFilename.encode(Type.ESTABLISH, src, dest, FileTLUtil.generateUUID(), connUUID));
+				break;
+			case 4:
+				result.add(FileTLFilename.encode(Type.TEST_ACTIVE_CONNECTION, connUUID, FileTLUtil.generateUUID()));
+				break;
+			case 5:
+				result.add(FileTLFilename.encode(Type.LISTENING_ON, dest, FileTLUtil.generateUUID()));
+				break;
+			case 6:
+				result.add(FileTLFilename.encode(Type.CLOSE, src, dest, connUUID));
+				break;
+			default:
+				result.add(FileTLFilename.encode(Type.CONNECTION_DIRECTORY, connUUID));
+				break;
+			}
+		}
+		
+		return result;
+	}
+
+}
@@ -15,14 +15,14 @@ public class AnalyzeEntries {
 		Map<Entry, Boolean> entriesMap = new HashMap<Entry, Boolean>();
 		
 			for(ConnectionBrain cb : l) {
-			ThreadState st = cb.getInterface().getThreadStateAndStop();
-			
-			for(Entry e : st.nbSocketToEntryMapInternal.values()) {
-				entriesMap.put(e, true);
-			}
-			
-			for(Entry e : st.uuidMapInternal.values()) {
-				entriesMap.put(e, true);
+			for(ThreadState st : cb.getInterface().getThreadStatesAndStop()) {
+				for(Entry e : st.nbSocketToEntryMapInternal.values()) {
+					entriesMap.put(e, true);
+				}
+				
+				for(Entry e : st.uuidMapInternal.values()) {
+					entriesMap.put(e, true);
+				}
 			}
 		}
 			
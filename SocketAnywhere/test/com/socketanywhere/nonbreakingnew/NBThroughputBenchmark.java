@@ -0,0 +1,166 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.nonbreakingnew;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.socketanywhere.net.IServerSocketTL;
+import com.socketanywhere.net.ISocketTL;
+import com.socketanywhere.net.TLAddress;
+import com.socketanywhere.socketfactory.TCPSocketFactory;
+
+/** Measures the throughput of NB sockets over local TCP: each of a number of connections writes the same amount
+ * of data, in writes of a fixed size, to a server that reads it; the brain shard metrics of both sides are then
+ * printed (including acks per MB and send window stalls).
+ *
+ * Configured with system properties:
+ * - conns: number of connections (8), mb: MB written by each connection (8), wsize: size of each write (8192)
+ * - shards: brain shards (1), target: send frame target size, enabling write coalescing (0, disabled)
+ * - maxbuf: max data received buffer (-1), rwin: max receive window (default of NBOptions)
+ * - noflush: do not flush after the last write, so that the linger flush sends any remaining data (false)
+ * - readdelay: milliseconds to sleep after each read, to simulate a slow reader (0)
+ * - port: the server port (18777) */
+public class NBThroughputBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int conns = Integer.getInteger("conns", 8);
+		final int mb = Integer.getInteger("mb", 8);
+		final int port = Integer.getInteger("port", 18777);
+		final int writeSize = Integer.getInteger("wsize", 8192);
+		final int readDelay = Integer.getInteger("readdelay", 0);
+		final boolean noFlush = Boolean.getBoolean("noflush");
+		final long bytesPerConn = (long)mb * 1024 * 1024;
+
+		NBSocketFactory serverFactory = new NBSocketFactory(new TCPSocketFactory(), createOptions());
+		final NBSocketFactory clientFactory = new NBSocketFactory(new TCPSocketFactory(), createOptions());
+
+		final IServerSocketTL serverSocket = serverFactory.instantiateServerSocket(new TLAddress(port));
+		final AtomicLong received = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(conns);
+
+		Thread acceptThread = new Thread() {
+			public void run() {
+				try {
+					while(true) {
+						final ISocketTL s = serverSocket.accept();
+						new Thread() {
+							public void run() {
+								try {
+									readAll(s);
+								} catch(Exception e) {
+									e.printStackTrace();
+								}
+							}
+						}.start();
+					}
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+
+			private void readAll(ISocketTL s) throws Exception {
+				InputStream is = s.getInputStream();
+				byte[] buf = new byte[65536];
+				long total = 0;
+				int c;
+				while(total < bytesPerConn && (c = is.read(buf)) != -1) {
+					total += c;
+					if(readDelay > 0) {
+						Thread.sleep(readDelay);
+					}
+				}
+				received.addAndGet(total);
+
+				// Tell the writer that all of its data has arrived
+				OutputStream os = s.getOutputStream();
+				os.write(1);
+				os.flush();
+				done.countDown();
+
+				Thread.sleep(500);
+				s.close();
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		long start = System.nanoTime();
+
+		Thread[] writers = new Thread[conns];
+		for(int x = 0; x < conns; x++) {
+			writers[x] = new Thread() {
+				public void run() {
+					try {
+						ISocketTL s = clientFactory.instantiateSocket(new TLAddress("localhost", port));
+						OutputStream os = s.getOutputStream();
+						byte[] buf = new byte[writeSize];
+						for(long total = 0; total < bytesPerConn; total += buf.length) {
+							os.write(buf);
+						}
+						if(!noFlush) {
+							os.flush();
+						}
+						s.getInputStream().read();
+						s.close();
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			writers[x].start();
+		}
+
+		if(!done.await(300, TimeUnit.SECONDS)) {
+			System.err.println("Timed out, bytes received: "+received.get());
+		}
+		long timeInMsecs = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		for(Thread t : writers) {
+			t.join(10000);
+		}
+
+		System.out.println("conns: "+conns+" mb: "+mb+" write size: "+writeSize+" time: "+timeInMsecs+"ms  MB/s: "
+				+(conns * mb * 1000.0 / timeInMsecs));
+		System.out.println("client: "+clientFactory.getBrainShardMetrics());
+		System.out.println("server: "+serverFactory.getBrainShardMetrics());
+
+		System.exit(0);
+	}
+
+	private static NBOptions createOptions() {
+		NBOptions options = new NBOptions();
+		options.setBrainShards(Integer.getInteger("shards", 1));
+		options.setMaxDataReceivedBuffer(Integer.getInteger("maxbuf", -1));
+
+		int target = Integer.getInteger("target", 0);
+		if(target > 0) {
+			options.setSendFrameTargetSize(target);
+		}
+
+		int receiveWindow = Integer.getInteger("rwin", 0);
+		if(receiveWindow > 0) {
+			options.setMaxReceiveWindow(receiveWindow);
+		}
+
+		return options;
+	}
+
+}
@@ -0,0 +1,326 @@
+/*
+	Copyright 2019 Jonathan West
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.socketanywhere.nonbreakingnew;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.socketanywhere.nonbreakingnew.cmd.CmdData;
+
+/** Tests of the ring buffer of unacknowledged packets: growth and wraparound of the ring, acks (removeUpTo)
+ * at and between packets, and packets that are added out of order or with missing ids.
+ *
+ * The buffer reports missing and duplicate packets with NBLog.severe(...); the log output is captured, rather than
+ * printed, and the tests that expect such reports assert on them. */
+public class SentDataPacketBufferTest extends TestCase {
+
+	private static final String MISSING = "Missing data packet: ";
+	private static final String DUPLICATE = "Duplicate data packet: ";
+
+	private NBLog.NBLogLogListener _originalListener;
+	private CapturingLogListener _log;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_originalListener = NBLog.logListener;
+		_log = new CapturingLogListener();
+		NBLog.logListener = _log;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		NBLog.logListener = _originalListener;
+		super.tearDown();
+
+		// Every report must have been expected (and consumed) by the test
+		assertEquals(new ArrayList<String>(), _log._errors);
+	}
+
+	public void testAddAndRemoveInOrder() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		addRange(b, 0, 10);
+
+		assertEquals(10, b.size());
+		assertEquals(sumOfLengths(0, 10), b.getBytes());
+		assertEquals(range(0, 10), ids(b.getPackets(null)));
+
+		assertEquals(sumOfLengths(0, 4), b.removeUpTo(3));
+		assertEquals(6, b.size());
+		assertEquals(sumOfLengths(4, 10), b.getBytes());
+		assertEquals(range(4, 10), ids(b.getPackets(null)));
+
+		// Acks of packets that have already been removed have no effect
+		assertEquals(0, b.removeUpTo(2));
+		assertEquals(6, b.size());
+
+		assertEquals(sumOfLengths(4, 10), b.removeUpTo(9));
+		assertEquals(0, b.size());
+		assertEquals(0, b.getBytes());
+		assertEquals(range(0, 0), ids(b.getPackets(null)));
+	}
+
+	/** The head moves around the ring many times without the buffer growing */
+	public void testWraparound() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+
+		int next = 0;
+		for(int x = 0; x < 100; x++) {
+			addRange(b, next, next + 5);
+			next += 5;
+
+			// Leave a few packets unacknowledged, so that the live range straddles the end of the ring
+			b.removeUpTo(next - 4);
+
+			assertEquals(3, b.size());
+			assertEquals(range(next - 3, next), ids(b.getPackets(null)));
+			assertEquals(sumOfLengths(next - 3, next), b.getBytes());
+		}
+
+		assertEquals(range(next - 2, next), ids(b.getPacketsFrom(next - 2, null)));
+	}
+
+	/** Growing the ring while the live range wraps must keep the packets in order */
+	public void testGrowWhileWrapped() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		addRange(b, 0, 12);
+		b.removeUpTo(9);
+
+		// The ring (of 16) now wraps, and is then grown several times
+		addRange(b, 12, 200);
+
+		assertEquals(190, b.size());
+		assertEquals(range(10, 200), ids(b.getPackets(null)));
+		assertEquals(sumOfLengths(10, 200), b.getBytes());
+		assertEquals(range(150, 200), ids(b.getPacketsFrom(150, null)));
+	}
+
+	public void testGetPacketsFrom() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		assertEquals(range(0, 0), ids(b.getPacketsFrom(5, null)));
+
+		addRange(b, 20, 30);
+
+		// Before the first packet: all packets
+		assertEquals(range(20, 30), ids(b.getPacketsFrom(3, null)));
+		assertEquals(range(25, 30), ids(b.getPacketsFrom(25, null)));
+
+		// After the last packet: none
+		assertEquals(range(0, 0), ids(b.getPacketsFrom(30, null)));
+	}
+
+	/** Missing ids leave empty slots, which are skipped, and count towards neither size nor bytes */
+	public void testGaps() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		b.add(packet(0));
+		b.add(packet(3));
+		b.add(packet(40));
+
+		assertEquals(3, b.size());
+		assertEquals(length(0) + length(3) + length(40), b.getBytes());
+		assertEquals(Arrays.asList(0, 3, 40), ids(b.getPackets(null)));
+		assertReported(MISSING, missing(1, 40, 3));
+		assertEquals(Arrays.asList(3, 40), ids(b.getPacketsFrom(1, null)));
+		assertReported(MISSING, missing(1, 40, 3));
+
+		// An ack that falls within a gap removes everything before it
+		assertEquals(length(0) + length(3), b.removeUpTo(20));
+		assertEquals(1, b.size());
+		assertEquals(length(40), b.getBytes());
+		assertEquals(Arrays.asList(40), ids(b.getPackets(null)));
+		assertReported(MISSING, missing(21, 40));
+
+		// The gap is filled
+		b.add(packet(25));
+		assertEquals(Arrays.asList(25, 40), ids(b.getPackets(null)));
+		assertReported(MISSING, missing(21, 40, 25));
+	}
+
+	public void testOutOfOrderAdds() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+
+		int[] order = { 50, 52, 51, 49, 30, 55, 31, 53, 54 };
+		for(int id : order) {
+			b.add(packet(id));
+		}
+
+		assertEquals(order.length, b.size());
+		assertEquals(Arrays.asList(30, 31, 49, 50, 51, 52, 53, 54, 55), ids(b.getPackets(null)));
+		assertReported(MISSING, missing(32, 49));
+
+		assertEquals(length(30) + length(31) + length(49) + length(50), b.removeUpTo(50));
+		assertEquals(Arrays.asList(51, 52, 53, 54, 55), ids(b.getPackets(null)));
+	}
+
+	/** Acks may arrive out of order (e.g. a delayed ack after a later one), and must not remove more than once */
+	public void testOutOfOrderAcks() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		addRange(b, 0, 20);
+
+		long removed = b.removeUpTo(14);
+		removed += b.removeUpTo(7);
+		removed += b.removeUpTo(14);
+		assertEquals(sumOfLengths(0, 15), removed);
+		assertEquals(range(15, 20), ids(b.getPackets(null)));
+
+		removed += b.removeUpTo(Integer.MAX_VALUE);
+		assertEquals(sumOfLengths(0, 20), removed);
+		assertEquals(0, b.size());
+		assertEquals(0, b.getBytes());
+	}
+
+	public void testDuplicateReplacesPacket() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		addRange(b, 0, 3);
+
+		b.add(new SentDataPacket(new CmdData(new byte[100], 100, 1)));
+		assertReported(DUPLICATE, Arrays.asList(1));
+
+		assertEquals(3, b.size());
+		assertEquals(length(0) + 100 + length(2), b.getBytes());
+	}
+
+	public void testTransferTo() {
+		SentDataPacketBuffer waiting = new SentDataPacketBuffer();
+		SentDataPacketBuffer sent = new SentDataPacketBuffer();
+
+		addRange(sent, 0, 5);
+		addRange(waiting, 5, 10);
+		waiting.add(packet(12));
+
+		waiting.transferTo(sent);
+
+		assertEquals(0, waiting.size());
+		assertEquals(0, waiting.getBytes());
+		assertEquals(range(0, 0), ids(waiting.getPackets(null)));
+
+		assertEquals(11, sent.size());
+		assertEquals(sumOfLengths(0, 10) + length(12), sent.getBytes());
+
+		List<Integer> expected = range(0, 10);
+		expected.add(12);
+		assertEquals(expected, ids(sent.getPackets(null)));
+		assertReported(MISSING, Arrays.asList(10, 11));
+
+		// The emptied buffer may be reused, starting from any id
+		waiting.add(packet(100));
+		assertEquals(Arrays.asList(100), ids(waiting.getPackets(null)));
+	}
+
+	public void testClear() {
+		SentDataPacketBuffer b = new SentDataPacketBuffer();
+		addRange(b, 0, 40);
+		b.clear();
+
+		assertEquals(0, b.size());
+		assertEquals(0, b.getBytes());
+		assertEquals(0, b.removeUpTo(100));
+
+		b.add(packet(7));
+		assertEquals(Arrays.asList(7), ids(b.getPackets(null)));
+	}
+
+	/** Asserts that exactly the given packet ids were reported (with the given message) since the last call, and
+	 * clears the captured reports. */
+	private void assertReported(String message, List<Integer> expectedIds) {
+		List<Integer> reported = new ArrayList<Integer>();
+		for(String s : _log._errors) {
+			// NBLog.severe(...) prints both a formatted line and the message on its own; the latter is parsed
+			if(s.startsWith(message)) {
+				reported.add(Integer.parseInt(s.substring(message.length()).split(" ")[0]));
+			}
+		}
+		_log._errors.clear();
+
+		assertEquals(expectedIds, reported);
+	}
+
+	/** The ids from start (inclusive) to end (exclusive), except for those that are present */
+	private static List<Integer> missing(int start, int end, Integer... present) {
+		List<Integer> result = range(start, end);
+		result.removeAll(Arrays.asList(present));
+		return result;
+	}
+
+	/** Packet lengths vary with the id, so that byte counts identify which packets were removed */
+	private static int length(int packetId) {
+		return 1 + (packetId % 7) * 10;
+	}
+
+	private static SentDataPacket packet(int packetId) {
+		int len = length(packetId);
+		return new SentDataPacket(new CmdData(new byte[len], len, packetId));
+	}
+
+	/** Adds the packets from start (inclusive) to end (exclusive) */
+	private static void addRange(SentDataPacketBuffer b, int start, int end) {
+		for(int x = start; x < end; x++) {
+			b.add(packet(x));
+		}
+	}
+
+	private static long sumOfLengths(int start, int end) {
+		long result = 0;
+		for(int x = start; x < end; x++) {
+			result += length(x);
+		}
+		return result;
+	}
+
+	private static List<Integer> range(int start, int end) {
+		List<Integer> result = new ArrayList<Integer>();
+		for(int x = start; x < end; x++) {
+			result.add(x);
+		}
+		return result;
+	}
+
+	private static List<Integer> ids(List<SentDataPacket> packets) {
+		List<Integer> result = new ArrayList<Integer>();
+		for(SentDataPacket p : packets) {
+			result.add(p.getDataCmd().getFieldPacketId());
+		}
+		return result;
+	}
+
+	/** Collects the error output of NBLog, instead of printing it */
+	private static class CapturingLogListener implements NBLog.NBLogLogListener {
+
+		final List<String> _errors = new ArrayList<String>();
+
+		@Override
+		public void printErr(String logStr) {
+			_errors.add(logStr);
+		}
+
+		@Override
+		public void printOut(String logStr) {
+		}
+
+		@Override
+		public void flushErr() {
+		}
+
+		@Override
+		public void flushOut() {
+		}
+	}
+
+}